@@ -1,9 +1,48 @@
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 
 
 
+// BuiltInFunctions holds the table of built-in functions by the name Shank programs call them with
+final class BuiltInFunctions {
+    // The built-ins keep no state of their own, so every interpreter can share one table
+    private static final Map<String, BuiltInFunction> SHARED = Collections.unmodifiableMap(create());
+
+    private BuiltInFunctions() {
+    }
+
+    public static Map<String, BuiltInFunction> shared() {
+        return SHARED;
+    }
+
+    public static Map<String, BuiltInFunction> create() {
+        Map<String, BuiltInFunction> functions = new HashMap<>();
+        functions.put("read", new BuiltInRead());
+        functions.put("write", new BuiltInWrite());
+        functions.put("writeln", new BuiltInWriteln());
+        functions.put("flush", new BuiltInFlush());
+        functions.put("abs", new BuiltInAbs());
+        functions.put("sqr", new BuiltInSqr());
+        functions.put("sin", new BuiltInSin());
+        functions.put("cos", new BuiltInCos());
+        functions.put("exp", new BuiltInExp());
+        functions.put("ln", new BuiltInLn());
+        functions.put("substring", new BuiltInSubstring());
+        functions.put("integer", new BuiltInInteger());
+        functions.put("real", new BuiltInReal());
+        functions.put("openFile", new BuiltInOpenFile());
+        functions.put("readFileLine", new BuiltInReadFileLine());
+        functions.put("readFileRecord", new BuiltInReadFileRecord());
+        functions.put("writeFile", new BuiltInWriteFile());
+        functions.put("writeFileLine", new BuiltInWriteFileLine());
+        functions.put("closeFile", new BuiltInCloseFile());
+        return functions;
+    }
+}
+
 abstract class BuiltInFunction extends FunctionNode {
     //constructor
     public BuiltInFunction() {
@@ -12,6 +51,11 @@ abstract class BuiltInFunction extends FunctionNode {
 
     public abstract void execute(List<InterpreterDataType> parameters);
 
+    @Override
+    public boolean isBuiltIn() {
+        return true;
+    }
+
     @Override
     public boolean isVariadic() {
         return false;
@@ -23,14 +67,8 @@ class BuiltInRead extends BuiltInFunction {
 
     @Override
     public void execute(List<InterpreterDataType> parameters) {
-        Scanner scanner = new Scanner(System.in);
-        try {
-            for (InterpreterDataType parameter : parameters) {
-                String input = scanner.nextLine();
-                parameter.fromString(input);
-            }
-        } finally {
-            scanner.close();
+        for (InterpreterDataType parameter : parameters) {
+            parameter.fromString(ConsoleIO.readLine());
         }
     }
 
@@ -45,7 +83,7 @@ class BuiltInWrite extends BuiltInFunction {
     @Override
     public void execute(List<InterpreterDataType> parameters) {
         for (InterpreterDataType parameter : parameters) {
-            System.out.print(parameter.toString());
+            ConsoleIO.write(parameter.toString());
         }
     }
 
@@ -60,9 +98,9 @@ class BuiltInWriteln extends BuiltInFunction {
     @Override
     public void execute(List<InterpreterDataType> parameters) {
         for (InterpreterDataType parameter : parameters) {
-            System.out.print(parameter.toString());
+            ConsoleIO.write(parameter.toString());
         }
-        System.out.println();
+        ConsoleIO.writeln();
     }
 
     @Override
@@ -71,6 +109,17 @@ class BuiltInWriteln extends BuiltInFunction {
     }
 }
 
+// BuiltInFlush extends BuiltInFunction
+class BuiltInFlush extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (!parameters.isEmpty()) {
+            throw new IllegalArgumentException("Flush function takes no parameters");
+        }
+        ConsoleIO.flush();
+    }
+}
+
 // BuiltInAbs extends BuiltInFunction
 class BuiltInAbs extends BuiltInFunction {
     @Override
@@ -154,8 +203,8 @@ class BuiltInSubstring extends BuiltInFunction {
         StringDataType strValue = (StringDataType) parameters.get(0);
         IntegerDataType startIndex = (IntegerDataType) parameters.get(1);
         IntegerDataType endIndex = (IntegerDataType) parameters.get(2);
-        String subStr = strValue.toString().substring(startIndex.getValue(), endIndex.getValue());
-        strValue.fromString(subStr);
+        // The substring shares the characters of the string rather than copying them
+        strValue.assign(strValue.substring(startIndex.getValue(), endIndex.getValue()));
     }
 }
 
@@ -203,4 +252,84 @@ class BuiltInReal extends BuiltInFunction {
         }
         parameters.set(0, value);
     }
-}
\ No newline at end of file
+}
+
+// BuiltInOpenFile extends BuiltInFunction: openFile path, mode, var handle
+class BuiltInOpenFile extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (parameters.size() != 3 || !(parameters.get(0) instanceof StringDataType) ||
+            !(parameters.get(1) instanceof StringDataType) || !(parameters.get(2) instanceof IntegerDataType)) {
+            throw new IllegalArgumentException("OpenFile function requires two StringDataType parameters and an IntegerDataType parameter");
+        }
+        int handle = FileIO.open(parameters.get(0).toString(), parameters.get(1).toString());
+        ((IntegerDataType) parameters.get(2)).setValue(handle);
+    }
+}
+
+// BuiltInReadFileLine extends BuiltInFunction: readFileLine handle, var line, var found
+class BuiltInReadFileLine extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (parameters.size() != 3 || !(parameters.get(0) instanceof IntegerDataType) ||
+            !(parameters.get(1) instanceof StringDataType) || !(parameters.get(2) instanceof BooleanDataType)) {
+            throw new IllegalArgumentException("ReadFileLine function requires an IntegerDataType, a StringDataType and a BooleanDataType parameter");
+        }
+        String line = FileIO.readLine(((IntegerDataType) parameters.get(0)).getValue());
+        parameters.get(1).fromString(line == null ? "" : line);
+        ((BooleanDataType) parameters.get(2)).setValue(line != null);
+    }
+}
+
+// BuiltInReadFileRecord extends BuiltInFunction: readFileRecord handle, length, var record, var found
+class BuiltInReadFileRecord extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (parameters.size() != 4 || !(parameters.get(0) instanceof IntegerDataType) || !(parameters.get(1) instanceof IntegerDataType) ||
+            !(parameters.get(2) instanceof StringDataType) || !(parameters.get(3) instanceof BooleanDataType)) {
+            throw new IllegalArgumentException("ReadFileRecord function requires two IntegerDataType, a StringDataType and a BooleanDataType parameter");
+        }
+        String record = FileIO.readRecord(((IntegerDataType) parameters.get(0)).getValue(), ((IntegerDataType) parameters.get(1)).getValue());
+        parameters.get(2).fromString(record == null ? "" : record);
+        ((BooleanDataType) parameters.get(3)).setValue(record != null);
+    }
+}
+
+// BuiltInWriteFile extends BuiltInFunction: writeFile handle, values...
+class BuiltInWriteFile extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (parameters.isEmpty() || !(parameters.get(0) instanceof IntegerDataType)) {
+            throw new IllegalArgumentException("WriteFile function requires an IntegerDataType parameter first");
+        }
+        int handle = ((IntegerDataType) parameters.get(0)).getValue();
+        for (int i = 1; i < parameters.size(); i++) {
+            FileIO.write(handle, parameters.get(i).toString());
+        }
+    }
+
+    @Override
+    public boolean isVariadic() {
+        return true;
+    }
+}
+
+// BuiltInWriteFileLine extends BuiltInFunction: writeFileLine handle, values...
+class BuiltInWriteFileLine extends BuiltInWriteFile {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        super.execute(parameters);
+        FileIO.write(((IntegerDataType) parameters.get(0)).getValue(), System.lineSeparator());
+    }
+}
+
+// BuiltInCloseFile extends BuiltInFunction: closeFile handle
+class BuiltInCloseFile extends BuiltInFunction {
+    @Override
+    public void execute(List<InterpreterDataType> parameters) {
+        if (parameters.size() != 1 || !(parameters.get(0) instanceof IntegerDataType)) {
+            throw new IllegalArgumentException("CloseFile function requires a single IntegerDataType parameter");
+        }
+        FileIO.close(((IntegerDataType) parameters.get(0)).getValue());
+    }
+}
@@ -0,0 +1,855 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BytecodeCompiler class compiles a Shank program to a JVM class with one static
+ * method per function, so HotSpot can JIT the program like any other Java code.
+ * Integer and real variables become int and float locals. A var parameter is passed
+ * as a one-element array that the caller copies back after the call.
+ *
+ * Programs the compiler cannot translate exactly throw UnsupportedOperationException
+ * from compile(), and the caller falls back to the Interpreter. This includes strings
+ * other than literals passed to write, mixed integer and real arithmetic, repeat loops,
+ * and built-ins other than write, writeln, flush, abs, sqr, sin, cos, exp and ln.
+ */
+public class BytecodeCompiler {
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    // The kinds of value a compiled variable or expression can hold
+    private enum Kind { INT, REAL, INT_REF, REAL_REF, STRING }
+
+    private final ProgramNode program;
+    private final Map<String, FunctionNode> functions;
+
+    public BytecodeCompiler(ProgramNode program) {
+        this.program = program;
+        this.functions = new HashMap<>();
+        for (FunctionNode function : program.getFunctions()) {
+            functions.put(function.getName(), function);
+        }
+    }
+
+    /**
+     * This method compiles the program, loads the class, and returns a Runnable that
+     * calls the start function.
+     *
+     * @return Runnable - Runs the compiled program
+     * @throws UnsupportedOperationException if the program uses a feature the compiler does not translate
+     */
+    public Runnable compile() {
+        if (!functions.containsKey("start")) {
+            throw new UnsupportedOperationException("Program has no start function");
+        }
+        String className = "ShankProgram" + CLASS_COUNTER.incrementAndGet();
+        byte[] bytes = generate(className);
+        try {
+            Class<?> compiled = MethodHandles.lookup().defineClass(bytes);
+            MethodHandle start = MethodHandles.lookup().findStatic(compiled, methodName("start"), MethodType.methodType(void.class));
+            return () -> {
+                try {
+                    start.invokeExact();
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load compiled program", e);
+        }
+    }
+
+    // Generates the class file for the whole program
+    private byte[] generate(String className) {
+        ClassFileWriter writer = new ClassFileWriter(className);
+        for (FunctionNode function : program.getFunctions()) {
+            FunctionCompiler compiler = new FunctionCompiler(function, writer);
+            compiler.compile();
+            writer.addMethod(methodName(function.getName()), descriptor(function), compiler.code);
+        }
+        return writer.toBytes();
+    }
+
+    // Returns the name of the static method compiled for a function
+    private static String methodName(String functionName) {
+        return "f_" + functionName;
+    }
+
+    // Returns the kind of a declared variable, or throws if it has no compiled form
+    private static Kind kindOf(VariableNode variable, boolean parameter) {
+        String type = variable.getType().toLowerCase();
+        boolean byReference = parameter && variable.isVar();
+        if (type.equals("integer")) {
+            return byReference ? Kind.INT_REF : Kind.INT;
+        } else if (type.equals("real")) {
+            return byReference ? Kind.REAL_REF : Kind.REAL;
+        }
+        throw new UnsupportedOperationException("Variables of type " + variable.getType() + " are not compiled");
+    }
+
+    // Returns the method descriptor of a compiled function
+    private static String descriptor(FunctionNode function) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (VariableNode parameter : parameters(function)) {
+            switch (kindOf(parameter, true)) {
+                case INT:
+                    descriptor.append('I');
+                    break;
+                case REAL:
+                    descriptor.append('F');
+                    break;
+                case INT_REF:
+                    descriptor.append("[I");
+                    break;
+                default:
+                    descriptor.append("[F");
+                    break;
+            }
+        }
+        return descriptor.append(")V").toString();
+    }
+
+    // Returns the parameters of a function, treating a missing list as empty
+    private static List<VariableNode> parameters(FunctionNode function) {
+        return function.getParameters() == null ? new ArrayList<>() : function.getParameters();
+    }
+
+    // FunctionCompiler translates the body of one function into a method
+    private class FunctionCompiler {
+        private final FunctionNode function;
+        private final ClassFileWriter writer;
+        private final FrameLayout layout;
+        private final Kind[] kinds;
+        private final CodeEmitter code;
+        private int nextLocal;
+        private int intScratch;
+        private int realScratch;
+
+        FunctionCompiler(FunctionNode function, ClassFileWriter writer) {
+            this.function = function;
+            this.writer = writer;
+            this.layout = FrameLayout.of(function);
+            this.kinds = new Kind[layout.size()];
+            this.code = new CodeEmitter();
+            this.nextLocal = layout.size();
+            this.intScratch = -1;
+            this.realScratch = -1;
+
+            // Parameters and locals keep their frame slots as JVM local indexes
+            List<VariableNode> parameters = parameters(function);
+            for (int slot = 0; slot < layout.size(); slot++) {
+                if (slot < parameters.size()) {
+                    kinds[slot] = kindOf(parameters.get(slot), true);
+                } else {
+                    kinds[slot] = kindOf(function.getVariables().get(slot - parameters.size()), false);
+                }
+            }
+        }
+
+        void compile() {
+            // Local variables start at zero, as the interpreter's defaults do
+            for (int slot = layout.getParameterCount(); slot < layout.size(); slot++) {
+                if (kinds[slot] == Kind.INT) {
+                    code.op(CodeEmitter.ICONST_0, 1);
+                    code.local(CodeEmitter.ISTORE, slot, -1);
+                } else {
+                    code.op(CodeEmitter.FCONST_0, 1);
+                    code.local(CodeEmitter.FSTORE, slot, -1);
+                }
+            }
+            compileBlock(function.getStatements());
+            code.op(CodeEmitter.RETURN, 0);
+            code.setMaxLocals(nextLocal);
+        }
+
+        private void compileBlock(List<StatementNode> statements) {
+            for (StatementNode statement : statements) {
+                if (statement instanceof IfNode) {
+                    compileIf((IfNode) statement);
+                } else if (statement instanceof WhileNode) {
+                    compileWhile((WhileNode) statement);
+                } else if (statement instanceof ForNode) {
+                    compileFor((ForNode) statement);
+                } else if (statement instanceof AssignmentNode) {
+                    AssignmentNode node = (AssignmentNode) statement;
+                    int slot = layout.require(node.getVariable());
+                    requireKind(compileExpressionAs(node.getValue(), valueKind(kinds[slot])), valueKind(kinds[slot]));
+                    store(slot);
+                } else if (statement instanceof FunctionCallNode) {
+                    compileCall((FunctionCallNode) statement);
+                } else {
+                    throw new UnsupportedOperationException("Statements of type " + statement.getClass().getName() + " are not compiled");
+                }
+            }
+        }
+
+        private void compileIf(IfNode node) {
+            int next = code.newLabel();
+            int end = code.newLabel();
+            compileConditionFalseJump(node.getCondition(), next);
+            compileBlock(node.getStatements());
+            code.jump(CodeEmitter.GOTO, end, 0);
+            code.mark(next);
+            if (node.getElsifBranch() != null) {
+                compileIf(node.getElsifBranch());
+            } else if (node.getElseBranch() != null) {
+                compileBlock(node.getElseBranch().getStatements());
+            }
+            code.mark(end);
+        }
+
+        private void compileWhile(WhileNode node) {
+            int top = code.newLabel();
+            int end = code.newLabel();
+            code.mark(top);
+            compileConditionFalseJump(node.getCondition(), end);
+            compileBlock(node.getStatements());
+            code.jump(CodeEmitter.GOTO, top, 0);
+            code.mark(end);
+        }
+
+        // The counter runs in a hidden local and is copied into the variable at the start of each
+        // iteration and once more after the last one, as the interpreter does.
+        private void compileFor(ForNode node) {
+            int slot = layout.require(node.getVariable());
+            requireKind(valueKind(kinds[slot]), Kind.INT);
+            int counter = nextLocal++;
+            int end = nextLocal++;
+            int top = code.newLabel();
+            int done = code.newLabel();
+            requireKind(compileExpression(node.getFrom()), Kind.INT);
+            code.local(CodeEmitter.ISTORE, counter, -1);
+            requireKind(compileExpression(node.getTo()), Kind.INT);
+            code.local(CodeEmitter.ISTORE, end, -1);
+            code.local(CodeEmitter.ILOAD, counter, 1);
+            code.local(CodeEmitter.ILOAD, end, 1);
+            code.jump(CodeEmitter.IF_ICMPGT, done, -2);
+            code.mark(top);
+            code.local(CodeEmitter.ILOAD, counter, 1);
+            store(slot);
+            compileBlock(node.getStatements());
+            code.increment(counter);
+            code.local(CodeEmitter.ILOAD, counter, 1);
+            code.local(CodeEmitter.ILOAD, end, 1);
+            code.jump(CodeEmitter.IF_ICMPLE, top, -2);
+            code.local(CodeEmitter.ILOAD, counter, 1);
+            store(slot);
+            code.mark(done);
+        }
+
+        private void compileCall(FunctionCallNode node) {
+            String name = node.getFunctionName();
+            List<Node> arguments = node.getParameters();
+            if (functions.containsKey(name)) {
+                compileUserCall(functions.get(name), arguments);
+            } else if (name.equals("write") || name.equals("writeln")) {
+                for (Node argument : arguments) {
+                    Kind kind = compileExpression(argument);
+                    String descriptor = kind == Kind.INT ? "(I)V" : kind == Kind.REAL ? "(F)V" : "(Ljava/lang/String;)V";
+                    code.invokeStatic(writer.methodRef("ConsoleIO", "write", descriptor), -1);
+                }
+                if (name.equals("writeln")) {
+                    code.invokeStatic(writer.methodRef("ConsoleIO", "writeln", "()V"), 0);
+                }
+            } else if (name.equals("flush") && arguments.isEmpty()) {
+                code.invokeStatic(writer.methodRef("ConsoleIO", "flush", "()V"), 0);
+            } else if (name.equals("abs")) {
+                int slot = builtInTarget(arguments, Kind.INT);
+                if (slot >= 0) {
+                    load(slot);
+                    code.invokeStatic(writer.methodRef("java/lang/Math", "abs", "(I)I"), 0);
+                    store(slot);
+                }
+            } else if (Arrays.asList("sqr", "sin", "cos", "exp", "ln").contains(name)) {
+                int slot = builtInTarget(arguments, Kind.REAL);
+                if (slot >= 0) {
+                    String method = name.equals("sqr") ? "sqrt" : name.equals("ln") ? "log" : name;
+                    load(slot);
+                    code.op(CodeEmitter.F2D, 1);
+                    code.invokeStatic(writer.methodRef("java/lang/Math", method, "(D)D"), 0);
+                    code.op(CodeEmitter.D2F, -1);
+                    store(slot);
+                }
+            } else {
+                throw new UnsupportedOperationException("Calls to " + name + " are not compiled");
+            }
+        }
+
+        // Returns the slot a single-parameter numeric built-in updates, or -1 when it is given a value that is discarded
+        private int builtInTarget(List<Node> arguments, Kind kind) {
+            if (arguments.size() != 1) {
+                throw new UnsupportedOperationException("Built-in called with " + arguments.size() + " parameters");
+            }
+            Node argument = arguments.get(0);
+            requireKind(typeOf(argument), kind);
+            if (argument instanceof VariableReferenceNode) {
+                return layout.require(((VariableReferenceNode) argument).getName());
+            }
+            return -1;
+        }
+
+        private void compileUserCall(FunctionNode callee, List<Node> arguments) {
+            List<VariableNode> parameters = parameters(callee);
+            if (parameters.size() != arguments.size()) {
+                throw new UnsupportedOperationException("Incorrect number of parameters for function: " + callee.getName());
+            }
+
+            // Box each variable passed to a var parameter, unless it is already a var parameter here
+            int[] boxes = new int[arguments.size()];
+            for (int i = 0; i < arguments.size(); i++) {
+                Kind parameterKind = kindOf(parameters.get(i), true);
+                boxes[i] = -1;
+                if (parameterKind == Kind.INT_REF || parameterKind == Kind.REAL_REF) {
+                    if (!(arguments.get(i) instanceof VariableReferenceNode)) {
+                        throw new UnsupportedOperationException("Var parameter given an expression in call to " + callee.getName());
+                    }
+                    int slot = layout.require(((VariableReferenceNode) arguments.get(i)).getName());
+                    requireKind(valueKind(kinds[slot]), valueKind(parameterKind));
+                    if (kinds[slot] != parameterKind) {
+                        boxes[i] = nextLocal++;
+                        code.op(CodeEmitter.ICONST_1, 1);
+                        code.newArray(parameterKind == Kind.INT_REF ? CodeEmitter.T_INT : CodeEmitter.T_FLOAT);
+                        code.op(CodeEmitter.DUP, 1);
+                        code.op(CodeEmitter.ICONST_0, 1);
+                        load(slot);
+                        code.op(parameterKind == Kind.INT_REF ? CodeEmitter.IASTORE : CodeEmitter.FASTORE, -3);
+                        code.local(CodeEmitter.ASTORE, boxes[i], -1);
+                    }
+                }
+            }
+
+            // Push the arguments and call
+            for (int i = 0; i < arguments.size(); i++) {
+                Kind parameterKind = kindOf(parameters.get(i), true);
+                if (boxes[i] >= 0) {
+                    code.local(CodeEmitter.ALOAD, boxes[i], 1);
+                } else if (parameterKind == Kind.INT_REF || parameterKind == Kind.REAL_REF) {
+                    code.local(CodeEmitter.ALOAD, layout.require(((VariableReferenceNode) arguments.get(i)).getName()), 1);
+                } else {
+                    requireKind(compileExpressionAs(arguments.get(i), parameterKind), parameterKind);
+                }
+            }
+            code.invokeStatic(writer.methodRef(writer.className(), methodName(callee.getName()), descriptor(callee)), -arguments.size());
+
+            // Copy the boxed values back
+            for (int i = 0; i < arguments.size(); i++) {
+                if (boxes[i] >= 0) {
+                    Kind parameterKind = kindOf(parameters.get(i), true);
+                    code.local(CodeEmitter.ALOAD, boxes[i], 1);
+                    code.op(CodeEmitter.ICONST_0, 1);
+                    code.op(parameterKind == Kind.INT_REF ? CodeEmitter.IALOAD : CodeEmitter.FALOAD, -1);
+                    store(layout.require(((VariableReferenceNode) arguments.get(i)).getName()));
+                }
+            }
+        }
+
+        // Emits a comparison that jumps to the label when it is false
+        private void compileConditionFalseJump(BooleanCompareNode node, int label) {
+            Kind left = typeOf(node.getLeft());
+            requireKind(typeOf(node.getRight()), left);
+            compileExpression(node.getLeft());
+            compileExpression(node.getRight());
+            if (left == Kind.INT) {
+                int[] jumps = { CodeEmitter.IF_ICMPNE, CodeEmitter.IF_ICMPEQ, CodeEmitter.IF_ICMPGE, CodeEmitter.IF_ICMPGT, CodeEmitter.IF_ICMPLE, CodeEmitter.IF_ICMPLT };
+                code.jump(jumps[comparisonIndex(node)], label, -2);
+            } else if (left == Kind.REAL) {
+                // Float.compare orders the values the same way RealDataType.compareTo does
+                code.invokeStatic(writer.methodRef("java/lang/Float", "compare", "(FF)I"), -1);
+                int[] jumps = { CodeEmitter.IFNE, CodeEmitter.IFEQ, CodeEmitter.IFGE, CodeEmitter.IFGT, CodeEmitter.IFLE, CodeEmitter.IFLT };
+                code.jump(jumps[comparisonIndex(node)], label, -1);
+            } else {
+                throw new UnsupportedOperationException("Comparisons of " + left + " values are not compiled");
+            }
+        }
+
+        private int comparisonIndex(BooleanCompareNode node) {
+            switch (node.getComparisonType()) {
+                case EQUAL:
+                    return 0;
+                case NOT_EQUAL:
+                    return 1;
+                case LESS_THAN:
+                    return 2;
+                case LESS_OR_EQUAL:
+                    return 3;
+                case GREATER_THAN:
+                    return 4;
+                case GREATER_OR_EQUAL:
+                    return 5;
+                default:
+                    throw new UnsupportedOperationException("Unknown comparison type: " + node.getComparisonType());
+            }
+        }
+
+        // Compiles an expression whose kind must match the expected kind
+        private Kind compileExpressionAs(Node node, Kind expected) {
+            requireKind(typeOf(node), valueKind(expected));
+            return compileExpression(node);
+        }
+
+        // Emits an expression, leaving its value on the stack, and returns its kind
+        private Kind compileExpression(Node node) {
+            Kind kind = typeOf(node);
+            if (node instanceof IntegerNode) {
+                code.pushInt(((IntegerNode) node).getValue(), writer);
+            } else if (node instanceof RealNode) {
+                code.ldc(writer.floatConstant(((RealNode) node).getValue()));
+            } else if (node instanceof StringNode) {
+                code.ldc(writer.stringConstant(((StringNode) node).getValue()));
+            } else if (node instanceof VariableReferenceNode) {
+                load(layout.require(((VariableReferenceNode) node).getName()));
+            } else if (node instanceof MathOpNode) {
+                MathOpNode math = (MathOpNode) node;
+                compileExpression(math.getLeft());
+                compileExpression(math.getRight());
+                int base;
+                switch (math.getOp()) {
+                    case ADD:
+                        base = CodeEmitter.IADD;
+                        break;
+                    case SUBTRACT:
+                        base = CodeEmitter.ISUB;
+                        break;
+                    case MULTIPLY:
+                        base = CodeEmitter.IMUL;
+                        break;
+                    case DIVIDE:
+                        base = CodeEmitter.IDIV;
+                        break;
+                    case MODULO:
+                        base = CodeEmitter.IREM;
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Unknown math operation: " + math.getOp());
+                }
+                // The float form of each arithmetic opcode is two after the int form
+                code.op(kind == Kind.INT ? base : base + 2, -1);
+            } else {
+                throw new UnsupportedOperationException("Expressions of type " + node.getClass().getName() + " are not compiled");
+            }
+            return kind;
+        }
+
+        // Returns the kind of value an expression produces, or throws if it has no compiled form
+        private Kind typeOf(Node node) {
+            if (node instanceof IntegerNode) {
+                return Kind.INT;
+            } else if (node instanceof RealNode) {
+                return Kind.REAL;
+            } else if (node instanceof StringNode) {
+                return Kind.STRING;
+            } else if (node instanceof VariableReferenceNode) {
+                return valueKind(kinds[layout.require(((VariableReferenceNode) node).getName())]);
+            } else if (node instanceof MathOpNode) {
+                Kind left = typeOf(((MathOpNode) node).getLeft());
+                Kind right = typeOf(((MathOpNode) node).getRight());
+                if (left != right || left == Kind.STRING) {
+                    throw new UnsupportedOperationException("Math on " + left + " and " + right + " values is not compiled");
+                }
+                return left;
+            }
+            throw new UnsupportedOperationException("Expressions of type " + node.getClass().getName() + " are not compiled");
+        }
+
+        private void requireKind(Kind actual, Kind expected) {
+            if (actual != expected) {
+                throw new UnsupportedOperationException("Expected a " + expected + " value but found " + actual);
+            }
+        }
+
+        // Pushes the value of a variable
+        private void load(int slot) {
+            switch (kinds[slot]) {
+                case INT:
+                    code.local(CodeEmitter.ILOAD, slot, 1);
+                    break;
+                case REAL:
+                    code.local(CodeEmitter.FLOAD, slot, 1);
+                    break;
+                case INT_REF:
+                    code.local(CodeEmitter.ALOAD, slot, 1);
+                    code.op(CodeEmitter.ICONST_0, 1);
+                    code.op(CodeEmitter.IALOAD, -1);
+                    break;
+                default:
+                    code.local(CodeEmitter.ALOAD, slot, 1);
+                    code.op(CodeEmitter.ICONST_0, 1);
+                    code.op(CodeEmitter.FALOAD, -1);
+                    break;
+            }
+        }
+
+        // Pops the value on top of the stack into a variable
+        private void store(int slot) {
+            switch (kinds[slot]) {
+                case INT:
+                    code.local(CodeEmitter.ISTORE, slot, -1);
+                    break;
+                case REAL:
+                    code.local(CodeEmitter.FSTORE, slot, -1);
+                    break;
+                default:
+                    // Park the value, then store it through the array reference
+                    boolean isInt = kinds[slot] == Kind.INT_REF;
+                    int temporary = scratch(isInt);
+                    code.local(isInt ? CodeEmitter.ISTORE : CodeEmitter.FSTORE, temporary, -1);
+                    code.local(CodeEmitter.ALOAD, slot, 1);
+                    code.op(CodeEmitter.ICONST_0, 1);
+                    code.local(isInt ? CodeEmitter.ILOAD : CodeEmitter.FLOAD, temporary, 1);
+                    code.op(isInt ? CodeEmitter.IASTORE : CodeEmitter.FASTORE, -3);
+                    break;
+            }
+        }
+
+        // Returns the local that parks a value of the kind during a store, allocated on first use.
+        // The value is read back straight away, so every store in the function shares it.
+        private int scratch(boolean isInt) {
+            if (isInt) {
+                if (intScratch < 0) {
+                    intScratch = nextLocal++;
+                }
+                return intScratch;
+            }
+            if (realScratch < 0) {
+                realScratch = nextLocal++;
+            }
+            return realScratch;
+        }
+    }
+
+    // Returns the kind of value held by a variable of the given kind
+    private static Kind valueKind(Kind kind) {
+        if (kind == Kind.INT_REF) {
+            return Kind.INT;
+        } else if (kind == Kind.REAL_REF) {
+            return Kind.REAL;
+        }
+        return kind;
+    }
+}
+
+// CodeEmitter collects the bytecode of one method, tracking stack depth and patching jumps
+final class CodeEmitter {
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int FCONST_0 = 0x0b;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int FLOAD = 0x17;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int FALOAD = 0x30;
+    static final int ISTORE = 0x36;
+    static final int FSTORE = 0x38;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int FASTORE = 0x51;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int IINC = 0x84;
+    static final int F2D = 0x8d;
+    static final int D2F = 0x90;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEWARRAY = 0xbc;
+    static final int T_FLOAT = 6;
+    static final int T_INT = 10;
+
+    private byte[] bytes = new byte[256];
+    private int length;
+    private int depth;
+    private int maxStack;
+    private int maxLocals;
+    private final List<Integer> labels = new ArrayList<>();
+    private final List<int[]> fixups = new ArrayList<>();
+
+    // Emits a single-byte instruction that changes the stack depth by delta
+    void op(int opcode, int delta) {
+        u1(opcode);
+        adjust(delta);
+    }
+
+    // Emits an instruction that names a local variable
+    void local(int opcode, int index, int delta) {
+        if (index > 255) {
+            throw new UnsupportedOperationException("Too many local variables to compile");
+        }
+        u1(opcode);
+        u1(index);
+        adjust(delta);
+    }
+
+    void increment(int index) {
+        u1(IINC);
+        u1(index);
+        u1(1);
+    }
+
+    void pushInt(int value, ClassFileWriter writer) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(BIPUSH);
+            u1(value);
+            adjust(1);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(SIPUSH);
+            u2(value);
+            adjust(1);
+        } else {
+            ldc(writer.integerConstant(value));
+        }
+    }
+
+    void ldc(int index) {
+        if (index < 256) {
+            u1(LDC);
+            u1(index);
+        } else {
+            u1(LDC_W);
+            u2(index);
+        }
+        adjust(1);
+    }
+
+    void newArray(int type) {
+        u1(NEWARRAY);
+        u1(type);
+    }
+
+    void invokeStatic(int methodRef, int delta) {
+        u1(INVOKESTATIC);
+        u2(methodRef);
+        adjust(delta);
+    }
+
+    int newLabel() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+
+    void mark(int label) {
+        labels.set(label, length);
+    }
+
+    void jump(int opcode, int label, int delta) {
+        fixups.add(new int[] { length, label });
+        u1(opcode);
+        u2(0);
+        adjust(delta);
+    }
+
+    void setMaxLocals(int maxLocals) {
+        this.maxLocals = maxLocals;
+    }
+
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    int getMaxLocals() {
+        return maxLocals;
+    }
+
+    // Returns the finished code with every jump offset filled in
+    byte[] toBytes() {
+        if (length > Short.MAX_VALUE) {
+            throw new UnsupportedOperationException("Function too large to compile");
+        }
+        for (int[] fixup : fixups) {
+            int offset = labels.get(fixup[1]) - fixup[0];
+            bytes[fixup[0] + 1] = (byte) (offset >> 8);
+            bytes[fixup[0] + 2] = (byte) offset;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void adjust(int delta) {
+        depth += delta;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    private void u1(int value) {
+        if (length == bytes.length) {
+            bytes = Arrays.copyOf(bytes, length * 2);
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+}
+
+// ClassFileWriter builds a version 49 class file, which the JVM verifies without stack map frames
+final class ClassFileWriter {
+    private final String className;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int poolCount = 1;
+    private int methodCount;
+
+    ClassFileWriter(String className) {
+        this.className = className;
+    }
+
+    String className() {
+        return className;
+    }
+
+    int integerConstant(int value) {
+        return entry("I" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int floatConstant(float value) {
+        return entry("F" + Float.floatToRawIntBits(value), out -> {
+            out.writeByte(4);
+            out.writeFloat(value);
+        });
+    }
+
+    int stringConstant(String value) {
+        int utf8 = utf8(value);
+        return entry("S" + value, out -> {
+            out.writeByte(8);
+            out.writeShort(utf8);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        return entry("M" + owner + "." + name + descriptor, out -> {
+            out.writeByte(10);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    void addMethod(String name, String descriptor, CodeEmitter code) {
+        byte[] bytecode = code.toBytes();
+        try {
+            methodsOut.writeShort(0x0009); // public static
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(descriptor));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + bytecode.length);
+            methodsOut.writeShort(code.getMaxStack());
+            methodsOut.writeShort(code.getMaxLocals());
+            methodsOut.writeInt(bytecode.length);
+            methodsOut.write(bytecode);
+            methodsOut.writeShort(0);
+            methodsOut.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toBytes() {
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray());
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+        return entry("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return entry("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    // Adds a constant pool entry once and returns its index
+    private int entry(String key, PoolEntry writer) {
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private interface PoolEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,72 @@
+
+/**
+ * The CallSite class is one function call statement, resolved once before the program
+ * runs. The resolver binds the call to the function it names, so a call does not look
+ * the name up in the function table. Each argument's expression tree is also bound
+ * ahead of time. So is whether the argument is copied before the call, and the slot a
+ * var argument is written back to afterwards.
+ *
+ * A user function's arguments are evaluated straight into the frame of the call, so
+ * no list of argument values is built. A built-in is called directly, through the
+ * function object the site holds. A call to a function that does not exist, or with
+ * the wrong number of arguments, still fails only when it runs.
+ */
+final class CallSite {
+    private final String name;
+    // The function called, or null if the program has no function by that name
+    private final FunctionNode target;
+    private final boolean arityMismatch;
+    private final ExecRoot[] arguments;
+    // Whether each argument's value is copied, because it is shared or the callee must not change it
+    private final boolean[] copies;
+    // The slot of the variable each var argument is written back to, or -1 for an argument that is not
+    private final int[] writeBackSlots;
+
+    CallSite(String name, FunctionNode target, ExecRoot[] arguments, boolean[] copies, int[] writeBackSlots) {
+        this.name = name;
+        this.target = target;
+        this.arguments = arguments;
+        this.copies = copies;
+        this.writeBackSlots = writeBackSlots;
+        this.arityMismatch = target != null && !target.isBuiltIn() && arguments.length != target.getParameters().size();
+    }
+
+    // Returns the function called, or throws if the call cannot be made
+    FunctionNode target() {
+        if (target == null) {
+            throw new RuntimeException("Undefined function: " + name);
+        }
+        if (arityMismatch) {
+            throw new RuntimeException("Incorrect number of parameters for function: " + name);
+        }
+        return target;
+    }
+
+    // getter for the name the call uses, which is also the name a built-in is known by
+    String getName() {
+        return name;
+    }
+
+    int argumentCount() {
+        return arguments.length;
+    }
+
+    // Evaluates the arguments into the first slots of an array, which is the callee's frame for a user function
+    void evaluateArguments(InterpreterDataType[] frame, InterpreterDataType[] values) {
+        for (int i = 0; i < arguments.length; i++) {
+            // A var argument not yet written in the private frame of a parallel loop's range is passed empty; the
+            // semantic analysis only allows this when the callee writes the parameter before reading it
+            InterpreterDataType value = arguments[i].execute(frame);
+            values[i] = copies[i] && value != null ? value.copy() : value;
+        }
+    }
+
+    // Writes the final value of each var parameter back to the variable passed for it, in case the callee replaced it
+    void writeBack(InterpreterDataType[] frame, InterpreterDataType[] values) {
+        for (int i = 0; i < writeBackSlots.length; i++) {
+            if (writeBackSlots[i] >= 0) {
+                frame[writeBackSlots[i]] = values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+
+/**
+ * The CharClass class holds the character classes the Lexer's scanner dispatches on.
+ */
+final class CharClass {
+    static final byte INVALID = 0;
+    static final byte LETTER = 1;
+    static final byte DIGIT = 2;
+    static final byte PUNCTUATION = 3;
+    static final byte QUOTE = 4;
+    static final byte APOSTROPHE = 5;
+    static final byte HASH = 6;
+    static final byte NEWLINE = 7;
+    static final byte WHITESPACE = 8;
+    static final byte SLASH = 9;
+
+    private CharClass() {
+    }
+}
@@ -0,0 +1,146 @@
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CompiledBlock class is a block of statements as Interpreter runs it. What the
+ * resolver and the function analysis bound to each statement is looked up once, when
+ * the program is loaded, and kept in arrays parallel to the statements: the slot it
+ * writes, its expression trees, its loop plans, its call site and the blocks it runs.
+ * Running a statement reads these arrays instead of looking the node up in the
+ * resolver's identity maps each time.
+ *
+ * The body of every function is created before any is filled in, so a call can hold
+ * the body of the function it calls, even when the call is recursive.
+ */
+final class CompiledBlock {
+    final StatementNode[] statements;
+    final NodeKind[] kinds;
+    // The slot an assignment or for loop writes, or -1
+    final int[] slots;
+    // The value of an assignment, the condition of an if or while, or the start value of a for loop
+    final ExecRoot[] expressions;
+    // The end value of a for loop
+    final ExecRoot[] ends;
+    // The body of an if, while, repeat or for loop
+    final CompiledBlock[] bodies;
+    // The elsif of an if, as a block holding only that if, and its else block
+    final CompiledBlock[] elsifs;
+    final CompiledBlock[] elses;
+    // The work moved out of a while or for loop, and the plan of a parallel for loop
+    final LoopPlan[] loopPlans;
+    final ParallelPlan[] parallelPlans;
+    // The site of a call, whether it is a self tail call, and for a call to a user function its frame layout, its
+    // body and whether its results can be memoized
+    final CallSite[] sites;
+    final boolean[] tailCalls;
+    final FrameLayout[] layouts;
+    final CompiledBlock[] callees;
+    final boolean[] memoizable;
+
+    private CompiledBlock(List<StatementNode> statements) {
+        int size = statements.size();
+        this.statements = statements.toArray(new StatementNode[size]);
+        this.kinds = new NodeKind[size];
+        this.slots = new int[size];
+        this.expressions = new ExecRoot[size];
+        this.ends = new ExecRoot[size];
+        this.bodies = new CompiledBlock[size];
+        this.elsifs = new CompiledBlock[size];
+        this.elses = new CompiledBlock[size];
+        this.loopPlans = new LoopPlan[size];
+        this.parallelPlans = new ParallelPlan[size];
+        this.sites = new CallSite[size];
+        this.tailCalls = new boolean[size];
+        this.layouts = new FrameLayout[size];
+        this.callees = new CompiledBlock[size];
+        this.memoizable = new boolean[size];
+    }
+
+    // Compiles the body of every function of a program that has been resolved and analyzed
+    static Map<FunctionNode, CompiledBlock> compile(List<FunctionNode> functions, VariableResolver resolver, FunctionAnalysis analysis) {
+        Map<FunctionNode, CompiledBlock> bodies = new IdentityHashMap<>();
+        Map<String, FunctionNode> byName = new HashMap<>();
+        for (FunctionNode function : functions) {
+            bodies.put(function, new CompiledBlock(function.getStatements()));
+            byName.put(function.getName(), function);
+        }
+        for (FunctionNode function : functions) {
+            bodies.get(function).fill(resolver, analysis, bodies, byName);
+        }
+        return bodies;
+    }
+
+    // Binds every statement of the block, compiling the blocks nested in it
+    private void fill(VariableResolver resolver, FunctionAnalysis analysis, Map<FunctionNode, CompiledBlock> functionBodies, Map<String, FunctionNode> functions) {
+        for (int i = 0; i < statements.length; i++) {
+            StatementNode statement = statements[i];
+            kinds[i] = NodeKind.of(statement);
+            slots[i] = -1;
+            switch (kinds[i]) {
+                case IF: {
+                    IfNode node = (IfNode) statement;
+                    expressions[i] = resolver.getExecutable(node.getCondition());
+                    bodies[i] = nested(node.getStatements(), resolver, analysis, functionBodies, functions);
+                    if (node.getElsifBranch() != null) {
+                        elsifs[i] = nested(List.<StatementNode>of(node.getElsifBranch()), resolver, analysis, functionBodies, functions);
+                    } else if (node.getElseBranch() != null) {
+                        elses[i] = nested(node.getElseBranch().getStatements(), resolver, analysis, functionBodies, functions);
+                    }
+                    break;
+                }
+                case WHILE: {
+                    WhileNode node = (WhileNode) statement;
+                    expressions[i] = resolver.getExecutable(node.getCondition());
+                    bodies[i] = nested(node.getStatements(), resolver, analysis, functionBodies, functions);
+                    loopPlans[i] = resolver.getLoopPlan(node);
+                    break;
+                }
+                case REPEAT:
+                    bodies[i] = nested(((RepeatNode) statement).getStatements(), resolver, analysis, functionBodies, functions);
+                    break;
+                case FOR: {
+                    ForNode node = (ForNode) statement;
+                    slots[i] = resolver.getSlot(node);
+                    expressions[i] = resolver.getExecutable(node.getFrom());
+                    ends[i] = resolver.getExecutable(node.getTo());
+                    bodies[i] = nested(node.getStatements(), resolver, analysis, functionBodies, functions);
+                    loopPlans[i] = resolver.getLoopPlan(node);
+                    parallelPlans[i] = resolver.getParallelPlan(node);
+                    break;
+                }
+                case ASSIGNMENT: {
+                    AssignmentNode node = (AssignmentNode) statement;
+                    slots[i] = resolver.getSlot(node);
+                    expressions[i] = resolver.getExecutable(node.getValue());
+                    break;
+                }
+                case FUNCTION_CALL: {
+                    FunctionCallNode node = (FunctionCallNode) statement;
+                    sites[i] = resolver.getCallSite(node);
+                    tailCalls[i] = analysis.isTailCall(node);
+                    // A built-in or a missing function has no body here; the call site reports a missing one when it runs
+                    FunctionNode target = functions.get(node.getFunctionName());
+                    if (target != null) {
+                        layouts[i] = resolver.getLayout(target);
+                        callees[i] = functionBodies.get(target);
+                        memoizable[i] = analysis.isMemoizable(target);
+                    }
+                    break;
+                }
+                default:
+                    // Left for the interpreter to report when the statement is reached
+                    break;
+            }
+        }
+    }
+
+    // Compiles a block nested in a statement
+    private static CompiledBlock nested(List<StatementNode> statements, VariableResolver resolver, FunctionAnalysis analysis, Map<FunctionNode, CompiledBlock> functionBodies, Map<String, FunctionNode> functions) {
+        CompiledBlock block = new CompiledBlock(statements);
+        block.fill(resolver, analysis, functionBodies, functions);
+        return block;
+    }
+}
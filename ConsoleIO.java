@@ -0,0 +1,127 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ConsoleIO class is the console that every engine writes to and reads from.
+ * Output collects in one large buffer and is written out a buffer at a time, when the
+ * buffer fills, when a read needs the pending output shown first, on an explicit
+ * flush and at the end of the program. Input comes from a single buffered reader,
+ * kept open for the whole run.
+ *
+ * The static methods act on the console of the current Session. A program run from
+ * the command line uses System.out and System.in. The buffer is handed to whatever
+ * System.out is when it is flushed, so output redirected with System.setOut goes
+ * where it is sent. A program run by the server has a console of its own.
+ */
+final class ConsoleIO {
+    // Pending output is written out once it reaches this many characters
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private final StringBuilder output = new StringBuilder(BUFFER_SIZE);
+    // Where output and input go, or null for System.out and System.in
+    private final OutputStream target;
+    private final InputStream source;
+    private BufferedReader input;
+
+    ConsoleIO(OutputStream target, InputStream source) {
+        this.target = target;
+        this.source = source;
+    }
+
+    public static void write(String value) {
+        Session.current().console().print(value);
+    }
+
+    public static void write(int value) {
+        Session.current().console().print(value);
+    }
+
+    public static void write(float value) {
+        Session.current().console().print(value);
+    }
+
+    public static void writeln() {
+        Session.current().console().println();
+    }
+
+    // Writes out all pending output
+    public static void flush() {
+        Session.current().console().flushOutput();
+    }
+
+    // Reads the next line of input, showing any pending output first so prompts appear before the program waits
+    public static String readLine() {
+        return Session.current().console().nextLine();
+    }
+
+    synchronized void print(String value) {
+        output.append(value);
+        if (output.length() >= BUFFER_SIZE) {
+            flushOutput();
+        }
+    }
+
+    synchronized void print(int value) {
+        output.append(value);
+        if (output.length() >= BUFFER_SIZE) {
+            flushOutput();
+        }
+    }
+
+    synchronized void print(float value) {
+        output.append(value);
+        if (output.length() >= BUFFER_SIZE) {
+            flushOutput();
+        }
+    }
+
+    synchronized void println() {
+        output.append(System.lineSeparator());
+        if (output.length() >= BUFFER_SIZE) {
+            flushOutput();
+        }
+    }
+
+    synchronized void flushOutput() {
+        if (target == null) {
+            if (output.length() > 0) {
+                System.out.append(output);
+                output.setLength(0);
+            }
+            System.out.flush();
+            return;
+        }
+        try {
+            if (output.length() > 0) {
+                target.write(output.toString().getBytes(StandardCharsets.UTF_8));
+                output.setLength(0);
+            }
+            target.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write output", e);
+        }
+    }
+
+    synchronized String nextLine() {
+        flushOutput();
+        try {
+            if (input == null) {
+                InputStreamReader reader = source == null ? new InputStreamReader(System.in) : new InputStreamReader(source, StandardCharsets.UTF_8);
+                input = new BufferedReader(reader, BUFFER_SIZE);
+            }
+            String line = input.readLine();
+            if (line == null) {
+                throw new RuntimeException("Read past the end of the input");
+            }
+            return line;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read input", e);
+        }
+    }
+}
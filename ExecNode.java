@@ -0,0 +1,874 @@
+
+/**
+ * The ExecNode class is the base of the executable expression trees the interpreter
+ * runs. VariableResolver builds one tree for each expression in the program.
+ *
+ * Math and comparison nodes start uninitialized. The first time one runs, it looks at
+ * the types of its operands and replaces itself in its parent with a node specialized
+ * for them, such as IntAddNode or RealLessThanNode. A specialized node reads its
+ * operands as primitives through executeInt or executeRealOnly. If an operand ever turns
+ * out to be another type, the node replaces itself with a generic node that goes
+ * through InterpreterDataType, and stays generic.
+ *
+ * The iterations of a parallel loop run the same trees on several threads, so a node
+ * can be rewritten while others read it. Rewrites take one lock, and only the first
+ * of two threads replacing the same node succeeds. The child fields are volatile, so
+ * a thread that reads a replacement sees it fully built.
+ */
+abstract class ExecNode {
+    // Held while a node is replaced. Each node is rewritten at most twice, so the lock is rarely taken.
+    private static final Object REWRITE_LOCK = new Object();
+
+    private ExecNode parent;
+
+    // Evaluates the node to a value. Literals and variables return shared values, which callers must not change.
+    abstract InterpreterDataType execute(InterpreterDataType[] frame);
+
+    // Evaluates the node to an int, or throws with the value when it is not an integer
+    int executeInt(InterpreterDataType[] frame) throws UnexpectedResultException {
+        InterpreterDataType value = execute(frame);
+        if (value instanceof IntegerDataType) {
+            return ((IntegerDataType) value).getValue();
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    // Evaluates the node to a float, reading an integer as a real, or throws with the value when it is not a number
+    float executeReal(InterpreterDataType[] frame) throws UnexpectedResultException {
+        InterpreterDataType value = execute(frame);
+        if (value instanceof RealDataType) {
+            return ((RealDataType) value).getValue();
+        } else if (value instanceof IntegerDataType) {
+            return ((IntegerDataType) value).getValue();
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    // Evaluates the node to a float, or throws with the value when it is not a real
+    float executeRealOnly(InterpreterDataType[] frame) throws UnexpectedResultException {
+        InterpreterDataType value = execute(frame);
+        if (value instanceof RealDataType) {
+            return ((RealDataType) value).getValue();
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    // Makes this node the parent of a child that has none yet, and returns the child. A replacement takes over the
+    // children of the node it replaces only once it is in the tree; see replace.
+    protected final <T extends ExecNode> T adopt(T child) {
+        ExecNode node = child;
+        if (node.parent == null) {
+            node.parent = this;
+        }
+        return child;
+    }
+
+    // Replaces this node in its parent. If another thread has already replaced it, the tree is left as it is,
+    // and the caller finishes the operation it was running as if the replacement had been made.
+    protected final void replace(ExecNode replacement) {
+        synchronized (REWRITE_LOCK) {
+            if (parent.replaceChild(this, replacement)) {
+                replacement.parent = parent;
+                replacement.adoptChildren();
+            }
+        }
+    }
+
+    // Swaps one child for another, returning false if the old node is no longer a child. Only nodes with children
+    // override this.
+    protected boolean replaceChild(ExecNode child, ExecNode replacement) {
+        throw new IllegalStateException(getClass().getName() + " has no children");
+    }
+
+    // Makes this node the parent of its children
+    protected void adoptChildren() {
+    }
+
+    // Sets the parent of a child, whatever it was
+    protected final void reparent(ExecNode child) {
+        child.parent = this;
+    }
+}
+
+// UnexpectedResultException carries a value of a different type than a specialized node expected
+final class UnexpectedResultException extends Exception {
+    private final InterpreterDataType result;
+
+    UnexpectedResultException(InterpreterDataType result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    InterpreterDataType getResult() {
+        return result;
+    }
+}
+
+// ExecRoot holds the tree of one expression, so the top node can be replaced like any other
+final class ExecRoot extends ExecNode {
+    private volatile ExecNode child;
+
+    ExecRoot(ExecNode child) {
+        this.child = adopt(child);
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return child.execute(frame);
+    }
+
+    @Override
+    int executeInt(InterpreterDataType[] frame) throws UnexpectedResultException {
+        return child.executeInt(frame);
+    }
+
+    @Override
+    float executeReal(InterpreterDataType[] frame) throws UnexpectedResultException {
+        return child.executeReal(frame);
+    }
+
+    @Override
+    float executeRealOnly(InterpreterDataType[] frame) throws UnexpectedResultException {
+        return child.executeRealOnly(frame);
+    }
+
+    // Evaluates a comparison held by this root
+    boolean executeBoolean(InterpreterDataType[] frame) {
+        return ((CompareNode) child).executeBoolean(frame);
+    }
+
+    @Override
+    protected boolean replaceChild(ExecNode old, ExecNode replacement) {
+        if (child == old) {
+            child = replacement;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void adoptChildren() {
+        reparent(child);
+    }
+}
+
+// IntLiteralNode is an integer literal
+final class IntLiteralNode extends ExecNode {
+    private final IntegerDataType constant;
+
+    IntLiteralNode(IntegerDataType constant) {
+        this.constant = constant;
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return constant;
+    }
+
+    @Override
+    int executeInt(InterpreterDataType[] frame) {
+        return constant.getValue();
+    }
+
+    @Override
+    float executeReal(InterpreterDataType[] frame) {
+        return constant.getValue();
+    }
+}
+
+// RealLiteralNode is a real literal
+final class RealLiteralNode extends ExecNode {
+    private final RealDataType constant;
+
+    RealLiteralNode(RealDataType constant) {
+        this.constant = constant;
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return constant;
+    }
+
+    @Override
+    float executeReal(InterpreterDataType[] frame) {
+        return constant.getValue();
+    }
+
+    @Override
+    float executeRealOnly(InterpreterDataType[] frame) {
+        return constant.getValue();
+    }
+}
+
+// ConstantNode is any other literal
+final class ConstantNode extends ExecNode {
+    private final InterpreterDataType constant;
+
+    ConstantNode(InterpreterDataType constant) {
+        this.constant = constant;
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return constant;
+    }
+}
+
+// LocalReadNode reads a variable from its frame slot
+final class LocalReadNode extends ExecNode {
+    private final int slot;
+
+    LocalReadNode(int slot) {
+        this.slot = slot;
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return frame[slot];
+    }
+
+    @Override
+    int executeInt(InterpreterDataType[] frame) throws UnexpectedResultException {
+        InterpreterDataType value = frame[slot];
+        if (value instanceof IntegerDataType) {
+            return ((IntegerDataType) value).getValue();
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
+
+// MathNode holds the operands of a math operation
+abstract class MathNode extends ExecNode {
+    protected final MathOpNode.Operation op;
+    protected volatile ExecNode left;
+    protected volatile ExecNode right;
+
+    MathNode(MathOpNode.Operation op, ExecNode left, ExecNode right) {
+        this.op = op;
+        this.left = adopt(left);
+        this.right = adopt(right);
+    }
+
+    @Override
+    protected boolean replaceChild(ExecNode old, ExecNode replacement) {
+        if (left == old) {
+            left = replacement;
+        } else if (right == old) {
+            right = replacement;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void adoptChildren() {
+        reparent(left);
+        reparent(right);
+    }
+
+    // Replaces this node with the generic node and finishes the operation on values that did not fit the specialization
+    protected final InterpreterDataType generalize(InterpreterDataType leftValue, InterpreterDataType rightValue) {
+        replace(new GenericMathNode(op, left, right));
+        return leftValue.performMathOperation(op, rightValue);
+    }
+
+    // Returns the node specialized for the operation on values of these types
+    static MathNode specialize(MathOpNode.Operation op, ExecNode left, ExecNode right, InterpreterDataType leftValue, InterpreterDataType rightValue) {
+        if (leftValue instanceof IntegerDataType && rightValue instanceof IntegerDataType) {
+            switch (op) {
+                case ADD:
+                    return new IntAddNode(left, right);
+                case SUBTRACT:
+                    return new IntSubtractNode(left, right);
+                case MULTIPLY:
+                    return new IntMultiplyNode(left, right);
+                case DIVIDE:
+                    return new IntDivideNode(left, right);
+                default:
+                    return new IntModuloNode(left, right);
+            }
+        } else if ((leftValue instanceof IntegerDataType || leftValue instanceof RealDataType)
+                && (rightValue instanceof IntegerDataType || rightValue instanceof RealDataType)) {
+            boolean leftReal = leftValue instanceof RealDataType;
+            boolean rightReal = rightValue instanceof RealDataType;
+            switch (op) {
+                case ADD:
+                    return new RealAddNode(left, right, leftReal, rightReal);
+                case SUBTRACT:
+                    return new RealSubtractNode(left, right, leftReal, rightReal);
+                case MULTIPLY:
+                    return new RealMultiplyNode(left, right, leftReal, rightReal);
+                case DIVIDE:
+                    return new RealDivideNode(left, right, leftReal, rightReal);
+                default:
+                    return new RealModuloNode(left, right, leftReal, rightReal);
+            }
+        }
+        return new GenericMathNode(op, left, right);
+    }
+}
+
+// UninitializedMathNode specializes itself the first time it runs
+final class UninitializedMathNode extends MathNode {
+    UninitializedMathNode(MathOpNode.Operation op, ExecNode left, ExecNode right) {
+        super(op, left, right);
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        InterpreterDataType leftValue = left.execute(frame);
+        InterpreterDataType rightValue = right.execute(frame);
+        replace(specialize(op, left, right, leftValue, rightValue));
+        return leftValue.performMathOperation(op, rightValue);
+    }
+}
+
+// GenericMathNode handles any operand types through InterpreterDataType
+final class GenericMathNode extends MathNode {
+    GenericMathNode(MathOpNode.Operation op, ExecNode left, ExecNode right) {
+        super(op, left, right);
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return left.execute(frame).performMathOperation(op, right.execute(frame));
+    }
+}
+
+// IntMathNode computes an operation on two integers
+abstract class IntMathNode extends MathNode {
+    IntMathNode(MathOpNode.Operation op, ExecNode left, ExecNode right) {
+        super(op, left, right);
+    }
+
+    abstract int compute(int leftValue, int rightValue);
+
+    @Override
+    int executeInt(InterpreterDataType[] frame) throws UnexpectedResultException {
+        int leftValue;
+        try {
+            leftValue = left.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+        }
+        int rightValue;
+        try {
+            rightValue = right.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            throw new UnexpectedResultException(generalize(new IntegerDataType(leftValue), e.getResult()));
+        }
+        return compute(leftValue, rightValue);
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        try {
+            return new IntegerDataType(executeInt(frame));
+        } catch (UnexpectedResultException e) {
+            return e.getResult();
+        }
+    }
+
+    @Override
+    float executeReal(InterpreterDataType[] frame) throws UnexpectedResultException {
+        try {
+            return executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            if (e.getResult() instanceof RealDataType) {
+                return ((RealDataType) e.getResult()).getValue();
+            }
+            throw e;
+        }
+    }
+}
+
+final class IntAddNode extends IntMathNode {
+    IntAddNode(ExecNode left, ExecNode right) {
+        super(MathOpNode.Operation.ADD, left, right);
+    }
+
+    @Override
+    int compute(int leftValue, int rightValue) {
+        return leftValue + rightValue;
+    }
+}
+
+final class IntSubtractNode extends IntMathNode {
+    IntSubtractNode(ExecNode left, ExecNode right) {
+        super(MathOpNode.Operation.SUBTRACT, left, right);
+    }
+
+    @Override
+    int compute(int leftValue, int rightValue) {
+        return leftValue - rightValue;
+    }
+}
+
+final class IntMultiplyNode extends IntMathNode {
+    IntMultiplyNode(ExecNode left, ExecNode right) {
+        super(MathOpNode.Operation.MULTIPLY, left, right);
+    }
+
+    @Override
+    int compute(int leftValue, int rightValue) {
+        return leftValue * rightValue;
+    }
+}
+
+final class IntDivideNode extends IntMathNode {
+    IntDivideNode(ExecNode left, ExecNode right) {
+        super(MathOpNode.Operation.DIVIDE, left, right);
+    }
+
+    @Override
+    int compute(int leftValue, int rightValue) {
+        return leftValue / rightValue;
+    }
+}
+
+final class IntModuloNode extends IntMathNode {
+    IntModuloNode(ExecNode left, ExecNode right) {
+        super(MathOpNode.Operation.MODULO, left, right);
+    }
+
+    @Override
+    int compute(int leftValue, int rightValue) {
+        return leftValue % rightValue;
+    }
+}
+
+// RealMathNode computes an operation as reals on a real and a number. Each operand must keep the type it had when
+// the node was specialized, since two integers give an integer.
+abstract class RealMathNode extends MathNode {
+    private final boolean leftReal;
+    private final boolean rightReal;
+
+    RealMathNode(MathOpNode.Operation op, ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(op, left, right);
+        this.leftReal = leftReal;
+        this.rightReal = rightReal;
+    }
+
+    abstract float compute(float leftValue, float rightValue);
+
+    @Override
+    float executeReal(InterpreterDataType[] frame) throws UnexpectedResultException {
+        float leftValue;
+        int leftInteger = 0;
+        try {
+            if (leftReal) {
+                leftValue = left.executeRealOnly(frame);
+            } else {
+                leftInteger = left.executeInt(frame);
+                leftValue = leftInteger;
+            }
+        } catch (UnexpectedResultException e) {
+            throw new UnexpectedResultException(generalize(e.getResult(), right.execute(frame)));
+        }
+        float rightValue;
+        try {
+            rightValue = rightReal ? right.executeRealOnly(frame) : right.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            InterpreterDataType leftOperand = leftReal ? new RealDataType(leftValue) : new IntegerDataType(leftInteger);
+            throw new UnexpectedResultException(generalize(leftOperand, e.getResult()));
+        }
+        return compute(leftValue, rightValue);
+    }
+
+    @Override
+    float executeRealOnly(InterpreterDataType[] frame) throws UnexpectedResultException {
+        return executeReal(frame);
+    }
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        try {
+            return new RealDataType(executeReal(frame));
+        } catch (UnexpectedResultException e) {
+            return e.getResult();
+        }
+    }
+}
+
+final class RealAddNode extends RealMathNode {
+    RealAddNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(MathOpNode.Operation.ADD, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    float compute(float leftValue, float rightValue) {
+        return leftValue + rightValue;
+    }
+}
+
+final class RealSubtractNode extends RealMathNode {
+    RealSubtractNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(MathOpNode.Operation.SUBTRACT, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    float compute(float leftValue, float rightValue) {
+        return leftValue - rightValue;
+    }
+}
+
+final class RealMultiplyNode extends RealMathNode {
+    RealMultiplyNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(MathOpNode.Operation.MULTIPLY, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    float compute(float leftValue, float rightValue) {
+        return leftValue * rightValue;
+    }
+}
+
+final class RealDivideNode extends RealMathNode {
+    RealDivideNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(MathOpNode.Operation.DIVIDE, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    float compute(float leftValue, float rightValue) {
+        return leftValue / rightValue;
+    }
+}
+
+final class RealModuloNode extends RealMathNode {
+    RealModuloNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(MathOpNode.Operation.MODULO, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    float compute(float leftValue, float rightValue) {
+        return leftValue % rightValue;
+    }
+}
+
+// CompareNode holds the operands of a comparison
+abstract class CompareNode extends ExecNode {
+    protected final BooleanCompareNode.ComparisonType type;
+    protected volatile ExecNode left;
+    protected volatile ExecNode right;
+
+    CompareNode(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right) {
+        this.type = type;
+        this.left = adopt(left);
+        this.right = adopt(right);
+    }
+
+    abstract boolean executeBoolean(InterpreterDataType[] frame);
+
+    @Override
+    InterpreterDataType execute(InterpreterDataType[] frame) {
+        return new BooleanDataType(executeBoolean(frame));
+    }
+
+    @Override
+    protected boolean replaceChild(ExecNode old, ExecNode replacement) {
+        if (left == old) {
+            left = replacement;
+        } else if (right == old) {
+            right = replacement;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void adoptChildren() {
+        reparent(left);
+        reparent(right);
+    }
+
+    // Replaces this node with the generic node and finishes the comparison on values that did not fit the specialization
+    protected final boolean generalize(InterpreterDataType leftValue, InterpreterDataType rightValue) {
+        replace(new GenericCompareNode(type, left, right));
+        return test(type, leftValue.compareTo(rightValue));
+    }
+
+    // Returns whether the result of a comparison satisfies the comparison type
+    static boolean test(BooleanCompareNode.ComparisonType type, int comparison) {
+        switch (type) {
+            case EQUAL:
+                return comparison == 0;
+            case NOT_EQUAL:
+                return comparison != 0;
+            case LESS_THAN:
+                return comparison < 0;
+            case LESS_OR_EQUAL:
+                return comparison <= 0;
+            case GREATER_THAN:
+                return comparison > 0;
+            case GREATER_OR_EQUAL:
+                return comparison >= 0;
+            default:
+                throw new RuntimeException("Unknown comparison type: " + type);
+        }
+    }
+
+    // Returns the node specialized for the comparison of values of these types
+    static CompareNode specialize(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right, InterpreterDataType leftValue, InterpreterDataType rightValue) {
+        if (leftValue instanceof IntegerDataType && rightValue instanceof IntegerDataType) {
+            switch (type) {
+                case EQUAL:
+                    return new IntEqualNode(left, right);
+                case NOT_EQUAL:
+                    return new IntNotEqualNode(left, right);
+                case LESS_THAN:
+                    return new IntLessThanNode(left, right);
+                case LESS_OR_EQUAL:
+                    return new IntLessOrEqualNode(left, right);
+                case GREATER_THAN:
+                    return new IntGreaterThanNode(left, right);
+                default:
+                    return new IntGreaterOrEqualNode(left, right);
+            }
+        } else if ((leftValue instanceof IntegerDataType || leftValue instanceof RealDataType)
+                && (rightValue instanceof IntegerDataType || rightValue instanceof RealDataType)) {
+            boolean leftReal = leftValue instanceof RealDataType;
+            boolean rightReal = rightValue instanceof RealDataType;
+            switch (type) {
+                case EQUAL:
+                    return new RealEqualNode(left, right, leftReal, rightReal);
+                case NOT_EQUAL:
+                    return new RealNotEqualNode(left, right, leftReal, rightReal);
+                case LESS_THAN:
+                    return new RealLessThanNode(left, right, leftReal, rightReal);
+                case LESS_OR_EQUAL:
+                    return new RealLessOrEqualNode(left, right, leftReal, rightReal);
+                case GREATER_THAN:
+                    return new RealGreaterThanNode(left, right, leftReal, rightReal);
+                default:
+                    return new RealGreaterOrEqualNode(left, right, leftReal, rightReal);
+            }
+        }
+        return new GenericCompareNode(type, left, right);
+    }
+}
+
+// UninitializedCompareNode specializes itself the first time it runs
+final class UninitializedCompareNode extends CompareNode {
+    UninitializedCompareNode(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right) {
+        super(type, left, right);
+    }
+
+    @Override
+    boolean executeBoolean(InterpreterDataType[] frame) {
+        InterpreterDataType leftValue = left.execute(frame);
+        InterpreterDataType rightValue = right.execute(frame);
+        replace(specialize(type, left, right, leftValue, rightValue));
+        return test(type, leftValue.compareTo(rightValue));
+    }
+}
+
+// GenericCompareNode compares any values through InterpreterDataType
+final class GenericCompareNode extends CompareNode {
+    GenericCompareNode(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right) {
+        super(type, left, right);
+    }
+
+    @Override
+    boolean executeBoolean(InterpreterDataType[] frame) {
+        return test(type, left.execute(frame).compareTo(right.execute(frame)));
+    }
+}
+
+// IntCompareNode compares two integers
+abstract class IntCompareNode extends CompareNode {
+    IntCompareNode(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right) {
+        super(type, left, right);
+    }
+
+    abstract boolean compare(int leftValue, int rightValue);
+
+    @Override
+    boolean executeBoolean(InterpreterDataType[] frame) {
+        int leftValue;
+        try {
+            leftValue = left.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            return generalize(e.getResult(), right.execute(frame));
+        }
+        int rightValue;
+        try {
+            rightValue = right.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            return generalize(new IntegerDataType(leftValue), e.getResult());
+        }
+        return compare(leftValue, rightValue);
+    }
+}
+
+final class IntEqualNode extends IntCompareNode {
+    IntEqualNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.EQUAL, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue == rightValue;
+    }
+}
+
+final class IntNotEqualNode extends IntCompareNode {
+    IntNotEqualNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.NOT_EQUAL, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue != rightValue;
+    }
+}
+
+final class IntLessThanNode extends IntCompareNode {
+    IntLessThanNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.LESS_THAN, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue < rightValue;
+    }
+}
+
+final class IntLessOrEqualNode extends IntCompareNode {
+    IntLessOrEqualNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.LESS_OR_EQUAL, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue <= rightValue;
+    }
+}
+
+final class IntGreaterThanNode extends IntCompareNode {
+    IntGreaterThanNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.GREATER_THAN, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue > rightValue;
+    }
+}
+
+final class IntGreaterOrEqualNode extends IntCompareNode {
+    IntGreaterOrEqualNode(ExecNode left, ExecNode right) {
+        super(BooleanCompareNode.ComparisonType.GREATER_OR_EQUAL, left, right);
+    }
+
+    @Override
+    boolean compare(int leftValue, int rightValue) {
+        return leftValue >= rightValue;
+    }
+}
+
+// RealCompareNode compares a real and a number as reals, ordering them as Float.compare does. Each operand must keep
+// the type it had when the node was specialized, since two integers are compared as integers.
+abstract class RealCompareNode extends CompareNode {
+    private final boolean leftReal;
+    private final boolean rightReal;
+
+    RealCompareNode(BooleanCompareNode.ComparisonType type, ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(type, left, right);
+        this.leftReal = leftReal;
+        this.rightReal = rightReal;
+    }
+
+    abstract boolean compare(float leftValue, float rightValue);
+
+    @Override
+    boolean executeBoolean(InterpreterDataType[] frame) {
+        float leftValue;
+        int leftInteger = 0;
+        try {
+            if (leftReal) {
+                leftValue = left.executeRealOnly(frame);
+            } else {
+                leftInteger = left.executeInt(frame);
+                leftValue = leftInteger;
+            }
+        } catch (UnexpectedResultException e) {
+            return generalize(e.getResult(), right.execute(frame));
+        }
+        float rightValue;
+        try {
+            rightValue = rightReal ? right.executeRealOnly(frame) : right.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            InterpreterDataType leftOperand = leftReal ? new RealDataType(leftValue) : new IntegerDataType(leftInteger);
+            return generalize(leftOperand, e.getResult());
+        }
+        return compare(leftValue, rightValue);
+    }
+}
+
+final class RealEqualNode extends RealCompareNode {
+    RealEqualNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.EQUAL, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) == 0;
+    }
+}
+
+final class RealNotEqualNode extends RealCompareNode {
+    RealNotEqualNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.NOT_EQUAL, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) != 0;
+    }
+}
+
+final class RealLessThanNode extends RealCompareNode {
+    RealLessThanNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.LESS_THAN, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) < 0;
+    }
+}
+
+final class RealLessOrEqualNode extends RealCompareNode {
+    RealLessOrEqualNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.LESS_OR_EQUAL, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) <= 0;
+    }
+}
+
+final class RealGreaterThanNode extends RealCompareNode {
+    RealGreaterThanNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.GREATER_THAN, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) > 0;
+    }
+}
+
+final class RealGreaterOrEqualNode extends RealCompareNode {
+    RealGreaterOrEqualNode(ExecNode left, ExecNode right, boolean leftReal, boolean rightReal) {
+        super(BooleanCompareNode.ComparisonType.GREATER_OR_EQUAL, left, right, leftReal, rightReal);
+    }
+
+    @Override
+    boolean compare(float leftValue, float rightValue) {
+        return Float.compare(leftValue, rightValue) >= 0;
+    }
+}
@@ -0,0 +1,366 @@
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The FileIO class keeps the files a Shank program opens with the file built-ins.
+ * A program knows each open file by an integer handle. Files are read and written
+ * through FileChannels: small files through a direct buffer, and files of a megabyte
+ * or more through memory-mapped regions, so large inputs stream without being copied
+ * onto the heap first. Text is UTF-8. A record read by length holds up to that many
+ * bytes and never ends partway through a character. A character that does not fit is
+ * left for the next read, unless it is the first of the record, which is read whole.
+ *
+ * The static methods act on the files of the current Session, so programs run side
+ * by side by the server never see each other's handles. A program run by the server
+ * may not open files at all, as it would act on the server's file system with the
+ * server's permissions, so its session's FileIO refuses every open. Files still open
+ * when the program ends are closed by closeAll, which writes out anything still
+ * buffered, and closes the rest even if one fails.
+ * Each file is used by one thread at a time, so the iterations of a parallel loop
+ * can share a handle.
+ */
+final class FileIO {
+    // Size of the direct buffers used for reading small files and for writing
+    static final int BUFFER_SIZE = 1 << 16;
+    // Files at least this large are read through mapped regions
+    static final long MAP_THRESHOLD = 1 << 20;
+    // Size of each mapped region of a large file
+    static final long REGION_SIZE = 1 << 26;
+
+    private final Map<Integer, ShankFile> files = new HashMap<>();
+    private final boolean openAllowed;
+    private int nextHandle = 1;
+
+    // Creates the files of a session, which may open files only if openAllowed is set
+    FileIO(boolean openAllowed) {
+        this.openAllowed = openAllowed;
+    }
+
+    // Opens a file for reading, writing or appending and returns its handle
+    public static int open(String path, String mode) {
+        return Session.current().files().openFile(path, mode);
+    }
+
+    // Reads the next line of a file, without its line terminator, or returns null at the end of the file
+    public static String readLine(int handle) {
+        ShankFile file = Session.current().files().get(handle);
+        try {
+            synchronized (file) {
+                return file.readLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read file " + handle, e);
+        }
+    }
+
+    // Reads the next record of up to length bytes, ending at a character boundary, or returns null at the end of the file
+    public static String readRecord(int handle, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Record length must be positive");
+        }
+        ShankFile file = Session.current().files().get(handle);
+        try {
+            synchronized (file) {
+                return file.readRecord(length);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read file " + handle, e);
+        }
+    }
+
+    // Writes text to a file
+    public static void write(int handle, String text) {
+        ShankFile file = Session.current().files().get(handle);
+        try {
+            synchronized (file) {
+                file.write(text);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write file " + handle, e);
+        }
+    }
+
+    // Closes a file, writing out anything still buffered
+    public static void close(int handle) {
+        Session.current().files().closeFile(handle);
+    }
+
+    // Closes every file still open, even if closing one of them fails
+    public static void closeAll() {
+        Session.current().files().closeFiles();
+    }
+
+    synchronized int openFile(String path, String mode) {
+        if (!openAllowed) {
+            throw new UnsupportedOperationException("File access is disabled for programs run by the server");
+        }
+        try {
+            ShankFile file;
+            switch (mode.toLowerCase()) {
+                case "read":
+                    file = new ShankFileReader(Paths.get(path));
+                    break;
+                case "write":
+                    file = new ShankFileWriter(Paths.get(path), StandardOpenOption.TRUNCATE_EXISTING);
+                    break;
+                case "append":
+                    file = new ShankFileWriter(Paths.get(path), StandardOpenOption.APPEND);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown file mode " + mode + ", expecting read, write or append");
+            }
+            int handle = nextHandle++;
+            files.put(handle, file);
+            return handle;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open " + path, e);
+        }
+    }
+
+    synchronized ShankFile get(int handle) {
+        ShankFile file = files.get(handle);
+        if (file == null) {
+            throw new IllegalArgumentException("No open file with handle " + handle);
+        }
+        return file;
+    }
+
+    synchronized void closeFile(int handle) {
+        ShankFile file = files.remove(handle);
+        if (file == null) {
+            throw new IllegalArgumentException("No open file with handle " + handle);
+        }
+        try {
+            synchronized (file) {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close file " + handle, e);
+        }
+    }
+
+    // Closes every file, then throws the first failure with any later ones suppressed in it
+    synchronized void closeFiles() {
+        RuntimeException failure = null;
+        for (Integer handle : new ArrayList<>(files.keySet())) {
+            try {
+                closeFile(handle);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+
+// ShankFile is a file opened by a Shank program; each kind supports only the operations its mode allows
+abstract class ShankFile {
+    String readLine() throws IOException {
+        throw new IllegalArgumentException("File is not open for reading");
+    }
+
+    String readRecord(int length) throws IOException {
+        throw new IllegalArgumentException("File is not open for reading");
+    }
+
+    void write(String text) throws IOException {
+        throw new IllegalArgumentException("File is not open for writing");
+    }
+
+    abstract void close() throws IOException;
+}
+
+// ShankFileReader reads a file a window at a time, where the window is either a direct buffer or a mapped region
+final class ShankFileReader extends ShankFile {
+    private final FileChannel channel;
+    private final long size;
+    private final boolean mapped;
+    private ByteBuffer window;
+    // File position just past the last mapped region
+    private long mappedEnd;
+    // Bytes of the line or record being read
+    private byte[] pending = new byte[256];
+    // Bytes at the start of pending that were read but left over from the last record, because they begin a character
+    // the record could not hold
+    private int carried;
+
+    ShankFileReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        mapped = size >= FileIO.MAP_THRESHOLD;
+        window = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocateDirect(FileIO.BUFFER_SIZE).flip();
+    }
+
+    // Makes sure the window has bytes left to read, returning false at the end of the file
+    private boolean fill() throws IOException {
+        if (window.hasRemaining()) {
+            return true;
+        }
+        if (mapped) {
+            if (mappedEnd >= size) {
+                return false;
+            }
+            long length = Math.min(FileIO.REGION_SIZE, size - mappedEnd);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, mappedEnd, length);
+            mappedEnd += length;
+            return true;
+        }
+        window.clear();
+        int read = channel.read(window);
+        window.flip();
+        return read > 0;
+    }
+
+    @Override
+    String readLine() throws IOException {
+        int count = carried;
+        boolean found = carried > 0;
+        carried = 0;
+        while (fill()) {
+            found = true;
+            // Look for the end of the line in the window, then copy the bytes before it in one go
+            int start = window.position();
+            int end = start;
+            int limit = window.limit();
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+            count = take(count, end - start);
+            if (end < limit) {
+                window.position(end + 1);
+                return decode(count, true);
+            }
+        }
+        return found ? decode(count, true) : null;
+    }
+
+    @Override
+    String readRecord(int length) throws IOException {
+        int count = carried;
+        carried = 0;
+        while (count < length && fill()) {
+            count = take(count, Math.min(length - count, window.remaining()));
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        // A full record that ends partway through a character ends before it instead
+        int end = count;
+        if (count >= length) {
+            int start = count - 1;
+            while (start > 0 && start > count - 4 && (pending[start] & 0xC0) == 0x80) {
+                start--;
+            }
+            int characterLength = utf8Length(pending[start]);
+            if (start + characterLength > count) {
+                if (start > 0) {
+                    end = start;
+                } else {
+                    // The first character alone is longer than the record, so it is read whole
+                    while (count < characterLength && fill()) {
+                        count = take(count, Math.min(characterLength - count, window.remaining()));
+                    }
+                    end = count;
+                }
+            }
+        }
+        String record = decode(end, false);
+        carried = count - end;
+        System.arraycopy(pending, end, pending, 0, carried);
+        return record;
+    }
+
+    // Returns the number of bytes in the UTF-8 sequence a byte starts, counting a byte that starts none as one
+    private static int utf8Length(byte lead) {
+        if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        } else if ((lead & 0xF0) == 0xE0) {
+            return 3;
+        } else if ((lead & 0xF8) == 0xF0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    // Moves bytes from the window to the end of the pending bytes, returning the new pending count
+    private int take(int count, int length) {
+        if (count + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + length));
+        }
+        window.get(pending, count, length);
+        return count + length;
+    }
+
+    // Decodes the pending bytes, dropping the carriage return of a CRLF line ending
+    private String decode(int count, boolean line) {
+        if (line && count > 0 && pending[count - 1] == '\r') {
+            count--;
+        }
+        return new String(pending, 0, count, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    void close() throws IOException {
+        channel.close();
+    }
+}
+
+// ShankFileWriter collects output in a direct buffer and writes it to the channel a buffer at a time
+final class ShankFileWriter extends ShankFile {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(FileIO.BUFFER_SIZE);
+
+    ShankFileWriter(Path path, StandardOpenOption mode) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, mode);
+    }
+
+    @Override
+    void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    // Writes the buffered bytes to the channel
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
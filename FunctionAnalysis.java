@@ -0,0 +1,259 @@
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The FunctionAnalysis class finds the user functions whose calls the interpreter may
+ * remember, and the self calls it may run as loops.
+ *
+ * A function is pure when the only effect of a call is the final values of its
+ * parameters, and those depend only on the values passed in. So it may read and write
+ * its own parameters and locals, and call built-ins that touch nothing but their
+ * arguments and other pure functions, but never the console or files. Shank functions
+ * hand back results through var parameters, so writing one does not make a function
+ * impure. A pure function whose parameters all have scalar types can be memoized:
+ * MemoTable keeps the final parameter values of a call, keyed on the values passed in,
+ * and replays them for a later call with the same arguments.
+ *
+ * A self tail call is a call a function makes to itself as its last statement, or as
+ * the last statement of a branch of an if statement in that position. Each var
+ * argument must be the caller's own parameter in the same position, so the callee's
+ * results already land where the caller would copy them. The interpreter runs such a
+ * call by binding the new arguments to the parameters and starting the body over.
+ */
+final class FunctionAnalysis {
+    // Built-ins that only change the arguments passed to them; the rest use the console or files
+    private static final Set<String> PURE_BUILT_INS = new HashSet<>(Arrays.asList(
+            "abs", "sqr", "sin", "cos", "exp", "ln", "substring", "integer", "real"));
+
+    private final Set<FunctionNode> memoizable = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<FunctionCallNode> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Analyzes every function in the program
+    public void analyze(ProgramNode program) {
+        Map<String, FunctionNode> functions = new HashMap<>();
+        for (FunctionNode function : program.getFunctions()) {
+            functions.put(function.getName(), function);
+        }
+
+        // Every function starts out pure and stops being pure once it calls something that is not,
+        // which is repeated until nothing changes so recursive functions are judged on the rest of their calls
+        Set<FunctionNode> pure = Collections.newSetFromMap(new IdentityHashMap<>());
+        pure.addAll(program.getFunctions());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunctionNode function : program.getFunctions()) {
+                if (pure.contains(function) && !callsOnlyPure(function.getStatements(), functions, pure)) {
+                    pure.remove(function);
+                    changed = true;
+                }
+            }
+        }
+
+        for (FunctionNode function : program.getFunctions()) {
+            if (pure.contains(function) && hasScalarParameters(function)) {
+                memoizable.add(function);
+            }
+            findTailCalls(function, FrameLayout.of(function), function.getStatements());
+        }
+    }
+
+    // Returns whether calls to a function may be remembered
+    public boolean isMemoizable(FunctionNode function) {
+        return memoizable.contains(function);
+    }
+
+    // Returns whether a call is a self tail call the interpreter may run as a loop
+    public boolean isTailCall(FunctionCallNode call) {
+        return tailCalls.contains(call);
+    }
+
+    // Returns whether every call in a block, including those in nested blocks, is to a pure function
+    private static boolean callsOnlyPure(List<StatementNode> block, Map<String, FunctionNode> functions, Set<FunctionNode> pure) {
+        for (StatementNode statement : block) {
+            switch (NodeKind.of(statement)) {
+                case IF:
+                    for (IfNode branch = (IfNode) statement; branch != null; branch = branch.getElsifBranch()) {
+                        if (!callsOnlyPure(branch.getStatements(), functions, pure)) {
+                            return false;
+                        }
+                        if (branch.getElseBranch() != null && !callsOnlyPure(branch.getElseBranch().getStatements(), functions, pure)) {
+                            return false;
+                        }
+                    }
+                    break;
+                case WHILE:
+                    if (!callsOnlyPure(((WhileNode) statement).getStatements(), functions, pure)) {
+                        return false;
+                    }
+                    break;
+                case REPEAT:
+                    if (!callsOnlyPure(((RepeatNode) statement).getStatements(), functions, pure)) {
+                        return false;
+                    }
+                    break;
+                case FOR:
+                    if (!callsOnlyPure(((ForNode) statement).getStatements(), functions, pure)) {
+                        return false;
+                    }
+                    break;
+                case FUNCTION_CALL:
+                    String name = ((FunctionCallNode) statement).getFunctionName();
+                    FunctionNode callee = functions.get(name);
+                    if (callee == null ? !PURE_BUILT_INS.contains(name) : !pure.contains(callee)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // Returns whether every parameter has a type whose values can be compared as a key, which arrays cannot
+    private static boolean hasScalarParameters(FunctionNode function) {
+        for (VariableNode parameter : function.getParameters()) {
+            if (InterpreterDataType.forType(parameter.getType()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Records the self tail calls at the end of a block in tail position, and in the branches of an if statement there
+    private void findTailCalls(FunctionNode function, FrameLayout layout, List<StatementNode> block) {
+        if (block.isEmpty()) {
+            return;
+        }
+        StatementNode last = block.get(block.size() - 1);
+        if (NodeKind.of(last) == NodeKind.FUNCTION_CALL) {
+            FunctionCallNode call = (FunctionCallNode) last;
+            if (isSelfTailCall(function, layout, call)) {
+                tailCalls.add(call);
+            }
+        } else if (NodeKind.of(last) == NodeKind.IF) {
+            // The branches the interpreter can run: an else branch follows the last elsif
+            IfNode branch = (IfNode) last;
+            while (true) {
+                findTailCalls(function, layout, branch.getStatements());
+                if (branch.getElsifBranch() != null) {
+                    branch = branch.getElsifBranch();
+                } else {
+                    if (branch.getElseBranch() != null) {
+                        findTailCalls(function, layout, branch.getElseBranch().getStatements());
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // Returns whether a call is to the function making it, with each var argument the caller's parameter in the same position
+    private static boolean isSelfTailCall(FunctionNode function, FrameLayout layout, FunctionCallNode call) {
+        List<VariableNode> parameters = function.getParameters();
+        if (!call.getFunctionName().equals(function.getName()) || call.getParameters().size() != parameters.size()) {
+            return false;
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            if (!parameters.get(i).isVar()) {
+                continue;
+            }
+            Node argument = call.getParameters().get(i);
+            // A local declared with the parameter's name hides it, so the argument must resolve to the parameter's slot
+            if (!(argument instanceof VariableReferenceNode)
+                    || layout.require(((VariableReferenceNode) argument).getName()) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// MemoTable remembers the final parameter values of calls to memoizable functions, keyed on the function and the
+// values passed in. It holds a bounded number of calls, dropping the least recently used, and counts hits and misses.
+final class MemoTable {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final Map<List<Object>, InterpreterDataType[]> results;
+    private long hits;
+    private long misses;
+
+    MemoTable(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Memo table capacity must be at least 1");
+        }
+        this.results = new LinkedHashMap<List<Object>, InterpreterDataType[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, InterpreterDataType[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Returns the key of a call: the function, then the type and value of each parameter at the start of the frame.
+    // A var parameter passed empty from a parallel loop's private frame has no type or value.
+    static List<Object> key(FunctionNode function, InterpreterDataType[] frame, int parameterCount) {
+        Object[] key = new Object[1 + 2 * parameterCount];
+        key[0] = function;
+        for (int i = 0; i < parameterCount; i++) {
+            if (frame[i] != null) {
+                key[1 + 2 * i] = frame[i].getClass();
+                key[2 + 2 * i] = frame[i].toString();
+            }
+        }
+        return Arrays.asList(key);
+    }
+
+    // Writes the final parameter values of a remembered call into a frame, or returns false if the call is not held
+    synchronized boolean restore(List<Object> key, InterpreterDataType[] frame) {
+        InterpreterDataType[] result = results.get(key);
+        if (result == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        // A var parameter's value belongs to the caller, so it is overwritten in place as the call would have done
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == null) {
+                frame[i] = null;
+            } else if (frame[i] != null && frame[i].getClass() == result[i].getClass()) {
+                frame[i].assign(result[i]);
+            } else {
+                frame[i] = result[i].copy();
+            }
+        }
+        return true;
+    }
+
+    // Remembers the final parameter values of a call
+    synchronized void record(List<Object> key, InterpreterDataType[] frame, int parameterCount) {
+        InterpreterDataType[] result = new InterpreterDataType[parameterCount];
+        for (int i = 0; i < parameterCount; i++) {
+            result[i] = frame[i] == null ? null : frame[i].copy();
+        }
+        results.put(key, result);
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    // Prints the number of hits and misses and how many calls are held
+    synchronized void report(PrintStream out) {
+        out.printf("memo: %d hits, %d misses, %d calls held%n", hits, misses, results.size());
+    }
+}
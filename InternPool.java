@@ -0,0 +1,167 @@
+
+/**
+ * The InternPool class maps character ranges to shared String instances without
+ * building a substring first. The lexer seeds it with its keywords, so a single probe
+ * both classifies a word and returns its canonical String. Words that are not
+ * keywords are added as WORD the first time they are seen.
+ *
+ * Keys are compared with the characters of the input, so for a memory-mapped source
+ * they hold one char per byte, and the String handed out for a word is its UTF-8
+ * decoding, kept separately.
+ */
+class InternPool {
+    private String[] keys;
+    private String[] values;
+    private Token.Type[] types;
+    private int[] hashes;
+    private int size;
+
+    public InternPool() {
+        this.keys = new String[64];
+        this.values = new String[64];
+        this.types = new Token.Type[64];
+        this.hashes = new int[64];
+        this.size = 0;
+    }
+
+    /**
+     * This method returns an independent copy of the pool, so another thread can
+     * classify words with the same keywords.
+     *
+     * @return InternPool - The copy
+     */
+    public InternPool copy() {
+        InternPool copy = new InternPool();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.types = types.clone();
+        copy.hashes = hashes.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * This method adds a word with a fixed token type, replacing any earlier entry.
+     *
+     * @param word - The word
+     * @param type - The token type of the word
+     */
+    public void define(String word, Token.Type type) {
+        int slot = intern(word, 0, word.length());
+        types[slot] = type;
+    }
+
+    /**
+     * This method returns the slot for the characters between start and end, adding
+     * them as a WORD if they have not been seen before.
+     *
+     * @param input - The source characters
+     * @param start - The first character of the word
+     * @param end - One past the last character of the word
+     * @return int - The slot of the word
+     */
+    public int intern(CharSequence input, int start, int end) {
+        int hash = hash(input, start, end);
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && matches(keys[slot], input, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // Not seen before, so add it and grow once the table is half full. The key holds the characters as the input
+        // gives them, which for a mapped source is one char per byte, so later probes match it; only the value is
+        // decoded as UTF-8.
+        String key;
+        String value;
+        if (input instanceof MappedSource) {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = input.charAt(start + i);
+            }
+            key = new String(chars);
+            value = ((MappedSource) input).decode(start, end);
+        } else {
+            key = input.subSequence(start, end).toString();
+            value = key;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        types[slot] = Token.Type.WORD;
+        hashes[slot] = hash;
+        if (++size * 2 > keys.length) {
+            grow();
+            return intern(input, start, end);
+        }
+        return slot;
+    }
+
+    /**
+     * This method returns the shared String stored in a slot.
+     *
+     * @param slot - The slot returned by intern
+     * @return String - The interned word
+     */
+    public String value(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * This method returns the token type stored in a slot.
+     *
+     * @param slot - The slot returned by intern
+     * @return Token.Type - The keyword type, or WORD
+     */
+    public Token.Type type(int slot) {
+        return types[slot];
+    }
+
+    // Computes the same hash as String.hashCode over a range of characters
+    private static int hash(CharSequence input, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + input.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // Compares a stored key with a range of characters
+    private static boolean matches(String key, CharSequence input, int start, int end) {
+        if (key.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != input.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Doubles the table and rehashes every entry
+    private void grow() {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        Token.Type[] oldTypes = types;
+        int[] oldHashes = hashes;
+        int capacity = oldKeys.length * 2;
+        keys = new String[capacity];
+        values = new String[capacity];
+        types = new Token.Type[capacity];
+        hashes = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & (capacity - 1);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                types[slot] = oldTypes[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -1,22 +1,70 @@
 
-import java.util.HashMap;
-import java.util.List;
-import java.beans.Expression;
 import java.util.ArrayList;
-
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class Interpreter {
     private Map<String, FunctionNode> functions;
+    private VariableResolver resolver;
+    // The body of each function, with what each statement needs bound to it; see CompiledBlock
+    private Map<FunctionNode, CompiledBlock> bodies;
+    // Records calls, loop iterations and line samples when profiling; null otherwise
+    private Profiler profiler;
+    // Limits the CPU time and memory of a program run by the server; null otherwise
+    private JobBudget budget;
+    // The pure functions and self tail calls of the program
+    private FunctionAnalysis analysis;
+    // Remembers the results of calls to pure functions when memoizing; null otherwise
+    private MemoTable memo;
 
     public Interpreter() {
         functions = new HashMap<>();
+        resolver = new VariableResolver();
+        analysis = new FunctionAnalysis();
+        bodies = new IdentityHashMap<>();
+    }
+
+    // Creates an interpreter for a program, registering the built-in and user functions and resolving their variables.
+    public Interpreter(ProgramNode program) {
+        this();
+        functions.putAll(BuiltInFunctions.shared());
+        for (FunctionNode function : program.getFunctions()) {
+            functions.put(function.getName(), function);
+        }
+        resolver.resolve(program);
+        analysis.analyze(program);
+        bodies = CompiledBlock.compile(program.getFunctions(), resolver, analysis);
+    }
+
+    // Creates an interpreter for a program that reports what it runs to a profiler.
+    public Interpreter(ProgramNode program, Profiler profiler) {
+        this(program);
+        this.profiler = profiler;
+    }
+
+    // Creates an interpreter for a program that stops it once it uses up its budget.
+    public Interpreter(ProgramNode program, JobBudget budget) {
+        this(program);
+        this.budget = budget;
+    }
+
+    // Creates an interpreter for a program that remembers the results of calls to pure functions in a table.
+    public Interpreter(ProgramNode program, MemoTable memo) {
+        this(program);
+        this.memo = memo;
+    }
+
+    // Runs the program from its start function.
+    public void executeProgram() {
+        interpretFunction(lookupFunction("start"), new ArrayList<>());
     }
 
     // lookupFunction method
-    private FunctionNode lookupFunction(String functionName) {
+    FunctionNode lookupFunction(String functionName) {
         if (!functions.containsKey(functionName)) {
             throw new RuntimeException("Undefined function: " + functionName);
         }
@@ -25,196 +73,356 @@ public class Interpreter {
 
 
     // Entry point for interpreting a FunctionNode.
-    public void interpretFunction(FunctionNode function) {
-        // Create a HashMap to store the local variables for the function.
-        Map<String, InterpreterDataType> variables = new HashMap<>();
-
-        // Iterate through the function's variables and create new InterpreterDataType instances for each.
-        for (VariableNode variable : function.getVariables()) {
-            variables.put(variable.getName(), new InterpreterDataType(variable.getType()));
-        }
-
-        // Begin interpreting the function's statements, using the local variables map.
-        interpretBlock(function.getStatements(), variables);
-    }
-
-    // Interpret a block of statements, given the current context of local variables.
-    private void interpretBlock(List<StatementNode> statements, Map<String, InterpreterDataType> variables) {
-        // Loop through each statement in the block.
-        for (StatementNode statement : statements) {
-            // Check the type of each statement and call the appropriate interpret method.
-            if (statement instanceof IfNode) {
-                interpretIf((IfNode) statement, variables);
-            } else if (statement instanceof WhileNode) {
-                interpretWhile((WhileNode) statement, variables);
-            } else if (statement instanceof RepeatNode) {
-                interpretRepeat((RepeatNode) statement, variables);
-            } else if (statement instanceof ForNode) {
-                interpretFor((ForNode) statement, variables);
-            } else if (statement instanceof AssignmentNode) {
-                interpretAssignment((AssignmentNode) statement, variables);
-            } else if (statement instanceof FunctionCallNode) {
-                // StatementNode should be FunctionCallNode
-                interpretFunctionCall((FunctionCallNode) statement, variables);
-            } else {
-                // If the statement type is not recognized, throw a Exception.
-                throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
+    public void interpretFunction(FunctionNode function, List<InterpreterDataType> arguments) {
+        // Create a frame with one slot for each parameter and local variable of the function.
+        FrameLayout layout = resolver.getLayout(function);
+        CompiledBlock body = bodies.get(function);
+        if (body == null) {
+            throw new RuntimeException("Function was not resolved: " + function.getName());
+        }
+        InterpreterDataType[] frame = new InterpreterDataType[layout.size()];
+
+        // Bind the arguments to the parameter slots.
+        for (int slot = 0; slot < layout.getParameterCount(); slot++) {
+            frame[slot] = arguments.get(slot);
+        }
+        runFunction(function, layout, body, frame);
+
+        // Hand back the final parameter values, in case a parameter slot now holds a different object.
+        for (int slot = 0; slot < layout.getParameterCount(); slot++) {
+            arguments.set(slot, frame[slot]);
+        }
+    }
+
+    // Runs a function in a frame whose parameter slots are already bound, creating default values for its local variables.
+    private void runFunction(FunctionNode function, FrameLayout layout, CompiledBlock body, InterpreterDataType[] frame) {
+        // Begin interpreting the function's statements, using the frame.
+        if (profiler != null) {
+            profiler.enter(function, function.getName());
+        }
+        // A self tail call binds new arguments to the parameters, and the body starts over with fresh locals
+        do {
+            for (int slot = layout.getParameterCount(); slot < frame.length; slot++) {
+                frame[slot] = InterpreterDataType.forType(layout.getType(slot));
+            }
+        } while (interpretBlock(body, frame));
+        if (profiler != null) {
+            profiler.exit();
+        }
+    }
+
+    // Interpret a block of statements, given the frame of the current function.
+    // Returns true if the block ended with a self tail call, which has bound the function's parameters for another run.
+    private boolean interpretBlock(CompiledBlock block, InterpreterDataType[] frame) {
+        // Loop through each statement in the block, reading what was bound to it from the block's arrays.
+        for (int i = 0; i < block.statements.length; i++) {
+            if (profiler != null) {
+                profiler.statement(block.statements[i]);
+            }
+            if (budget != null) {
+                budget.tick();
+            }
+            // Switch on the kind of each statement and call the appropriate interpret method.
+            switch (block.kinds[i]) {
+                case IF:
+                    if (interpretIf(block, i, frame)) {
+                        return true;
+                    }
+                    break;
+                case WHILE:
+                    interpretWhile(block, i, frame);
+                    break;
+                case REPEAT:
+                    interpretRepeat(block.bodies[i], frame);
+                    break;
+                case FOR:
+                    interpretFor(block, i, frame);
+                    break;
+                case ASSIGNMENT:
+                    assign(frame, block.slots[i], block.expressions[i]);
+                    break;
+                case FUNCTION_CALL:
+                    if (block.tailCalls[i]) {
+                        bindTailCall(block.sites[i], frame);
+                        return true;
+                    }
+                    interpretFunctionCall(block, i, frame);
+                    break;
+                default:
+                    // If the statement type is not recognized, throw a Exception.
+                    throw new RuntimeException("Unknown statement type: " + block.statements[i].getClass().getName());
             }
         }
+        return false;
     }
 
-    // IfNode 
-    private void interpretIf(IfNode node, Map<String, InterpreterDataType> variables) {
+    // IfNode. Returns true if the branch run ended with a self tail call.
+    private boolean interpretIf(CompiledBlock block, int i, InterpreterDataType[] frame) {
         // Evaluate the condition of the IfNode
-        boolean condition = booleanCompare(node.getCondition(), variables);
+        boolean condition = block.expressions[i].executeBoolean(frame);
 
         // If the condition is true, interpret the block of statements within the IfNode
         if (condition) {
-            interpretBlock(node.getStatements(), variables);
-        } else if (node.getElsifBranch() != null) {
+            return interpretBlock(block.bodies[i], frame);
+        } else if (block.elsifs[i] != null) {
             // If the condition is false and there is an ElseIfNode, interpret it
-            interpretIf(node.getElsifBranch(), variables);
-        } else if (node.getElsifBranch() != null) {
+            return interpretIf(block.elsifs[i], 0, frame);
+        } else if (block.elses[i] != null) {
             // If the condition is false and there is an ElseNode, interpret its block of statements
-            interpretBlock(node.getElsifBranch().getStatements(), variables);
+            return interpretBlock(block.elses[i], frame);
         }
+        return false;
     }
 
    // WhileNode
-    private void interpretWhile(WhileNode node, Map<String, InterpreterDataType> variables) {
+    private void interpretWhile(CompiledBlock block, int i, InterpreterDataType[] frame) {
         // Continuously evaluate the loop condition (boolean compare) and interpret the loop body
         // until the condition is no longer true.
-        while (booleanCompare(node.getCondition(), variables)) {
-            interpretBlock(node.getStatements(), variables);
+        long iterations = 0;
+        LoopPlan loop = block.loopPlans[i];
+        if (loop != null) {
+            loop.enter(frame);
+        }
+        ExecRoot condition = block.expressions[i];
+        CompiledBlock body = block.bodies[i];
+        while (condition.executeBoolean(frame)) {
+            interpretBlock(body, frame);
+            iterations++;
+            // Each iteration counts against the budget, even when the body is empty
+            if (budget != null) {
+                budget.tick();
+            }
+        }
+        if (profiler != null) {
+            profiler.loop(block.statements[i], iterations);
         }
     }
 
     // RepeatNode
-    private void interpretRepeat(RepeatNode node, Map<String, InterpreterDataType> variables) {
+    private void interpretRepeat(CompiledBlock body, InterpreterDataType[] frame) {
         int count = 0; // Initialize the loop count
-        // Run the loop for the specified number of iterations 
+        // Run the loop for the specified number of iterations
         for (int i = 0; i < count; i++) {
-            interpretBlock(node.getStatements(), variables);
+            interpretBlock(body, frame);
         }
     }
 
     // ForNode
-    private void interpretFor(ForNode node, Map<String, InterpreterDataType> variables) {
+    private void interpretFor(CompiledBlock block, int i, InterpreterDataType[] frame) {
         // Evaluate the initial value of the loop counter and the end value
-        InterpreterDataType initialValue = evaluateExpression(node.getFrom(), variables);
-        InterpreterDataType endValue = evaluateExpression(node.getTo(), variables);
+        int current = evaluateInt(block.expressions[i], frame);
+        int end = evaluateInt(block.ends[i], frame);
+        int slot = block.slots[i];
+        if (current > end) {
+            if (profiler != null) {
+                profiler.loop(block.statements[i], 0);
+            }
+            return;
+        }
+        if (profiler != null) {
+            profiler.loop(block.statements[i], (long) end - current + 1);
+        }
+        // Compute what the resolver moved out of the body once, before the iterations are run or split up
+        LoopPlan loop = block.loopPlans[i];
+        if (loop != null) {
+            loop.enter(frame);
+        }
 
-        // Iterate through the loop, incrementing the loop counter until the end is reached
-        for (InterpreterDataType currentValue = initialValue;
-            currentValue.compareTo(endValue) <= 0;
-            currentValue.increment()) {
+        // A parallel loop with more than one iteration is split across threads, unless it is being profiled
+        ParallelPlan plan = block.parallelPlans[i];
+        if (plan != null && profiler == null && current < end) {
+            interpretParallelFor(block, i, plan, frame, current, end);
+            return;
+        }
 
-            // Update the loop counter variable in the variables map
-            variables.put(node.getVariable(), currentValue);
+        // Iterate through the loop, incrementing the loop counter until the end is reached
+        if (loop != null) {
+            loop.start(frame, current);
+        }
+        CompiledBlock body = block.bodies[i];
+        for (; current <= end; current++) {
+            // Update the loop counter variable in the frame
+            storeInt(frame, slot, current);
             // Interpret the loop body
-            interpretBlock(node.getStatements(), variables);
+            interpretBlock(body, frame);
+            if (loop != null) {
+                loop.advance(frame, current + 1);
+            }
+            if (budget != null) {
+                budget.tick();
+            }
         }
+        // The variable is left one past the end value, as the loop counter was
+        storeInt(frame, slot, current);
     }
 
-    // AssignmentNode
-    private void interpretAssignment(AssignmentNode node, Map<String, InterpreterDataType> variables) {
-        // Evaluate the expression on the right-hand side of the assignment
-        InterpreterDataType value = evaluateExpression(node.getValue(), variables);
-        // Update the variable in the variables map with the new value
-        variables.put(node.getVariable(), value);
-    }
-
-    private void interpretFunctionCall(FunctionCallNode node, Map<String, InterpreterDataType> variables) {
-        // Retrieve the function node using the lookupFunction method
-        FunctionNode function = lookupFunction(node.getFunctionName());
-    
-        if (node.getParameters().size() != function.getParameters().size()) {
-            throw new RuntimeException("Incorrect number of parameters for function: " + node.getFunctionName());
-        }
-    
-        // Create a new list for the function's parameter values
-        List<InterpreterDataType> parameterValues = new ArrayList<>();
-        for (Node argument : node.getParameters()) {
-            parameterValues.add(evaluateExpression(argument, variables));
-        }
-    
-        // Execute the function and handle the results
-        if (function.isBuiltIn()) {
-            function.execute(parameterValues);
-        } else {
-            interpretFunction(function, parameterValues);
-        }
-    
-        // Copy values back
-        for (int i = 0; i < function.getVariables().size(); i++) {
-            VariableNode variable = function.getVariables().get(i);
-            if (variable.isVar()) {
-                variables.put(variable.getName(), parameterValues.get(i));
+    // Runs a parallel for loop. The first iteration runs here, so the expression trees it reaches have specialized
+    // before other threads run them, and the rest of the range is split across the common fork/join pool, or the
+    // job's own pool when the program runs under a budget. Nodes the first iteration did not reach specialize on the
+    // worker threads; see ExecNode.
+    private void interpretParallelFor(CompiledBlock block, int i, ParallelPlan plan, InterpreterDataType[] frame, int from, int end) {
+        interpretRange(block, i, frame, from, from + 1L);
+        int parallelism = budget != null ? budget.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+        long grain = Math.max(1, ((long) end - from) / (parallelism * 4L));
+        ParallelRange range = new ParallelRange(this, block, i, plan, frame, Session.current(), from + 1L, end + 1L, grain);
+        InterpreterDataType[] result = budget != null ? budget.invoke(range) : ForkJoinPool.commonPool().invoke(range);
+        plan.merge(frame, result);
+        // The variable is left one past the end value, as after a sequential loop
+        storeInt(frame, block.slots[i], end + 1);
+    }
+
+    // Runs the iterations of the for loop at an index of a block from the first value up to but not including the
+    // last, in the given frame
+    void interpretRange(CompiledBlock block, int i, InterpreterDataType[] frame, long from, long to) {
+        int slot = block.slots[i];
+        LoopPlan loop = block.loopPlans[i];
+        CompiledBlock body = block.bodies[i];
+        if (loop != null) {
+            loop.start(frame, (int) from);
+        }
+        for (long current = from; current < to; current++) {
+            storeInt(frame, slot, (int) current);
+            interpretBlock(body, frame);
+            if (loop != null) {
+                loop.advance(frame, (int) (current + 1));
+            }
+            if (budget != null) {
+                budget.tick();
             }
         }
     }
-    
-
-    private InterpreterDataType evaluateExpression(Node node, Map<String, InterpreterDataType> variables) {
-        // Check the type of the expression node and handle each case accordingly
-        if (node instanceof IntegerNode) {
-            // Create a new IntegerDataType instance with the value from the IntegerNode
-            return new IntegerDataType(((IntegerNode) node).getValue());
-        } else if (node instanceof RealNode) {
-            // Create a new RealDataType instance with the value from the RealNode
-            return new RealDataType(((RealNode) node).getValue());
-        } else if (node instanceof StringNode) {
-            // Create a new StringDataType instance with the value from the StringNode
-            return new StringDataType(((StringNode) node).getValue());
-        } else if (node instanceof VariableReferenceNode) {
-            // Get the name of the variable from the VariableReferenceNode
-            String name = ((VariableReferenceNode) node).getName();
-            // Check if the variable exists in the current scope
-            if (!variables.containsKey(name)) {
-                throw new RuntimeException("Undefined variable: " + name);
+
+    // AssignmentNode
+    void interpretAssignment(AssignmentNode node, InterpreterDataType[] frame) {
+        assign(frame, resolver.getSlot(node), resolver.getExecutable(node.getValue()));
+    }
+
+    // Assigns the value of an expression to a slot
+    private void assign(InterpreterDataType[] frame, int slot, ExecRoot value) {
+        InterpreterDataType target = frame[slot];
+
+        // Numeric results are computed as primitives and written into the variable's value in place.
+        // A result of another type is stored as it is.
+        try {
+            if (target instanceof IntegerDataType) {
+                ((IntegerDataType) target).setValue(value.executeInt(frame));
+            } else if (target instanceof RealDataType) {
+                ((RealDataType) target).setValue(value.executeReal(frame));
+            } else {
+                // Evaluate the expression on the right-hand side of the assignment and update the variable's slot
+                store(frame, slot, value.execute(frame));
             }
-            // Return the InterpreterDataType instance for the variable
-            return variables.get(name);
-        } else if (node instanceof MathOpNode) {
-            // Handle the math operation case
-            MathOpNode mathOpNode = (MathOpNode) node;
-            // Recursively evaluate the left and right sides of the operation
-            InterpreterDataType left = evaluateExpression(mathOpNode.getLeft(), variables);
-            InterpreterDataType right = evaluateExpression(mathOpNode.getRight(), variables);
-            // Perform the math operation and return the result
-            return left.performMathOperation(mathOpNode.getOp(), right);
+        } catch (UnexpectedResultException e) {
+            store(frame, slot, e.getResult());
+        }
+    }
+
+    // Writes a value into a slot. The slot's own value is overwritten when the types match, so it is never shared.
+    private void store(InterpreterDataType[] frame, int slot, InterpreterDataType value) {
+        InterpreterDataType target = frame[slot];
+        if (target != null && target.getClass() == value.getClass()) {
+            target.assign(value);
+        } else {
+            frame[slot] = value.copy();
+        }
+    }
+
+    // Writes an integer into a slot, reusing the slot's value when it is already an integer
+    static void storeInt(InterpreterDataType[] frame, int slot, int value) {
+        if (frame[slot] instanceof IntegerDataType) {
+            ((IntegerDataType) frame[slot]).setValue(value);
+        } else {
+            frame[slot] = new IntegerDataType(value);
+        }
+    }
+
+    // Calls the function a call site is bound to
+    private void interpretFunctionCall(CompiledBlock block, int i, InterpreterDataType[] frame) {
+        CallSite site = block.sites[i];
+        FunctionNode function = site.target();
+
+        if (function.isBuiltIn()) {
+            callBuiltIn(site, function, frame);
+            return;
+        }
+
+        // The arguments go straight into the parameter slots of the callee's frame
+        FrameLayout layout = block.layouts[i];
+        InterpreterDataType[] callee = new InterpreterDataType[layout.size()];
+        site.evaluateArguments(frame, callee);
+        if (memo != null && block.memoizable[i]) {
+            callMemoized(function, layout, block.callees[i], callee);
         } else {
-            // If the expression node type is unknown, throw an exception
-            throw new RuntimeException("Unknown expression type: " + node.getClass().getName());
-        }
-    }
-    
-    private boolean booleanCompare(BooleanCompareNode node, Map<String, InterpreterDataType> variables) {
-        // Evaluate the left and right sides of the comparison
-        InterpreterDataType left = evaluateExpression(node.getLeft(), variables);
-        InterpreterDataType right = evaluateExpression(node.getRight(), variables);
-    
-        // Compare the left and right sides
-        int comparison = left.compareTo(right);
-    
-        // Check the comparison type and return the result accordingly
-        switch (node.getComparisonType()) {
-            case EQUAL:
-                return comparison == 0;
-            case NOT_EQUAL:
-                return comparison != 0;
-            case LESS_THAN:
-                return comparison < 0;
-            case LESS_OR_EQUAL:
-                return comparison <= 0;
-            case GREATER_THAN:
-                return comparison > 0;
-            case GREATER_OR_EQUAL:
-                return comparison >= 0;
-            default:
-            // If the comparison type is unknown, throw an exception
-            throw new RuntimeException("Unknown comparison type: " + node.getComparisonType());
-        }
-    }
-    
-}
\ No newline at end of file
+            runFunction(function, layout, block.callees[i], callee);
+        }
+        site.writeBack(frame, callee);
+    }
+
+    // Runs a pure function, or replays the final parameter values of an earlier call with the same arguments
+    private void callMemoized(FunctionNode function, FrameLayout layout, CompiledBlock body, InterpreterDataType[] frame) {
+        List<Object> key = MemoTable.key(function, frame, layout.getParameterCount());
+        if (!memo.restore(key, frame)) {
+            runFunction(function, layout, body, frame);
+            memo.record(key, frame, layout.getParameterCount());
+        }
+    }
+
+    // Binds the arguments of a self tail call to the parameters of the current frame. They are all evaluated
+    // before any is bound, as they may read the parameters; each var argument is already its own parameter.
+    void bindTailCall(FunctionCallNode call, InterpreterDataType[] frame) {
+        bindTailCall(resolver.getCallSite(call), frame);
+    }
+
+    // Binds the arguments of a self tail call made through a call site
+    private void bindTailCall(CallSite site, InterpreterDataType[] frame) {
+        InterpreterDataType[] values = new InterpreterDataType[site.argumentCount()];
+        site.evaluateArguments(frame, values);
+        System.arraycopy(values, 0, frame, 0, values.length);
+    }
+
+
+    // Calls a built-in. The built-ins take their arguments as a list, which here is a view of the array of values.
+    void callBuiltIn(CallSite site, FunctionNode function, InterpreterDataType[] frame) {
+        InterpreterDataType[] values = new InterpreterDataType[site.argumentCount()];
+        site.evaluateArguments(frame, values);
+        if (profiler != null) {
+            profiler.enter(function, site.getName());
+        }
+        function.execute(Arrays.asList(values));
+        if (profiler != null) {
+            profiler.exit();
+        }
+        // A var parameter may have been replaced rather than changed, as the integer and real built-ins do
+        site.writeBack(frame, values);
+    }
+
+    // getter for the resolver, which the explicit-stack engine shares
+    VariableResolver getResolver() {
+        return resolver;
+    }
+
+    // getter for the analysis of the program's functions, which the explicit-stack engine shares
+    FunctionAnalysis getAnalysis() {
+        return analysis;
+    }
+
+    // Evaluates an integer expression without allocating
+    int evaluateInt(Node node, InterpreterDataType[] frame) {
+        return evaluateInt(resolver.getExecutable(node), frame);
+    }
+
+    // Evaluates an integer expression tree without allocating
+    private int evaluateInt(ExecRoot value, InterpreterDataType[] frame) {
+        try {
+            return value.executeInt(frame);
+        } catch (UnexpectedResultException e) {
+            throw new RuntimeException("Expected an integer value but found " + e.getResult());
+        }
+    }
+
+    // Evaluates a comparison, on primitives once its operand types are known
+    boolean booleanCompare(BooleanCompareNode node, InterpreterDataType[] frame) {
+        return resolver.getExecutable(node).executeBoolean(frame);
+    }
+
+}
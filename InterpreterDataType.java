@@ -1,9 +1,111 @@
 
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 public abstract class InterpreterDataType {
     public abstract String toString();
     public abstract void fromString(String input);
+
+    // Returns a new value holding the same contents, so the copy can be changed without affecting this one
+    public abstract InterpreterDataType copy();
+
+    // Overwrites this value with the contents of another value of the same type
+    public abstract void assign(InterpreterDataType other);
+
+    // Compares two values: numbers numerically, strings and characters by text, and booleans false before true
+    public int compareTo(InterpreterDataType other) {
+        if (this instanceof IntegerDataType && other instanceof IntegerDataType) {
+            return Integer.compare(((IntegerDataType) this).getValue(), ((IntegerDataType) other).getValue());
+        } else if (isNumber(this) && isNumber(other)) {
+            return Float.compare(toReal(this), toReal(other));
+        } else if (this instanceof BooleanDataType && other instanceof BooleanDataType) {
+            return Boolean.compare(((BooleanDataType) this).getValue(), ((BooleanDataType) other).getValue());
+        } else if ((this instanceof StringDataType || this instanceof CharacterDataType)
+                && (other instanceof StringDataType || other instanceof CharacterDataType)) {
+            return toString().compareTo(other.toString());
+        }
+        throw new IllegalArgumentException("Cannot compare " + getClass().getName() + " with " + other.getClass().getName());
+    }
+
+    // Returns a new value holding the result of a math operation. Integers give integers, and a real on either side gives a real.
+    public InterpreterDataType performMathOperation(MathOpNode.Operation op, InterpreterDataType other) {
+        if (this instanceof IntegerDataType && other instanceof IntegerDataType) {
+            return new IntegerDataType(integerMath(op, ((IntegerDataType) this).getValue(), ((IntegerDataType) other).getValue()));
+        } else if (isNumber(this) && isNumber(other)) {
+            return new RealDataType(realMath(op, toReal(this), toReal(other)));
+        } else if (op == MathOpNode.Operation.ADD && (this instanceof StringDataType || other instanceof StringDataType)) {
+            // The left side's characters are appended to in place when they allow it
+            StringDataType left = this instanceof StringDataType ? (StringDataType) this : new StringDataType(toString());
+            return left.append(other);
+        }
+        throw new IllegalArgumentException("Cannot apply " + op + " to " + getClass().getName() + " and " + other.getClass().getName());
+    }
+
+    // Performs a math operation on two integers
+    public static int integerMath(MathOpNode.Operation op, int left, int right) {
+        switch (op) {
+            case ADD:
+                return left + right;
+            case SUBTRACT:
+                return left - right;
+            case MULTIPLY:
+                return left * right;
+            case DIVIDE:
+                return left / right;
+            case MODULO:
+                return left % right;
+            default:
+                throw new IllegalArgumentException("Unknown math operation: " + op);
+        }
+    }
+
+    // Performs a math operation on two reals
+    public static float realMath(MathOpNode.Operation op, float left, float right) {
+        switch (op) {
+            case ADD:
+                return left + right;
+            case SUBTRACT:
+                return left - right;
+            case MULTIPLY:
+                return left * right;
+            case DIVIDE:
+                return left / right;
+            case MODULO:
+                return left % right;
+            default:
+                throw new IllegalArgumentException("Unknown math operation: " + op);
+        }
+    }
+
+    private static boolean isNumber(InterpreterDataType value) {
+        return value instanceof IntegerDataType || value instanceof RealDataType;
+    }
+
+    private static float toReal(InterpreterDataType value) {
+        return value instanceof IntegerDataType ? ((IntegerDataType) value).getValue() : ((RealDataType) value).getValue();
+    }
+
+    // Creates the default value of a declared type, or null for types that have no default such as arrays
+    public static InterpreterDataType forType(String type) {
+        switch (type.toLowerCase()) {
+            case "integer":
+                return new IntegerDataType(0);
+            case "real":
+                return new RealDataType(0);
+            case "string":
+                return new StringDataType("");
+            case "character":
+                return new CharacterDataType(' ');
+            case "boolean":
+                return new BooleanDataType(false);
+            default:
+                return null;
+        }
+    }
 }
 
 class IntegerDataType extends InterpreterDataType {
@@ -31,6 +133,16 @@ class IntegerDataType extends InterpreterDataType {
     public void fromString(String input) {
         value = Integer.parseInt(input);
     }
+
+    @Override
+    public InterpreterDataType copy() {
+        return new IntegerDataType(value);
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        value = ((IntegerDataType) other).value;
+    }
 }
 
 // RealDataType
@@ -58,19 +170,120 @@ class RealDataType extends InterpreterDataType {
     public void fromString(String input) {
         value = Float.parseFloat(input);
     }
+
+    @Override
+    public InterpreterDataType copy() {
+        return new RealDataType(value);
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        value = ((RealDataType) other).value;
+    }
 }
 
-// ArrayDataType
-class ArrayDataType<T extends InterpreterDataType> extends InterpreterDataType {
-    private List<T> value;
+// ArrayDataType is an array with fixed bounds, indexed from its lower to its upper bound. Each element type has its
+// own subclass holding the elements as primitives, so reading or writing an element allocates nothing. Once an
+// off-heap threshold is set, arrays at least that many bytes long are kept in direct memory outside the heap,
+// where the garbage collector never scans or copies them. The front end has no array declarations or element
+// access yet, so no engine creates arrays; these types stay package-private until it does.
+abstract class ArrayDataType extends InterpreterDataType {
+    // Arrays at least this many bytes long are kept off the heap; none are until a threshold is set
+    private static volatile long offHeapThreshold = Long.MAX_VALUE;
+
+    private final int from;
+    private final int to;
+
+    protected ArrayDataType(int from, int to) {
+        this.from = from;
+        this.to = to;
+    }
 
-    public ArrayDataType(List<T> value) {
-        this.value = value;
+    // Creates an array of an element type with the given bounds, with every element at the type's default value
+    static ArrayDataType of(String elementType, int from, int to) {
+        long length = (long) to - from + 1;
+        // Leave room for the array header, as the JVM cannot allocate an array of Integer.MAX_VALUE elements
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid array bounds " + from + " to " + to);
+        }
+        switch (elementType.toLowerCase()) {
+            case "integer":
+                return new IntegerArrayDataType(from, to, length * Integer.BYTES >= offHeapThreshold);
+            case "real":
+                return new RealArrayDataType(from, to, length * Float.BYTES >= offHeapThreshold);
+            case "character":
+                return new CharacterArrayDataType(from, to, length * Character.BYTES >= offHeapThreshold);
+            case "boolean":
+                return new BooleanArrayDataType(from, to, length >= offHeapThreshold);
+            case "string":
+                return new StringArrayDataType(from, to);
+            default:
+                throw new IllegalArgumentException("Unknown array element type: " + elementType);
+        }
+    }
+
+    // Keeps arrays of at least this many bytes off the heap
+    static void setOffHeapThreshold(long bytes) {
+        offHeapThreshold = bytes;
+    }
+
+    // Allocates direct memory for the elements of an off-heap array. A direct buffer is indexed by int, so an array
+    // of more than Integer.MAX_VALUE bytes cannot be kept off the heap.
+    static ByteBuffer allocate(int length, int elementBytes) {
+        long bytes = (long) length * elementBytes;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("An array of " + length + " elements of " + elementBytes
+                    + " bytes is too large to keep off the heap");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public int length() {
+        return to - from + 1;
+    }
+
+    // Returns the offset of an index into the elements, or throws if the index is outside the bounds
+    protected final int offset(int index) {
+        if (index < from || index > to) {
+            throw new RuntimeException("Array index " + index + " is outside the bounds " + from + " to " + to);
+        }
+        return index - from;
+    }
+
+    // Reads an element as a new value, for code that handles arrays of any type
+    public abstract InterpreterDataType get(int index);
+
+    // Writes an element from a value of the element type
+    public abstract void set(int index, InterpreterDataType value);
+
+    // Returns the text of the element at an offset
+    protected abstract String elementString(int offset);
+
+    // Checks that a value assigned to this array has the same type and bounds
+    protected final void checkAssignable(InterpreterDataType other) {
+        if (other.getClass() != getClass() || ((ArrayDataType) other).from != from || ((ArrayDataType) other).to != to) {
+            throw new IllegalArgumentException("Cannot assign " + other.getClass().getName() + " to an array from " + from + " to " + to);
+        }
     }
 
     @Override
     public String toString() {
-        return value.toString();
+        StringBuilder text = new StringBuilder("[");
+        for (int offset = 0; offset < length(); offset++) {
+            if (offset > 0) {
+                text.append(", ");
+            }
+            text.append(elementString(offset));
+        }
+        return text.append(']').toString();
     }
 
     @Override
@@ -79,22 +292,429 @@ class ArrayDataType<T extends InterpreterDataType> extends InterpreterDataType {
     }
 }
 
-// StringDataType
+// IntegerArrayDataType is an array of integers, in an int[] or off the heap
+class IntegerArrayDataType extends ArrayDataType {
+    private final int[] values;
+    private final IntBuffer offHeap;
+
+    public IntegerArrayDataType(int from, int to, boolean direct) {
+        super(from, to);
+        values = direct ? null : new int[length()];
+        offHeap = direct ? allocate(length(), Integer.BYTES).asIntBuffer() : null;
+    }
+
+    public int getInt(int index) {
+        int offset = offset(index);
+        return values != null ? values[offset] : offHeap.get(offset);
+    }
+
+    public void setInt(int index, int value) {
+        int offset = offset(index);
+        if (values != null) {
+            values[offset] = value;
+        } else {
+            offHeap.put(offset, value);
+        }
+    }
+
+    @Override
+    public InterpreterDataType get(int index) {
+        return new IntegerDataType(getInt(index));
+    }
+
+    @Override
+    public void set(int index, InterpreterDataType value) {
+        setInt(index, ((IntegerDataType) value).getValue());
+    }
+
+    @Override
+    protected String elementString(int offset) {
+        return Integer.toString(getInt(getFrom() + offset));
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        IntegerArrayDataType copy = new IntegerArrayDataType(getFrom(), getTo(), values == null);
+        copy.assign(this);
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        checkAssignable(other);
+        IntegerArrayDataType source = (IntegerArrayDataType) other;
+        if (values != null && source.values != null) {
+            System.arraycopy(source.values, 0, values, 0, values.length);
+        } else if (values == null && source.values == null) {
+            offHeap.put(0, source.offHeap, 0, length());
+        } else if (values != null) {
+            source.offHeap.get(0, values);
+        } else {
+            offHeap.put(0, source.values);
+        }
+    }
+}
+
+// RealArrayDataType is an array of reals, in a float[] or off the heap
+class RealArrayDataType extends ArrayDataType {
+    private final float[] values;
+    private final FloatBuffer offHeap;
+
+    public RealArrayDataType(int from, int to, boolean direct) {
+        super(from, to);
+        values = direct ? null : new float[length()];
+        offHeap = direct ? allocate(length(), Float.BYTES).asFloatBuffer() : null;
+    }
+
+    public float getReal(int index) {
+        int offset = offset(index);
+        return values != null ? values[offset] : offHeap.get(offset);
+    }
+
+    public void setReal(int index, float value) {
+        int offset = offset(index);
+        if (values != null) {
+            values[offset] = value;
+        } else {
+            offHeap.put(offset, value);
+        }
+    }
+
+    @Override
+    public InterpreterDataType get(int index) {
+        return new RealDataType(getReal(index));
+    }
+
+    @Override
+    public void set(int index, InterpreterDataType value) {
+        setReal(index, ((RealDataType) value).getValue());
+    }
+
+    @Override
+    protected String elementString(int offset) {
+        return Float.toString(getReal(getFrom() + offset));
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        RealArrayDataType copy = new RealArrayDataType(getFrom(), getTo(), values == null);
+        copy.assign(this);
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        checkAssignable(other);
+        RealArrayDataType source = (RealArrayDataType) other;
+        if (values != null && source.values != null) {
+            System.arraycopy(source.values, 0, values, 0, values.length);
+        } else if (values == null && source.values == null) {
+            offHeap.put(0, source.offHeap, 0, length());
+        } else if (values != null) {
+            source.offHeap.get(0, values);
+        } else {
+            offHeap.put(0, source.values);
+        }
+    }
+}
+
+// CharacterArrayDataType is an array of characters, in a char[] or off the heap. Elements start as a space,
+// the default of a character variable.
+class CharacterArrayDataType extends ArrayDataType {
+    private final char[] values;
+    private final CharBuffer offHeap;
+
+    public CharacterArrayDataType(int from, int to, boolean direct) {
+        super(from, to);
+        values = direct ? null : new char[length()];
+        offHeap = direct ? allocate(length(), Character.BYTES).asCharBuffer() : null;
+        if (values != null) {
+            Arrays.fill(values, ' ');
+        } else {
+            for (int offset = 0; offset < length(); offset++) {
+                offHeap.put(offset, ' ');
+            }
+        }
+    }
+
+    public char getCharacter(int index) {
+        int offset = offset(index);
+        return values != null ? values[offset] : offHeap.get(offset);
+    }
+
+    public void setCharacter(int index, char value) {
+        int offset = offset(index);
+        if (values != null) {
+            values[offset] = value;
+        } else {
+            offHeap.put(offset, value);
+        }
+    }
+
+    @Override
+    public InterpreterDataType get(int index) {
+        return new CharacterDataType(getCharacter(index));
+    }
+
+    @Override
+    public void set(int index, InterpreterDataType value) {
+        setCharacter(index, value.toString().charAt(0));
+    }
+
+    @Override
+    protected String elementString(int offset) {
+        return Character.toString(getCharacter(getFrom() + offset));
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        CharacterArrayDataType copy = new CharacterArrayDataType(getFrom(), getTo(), values == null);
+        copy.assign(this);
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        checkAssignable(other);
+        CharacterArrayDataType source = (CharacterArrayDataType) other;
+        if (values != null && source.values != null) {
+            System.arraycopy(source.values, 0, values, 0, values.length);
+        } else if (values == null && source.values == null) {
+            offHeap.put(0, source.offHeap, 0, length());
+        } else if (values != null) {
+            source.offHeap.get(0, values);
+        } else {
+            offHeap.put(0, source.values);
+        }
+    }
+}
+
+// BooleanArrayDataType is an array of booleans, in a boolean[] or off the heap as one byte each
+class BooleanArrayDataType extends ArrayDataType {
+    private final boolean[] values;
+    private final ByteBuffer offHeap;
+
+    public BooleanArrayDataType(int from, int to, boolean direct) {
+        super(from, to);
+        values = direct ? null : new boolean[length()];
+        offHeap = direct ? allocate(length(), 1) : null;
+    }
+
+    public boolean getBoolean(int index) {
+        int offset = offset(index);
+        return values != null ? values[offset] : offHeap.get(offset) != 0;
+    }
+
+    public void setBoolean(int index, boolean value) {
+        int offset = offset(index);
+        if (values != null) {
+            values[offset] = value;
+        } else {
+            offHeap.put(offset, (byte) (value ? 1 : 0));
+        }
+    }
+
+    @Override
+    public InterpreterDataType get(int index) {
+        return new BooleanDataType(getBoolean(index));
+    }
+
+    @Override
+    public void set(int index, InterpreterDataType value) {
+        setBoolean(index, ((BooleanDataType) value).getValue());
+    }
+
+    @Override
+    protected String elementString(int offset) {
+        return Boolean.toString(getBoolean(getFrom() + offset));
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        BooleanArrayDataType copy = new BooleanArrayDataType(getFrom(), getTo(), values == null);
+        copy.assign(this);
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        checkAssignable(other);
+        BooleanArrayDataType source = (BooleanArrayDataType) other;
+        if (values != null && source.values != null) {
+            System.arraycopy(source.values, 0, values, 0, values.length);
+        } else if (values == null && source.values == null) {
+            offHeap.put(0, source.offHeap, 0, length());
+        } else {
+            for (int offset = 0; offset < length(); offset++) {
+                setBoolean(getFrom() + offset, source.getBoolean(getFrom() + offset));
+            }
+        }
+    }
+}
+
+// StringArrayDataType is an array of strings. Its elements are always on the heap.
+class StringArrayDataType extends ArrayDataType {
+    private final String[] values;
+
+    public StringArrayDataType(int from, int to) {
+        super(from, to);
+        values = new String[length()];
+        Arrays.fill(values, "");
+    }
+
+    public String getString(int index) {
+        return values[offset(index)];
+    }
+
+    public void setString(int index, String value) {
+        values[offset(index)] = value;
+    }
+
+    @Override
+    public InterpreterDataType get(int index) {
+        return new StringDataType(getString(index));
+    }
+
+    @Override
+    public void set(int index, InterpreterDataType value) {
+        setString(index, value.toString());
+    }
+
+    @Override
+    protected String elementString(int offset) {
+        return values[offset];
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        StringArrayDataType copy = new StringArrayDataType(getFrom(), getTo());
+        copy.assign(this);
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        checkAssignable(other);
+        System.arraycopy(((StringArrayDataType) other).values, 0, values, 0, values.length);
+    }
+}
+
+// StringDataType is a slice of characters, shared with other strings where it can be. Its text is length
+// characters of a String or StringBuilder from start on. A builder is only ever appended to, so a string whose
+// slice ends where its builder ends can append in place, in amortized constant time, and every other string
+// sharing the builder keeps its text. Other strings copy themselves into a new builder with room to grow, so
+// repeated concatenation in a loop is linear. A substring is a narrower slice of the same characters, unless it is
+// under a quarter of their length: then it is copied, so a short piece of a long text does not keep all of it
+// alive. The text is flattened into a String only when it is printed, compared or read as a whole, and kept for
+// the next time.
 class StringDataType extends InterpreterDataType {
-    private String value;
+    // A slice shorter than the characters it would share divided by this is copied instead
+    private static final int SHARE_RATIO = 4;
+
+    private CharSequence chars;
+    private int start;
+    private int length;
+    // The text as a String once it has been flattened; null until then
+    private String flat;
 
     public StringDataType(String value) {
-        this.value = value;
+        this(value, 0, value.length());
+        this.flat = value;
+    }
+
+    private StringDataType(CharSequence chars, int start, int length) {
+        this.chars = chars;
+        this.start = start;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Returns a new string holding this string's text followed by a value's text
+    public StringDataType append(InterpreterDataType other) {
+        // The other text is read before any builder is locked, so two threads never wait on each other's builders
+        String text = other.toString();
+        if (chars instanceof StringBuilder) {
+            StringBuilder builder = (StringBuilder) chars;
+            // Strings in the frames of a parallel loop may share a builder across threads
+            synchronized (builder) {
+                if (start + length == builder.length() && (long) (length + text.length()) * SHARE_RATIO >= builder.length() + text.length()) {
+                    // A builder that has to grow copies itself into one about twice as large
+                    if (builder.length() + text.length() > builder.capacity() && builder.capacity() >= JobBudget.LARGE_ALLOCATION) {
+                        JobBudget.allocating(2L * (builder.length() + text.length()));
+                    }
+                    builder.append(text);
+                    return new StringDataType(builder, start, length + text.length());
+                }
+            }
+        }
+        int capacity = Math.max(16, 2 * (length + text.length()));
+        if (capacity >= JobBudget.LARGE_ALLOCATION) {
+            JobBudget.allocating(capacity);
+        }
+        StringBuilder builder = new StringBuilder(capacity);
+        builder.append(toString()).append(text);
+        return new StringDataType(builder, 0, builder.length());
+    }
+
+    // Returns the characters from begin up to but not including end, sharing this string's characters unless the
+    // slice is much shorter than them
+    public StringDataType substring(int begin, int end) {
+        if (begin < 0 || end > length || begin > end) {
+            throw new StringIndexOutOfBoundsException("begin " + begin + ", end " + end + ", length " + length);
+        }
+        long shared = (long) (end - begin) * SHARE_RATIO;
+        if (chars instanceof StringBuilder) {
+            StringBuilder builder = (StringBuilder) chars;
+            synchronized (builder) {
+                if (shared < builder.length()) {
+                    return new StringDataType(builder.substring(start + begin, start + end));
+                }
+            }
+        } else if (shared < chars.length()) {
+            return new StringDataType(chars.subSequence(start + begin, start + end).toString());
+        }
+        return new StringDataType(chars, start + begin, end - begin);
     }
 
     @Override
     public String toString() {
-        return value;
+        if (flat == null) {
+            if (chars instanceof StringBuilder) {
+                synchronized (chars) {
+                    flat = ((StringBuilder) chars).substring(start, start + length);
+                }
+            } else {
+                flat = chars.subSequence(start, start + length).toString();
+            }
+        }
+        return flat;
     }
 
     @Override
     public void fromString(String input) {
-        value = input;
+        chars = input;
+        start = 0;
+        length = input.length();
+        flat = input;
+    }
+
+    @Override
+    public InterpreterDataType copy() {
+        StringDataType copy = new StringDataType(chars, start, length);
+        copy.flat = flat;
+        return copy;
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        StringDataType source = (StringDataType) other;
+        chars = source.chars;
+        start = source.start;
+        length = source.length;
+        flat = source.flat;
     }
 }
 
@@ -118,6 +738,16 @@ class CharacterDataType extends InterpreterDataType {
         }
         value = input.charAt(0);
     }
+
+    @Override
+    public InterpreterDataType copy() {
+        return new CharacterDataType(value);
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        value = ((CharacterDataType) other).value;
+    }
 }
 
 // BooleanDataType
@@ -132,6 +762,10 @@ class BooleanDataType extends InterpreterDataType {
         return value;
     }
 
+    public void setValue(boolean value) {
+        this.value = value;
+    }
+
     @Override
     public String toString() {
         return Boolean.toString(value);
@@ -141,5 +775,15 @@ class BooleanDataType extends InterpreterDataType {
     public void fromString(String input) {
         value = Boolean.parseBoolean(input);
     }
+
+    @Override
+    public InterpreterDataType copy() {
+        return new BooleanDataType(value);
+    }
+
+    @Override
+    public void assign(InterpreterDataType other) {
+        value = ((BooleanDataType) other).value;
+    }
 }
 
@@ -0,0 +1,501 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The IrCompiler class lowers a Shank program to a flat instruction stream for the
+ * RegisterVM. Each function gets its own int[] of instructions, and its variables and
+ * temporaries live in two register files, one for integers and one for reals. While
+ * and for loops become jumps, and every comparison is fused with the branch that
+ * follows it.
+ *
+ * Like the BytecodeCompiler, the IR covers integer and real variables, string literals
+ * passed to write, and the numeric built-ins. Anything else throws
+ * UnsupportedOperationException so the caller can fall back to the Interpreter.
+ */
+public class IrCompiler {
+    private static final int INT = 0;
+    private static final int REAL = 1;
+    private static final int STRING = 2;
+
+    private final ProgramNode program;
+    private final Map<String, Integer> functionIndexes;
+    private final List<String> strings;
+    private final List<Double> reals;
+
+    public IrCompiler(ProgramNode program) {
+        this.program = program;
+        this.functionIndexes = new HashMap<>();
+        this.strings = new ArrayList<>();
+        this.reals = new ArrayList<>();
+        for (FunctionNode function : program.getFunctions()) {
+            functionIndexes.put(function.getName(), functionIndexes.size());
+        }
+    }
+
+    /**
+     * This method lowers every function of the program.
+     *
+     * @return IrProgram - The lowered program
+     * @throws UnsupportedOperationException if the program uses a feature the IR does not cover
+     */
+    public IrProgram compile() {
+        if (!functionIndexes.containsKey("start")) {
+            throw new UnsupportedOperationException("Program has no start function");
+        }
+        List<FunctionNode> functions = program.getFunctions();
+
+        // Lay out every function first, so calls can find the callee's parameter registers
+        List<FunctionLowering> lowerings = new ArrayList<>();
+        for (FunctionNode function : functions) {
+            lowerings.add(new FunctionLowering(function));
+        }
+        IrFunction[] lowered = new IrFunction[functions.size()];
+        for (int i = 0; i < lowered.length; i++) {
+            lowered[i] = lowerings.get(i).lower(lowerings);
+        }
+
+        double[] realConstants = new double[reals.size()];
+        for (int i = 0; i < realConstants.length; i++) {
+            realConstants[i] = reals.get(i);
+        }
+        return new IrProgram(lowered, functionIndexes.get("start"), strings.toArray(new String[0]), realConstants);
+    }
+
+    // Returns the pool index of a string constant
+    private int stringConstant(String value) {
+        int index = strings.indexOf(value);
+        if (index < 0) {
+            strings.add(value);
+            index = strings.size() - 1;
+        }
+        return index;
+    }
+
+    // Returns the pool index of a real constant
+    private int realConstant(double value) {
+        int index = reals.indexOf(value);
+        if (index < 0) {
+            reals.add(value);
+            index = reals.size() - 1;
+        }
+        return index;
+    }
+
+    // FunctionLowering assigns registers to the variables of one function and emits its instructions
+    private class FunctionLowering {
+        private final FunctionNode function;
+        private final FrameLayout layout;
+        private final int[] files;
+        private final int[] registers;
+        private final boolean[] isVar;
+        private final int[] next = new int[2];
+        private final int[] max = new int[2];
+        private int[] code = new int[64];
+        private int length;
+
+        FunctionLowering(FunctionNode function) {
+            this.function = function;
+            this.layout = FrameLayout.of(function);
+            this.files = new int[layout.size()];
+            this.registers = new int[layout.size()];
+            this.isVar = new boolean[layout.size()];
+
+            // Each variable takes the next register of its file, parameters first
+            List<VariableNode> parameters = function.getParameters() == null ? new ArrayList<>() : function.getParameters();
+            for (int slot = 0; slot < layout.size(); slot++) {
+                String type = layout.getType(slot).toLowerCase();
+                if (type.equals("integer")) {
+                    files[slot] = INT;
+                } else if (type.equals("real")) {
+                    files[slot] = REAL;
+                } else {
+                    throw new UnsupportedOperationException("Variables of type " + layout.getType(slot) + " are not lowered");
+                }
+                registers[slot] = next[files[slot]]++;
+                isVar[slot] = slot < parameters.size() && parameters.get(slot).isVar();
+            }
+            max[INT] = next[INT];
+            max[REAL] = next[REAL];
+        }
+
+        IrFunction lower(List<FunctionLowering> lowerings) {
+            compileBlock(function.getStatements(), lowerings);
+            emit(Ir.RETURN);
+            int[] parameterRegisters = Arrays.copyOf(registers, layout.getParameterCount());
+            return new IrFunction(function.getName(), Arrays.copyOf(code, length), max[INT], max[REAL], parameterRegisters);
+        }
+
+        private void compileBlock(List<StatementNode> statements, List<FunctionLowering> lowerings) {
+            for (StatementNode statement : statements) {
+                // Temporaries only live for one statement
+                int intMark = next[INT];
+                int realMark = next[REAL];
+                compileStatement(statement, lowerings);
+                next[INT] = intMark;
+                next[REAL] = realMark;
+            }
+        }
+
+        private void compileStatement(StatementNode statement, List<FunctionLowering> lowerings) {
+            if (statement instanceof IfNode) {
+                compileIf((IfNode) statement, lowerings);
+            } else if (statement instanceof WhileNode) {
+                WhileNode node = (WhileNode) statement;
+                int top = length;
+                int exit = compileConditionFalseJump(node.getCondition());
+                compileBlock(node.getStatements(), lowerings);
+                emit(Ir.JUMP, top);
+                patch(exit, length);
+            } else if (statement instanceof ForNode) {
+                compileFor((ForNode) statement, lowerings);
+            } else if (statement instanceof AssignmentNode) {
+                AssignmentNode node = (AssignmentNode) statement;
+                int slot = layout.require(node.getVariable());
+                compileInto(node.getValue(), files[slot], registers[slot]);
+            } else if (statement instanceof FunctionCallNode) {
+                compileCall((FunctionCallNode) statement, lowerings);
+            } else {
+                throw new UnsupportedOperationException("Statements of type " + statement.getClass().getName() + " are not lowered");
+            }
+        }
+
+        private void compileIf(IfNode node, List<FunctionLowering> lowerings) {
+            int skip = compileConditionFalseJump(node.getCondition());
+            compileBlock(node.getStatements(), lowerings);
+            if (node.getElsifBranch() == null && node.getElseBranch() == null) {
+                patch(skip, length);
+                return;
+            }
+            emit(Ir.JUMP, 0);
+            int end = length - 1;
+            patch(skip, length);
+            if (node.getElsifBranch() != null) {
+                compileIf(node.getElsifBranch(), lowerings);
+            } else {
+                compileBlock(node.getElseBranch().getStatements(), lowerings);
+            }
+            patch(end, length);
+        }
+
+        // The counter runs in a hidden register and is copied into the variable at the start of each
+        // iteration and once more after the last one, as the interpreter does.
+        private void compileFor(ForNode node, List<FunctionLowering> lowerings) {
+            int slot = layout.require(node.getVariable());
+            if (files[slot] != INT) {
+                throw new UnsupportedOperationException("For loops over " + layout.getType(slot) + " variables are not lowered");
+            }
+            int counter = temporary(INT);
+            int end = temporary(INT);
+            compileInto(node.getFrom(), INT, counter);
+            compileInto(node.getTo(), INT, end);
+            emit(Ir.IF_IGT, counter, end, 0);
+            int exit = length - 1;
+            int top = length;
+            emit(Ir.IMOVE, registers[slot], counter);
+            compileBlock(node.getStatements(), lowerings);
+            emit(Ir.IINC, counter);
+            emit(Ir.IF_ILE, counter, end, top);
+            emit(Ir.IMOVE, registers[slot], counter);
+            patch(exit, length);
+        }
+
+        private void compileCall(FunctionCallNode node, List<FunctionLowering> lowerings) {
+            String name = node.getFunctionName();
+            List<Node> arguments = node.getParameters();
+            if (functionIndexes.containsKey(name)) {
+                FunctionLowering callee = lowerings.get(functionIndexes.get(name));
+                if (callee.layout.getParameterCount() != arguments.size()) {
+                    throw new UnsupportedOperationException("Incorrect number of parameters for function: " + name);
+                }
+
+                // CALL function count, then file, register and var flag for each argument
+                int[] operands = new int[2 + 3 * arguments.size()];
+                operands[0] = functionIndexes.get(name);
+                operands[1] = arguments.size();
+                for (int i = 0; i < arguments.size(); i++) {
+                    int file = callee.files[i];
+                    Node argument = arguments.get(i);
+                    if (callee.isVar[i]) {
+                        if (!(argument instanceof VariableReferenceNode)) {
+                            throw new UnsupportedOperationException("Var parameter given an expression in call to " + name);
+                        }
+                        int slot = layout.require(((VariableReferenceNode) argument).getName());
+                        requireFile(files[slot], file);
+                        operands[2 + 3 * i + 1] = registers[slot];
+                        operands[2 + 3 * i + 2] = 1;
+                    } else {
+                        operands[2 + 3 * i + 1] = compileExpression(argument, file);
+                    }
+                    operands[2 + 3 * i] = file;
+                }
+                emit(Ir.CALL);
+                for (int operand : operands) {
+                    emit(operand);
+                }
+            } else if (name.equals("write") || name.equals("writeln")) {
+                for (Node argument : arguments) {
+                    int file = typeOf(argument);
+                    if (file == STRING) {
+                        emit(Ir.WRITE_STRING, stringConstant(((StringNode) argument).getValue()));
+                    } else {
+                        emit(file == INT ? Ir.WRITE_INT : Ir.WRITE_REAL, compileExpression(argument, file));
+                    }
+                }
+                if (name.equals("writeln")) {
+                    emit(Ir.WRITELN);
+                }
+            } else if (name.equals("flush") && arguments.isEmpty()) {
+                emit(Ir.FLUSH);
+            } else if (name.equals("abs")) {
+                int register = builtInTarget(arguments, INT);
+                if (register >= 0) {
+                    emit(Ir.IABS, register);
+                }
+            } else if (Arrays.asList("sqr", "sin", "cos", "exp", "ln").contains(name)) {
+                int register = builtInTarget(arguments, REAL);
+                if (register >= 0) {
+                    int opcode = name.equals("sqr") ? Ir.RSQRT : name.equals("sin") ? Ir.RSIN : name.equals("cos") ? Ir.RCOS : name.equals("exp") ? Ir.REXP : Ir.RLN;
+                    emit(opcode, register);
+                }
+            } else {
+                throw new UnsupportedOperationException("Calls to " + name + " are not lowered");
+            }
+        }
+
+        // Returns the register a single-parameter numeric built-in updates, or -1 when it is given a value that is discarded
+        private int builtInTarget(List<Node> arguments, int file) {
+            if (arguments.size() != 1) {
+                throw new UnsupportedOperationException("Built-in called with " + arguments.size() + " parameters");
+            }
+            Node argument = arguments.get(0);
+            requireFile(typeOf(argument), file);
+            if (argument instanceof VariableReferenceNode) {
+                return registers[layout.require(((VariableReferenceNode) argument).getName())];
+            }
+            return -1;
+        }
+
+        // Emits a fused compare and branch that jumps when the condition is false, returning the operand to patch
+        private int compileConditionFalseJump(BooleanCompareNode node) {
+            int file = typeOf(node.getLeft());
+            requireFile(typeOf(node.getRight()), file);
+            if (file == STRING) {
+                throw new UnsupportedOperationException("String comparisons are not lowered");
+            }
+            int left = compileExpression(node.getLeft(), file);
+            int right = compileExpression(node.getRight(), file);
+            int opcode;
+            switch (node.getComparisonType()) {
+                case EQUAL:
+                    opcode = Ir.IF_INE;
+                    break;
+                case NOT_EQUAL:
+                    opcode = Ir.IF_IEQ;
+                    break;
+                case LESS_THAN:
+                    opcode = Ir.IF_IGE;
+                    break;
+                case LESS_OR_EQUAL:
+                    opcode = Ir.IF_IGT;
+                    break;
+                case GREATER_THAN:
+                    opcode = Ir.IF_ILE;
+                    break;
+                case GREATER_OR_EQUAL:
+                    opcode = Ir.IF_ILT;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown comparison type: " + node.getComparisonType());
+            }
+            // Each real branch opcode follows the integer one with the same condition
+            emit(file == INT ? opcode : opcode + Ir.REAL_BRANCH_OFFSET, left, right, 0);
+            return length - 1;
+        }
+
+        // Emits an expression into the given register
+        private void compileInto(Node node, int file, int target) {
+            requireFile(typeOf(node), file);
+            if (node instanceof IntegerNode) {
+                emit(Ir.ICONST, target, ((IntegerNode) node).getValue());
+            } else if (node instanceof RealNode) {
+                emit(Ir.RCONST, target, realConstant(((RealNode) node).getValue()));
+            } else if (node instanceof VariableReferenceNode) {
+                emit(file == INT ? Ir.IMOVE : Ir.RMOVE, target, compileExpression(node, file));
+            } else if (node instanceof MathOpNode) {
+                MathOpNode math = (MathOpNode) node;
+                int left = compileExpression(math.getLeft(), file);
+                int right = compileExpression(math.getRight(), file);
+                int opcode;
+                switch (math.getOp()) {
+                    case ADD:
+                        opcode = Ir.IADD;
+                        break;
+                    case SUBTRACT:
+                        opcode = Ir.ISUB;
+                        break;
+                    case MULTIPLY:
+                        opcode = Ir.IMUL;
+                        break;
+                    case DIVIDE:
+                        opcode = Ir.IDIV;
+                        break;
+                    case MODULO:
+                        opcode = Ir.IREM;
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Unknown math operation: " + math.getOp());
+                }
+                // Each real arithmetic opcode follows the integer one for the same operation
+                emit(file == INT ? opcode : opcode + Ir.REAL_MATH_OFFSET, target, left, right);
+            } else {
+                throw new UnsupportedOperationException("Expressions of type " + node.getClass().getName() + " are not lowered");
+            }
+        }
+
+        // Returns the register holding an expression's value, using a variable's register directly
+        private int compileExpression(Node node, int file) {
+            requireFile(typeOf(node), file);
+            if (node instanceof VariableReferenceNode) {
+                return registers[layout.require(((VariableReferenceNode) node).getName())];
+            }
+            int target = temporary(file);
+            compileInto(node, file, target);
+            return target;
+        }
+
+        // Returns the register file of the value an expression produces
+        private int typeOf(Node node) {
+            if (node instanceof IntegerNode) {
+                return INT;
+            } else if (node instanceof RealNode) {
+                return REAL;
+            } else if (node instanceof StringNode) {
+                return STRING;
+            } else if (node instanceof VariableReferenceNode) {
+                return files[layout.require(((VariableReferenceNode) node).getName())];
+            } else if (node instanceof MathOpNode) {
+                int left = typeOf(((MathOpNode) node).getLeft());
+                if (left == STRING || left != typeOf(((MathOpNode) node).getRight())) {
+                    throw new UnsupportedOperationException("Math on mixed or string values is not lowered");
+                }
+                return left;
+            }
+            throw new UnsupportedOperationException("Expressions of type " + node.getClass().getName() + " are not lowered");
+        }
+
+        private void requireFile(int actual, int expected) {
+            if (actual != expected) {
+                throw new UnsupportedOperationException("Mismatched value types are not lowered");
+            }
+        }
+
+        private int temporary(int file) {
+            int register = next[file]++;
+            max[file] = Math.max(max[file], next[file]);
+            return register;
+        }
+
+        private void patch(int operand, int target) {
+            code[operand] = target;
+        }
+
+        private void emit(int... words) {
+            if (length + words.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+            }
+            for (int word : words) {
+                code[length++] = word;
+            }
+        }
+    }
+}
+
+// Ir holds the opcodes of the register VM. Operands follow each opcode in the instruction stream.
+final class Ir {
+    // Version of the instruction set and its lowering, so programs cached by an older compiler are not run
+    static final int VERSION = 1;
+
+    static final int ICONST = 0;        // register, value
+    static final int RCONST = 1;        // register, real constant index
+    static final int IMOVE = 2;         // target, source
+    static final int RMOVE = 3;         // target, source
+    static final int IADD = 4;          // target, left, right
+    static final int ISUB = 5;
+    static final int IMUL = 6;
+    static final int IDIV = 7;
+    static final int IREM = 8;
+    static final int RADD = 9;
+    static final int RSUB = 10;
+    static final int RMUL = 11;
+    static final int RDIV = 12;
+    static final int RREM = 13;
+    static final int IINC = 14;         // register
+    static final int JUMP = 15;         // target
+    static final int IF_IEQ = 16;       // left, right, target
+    static final int IF_INE = 17;
+    static final int IF_ILT = 18;
+    static final int IF_ILE = 19;
+    static final int IF_IGT = 20;
+    static final int IF_IGE = 21;
+    static final int IF_REQ = 22;
+    static final int IF_RNE = 23;
+    static final int IF_RLT = 24;
+    static final int IF_RLE = 25;
+    static final int IF_RGT = 26;
+    static final int IF_RGE = 27;
+    static final int IABS = 28;         // register
+    static final int RSQRT = 29;        // register
+    static final int RSIN = 30;
+    static final int RCOS = 31;
+    static final int REXP = 32;
+    static final int RLN = 33;
+    static final int WRITE_INT = 34;    // register
+    static final int WRITE_REAL = 35;   // register
+    static final int WRITE_STRING = 36; // string constant index
+    static final int WRITELN = 37;
+    static final int CALL = 38;         // function, count, then file, register, var flag per argument
+    static final int RETURN = 39;
+    static final int FLUSH = 40;
+
+    static final int REAL_MATH_OFFSET = RADD - IADD;
+    static final int REAL_BRANCH_OFFSET = IF_REQ - IF_IEQ;
+
+    private Ir() {
+    }
+}
+
+// IrProgram holds the lowered functions and the constant pools they share
+final class IrProgram {
+    final IrFunction[] functions;
+    final int start;
+    final String[] strings;
+    final double[] reals;
+
+    IrProgram(IrFunction[] functions, int start, String[] strings, double[] reals) {
+        this.functions = functions;
+        this.start = start;
+        this.strings = strings;
+        this.reals = reals;
+    }
+}
+
+// IrFunction holds the instructions of one function and the size of its register windows
+final class IrFunction {
+    final String name;
+    final int[] code;
+    final int intRegisters;
+    final int realRegisters;
+    final int[] parameterRegisters;
+
+    IrFunction(String name, int[] code, int intRegisters, int realRegisters, int[] parameterRegisters) {
+        this.name = name;
+        this.code = code;
+        this.intRegisters = intRegisters;
+        this.realRegisters = realRegisters;
+        this.parameterRegisters = parameterRegisters;
+    }
+}
@@ -0,0 +1,260 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The JobBudget class limits the CPU time and allocation one program run by the
+ * server may use. The interpreter calls tick before each statement and at the end of
+ * each iteration of a loop, so even a loop with an empty body is counted, and every
+ * few thousand ticks the budget compares what the program has used against its
+ * limits, throwing JobLimitExceededException to stop it once either is passed. A
+ * single large allocation, such as appending to a long string, is checked before it
+ * is made, since a few of them between two ticks can use up far more than the limit.
+ *
+ * CPU time is read from the JVM for the thread running the program. HotSpot does not
+ * measure CPU time for virtual threads, and for those the budget counts the wall time
+ * the program has been running instead. A running interpreter never blocks, since a
+ * server job's input is already in memory, and virtual threads are not time-sliced,
+ * so the two agree closely.
+ *
+ * The allocation limit is a budget for the bytes the program allocates over its whole
+ * run, as the JVM counts them for each thread, not a limit on what it holds at once:
+ * a program that keeps replacing a small string spends it as surely as one building a
+ * large one. Every job shares one heap, and the JVM cannot tell which job is holding
+ * what, so what a job retains is not measured. Direct memory allocated outside the
+ * heap is not counted either. Where the JVM does not count allocation, the limit
+ * cannot be enforced.
+ *
+ * The tasks of the program's parallel loops run on a fork/join pool the budget owns,
+ * of a bounded size, so no job can take over the threads of another. The pool's
+ * threads are platform threads that work only for this job, and everything they use
+ * is charged to it: their ticks check the limits as the owner's do, against the
+ * owner's use plus the CPU time and allocation of every worker. The wall time the
+ * owner spends waiting for a loop is not counted, as the workers' CPU time is. The
+ * pool is shut down by close once the program ends.
+ */
+final class JobBudget implements AutoCloseable {
+    // Statements run between checks of the limits
+    private static final int CHECK_INTERVAL = 4096;
+    // Allocations of at least this many bytes are checked against the limit before they are made
+    static final int LARGE_ALLOCATION = 1 << 16;
+    // The budget of the program running on the current thread, for threads other than the pool's workers
+    private static final ThreadLocal<JobBudget> RUNNING = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long cpuLimitNanos;
+    private final long allocationLimitBytes;
+    private final int parallelism;
+    private Thread owner;
+    private long cpuStart;
+    private boolean cpuMeasured;
+    private long allocatedStart;
+    private int countdown = CHECK_INTERVAL;
+    // What the owner had used when it last started a parallel loop, for checks made by the workers
+    private volatile long ownerCpuUsed;
+    private volatile long ownerAllocatedUsed;
+    // The pool for parallel loops, created by the first one, with its live threads and what its finished threads used
+    private ForkJoinPool pool;
+    private final Set<Worker> workers = new HashSet<>();
+    private long retiredCpu;
+    private long retiredAllocated;
+
+    // Creates a budget whose parallel loops run on at most parallelism threads; a limit of zero or less is no limit
+    JobBudget(long cpuLimitNanos, long allocationLimitBytes, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("A job needs at least one thread for its parallel loops");
+        }
+        this.cpuLimitNanos = cpuLimitNanos;
+        this.allocationLimitBytes = allocationLimitBytes;
+        this.parallelism = parallelism;
+    }
+
+    // Starts measuring on the thread that runs the program
+    void start() {
+        owner = Thread.currentThread();
+        long cpu = cpuTime();
+        cpuMeasured = cpu >= 0;
+        cpuStart = cpuMeasured ? cpu : System.nanoTime();
+        allocatedStart = allocatedBytes();
+        RUNNING.set(this);
+    }
+
+    // Counts one statement, checking the limits every CHECK_INTERVAL statements of the owner or of each worker
+    void tick() {
+        Thread current = Thread.currentThread();
+        if (current == owner) {
+            if (--countdown <= 0) {
+                countdown = CHECK_INTERVAL;
+                check(ownerCpuUsed(), ownerAllocatedUsed());
+            }
+        } else if (current instanceof Worker && ((Worker) current).budget == this) {
+            Worker worker = (Worker) current;
+            if (--worker.countdown <= 0) {
+                worker.countdown = CHECK_INTERVAL;
+                check(ownerCpuUsed, ownerAllocatedUsed);
+            }
+        }
+    }
+
+    // Checks the limits against what the program on the current thread has used plus an allocation it is about to
+    // make, called for allocations of at least LARGE_ALLOCATION bytes. Does nothing when no budget is running.
+    static void allocating(long bytes) {
+        Thread current = Thread.currentThread();
+        JobBudget budget = current instanceof Worker ? ((Worker) current).budget : RUNNING.get();
+        if (budget == null || budget.allocationLimitBytes <= 0) {
+            return;
+        }
+        if (current == budget.owner) {
+            budget.check(budget.ownerCpuUsed(), budget.ownerAllocatedUsed() + bytes);
+        } else {
+            budget.check(budget.ownerCpuUsed, budget.ownerAllocatedUsed + bytes);
+        }
+    }
+
+    // getter for the number of threads the job's parallel loops may use
+    int getParallelism() {
+        return parallelism;
+    }
+
+    // Runs the task of a parallel loop on the job's pool, called by the owner
+    <T> T invoke(ForkJoinTask<T> task) {
+        ownerCpuUsed = ownerCpuUsed();
+        ownerAllocatedUsed = ownerAllocatedUsed();
+        long waitStart = System.nanoTime();
+        try {
+            return pool().invoke(task);
+        } finally {
+            if (!cpuMeasured) {
+                // Measuring wall time, the wait is left out as the workers' CPU time is counted instead
+                cpuStart += System.nanoTime() - waitStart;
+            }
+        }
+    }
+
+    // Shuts down the job's pool, stopping any tasks still running
+    @Override
+    public synchronized void close() {
+        if (RUNNING.get() == this) {
+            RUNNING.remove();
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> new Worker(forkJoinPool, this), null, false);
+        }
+        return pool;
+    }
+
+    private void check(long ownerCpu, long ownerAllocated) {
+        if (cpuLimitNanos > 0) {
+            long used = ownerCpu + workersCpu();
+            if (used > cpuLimitNanos) {
+                throw new JobLimitExceededException("CPU time limit of " + cpuLimitNanos / 1_000_000 + " ms exceeded");
+            }
+        }
+        if (allocationLimitBytes > 0 && allocatedStart >= 0) {
+            long used = ownerAllocated + workersAllocated();
+            if (used > allocationLimitBytes) {
+                throw new JobLimitExceededException("Allocation limit of " + allocationLimitBytes / (1 << 20) + " MB exceeded");
+            }
+        }
+    }
+
+    // Returns the CPU time, or wall time, the owner has used; called on the owner's thread
+    private long ownerCpuUsed() {
+        return (cpuMeasured ? cpuTime() : System.nanoTime()) - cpuStart;
+    }
+
+    // Returns the bytes the owner has allocated; called on the owner's thread
+    private long ownerAllocatedUsed() {
+        return allocatedStart >= 0 ? allocatedBytes() - allocatedStart : 0;
+    }
+
+    // Returns the CPU time of the pool's threads, live and finished
+    private synchronized long workersCpu() {
+        long used = retiredCpu;
+        for (Worker worker : workers) {
+            used += Math.max(0, THREADS.getThreadCpuTime(worker.threadId()));
+        }
+        return used;
+    }
+
+    // Returns the bytes allocated by the pool's threads, live and finished
+    private synchronized long workersAllocated() {
+        long used = retiredAllocated;
+        for (Worker worker : workers) {
+            used += Math.max(0, THREADS.getThreadAllocatedBytes(worker.threadId()));
+        }
+        return used;
+    }
+
+    // Returns whether the allocation limit can be enforced on the current thread
+    static boolean canMeasureAllocation() {
+        return allocatedBytes() >= 0;
+    }
+
+    // Returns the CPU time of the current thread, or -1 when the JVM does not measure it
+    private static long cpuTime() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    // Returns the bytes the current thread has allocated, or -1 when the JVM does not count them
+    private static long allocatedBytes() {
+        try {
+            return THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled()
+                    ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    // Worker is a thread of a job's pool. It registers with the budget when it starts and hands over what it used
+    // when it ends, so the budget can measure it while it lives.
+    private static final class Worker extends ForkJoinWorkerThread {
+        private final JobBudget budget;
+        private int countdown = CHECK_INTERVAL;
+
+        Worker(ForkJoinPool pool, JobBudget budget) {
+            super(pool);
+            this.budget = budget;
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            synchronized (budget) {
+                budget.workers.add(this);
+            }
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            synchronized (budget) {
+                budget.retiredCpu += Math.max(0, cpuTime());
+                budget.retiredAllocated += Math.max(0, allocatedBytes());
+                budget.workers.remove(this);
+            }
+            super.onTermination(exception);
+        }
+    }
+}
+
+// JobLimitExceededException stops a program that has used up its CPU time or allocation budget
+class JobLimitExceededException extends RuntimeException {
+    JobLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,4 @@
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 /**
@@ -9,29 +8,54 @@ import java.util.List;
  * character literal, comment, or exception.
  */
 public class Lexer {
-    private List<Token> tokens;
-    private HashMap<String, Token.Type> keywords;
+    private StringBuilder source;
+    private TokenBuffer tokens;
+    private InternPool internPool;
     private HashMap<String, Token.Type> punctuation;
+    private Token.Type[] punctuationTable;
+    // Two-character punctuation such as :=, indexed by the first ASCII character shifted left 7 bits or the second
+    private Token.Type[] pairTable;
+    private boolean[] pairStarts;
+    private byte[] charClasses;
     private int lineNumber;
+    private boolean incomplete;
 
     /**
-     * This method returns the list of tokens generated by the lexer.
+     * This method returns the list of tokens generated by the lexer. The list is a view
+     * over the token buffer and builds Token objects only as they are read.
      *
      * @return List<Token> - The list of tokens
      */
     public List<Token> getTokens() {
+        return tokens.asList();
+    }
+
+    /**
+     * This method returns the packed token buffer generated by the lexer.
+     *
+     * @return TokenBuffer - The token buffer
+     */
+    public TokenBuffer getTokenBuffer() {
         return tokens;
     }
 
     /**
-     * The constructor initializes an empty list of tokens, a hashmap of keywords and punctuations, and sets
-     * the line number to 1.
+     * The constructor initializes an empty token buffer, the intern pool of keywords, the
+     * punctuation tables, and sets the line number to 1.
      */
     public Lexer() {
-        this.tokens = new ArrayList<>();
-        this.keywords = new HashMap<>();
+        this.source = new StringBuilder();
+        this.internPool = new InternPool();
+        this.tokens = new TokenBuffer(source, internPool);
         this.punctuation = new HashMap<>();
+        this.punctuationTable = new Token.Type[128];
+        this.pairTable = new Token.Type[128 * 128];
+        this.pairStarts = new boolean[128];
+        this.charClasses = new byte[128];
         this.lineNumber = 1;
+        for (char c = 0; c < charClasses.length; c++) {
+            charClasses[c] = classify(c);
+        }
         // Add keywords and Punctuatios
         addKeyword("if", Token.Type.IF);
         addKeyword("else", Token.Type.ELSE);
@@ -57,6 +81,7 @@ public class Lexer {
         addKeyword("struct", Token.Type.STRUCT);
         addKeyword("goto", Token.Type.GOTO);
         addKeyword("default", Token.Type.DEFAULT);
+        addKeyword("parallel", Token.Type.PARALLEL);
         addPunctuation("(", Token.Type.LEFT_PAREN);
         addPunctuation(")", Token.Type.RIGHT_PAREN);
         addPunctuation("{", Token.Type.LEFT_BRACE);
@@ -65,171 +90,261 @@ public class Lexer {
         addPunctuation("]", Token.Type.RIGHT_BRACKET);
         addPunctuation(";", Token.Type.SEMICOLON);
         addPunctuation(":", Token.Type.COLON);
+        addPunctuation(",", Token.Type.COMMA);
+        addPunctuation("+", Token.Type.PLUS);
+        addPunctuation("-", Token.Type.MINUS);
+        addPunctuation("*", Token.Type.MULTIPLY);
+        addPunctuation("/", Token.Type.DIVIDE);
+        addPunctuation("=", Token.Type.EQ);
+        addPunctuation("<", Token.Type.LT);
+        addPunctuation(">", Token.Type.GT);
+        addPunctuation(":=", Token.Type.ASSIGN);
+        addPunctuation("<=", Token.Type.LTE);
+        addPunctuation(">=", Token.Type.GTE);
+        addPunctuation("<>", Token.Type.NEQ);
     }
 
     /**
-     * This method adds keywords to the hashmap.
+     * This method adds keywords to the intern pool.
      *
      * @param keyword   - The keyword
      * @param Type - The token type of the keyword
      */
     public void addKeyword(String keyword, Token.Type type) {
-        keywords.put(keyword, type);
+        internPool.define(keyword, type);
     }
 
     /**
-    * This method adds punctuation to the hashmap.
+    * This method adds punctuation of one or two characters to the hashmap, and to the character
+    * tables when its characters are ASCII. The scanner prefers a two-character punctuation
+    * over the single character it starts with, so := is read as one token rather than : and =.
     *
     * @param punctuation - The punctuation
     * @param Type - The token type of the punctuation
     */
     public void addPunctuation(String punctuation, Token.Type type) {  
+        if (punctuation.isEmpty() || punctuation.length() > 2) {
+            throw new IllegalArgumentException("Punctuation must be one or two characters: " + punctuation);
+        }
         this.punctuation.put(punctuation, type);
+        char first = punctuation.charAt(0);
+        if (punctuation.length() == 2 && first < pairStarts.length && punctuation.charAt(1) < pairStarts.length) {
+            pairTable[(first << 7) | punctuation.charAt(1)] = type;
+            pairStarts[first] = true;
+        } else if (punctuation.length() == 1 && first < punctuationTable.length) {
+            punctuationTable[first] = type;
+        }
+        if (first < charClasses.length) {
+            charClasses[first] = classify(first);
+        }
     }
 
     /**
- * This method performs lexical analysis on the input string and populates the tokens list.
- *
- * @param input - The input string
- * @throws SyntaxErrorException
- */
-    public void lex(String input) throws SyntaxErrorException {
-
-        // Get the length of the input string
-        int length = input.length();
-
-        // Initialize variables to keep track of the start and current positions in the input string
-        int start = 0;
-        int current = 0;
-
-        // Loop through each character in the input string
-        while (current < length) {
-
-            // Get the current character
-            char c = input.charAt(current);
-
-            // If the current character is a letter, then it must be a keyword or a variable name
-            if (Character.isLetter(c)) {
-
-                // Continue looping through the input string until a non-letter character is found
-                while (current < length && Character.isLetter(input.charAt(current))) {
-                    current++;
-                }
-
-                // Get the word that was found
-                String word = input.substring(start, current);
-
-                // Determine if the word is a keyword or a variable name
-                Token.Type type = keywords.getOrDefault(word, Token.Type.WORD);
-
-                // Add the token to the list
-                tokens.add(new Token(type, word, lineNumber));
-
-                // Update the start position for the next token
-                start = current;
-
-            // If the current character is a digit or a period, then it must be a number
-            } else if (Character.isDigit(c) || c == '.') {
-
-                // Continue looping through the input string until a non-digit or non-period character is found
-                while (current < length && (Character.isDigit(input.charAt(current)) || input.charAt(current) == '.')) {
-                    current++;
-                }
+     * This method returns the character class the scanner dispatches on. ASCII characters
+     * are read from a table built from the punctuation registrations, and anything else
+     * is classified on the fly.
+     *
+     * @param c - The character
+     * @return byte - One of the CharClass constants
+     */
+    byte charClass(char c) {
+        return c < charClasses.length ? charClasses[c] : classify(c);
+    }
 
-                // Get the number that was found
-                tokens.add(new Token(Token.Type.NUMBER, input.substring(start, current), lineNumber));
+    // Classifies a character, checking in the same order the scanner has always used
+    private byte classify(char c) {
+        if (Character.isLetter(c)) {
+            return CharClass.LETTER;
+        } else if (Character.isDigit(c) || c == '.') {
+            return CharClass.DIGIT;
+        } else if (c == '/') {
+            // A slash may start a comment, so the scanner looks at the next character before treating it as punctuation
+            return CharClass.SLASH;
+        } else if (punctuationType(c) != null || (c < pairStarts.length && pairStarts[c])) {
+            return CharClass.PUNCTUATION;
+        } else if (c == '"') {
+            return CharClass.QUOTE;
+        } else if (c == '\'') {
+            return CharClass.APOSTROPHE;
+        } else if (c == '#') {
+            return CharClass.HASH;
+        } else if (c == '\n') {
+            return CharClass.NEWLINE;
+        } else if (Character.isWhitespace(c)) {
+            return CharClass.WHITESPACE;
+        }
+        return CharClass.INVALID;
+    }
 
-                // Update the start position for the next token
-                start = current;
+    // getter for the intern pool shared by this lexer's token buffer and streams
+    InternPool internPool() {
+        return internPool;
+    }
 
-            // If the current character is a punctuation character, then it must be a punctuation symbol
-            } else if (punctuation.containsKey(String.valueOf(c))) {
+    /**
+     * This method returns the token type of a keyword, or WORD if the word is not a keyword.
+     *
+     * @param word - The word to look up
+     * @return Token.Type - The keyword type or WORD
+     */
+    Token.Type keywordType(String word) {
+        return internPool.type(internPool.intern(word, 0, word.length()));
+    }
 
-                // Get the token type for the punctuation character
-                Token.Type type = punctuation.get(String.valueOf(c));
+    /**
+     * This method returns the token type of a punctuation character, or null if it is not punctuation.
+     *
+     * @param c - The character to look up
+     * @return Token.Type - The punctuation type or null
+     */
+    Token.Type punctuationType(char c) {
+        if (c < punctuationTable.length) {
+            return punctuationTable[c];
+        }
+        return punctuation.get(String.valueOf(c));
+    }
 
-                // Add the token to the list
-                tokens.add(new Token(type, String.valueOf(c), lineNumber));
+    /**
+     * This method returns the token type of a two-character punctuation, or null if the two characters are not one.
+     *
+     * @param first - The first character
+     * @param second - The second character
+     * @return Token.Type - The punctuation type or null
+     */
+    Token.Type punctuationType(char first, char second) {
+        if (first < pairStarts.length && second < pairStarts.length) {
+            return pairTable[(first << 7) | second];
+        }
+        return punctuation.get(new String(new char[] { first, second }));
+    }
 
-                // Update the start position for the next token
-                start = ++current;
+    /**
+     * This method returns a pull-style stream of tokens over the input, continuing from the
+     * lexer's current line number. Tokens are scanned lazily and are not added to the token list.
+     *
+     * @param input - The characters to scan
+     * @return TokenStream - The token stream
+     */
+    public TokenStream stream(CharSequence input) {
+        return new TokenStream(this, input, lineNumber);
+    }
 
-            // If the current character is a double-quote, then it must be the start of a string literal
-            } else if (c == '"') {
+    /**
+     * This method applies a text edit to the source and re-lexes only the tokens it can
+     * affect. Scanning restarts at the last token that ends before the edit and stops as
+     * soon as a new token starts where an old token after the edit would have started,
+     * since everything from there on is the same as before. The old tokens after that
+     * point are kept, and their offsets and line numbers are shifted lazily.
+     *
+     * The source is treated as one document, so this is meant for a lexer that was given
+     * the whole text in a single call to lex. If the edited text has a syntax error,
+     * the tokens before the error are kept, the rest are dropped, and edits re-lex to
+     * the end of the source until the error is gone.
+     *
+     * @param offset - The offset of the edit in the source
+     * @param removedLength - The number of characters removed at the offset
+     * @param insertedText - The text inserted at the offset
+     * @return TokenEdit - The range of tokens that changed
+     * @throws SyntaxErrorException
+     */
+    public TokenEdit applyEdit(int offset, int removedLength, String insertedText) throws SyntaxErrorException {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > source.length()) {
+            throw new IndexOutOfBoundsException("Edit at " + offset + " removing " + removedLength + " characters is outside the source");
+        }
 
-                // Move to the next character
-                start++;
-                current++;
+        // Find the last token that ends before the edit, where the scanner is known to be between tokens
+        int restart = lastTokenBefore(offset);
+        int restartOffset = restart < 0 ? 0 : tokens.scanStart(restart);
+        int restartLine = restart < 0 ? 1 : tokens.line(restart);
+        int first = Math.max(restart, 0);
+
+        // Find the first old token that lies wholly after the removed text. After an error the
+        // old tokens stop short of the end of the source, so none of them can be reused.
+        int resync = first;
+        while (resync < tokens.size() && (incomplete || tokens.scanStart(resync) < offset + removedLength)) {
+            resync++;
+        }
 
-                // Continue looping through the input string until the closing double-quote is found
-                while (current < length && input.charAt(current) != '"') {
-                    current++;
+        source.replace(offset, offset + removedLength, insertedText);
+        int offsetDelta = insertedText.length() - removedLength;
+
+        // Re-lex until a new token lines up with an old one
+        TokenBuffer replacement = new TokenBuffer(source, internPool);
+        TokenStream stream = new TokenStream(this, source, restartOffset, source.length(), restartLine);
+        try {
+            while (stream.advance()) {
+                int start = stream.tokenType() == Token.Type.STRINGLITERAL || stream.tokenType() == Token.Type.CHARACTERLITERAL
+                        ? stream.tokenStart() - 1 : stream.tokenStart();
+                while (resync < tokens.size() && tokens.scanStart(resync) + offsetDelta < start) {
+                    resync++;
                 }
-
-                // If the closing double-quote was not found, then the string literal is invalid
-                if (current >= length) {
-                    throw new SyntaxErrorException("Invalid character literal at line " + lineNumber, lineNumber);
+                if (resync < tokens.size() && tokens.scanStart(resync) + offsetDelta == start) {
+                    int lineDelta = stream.tokenLine() - tokens.line(resync);
+                    tokens.replace(first, resync, replacement, offsetDelta, lineDelta);
+                    lineNumber += lineDelta;
+                    return new TokenEdit(first, resync - first, replacement.size());
                 }
+                replacement.add(stream.tokenType(), stream.tokenStart(), stream.tokenEnd() - stream.tokenStart(), stream.tokenLine());
+            }
+        } catch (SyntaxErrorException e) {
+            // Keep what was lexed before the error, as a full lex would have
+            tokens.truncate(first);
+            tokens.append(replacement);
+            lineNumber = stream.getLineNumber();
+            incomplete = true;
+            throw e;
+        }
 
-                // Get the string literal that was found
-                tokens.add(new Token(Token.Type.STRINGLITERAL, input.substring(start, current), lineNumber));
-
-                // Update the start position for the next token
-                start = ++current;
-            } else if (c == '\'') {
-                start++;
-                current++;
-                if (current >= length || input.charAt(current) == '\'') {
-                    throw new SyntaxErrorException("Invalid character literal at line " + lineNumber, lineNumber);
-                }
-                char charLiteral = input.charAt(current);
-                current++;
-                if (current >= length || input.charAt(current) != '\'') {
-                    throw new SyntaxErrorException("Invalid character literal at line " + lineNumber, lineNumber);
-                }
-                tokens.add(new Token(Token.Type.CHARACTERLITERAL, String.valueOf(charLiteral), lineNumber));
-                start = ++current;
-            } else if (c == '#') {
-                while (current < length && input.charAt(current) != '\n') {
-                    current++;
-                }
-                
-                start = current;
-            } else if (c == '\n') {
-                lineNumber++;
-                // Whitespace found, skip to next non-whitespace character
-                start = ++current;
-            } else if (Character.isWhitespace(c)) {
-                if (c == '\n') {
-                    lineNumber++;
-                }
-                start = ++current;
-            }else if (c == '/' && current + 1 < length && input.charAt(current + 1) == '/') {
-                while (current < length && input.charAt(current) != '\n') {
-                    current++;
-                }
-                start = current;
-            // If the current character is the start of a multi-line comment
-            } else if (c == '/' && current + 1 < length && input.charAt(current + 1) == '*') {
-                current += 2;
-                while (current < length && (input.charAt(current) != '*' || (current + 1 < length && input.charAt(current + 1) != '/'))) {
-                    if (input.charAt(current) == '\n') {
-                        lineNumber++;
-                    }
-                    current++;
-                }
+        // No old token lined up, so everything from the restart point was replaced
+        int removed = tokens.size() - first;
+        tokens.truncate(first);
+        tokens.append(replacement);
+        lineNumber = stream.getLineNumber();
+        incomplete = false;
+        return new TokenEdit(first, removed, replacement.size());
+    }
 
-                // If the closing "*/" was not found, then the multi-line comment is invalid
-                if (current >= length || input.charAt(current + 1) != '/') {
-                    throw new SyntaxErrorException("Unclosed multi-line comment at line " + lineNumber, lineNumber);
-                }
+    // Returns the index of the last token that ends before the offset, or -1
+    private int lastTokenBefore(int offset) {
+        int low = 0;
+        int high = tokens.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (tokens.scanStart(middle) < offset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found >= 0 && tokens.scanEnd(found) >= offset) {
+            found--;
+        }
+        return found;
+    }
 
-                current += 2;
-                start = current;
-            // If none of the above conditions match, the character is invalid
-            }else {
-                throw new SyntaxErrorException("Invalid character '" + c + "' at line " + lineNumber, lineNumber);
+    /**
+ * This method performs lexical analysis on the input string and populates the tokens list.
+ *
+ * @param input - The input string
+ * @throws SyntaxErrorException
+ */
+    public void lex(String input) throws SyntaxErrorException {
+        // Append the input to the source so the buffered offsets stay valid
+        int from = source.length();
+        source.append(input);
+        TokenStream stream = new TokenStream(this, source, from, source.length(), lineNumber);
+        try {
+            while (stream.advance()) {
+                tokens.add(stream.tokenType(), stream.tokenStart(), stream.tokenEnd() - stream.tokenStart(), stream.tokenLine());
             }
+        } catch (SyntaxErrorException e) {
+            incomplete = true;
+            throw e;
+        } finally {
+            // Carry the line number over to the next call
+            lineNumber = stream.getLineNumber();
         }
     }
-}
\ No newline at end of file
+}
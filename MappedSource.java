@@ -0,0 +1,71 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The MappedSource class exposes a mapped file as a CharSequence without copying it.
+ * Each byte is read as one char, which is exact for ASCII; literals are decoded as
+ * UTF-8 when extracted. A byte of a multi-byte UTF-8 sequence is read as a letter, so
+ * text outside ASCII scans as part of a word, as an accented letter does in a String,
+ * and two words still compare equal only when their bytes do.
+ */
+class MappedSource implements CharSequence {
+    private final ByteBuffer buffer;
+
+    public MappedSource(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    // Maps a whole file read-only. The mapping stays valid after the channel is closed.
+    public static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Source file too large to map: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSource(buffer);
+        }
+    }
+
+    @Override
+    public int length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        int b = buffer.get(index) & 0xFF;
+        // Bytes from 0x80 up map one to one onto Latin Extended-A, U+0100 to U+017F, where every char is a letter
+        return b < 0x80 ? (char) b : (char) (0x100 + (b & 0x7F));
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start).limit(end);
+        return new MappedSource(slice.slice());
+    }
+
+    // Returns a read-only view of the source's bytes
+    public ByteBuffer bytes() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Decodes the bytes between start and end as UTF-8
+    public String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return decode(0, length());
+    }
+}
@@ -0,0 +1,48 @@
+
+/**
+ * The NodeKind enum names each kind of AST node the interpreter, resolver and
+ * semantic analysis handle. The kind of a node class is looked up once and cached per
+ * class, so code that switches on NodeKind.of(node) dispatches in constant time
+ * instead of testing instanceof against each node type in turn.
+ */
+enum NodeKind {
+    IF(IfNode.class),
+    WHILE(WhileNode.class),
+    REPEAT(RepeatNode.class),
+    FOR(ForNode.class),
+    ASSIGNMENT(AssignmentNode.class),
+    FUNCTION_CALL(FunctionCallNode.class),
+    INTEGER(IntegerNode.class),
+    REAL(RealNode.class),
+    STRING(StringNode.class),
+    VARIABLE_REFERENCE(VariableReferenceNode.class),
+    MATH_OP(MathOpNode.class),
+    BOOLEAN_COMPARE(BooleanCompareNode.class),
+    UNKNOWN(null);
+
+    // The kind of each node class, found from the class itself or the nearest superclass with a kind
+    private static final ClassValue<NodeKind> KINDS = new ClassValue<NodeKind>() {
+        @Override
+        protected NodeKind computeValue(Class<?> type) {
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (NodeKind kind : values()) {
+                    if (kind.type == current) {
+                        return kind;
+                    }
+                }
+            }
+            return UNKNOWN;
+        }
+    };
+
+    private final Class<?> type;
+
+    NodeKind(Class<?> type) {
+        this.type = type;
+    }
+
+    // Returns the kind of a node
+    static NodeKind of(Node node) {
+        return KINDS.get(node.getClass());
+    }
+}
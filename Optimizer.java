@@ -0,0 +1,478 @@
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Optimizer class simplifies a checked program before any engine runs it, so
+ * work that gives the same result every time is done once instead of on every
+ * evaluation. It folds math and comparisons on literals into the values they give.
+ * It drops operations that leave their other operand unchanged, such as adding zero
+ * to an integer or multiplying by one. It also removes the branches of an if
+ * statement that its known conditions rule out, and while loops that never run.
+ *
+ * The program is rewritten in place. A block whose statements simplify has its list
+ * of statements replaced, and a statement or expression whose parts change is
+ * replaced by a new node with the same line number; everything else is left as it
+ * was. Literals are folded with the interpreter's own arithmetic and comparisons, so
+ * a folded program computes the same values. An operation that would fail, such as a division by zero, is left in
+ * place to fail when it runs.
+ */
+public class Optimizer {
+    // Layout of the function being optimized, which gives the declared types of its variables
+    private FrameLayout layout;
+
+    // Optimizes every function of a program, returning the program
+    public ProgramNode optimize(ProgramNode program) {
+        for (FunctionNode function : program.getFunctions()) {
+            layout = FrameLayout.of(function);
+            optimizeBlock(function.getStatements());
+        }
+        return program;
+    }
+
+    // Optimizes a block of statements, replacing its contents only if any statement changed
+    private void optimizeBlock(List<StatementNode> statements) {
+        List<StatementNode> optimized = new ArrayList<>(statements.size());
+        for (StatementNode statement : statements) {
+            optimizeStatement(statement, optimized);
+        }
+        if (!sameStatements(statements, optimized)) {
+            statements.clear();
+            statements.addAll(optimized);
+        }
+    }
+
+    private static boolean sameStatements(List<StatementNode> original, List<StatementNode> optimized) {
+        if (original.size() != optimized.size()) {
+            return false;
+        }
+        for (int i = 0; i < original.size(); i++) {
+            if (original.get(i) != optimized.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Adds the statements a statement simplifies to, which may be none
+    private void optimizeStatement(StatementNode statement, List<StatementNode> into) {
+        switch (NodeKind.of(statement)) {
+            case IF:
+                IfNode ifNode = optimizeIf((IfNode) statement, into);
+                if (ifNode != null) {
+                    into.add(ifNode);
+                }
+                break;
+            case WHILE:
+                optimizeWhile((WhileNode) statement, into);
+                break;
+            case REPEAT:
+                optimizeBlock(((RepeatNode) statement).getStatements());
+                into.add(statement);
+                break;
+            case FOR:
+                into.add(optimizeFor((ForNode) statement));
+                break;
+            case ASSIGNMENT:
+                AssignmentNode assignment = (AssignmentNode) statement;
+                Node value = optimizeExpression(assignment.getValue());
+                into.add(value == assignment.getValue() ? assignment : at(assignment, new AssignmentNode(assignment.getVariable(), (ExpressionNode) value)));
+                break;
+            case FUNCTION_CALL:
+                into.add(optimizeCall((FunctionCallNode) statement));
+                break;
+            default:
+                throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
+        }
+    }
+
+    // Simplifies an if statement and the elsif and else branches that follow it. When its conditions decide which
+    // branch runs, the statements of that branch are added to taken and null is returned; otherwise the if statement
+    // that is left to run is returned.
+    private IfNode optimizeIf(IfNode node, List<StatementNode> taken) {
+        BooleanCompareNode condition = optimizeCondition(node.getCondition());
+        Boolean known = evaluate(condition);
+        if (known != null && known) {
+            optimizeBlock(node.getStatements());
+            taken.addAll(node.getStatements());
+            return null;
+        }
+        if (known != null) {
+            if (node.getElsifBranch() != null) {
+                return optimizeIf(node.getElsifBranch(), taken);
+            }
+            if (node.getElseBranch() != null) {
+                optimizeBlock(node.getElseBranch().getStatements());
+                taken.addAll(node.getElseBranch().getStatements());
+            }
+            return null;
+        }
+
+        optimizeBlock(node.getStatements());
+        IfNode elsif = node.getElsifBranch();
+        ElseNode elseBranch = node.getElseBranch();
+        if (elsif != null) {
+            List<StatementNode> rest = new ArrayList<>();
+            elsif = optimizeIf(elsif, rest);
+            if (elsif == null && !rest.isEmpty()) {
+                // The later conditions are known, so the branch they pick runs whenever this one does not
+                elseBranch = at(node.getElsifBranch(), new ElseNode(rest));
+            }
+        } else if (elseBranch != null) {
+            optimizeBlock(elseBranch.getStatements());
+        }
+        if (condition == node.getCondition() && elsif == node.getElsifBranch() && elseBranch == node.getElseBranch()) {
+            return node;
+        }
+        return at(node, new IfNode(condition, node.getStatements(), elsif, elseBranch));
+    }
+
+    // Adds a while loop unless its condition is known to be false
+    private void optimizeWhile(WhileNode node, List<StatementNode> into) {
+        BooleanCompareNode condition = optimizeCondition(node.getCondition());
+        Boolean known = evaluate(condition);
+        if (known != null && !known) {
+            return;
+        }
+        optimizeBlock(node.getStatements());
+        into.add(condition == node.getCondition() ? node : at(node, new WhileNode(condition, node.getStatements())));
+    }
+
+    // Simplifies the bounds and body of a for loop, keeping a parallel loop parallel
+    private ForNode optimizeFor(ForNode node) {
+        Node from = optimizeExpression(node.getFrom());
+        Node to = optimizeExpression(node.getTo());
+        optimizeBlock(node.getStatements());
+        if (from == node.getFrom() && to == node.getTo()) {
+            return node;
+        }
+        ForNode optimized = at(node, new ForNode(node.getVariable(), (ExpressionNode) from, (ExpressionNode) to, node.getStatements()));
+        ParallelLoop parallel = ParallelLoop.of(node);
+        if (parallel != null) {
+            ParallelLoop.mark(optimized, parallel.getReductions());
+        }
+        return optimized;
+    }
+
+    // Simplifies the arguments of a call. An argument that is not a variable stays one that is not, so a var
+    // parameter never starts to change a variable it was only given the value of.
+    private FunctionCallNode optimizeCall(FunctionCallNode node) {
+        List<Node> arguments = new ArrayList<>(node.getParameters().size());
+        boolean changed = false;
+        for (Node argument : node.getParameters()) {
+            Node optimized = optimizeExpression(argument);
+            if (NodeKind.of(optimized) == NodeKind.VARIABLE_REFERENCE && optimized != argument) {
+                optimized = argument;
+            }
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        return changed ? at(node, new FunctionCallNode(node.getFunctionName(), arguments)) : node;
+    }
+
+    // Simplifies the operands of a comparison
+    private BooleanCompareNode optimizeCondition(BooleanCompareNode node) {
+        Node left = optimizeExpression(node.getLeft());
+        Node right = optimizeExpression(node.getRight());
+        if (left == node.getLeft() && right == node.getRight()) {
+            return node;
+        }
+        return at(node, new BooleanCompareNode(node.getComparisonType(), left, right));
+    }
+
+    // Returns the simplified form of an expression, or the expression itself if it does not simplify
+    private Node optimizeExpression(Node node) {
+        if (NodeKind.of(node) != NodeKind.MATH_OP) {
+            return node;
+        }
+        MathOpNode math = (MathOpNode) node;
+        Node left = optimizeExpression(math.getLeft());
+        Node right = optimizeExpression(math.getRight());
+
+        InterpreterDataType leftValue = valueOf(left);
+        InterpreterDataType rightValue = valueOf(right);
+        if (leftValue != null && rightValue != null) {
+            try {
+                Node folded = literal(leftValue.performMathOperation(math.getOp(), rightValue));
+                if (folded != null) {
+                    return at(node, folded);
+                }
+            } catch (ArithmeticException | IllegalArgumentException e) {
+                // Left for the program to fail on when it runs
+            }
+        }
+
+        Node simplified = simplify(math.getOp(), left, right);
+        if (simplified != null) {
+            return simplified;
+        }
+        if (left == math.getLeft() && right == math.getRight()) {
+            return node;
+        }
+        return at(node, new MathOpNode(math.getOp(), left, right));
+    }
+
+    // Gives a node built to replace another the line number of the one it replaces, so errors and profiles still
+    // point at the source line, and returns it
+    private static <T extends Node> T at(Node original, T replacement) {
+        replacement.setLineNumber(original.getLineNumber());
+        return replacement;
+    }
+
+    // Returns the operand an operation leaves unchanged, or null. The literal must not change the operand's type,
+    // and adding zero is only dropped for integers since it turns a real -0.0 into 0.0.
+    private Node simplify(MathOpNode.Operation op, Node left, Node right) {
+        switch (op) {
+            case ADD:
+                if (isLiteral(right, 0) && isInteger(left) && keepsType(left, right)) {
+                    return left;
+                }
+                if (isLiteral(left, 0) && isInteger(right) && keepsType(right, left)) {
+                    return right;
+                }
+                return null;
+            case SUBTRACT:
+                return isLiteral(right, 0) && keepsType(left, right) ? left : null;
+            case MULTIPLY:
+                if (isLiteral(right, 1) && keepsType(left, right)) {
+                    return left;
+                }
+                if (isLiteral(left, 1) && keepsType(right, left)) {
+                    return right;
+                }
+                return null;
+            case DIVIDE:
+                return isLiteral(right, 1) && keepsType(left, right) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    // Returns whether an operation between an operand and a literal gives a value of the operand's type
+    private boolean keepsType(Node operand, Node literal) {
+        String type = typeOf(operand);
+        if ("integer".equals(type)) {
+            return NodeKind.of(literal) == NodeKind.INTEGER;
+        }
+        return "real".equals(type);
+    }
+
+    private boolean isInteger(Node node) {
+        return "integer".equals(typeOf(node));
+    }
+
+    // Returns the type of the value an expression gives, or null if it is not known before the program runs
+    private String typeOf(Node node) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return "integer";
+            case REAL:
+                return "real";
+            case VARIABLE_REFERENCE:
+                String type = layout.getType(layout.require(((VariableReferenceNode) node).getName()));
+                return type == null ? null : type.toLowerCase();
+            case MATH_OP:
+                String left = typeOf(((MathOpNode) node).getLeft());
+                String right = typeOf(((MathOpNode) node).getRight());
+                if ("integer".equals(left) && "integer".equals(right)) {
+                    return "integer";
+                }
+                if (("integer".equals(left) || "real".equals(left)) && ("integer".equals(right) || "real".equals(right))) {
+                    return "real";
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    // Returns whether a node is a number literal equal to a value. A real -0.0 is not zero here, since subtracting it
+    // turns -0.0 into 0.0.
+    private static boolean isLiteral(Node node, int value) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return ((IntegerNode) node).getValue() == value;
+            case REAL:
+                return Float.floatToIntBits(((RealNode) node).getValue()) == Float.floatToIntBits(value);
+            default:
+                return false;
+        }
+    }
+
+    // Returns the value of a literal, or null if the node is not one
+    private static InterpreterDataType valueOf(Node node) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return new IntegerDataType(((IntegerNode) node).getValue());
+            case REAL:
+                return new RealDataType(((RealNode) node).getValue());
+            case STRING:
+                return new StringDataType(((StringNode) node).getValue());
+            default:
+                return null;
+        }
+    }
+
+    // Returns the literal node holding a value, or null for values no literal can hold
+    private static Node literal(InterpreterDataType value) {
+        if (value instanceof IntegerDataType) {
+            return new IntegerNode(((IntegerDataType) value).getValue());
+        } else if (value instanceof RealDataType) {
+            return new RealNode(((RealDataType) value).getValue());
+        } else if (value instanceof StringDataType) {
+            return new StringNode(value.toString());
+        }
+        return null;
+    }
+
+    // Returns the result of a comparison of two literals, or null if it is not known before the program runs
+    private static Boolean evaluate(BooleanCompareNode node) {
+        InterpreterDataType left = valueOf(node.getLeft());
+        InterpreterDataType right = valueOf(node.getRight());
+        if (left == null || right == null) {
+            return null;
+        }
+        try {
+            return CompareNode.test(node.getComparisonType(), left.compareTo(right));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Prints a program as Shank source, to show what the optimizer made of it
+    public static void print(ProgramNode program, PrintStream out) {
+        for (FunctionNode function : program.getFunctions()) {
+            StringBuilder line = new StringBuilder("define ").append(function.getName()).append('(');
+            List<VariableNode> parameters = function.getParameters() == null ? new ArrayList<>() : function.getParameters();
+            for (int i = 0; i < parameters.size(); i++) {
+                VariableNode parameter = parameters.get(i);
+                line.append(i == 0 ? "" : "; ").append(parameter.isVar() ? "var " : "")
+                        .append(parameter.getName()).append(" : ").append(parameter.getType());
+            }
+            out.println(line.append(')'));
+            if (function.getVariables() != null) {
+                for (VariableNode variable : function.getVariables()) {
+                    out.println("variables " + variable.getName() + " : " + variable.getType());
+                }
+            }
+            printBlock(function.getStatements(), 1, out);
+            out.println();
+        }
+    }
+
+    private static void printBlock(List<StatementNode> statements, int depth, PrintStream out) {
+        for (StatementNode statement : statements) {
+            printStatement(statement, depth, out);
+        }
+    }
+
+    private static void printStatement(StatementNode statement, int depth, PrintStream out) {
+        String indent = "    ".repeat(depth);
+        switch (NodeKind.of(statement)) {
+            case IF:
+                IfNode ifNode = (IfNode) statement;
+                String keyword = "if ";
+                while (ifNode != null) {
+                    out.println(indent + keyword + expression(ifNode.getCondition()) + " then");
+                    printBlock(ifNode.getStatements(), depth + 1, out);
+                    if (ifNode.getElseBranch() != null) {
+                        out.println(indent + "else");
+                        printBlock(ifNode.getElseBranch().getStatements(), depth + 1, out);
+                    }
+                    keyword = "elsif ";
+                    ifNode = ifNode.getElsifBranch();
+                }
+                break;
+            case WHILE:
+                WhileNode whileNode = (WhileNode) statement;
+                out.println(indent + "while " + expression(whileNode.getCondition()));
+                printBlock(whileNode.getStatements(), depth + 1, out);
+                break;
+            case REPEAT:
+                RepeatNode repeat = (RepeatNode) statement;
+                out.println(indent + "repeat " + expression(repeat.getCounter()));
+                printBlock(repeat.getStatements(), depth + 1, out);
+                break;
+            case FOR:
+                ForNode forNode = (ForNode) statement;
+                out.println(indent + "for " + forNode.getVariable() + " from " + expression(forNode.getFrom())
+                        + " to " + expression(forNode.getTo()));
+                printBlock(forNode.getStatements(), depth + 1, out);
+                break;
+            case ASSIGNMENT:
+                AssignmentNode assignment = (AssignmentNode) statement;
+                out.println(indent + assignment.getVariable() + " := " + expression(assignment.getValue()));
+                break;
+            case FUNCTION_CALL:
+                FunctionCallNode call = (FunctionCallNode) statement;
+                StringBuilder line = new StringBuilder(indent).append(call.getFunctionName());
+                for (int i = 0; i < call.getParameters().size(); i++) {
+                    line.append(i == 0 ? " " : ", ").append(expression(call.getParameters().get(i)));
+                }
+                out.println(line);
+                break;
+            default:
+                out.println(indent + statement);
+        }
+    }
+
+    private static String expression(Node node) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return String.valueOf(((IntegerNode) node).getValue());
+            case REAL:
+                return String.valueOf(((RealNode) node).getValue());
+            case STRING:
+                return '"' + ((StringNode) node).getValue() + '"';
+            case VARIABLE_REFERENCE:
+                return ((VariableReferenceNode) node).getName();
+            case MATH_OP:
+                MathOpNode math = (MathOpNode) node;
+                return operand(math.getLeft()) + " " + operator(math.getOp()) + " " + operand(math.getRight());
+            case BOOLEAN_COMPARE:
+                BooleanCompareNode compare = (BooleanCompareNode) node;
+                return expression(compare.getLeft()) + " " + operator(compare.getComparisonType()) + " " + expression(compare.getRight());
+            default:
+                return String.valueOf(node);
+        }
+    }
+
+    // Prints an operand of a math operation, in parentheses if it is an operation itself
+    private static String operand(Node node) {
+        String text = expression(node);
+        return NodeKind.of(node) == NodeKind.MATH_OP ? "(" + text + ")" : text;
+    }
+
+    private static String operator(MathOpNode.Operation op) {
+        switch (op) {
+            case ADD:
+                return "+";
+            case SUBTRACT:
+                return "-";
+            case MULTIPLY:
+                return "*";
+            case DIVIDE:
+                return "/";
+            default:
+                return "mod";
+        }
+    }
+
+    private static String operator(BooleanCompareNode.ComparisonType type) {
+        switch (type) {
+            case EQUAL:
+                return "=";
+            case NOT_EQUAL:
+                return "<>";
+            case LESS_THAN:
+                return "<";
+            case LESS_OR_EQUAL:
+                return "<=";
+            case GREATER_THAN:
+                return ">";
+            default:
+                return ">=";
+        }
+    }
+}
@@ -0,0 +1,269 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The ParallelLexer class lexes a large source on several cores and produces the same
+ * tokens as a sequential TokenStream over the whole input.
+ *
+ * The input is cut into chunks just after a newline. Each chunk is pre-scanned in
+ * parallel once for every state a line can start in (normal code, inside a string,
+ * inside a block comment, or before the closing quote of a character literal). The
+ * results are chained in order to find each chunk's real starting state and line
+ * number. Chunks that start inside a literal or comment are merged into the chunk
+ * before them, and the remaining chunks are lexed in parallel and appended in order.
+ */
+public class ParallelLexer {
+    // Scanner states tracked by the pre-scan
+    private static final byte NORMAL = 0;
+    private static final byte STRING = 1;
+    private static final byte BLOCK = 2;
+    private static final byte CHAR_CLOSE = 3;
+    private static final byte CHAR_OPEN = 4;
+    private static final byte BLOCK_STAR = 5;
+    private static final byte SLASH = 6;
+    private static final byte LINE = 7;
+    private static final byte LINE_END = 8;
+
+    // The states a chunk can start in, since every chunk starts just after a newline
+    private static final byte[] ENTRY_STATES = { NORMAL, STRING, BLOCK, CHAR_CLOSE };
+
+    private final Lexer lexer;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * The constructor creates a parallel lexer on the common pool with 1 MB chunks.
+     *
+     * @param lexer - The lexer that holds the keyword and punctuation tables
+     */
+    public ParallelLexer(Lexer lexer) {
+        this(lexer, ForkJoinPool.commonPool(), 1 << 20);
+    }
+
+    /**
+     * The constructor creates a parallel lexer.
+     *
+     * @param lexer - The lexer that holds the keyword and punctuation tables
+     * @param pool - The pool the chunks run on
+     * @param chunkSize - The target number of characters per chunk
+     */
+    public ParallelLexer(Lexer lexer, ForkJoinPool pool, int chunkSize) {
+        this.lexer = lexer;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * This method lexes the whole input and returns its tokens. If the input contains an
+     * error, the exception is the one the sequential lexer would have thrown first.
+     *
+     * @param input - The characters to lex
+     * @return TokenBuffer - The tokens, using the lexer's intern pool
+     * @throws SyntaxErrorException
+     */
+    public TokenBuffer lex(CharSequence input) throws SyntaxErrorException {
+        // Cut the input just after the first newline past each chunk target
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        int length = input.length();
+        for (int target = chunkSize; target < length; target += chunkSize) {
+            int cut = Math.max(target, cuts.get(cuts.size() - 1));
+            while (cut < length && input.charAt(cut) != '\n') {
+                cut++;
+            }
+            if (cut + 1 >= length) {
+                break;
+            }
+            if (cut + 1 > cuts.get(cuts.size() - 1)) {
+                cuts.add(cut + 1);
+            }
+        }
+        cuts.add(length);
+
+        // A single chunk, or a pool with one worker, is lexed directly
+        if (cuts.size() == 2 || pool.getParallelism() <= 1) {
+            return lexChunk(input, lexer.internPool(), 0, length, 1);
+        }
+
+        // Pre-scan every chunk from every possible starting state
+        List<Callable<int[][]>> scans = new ArrayList<>();
+        for (int i = 0; i + 1 < cuts.size(); i++) {
+            int from = cuts.get(i);
+            int to = cuts.get(i + 1);
+            scans.add(() -> preScan(input, from, to));
+        }
+        List<int[][]> summaries = invokeAll(scans);
+
+        // Chain the summaries to find where each chunk really starts, keeping only the safe cuts
+        List<int[]> segments = new ArrayList<>();
+        byte state = NORMAL;
+        int line = 1;
+        for (int i = 0; i + 1 < cuts.size(); i++) {
+            if (i == 0 || state == NORMAL) {
+                segments.add(new int[] { cuts.get(i), cuts.get(i + 1), line });
+            } else {
+                segments.get(segments.size() - 1)[1] = cuts.get(i + 1);
+            }
+            int entry = entryIndex(state);
+            if (entry < 0) {
+                // Only reachable after a lexing error, which the chunk before reports
+                entry = 0;
+            }
+            state = (byte) summaries.get(i)[0][entry];
+            line += summaries.get(i)[1][entry];
+        }
+
+        // Lex the segments in parallel, each classifying words with its own copy of the pool
+        List<Callable<TokenBuffer>> lexes = new ArrayList<>();
+        for (int[] segment : segments) {
+            InternPool copy = lexer.internPool().copy();
+            lexes.add(() -> lexChunk(input, copy, segment[0], segment[1], segment[2]));
+        }
+        List<TokenBuffer> buffers = invokeAll(lexes);
+
+        // Stitch the buffers together in order
+        TokenBuffer tokens = new TokenBuffer(input, lexer.internPool());
+        for (TokenBuffer buffer : buffers) {
+            tokens.append(buffer);
+        }
+        return tokens;
+    }
+
+    // Lexes the characters between from and to into a new buffer
+    private TokenBuffer lexChunk(CharSequence input, InternPool internPool, int from, int to, int line) throws SyntaxErrorException {
+        TokenBuffer tokens = new TokenBuffer(input, lexer.internPool());
+        TokenStream stream = new TokenStream(lexer, internPool, input, from, to, line);
+        while (stream.advance()) {
+            tokens.add(stream.tokenType(), stream.tokenStart(), stream.tokenEnd() - stream.tokenStart(), stream.tokenLine());
+        }
+        return tokens;
+    }
+
+    // Runs the tasks on the pool and returns their results in order, rethrowing the first failure in input order
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws SyntaxErrorException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while lexing", e);
+            } catch (ExecutionException e) {
+                // The pool may wrap the task's exception more than once
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof SyntaxErrorException) {
+                        throw (SyntaxErrorException) cause;
+                    }
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    // Returns the position of a state in ENTRY_STATES, or -1
+    private static int entryIndex(byte state) {
+        for (int i = 0; i < ENTRY_STATES.length; i++) {
+            if (ENTRY_STATES[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Scans a chunk from every entry state at once, returning the exit states and the lines counted for each.
+    // Runs that reach the same state at the same position are merged and only scanned once.
+    private int[][] preScan(CharSequence input, int from, int to) {
+        int entries = ENTRY_STATES.length;
+        byte[] states = ENTRY_STATES.clone();
+        int[] lines = new int[entries];
+        int[] mergedInto = { -1, -1, -1, -1 };
+        int live = entries;
+        for (int i = from; i < to; i++) {
+            char c = input.charAt(i);
+            for (int e = 0; e < entries; e++) {
+                if (mergedInto[e] < 0) {
+                    byte state = step(states[e], c);
+                    if (state == LINE_END) {
+                        // The newline that ends a line comment is then counted as code
+                        state = step(NORMAL, c);
+                    }
+                    if (state < 0) {
+                        lines[e]++;
+                        state = (byte) ~state;
+                    }
+                    states[e] = state;
+                }
+            }
+            if (live > 1) {
+                for (int e = 1; e < entries; e++) {
+                    for (int other = 0; other < e && mergedInto[e] < 0; other++) {
+                        if (mergedInto[other] < 0 && states[other] == states[e]) {
+                            mergedInto[e] = other;
+                            lines[e] -= lines[other];
+                            live--;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Resolve merged runs to the run they followed
+        int[] exits = new int[entries];
+        int[] counts = new int[entries];
+        for (int e = 0; e < entries; e++) {
+            int run = e;
+            int count = lines[e];
+            while (mergedInto[run] >= 0) {
+                run = mergedInto[run];
+                count += lines[run];
+            }
+            exits[e] = states[run];
+            counts[e] = count;
+        }
+        return new int[][] { exits, counts };
+    }
+
+    // Returns the state after reading one character, bitwise inverted if the character counts as a new line
+    private byte step(byte state, char c) {
+        switch (state) {
+            case NORMAL:
+                switch (lexer.charClass(c)) {
+                    case CharClass.QUOTE:
+                        return STRING;
+                    case CharClass.APOSTROPHE:
+                        return CHAR_OPEN;
+                    case CharClass.HASH:
+                        return LINE;
+                    case CharClass.SLASH:
+                        return SLASH;
+                    case CharClass.NEWLINE:
+                        return ~NORMAL;
+                    default:
+                        return NORMAL;
+                }
+            case SLASH:
+                // A slash that starts no comment is division, and the character after it is read as normal code
+                return c == '/' ? LINE : c == '*' ? BLOCK : step(NORMAL, c);
+            case LINE:
+                return c == '\n' ? LINE_END : LINE;
+            case STRING:
+                return c == '"' ? NORMAL : c == '\n' ? ~STRING : STRING;
+            case BLOCK:
+            case BLOCK_STAR:
+                if (state == BLOCK_STAR && c == '/') {
+                    return NORMAL;
+                }
+                return c == '*' ? BLOCK_STAR : c == '\n' ? ~BLOCK : BLOCK;
+            case CHAR_OPEN:
+                return c == '\'' ? NORMAL : CHAR_CLOSE;
+            default:
+                return NORMAL;
+        }
+    }
+}
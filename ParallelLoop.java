@@ -0,0 +1,180 @@
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The ParallelLoop class marks a for loop whose iterations may run in parallel, with
+ * the reduction variables it declares. The front end marks a loop with mark, and the
+ * mark stays with the ForNode for as long as the node lives.
+ *
+ * SemanticAnalysis rejects a marked loop whose iterations depend on each other. The
+ * interpreter splits the range of a marked loop across the common fork/join pool, or
+ * the pool of the job's JobBudget in the server.
+ * Each task runs its iterations in a private copy of the frame. A reduction variable
+ * starts each task at the identity of its operation, and the partial results are
+ * combined in range order when the tasks join, so the result does not depend on
+ * which thread ran what. Every other variable the body writes starts each task with
+ * no value, which SemanticAnalysis makes safe by rejecting a read before the write.
+ * A task that never writes such a variable, as when the write is conditional, leaves
+ * it without a value, and the ranges are merged in order keeping the last value
+ * written. After the loop each variable holds the value of the last iteration that
+ * wrote it, as it would after a sequential loop.
+ */
+final class ParallelLoop {
+    private static final Map<ForNode, ParallelLoop> loops = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, MathOpNode.Operation> reductions;
+
+    private ParallelLoop(Map<String, MathOpNode.Operation> reductions) {
+        this.reductions = Collections.unmodifiableMap(new LinkedHashMap<>(reductions));
+    }
+
+    // Marks a for loop as parallel, with each reduction variable and the operation that combines it, ADD or MULTIPLY
+    public static void mark(ForNode loop, Map<String, MathOpNode.Operation> reductions) {
+        for (Map.Entry<String, MathOpNode.Operation> reduction : reductions.entrySet()) {
+            if (reduction.getValue() != MathOpNode.Operation.ADD && reduction.getValue() != MathOpNode.Operation.MULTIPLY) {
+                throw new IllegalArgumentException("Reduction variable " + reduction.getKey() + " must combine with ADD or MULTIPLY");
+            }
+        }
+        loops.put(loop, new ParallelLoop(reductions));
+    }
+
+    // Returns the mark of a for loop, or null if the loop is sequential
+    public static ParallelLoop of(ForNode loop) {
+        return loops.get(loop);
+    }
+
+    // getter for the reduction variables and their operations
+    public Map<String, MathOpNode.Operation> getReductions() {
+        return reductions;
+    }
+}
+
+// ParallelPlan is a parallel loop resolved to the frame slots of its function
+final class ParallelPlan {
+    private final int loopSlot;
+    private final int[] reductionSlots;
+    private final MathOpNode.Operation[] reductionOperations;
+    // The slots of the other variables the body writes
+    private final int[] writtenSlots;
+
+    ParallelPlan(int loopSlot, int[] reductionSlots, MathOpNode.Operation[] reductionOperations, int[] writtenSlots) {
+        this.loopSlot = loopSlot;
+        this.reductionSlots = reductionSlots;
+        this.reductionOperations = reductionOperations;
+        this.writtenSlots = writtenSlots;
+    }
+
+    // Creates the private frame of a task: a copy of the loop's frame with each reduction at its identity,
+    // and no value in the slots of the other variables the body writes, so a slot still empty at the end was not written
+    InterpreterDataType[] privateFrame(InterpreterDataType[] frame) {
+        InterpreterDataType[] copy = new InterpreterDataType[frame.length];
+        for (int slot = 0; slot < frame.length; slot++) {
+            copy[slot] = frame[slot] == null ? null : frame[slot].copy();
+        }
+        for (int i = 0; i < reductionSlots.length; i++) {
+            int slot = reductionSlots[i];
+            int identity = reductionOperations[i] == MathOpNode.Operation.ADD ? 0 : 1;
+            copy[slot] = frame[slot] instanceof IntegerDataType ? new IntegerDataType(identity) : new RealDataType(identity);
+        }
+        for (int slot : writtenSlots) {
+            copy[slot] = null;
+        }
+        return copy;
+    }
+
+    // Folds the reductions of an earlier range into the frame of the range after it, and gives the later range
+    // the earlier range's value of each variable it did not write
+    void combine(InterpreterDataType[] earlier, InterpreterDataType[] later) {
+        for (int i = 0; i < reductionSlots.length; i++) {
+            reduce(reductionOperations[i], later[reductionSlots[i]], earlier[reductionSlots[i]], later[reductionSlots[i]]);
+        }
+        for (int slot : writtenSlots) {
+            if (later[slot] == null) {
+                later[slot] = earlier[slot];
+            }
+        }
+    }
+
+    // Writes the result of the parallel iterations back into the loop's frame
+    void merge(InterpreterDataType[] frame, InterpreterDataType[] result) {
+        for (int i = 0; i < reductionSlots.length; i++) {
+            int slot = reductionSlots[i];
+            reduce(reductionOperations[i], frame[slot], frame[slot], result[slot]);
+        }
+        for (int slot = 0; slot < frame.length; slot++) {
+            if (slot == loopSlot || result[slot] == null || isReduction(slot)) {
+                continue;
+            }
+            if (frame[slot] != null && frame[slot].getClass() == result[slot].getClass()) {
+                frame[slot].assign(result[slot]);
+            } else {
+                frame[slot] = result[slot];
+            }
+        }
+    }
+
+    private boolean isReduction(int slot) {
+        for (int reductionSlot : reductionSlots) {
+            if (reductionSlot == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stores left op right into target
+    private static void reduce(MathOpNode.Operation op, InterpreterDataType target, InterpreterDataType left, InterpreterDataType right) {
+        if (target instanceof IntegerDataType) {
+            ((IntegerDataType) target).setValue(InterpreterDataType.integerMath(op, ((IntegerDataType) left).getValue(), ((IntegerDataType) right).getValue()));
+        } else {
+            ((RealDataType) target).setValue(InterpreterDataType.realMath(op, ((RealDataType) left).getValue(), ((RealDataType) right).getValue()));
+        }
+    }
+}
+
+// ParallelRange runs part of a parallel loop's range, splitting it in two until it is small enough to run in one task
+final class ParallelRange extends RecursiveTask<InterpreterDataType[]> {
+    private final Interpreter interpreter;
+    private final CompiledBlock block;
+    private final int index;
+    private final ParallelPlan plan;
+    private final InterpreterDataType[] frame;
+    private final Session session;
+    private final long from;
+    private final long to;
+    private final long grain;
+
+    ParallelRange(Interpreter interpreter, CompiledBlock block, int index, ParallelPlan plan, InterpreterDataType[] frame, Session session, long from, long to, long grain) {
+        this.interpreter = interpreter;
+        this.block = block;
+        this.index = index;
+        this.plan = plan;
+        this.frame = frame;
+        this.session = session;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+    // Returns the frame the last iteration of the range ran in, holding the reductions of the whole range
+    @Override
+    protected InterpreterDataType[] compute() {
+        if (to - from <= grain) {
+            InterpreterDataType[] own = plan.privateFrame(frame);
+            // Built-ins called by the iterations act on the console and files of the session that started the loop
+            session.run(() -> interpreter.interpretRange(block, index, own, from, to));
+            return own;
+        }
+        long middle = (from + to) >>> 1;
+        ParallelRange right = new ParallelRange(interpreter, block, index, plan, frame, session, middle, to, grain);
+        right.fork();
+        InterpreterDataType[] earlier = new ParallelRange(interpreter, block, index, plan, frame, session, from, middle, grain).compute();
+        InterpreterDataType[] later = right.join();
+        plan.combine(earlier, later);
+        return later;
+    }
+}
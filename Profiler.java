@@ -0,0 +1,195 @@
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Profiler class records where an interpreted program spends its time. The
+ * interpreter reports each function entry and exit, each statement and the iterations
+ * of each loop. Function calls are timed on a shadow stack, which gives call counts
+ * and inclusive and exclusive time per function.
+ *
+ * Line samples are taken on the interpreter thread itself. A sampler thread only
+ * raises a flag at each interval, and the next statement to run records the shadow
+ * stack and its own line number. That keeps the stack consistent without locking.
+ *
+ * The interpreter holds no profiler unless one is asked for, so an unprofiled run
+ * pays only a null check at each hook.
+ */
+final class Profiler {
+    // Time between line samples
+    private static final long SAMPLE_INTERVAL_MILLIS = 1;
+    // Number of lines listed in the hot spot report
+    private static final int HOT_LINES = 20;
+
+    private final Map<FunctionNode, FunctionProfile> functions = new IdentityHashMap<>();
+    private final Map<StatementNode, long[]> loops = new IdentityHashMap<>();
+    private final Map<String, long[]> stacks = new HashMap<>();
+    private final Map<Integer, long[]> lines = new TreeMap<>();
+
+    // The shadow stack: the function of each active call, when it started and the time spent in its callees
+    private FunctionProfile[] frames = new FunctionProfile[64];
+    private long[] startTimes = new long[64];
+    private long[] calleeTimes = new long[64];
+    private int depth;
+
+    private volatile boolean sampleDue;
+    private Thread sampler;
+
+    // Starts the sampler thread
+    void start() {
+        sampler = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                    sampleDue = true;
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "shank-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // Stops the sampler thread, and closes the calls still on the stack if the program ended with an exception
+    void stop() {
+        if (sampler != null) {
+            sampler.interrupt();
+        }
+        while (depth > 0) {
+            exit();
+        }
+    }
+
+    // Pushes a call to a function onto the shadow stack
+    void enter(FunctionNode function, String name) {
+        FunctionProfile profile = functions.get(function);
+        if (profile == null) {
+            profile = new FunctionProfile(name);
+            functions.put(function, profile);
+        }
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            startTimes = Arrays.copyOf(startTimes, depth * 2);
+            calleeTimes = Arrays.copyOf(calleeTimes, depth * 2);
+        }
+        profile.calls++;
+        profile.active++;
+        frames[depth] = profile;
+        calleeTimes[depth] = 0;
+        startTimes[depth] = System.nanoTime();
+        depth++;
+    }
+
+    // Pops the innermost call off the shadow stack, charging its time to its function
+    void exit() {
+        long elapsed = System.nanoTime() - startTimes[--depth];
+        FunctionProfile profile = frames[depth];
+        frames[depth] = null;
+        profile.exclusiveNanos += elapsed - calleeTimes[depth];
+        // A recursive call's time is already inside the inclusive time of the outermost call
+        if (--profile.active == 0) {
+            profile.inclusiveNanos += elapsed;
+        }
+        if (depth > 0) {
+            calleeTimes[depth - 1] += elapsed;
+        }
+    }
+
+    // Called before each statement runs, taking a line sample if one is due
+    void statement(StatementNode statement) {
+        if (sampleDue) {
+            sampleDue = false;
+            sample(statement.getLineNumber());
+        }
+    }
+
+    // Adds the iterations of one run of a while or for loop
+    void loop(StatementNode loop, long iterations) {
+        long[] count = loops.get(loop);
+        if (count == null) {
+            count = new long[1];
+            loops.put(loop, count);
+        }
+        count[0] += iterations;
+    }
+
+    // Records the shadow stack, with the line being run in the innermost function
+    private void sample(int line) {
+        StringBuilder stack = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            if (i > 0) {
+                stack.append(';');
+            }
+            stack.append(frames[i].name);
+        }
+        stack.append(':').append(line);
+        stacks.computeIfAbsent(stack.toString(), key -> new long[1])[0]++;
+        lines.computeIfAbsent(line, key -> new long[1])[0]++;
+    }
+
+    // Writes the samples in the collapsed stack format flame graph tools read, one stack and its count per line
+    void writeCollapsedStacks(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+                out.write(entry.getKey() + " " + entry.getValue()[0] + "\n");
+            }
+        }
+    }
+
+    // Prints the function, loop and hot line tables
+    void report(PrintStream out) {
+        List<FunctionProfile> byTime = new ArrayList<>(functions.values());
+        byTime.sort((a, b) -> Long.compare(b.exclusiveNanos, a.exclusiveNanos));
+        out.printf("%-24s %12s %14s %14s%n", "function", "calls", "inclusive ms", "exclusive ms");
+        for (FunctionProfile profile : byTime) {
+            out.printf("%-24s %12d %14.3f %14.3f%n", profile.name, profile.calls,
+                    profile.inclusiveNanos / 1e6, profile.exclusiveNanos / 1e6);
+        }
+
+        out.println();
+        out.printf("%-24s %12s%n", "loop", "iterations");
+        for (Map.Entry<StatementNode, long[]> entry : loops.entrySet()) {
+            StatementNode loop = entry.getKey();
+            String kind = NodeKind.of(loop) == NodeKind.FOR ? "for" : "while";
+            out.printf("%-24s %12d%n", kind + " at line " + loop.getLineNumber(), entry.getValue()[0]);
+        }
+
+        long total = 0;
+        for (long[] count : lines.values()) {
+            total += count[0];
+        }
+        List<Map.Entry<Integer, long[]>> byCount = new ArrayList<>(lines.entrySet());
+        byCount.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        out.println();
+        out.printf("%-24s %12s %8s%n", "line", "samples", "share");
+        for (Map.Entry<Integer, long[]> entry : byCount.subList(0, Math.min(HOT_LINES, byCount.size()))) {
+            out.printf("%-24d %12d %7.1f%%%n", entry.getKey(), entry.getValue()[0], 100.0 * entry.getValue()[0] / total);
+        }
+    }
+
+    // The counters kept for each function
+    private static final class FunctionProfile {
+        final String name;
+        long calls;
+        long inclusiveNanos;
+        long exclusiveNanos;
+        // Number of calls to the function on the shadow stack
+        int active;
+
+        FunctionProfile(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The ProgramCache class keeps lowered programs on disk, so an unchanged source runs
+ * without being lexed, parsed, analyzed and lowered again. Each entry holds the
+ * IrProgram of one source in a compact binary form and is named by a SHA-256 hash of
+ * the source, the IR version and a fingerprint of the compiler, so editing the source
+ * or rebuilding the lexer, parser, AST nodes, optimizer, resolver, IR compiler or VM
+ * misses the old entry, even when the IR version was not bumped. The fingerprint
+ * hashes the class files of those classes. Entries are read through a memory-mapped
+ * file.
+ *
+ * An entry is checked when it is read, before any of it runs: every opcode must be
+ * known, and every register, constant, function and jump target it names must lie
+ * inside the program. The VM trusts what it is given, so this is what keeps a damaged
+ * entry from failing halfway through a run.
+ *
+ * The cache is bounded in size. A hit marks its entry as recently used, and storing
+ * an entry evicts the least recently used ones until the cache fits again. An entry
+ * that cannot be read is deleted and treated as a miss.
+ */
+final class ProgramCache {
+    private static final int MAGIC = 0x53484b43; // "SHKC"
+    private static final String SUFFIX = ".shc";
+    // The classes whose code decides what a cached program holds and how it runs
+    private static final Class<?>[] COMPILER_CLASSES = {
+        Lexer.class, CharClass.class, Token.class, TokenStream.class, InternPool.class, Parser.class,
+        Node.class, StatementNode.class, ExpressionNode.class, ProgramNode.class, FunctionNode.class, VariableNode.class,
+        AssignmentNode.class, IfNode.class, ElseNode.class, WhileNode.class, RepeatNode.class, ForNode.class,
+        FunctionCallNode.class, MathOpNode.class, BooleanCompareNode.class, IntegerNode.class, RealNode.class,
+        StringNode.class, VariableReferenceNode.class, NodeKind.class,
+        SemanticAnalysis.class, Optimizer.class, VariableResolver.class, FrameLayout.class,
+        IrCompiler.class, Ir.class, RegisterVM.class, ProgramCache.class
+    };
+    private static final byte[] COMPILER_FINGERPRINT = fingerprint();
+    // Size the cache is trimmed to when no other bound is given
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    ProgramCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns the cache key of a source: the hash of its bytes, the IR version and the compiler fingerprint
+    static String key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(4).putInt(0, Ir.VERSION));
+            digest.update(COMPILER_FINGERPRINT);
+            digest.update(source.duplicate());
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Returns a hash of the class files of the compiler. A class whose file cannot be read is represented by where it
+    // was loaded from and when that was last modified, which still changes when the build is replaced.
+    private static byte[] fingerprint() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[8192];
+            for (Class<?> type : COMPILER_CLASSES) {
+                digest.update(type.getName().getBytes(StandardCharsets.UTF_8));
+                try (InputStream in = type.getResourceAsStream(type.getSimpleName() + ".class")) {
+                    if (in != null) {
+                        for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                            digest.update(chunk, 0, read);
+                        }
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // Fall back to the location of the class below
+                }
+                URL location = type.getProtectionDomain().getCodeSource() == null ? null : type.getProtectionDomain().getCodeSource().getLocation();
+                if (location != null) {
+                    digest.update(location.toString().getBytes(StandardCharsets.UTF_8));
+                    try {
+                        long modified = location.openConnection().getLastModified();
+                        digest.update(ByteBuffer.allocate(8).putLong(0, modified));
+                    } catch (IOException e) {
+                        // The location alone has to do
+                    }
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Returns the cached program for a key, or null on a miss
+    IrProgram load(String key) {
+        Path entry = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+        try {
+            IrProgram program;
+            try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                program = read(buffer);
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return program;
+        } catch (IOException | RuntimeException e) {
+            // A damaged or foreign entry is dropped so it is rebuilt
+            try {
+                Files.deleteIfExists(entry);
+            } catch (IOException ignored) {
+                // Left for eviction
+            }
+            return null;
+        }
+    }
+
+    // Stores a program under a key, then evicts the least recently used entries until the cache fits
+    void store(String key, IrProgram program) throws IOException {
+        Files.createDirectories(directory);
+        ByteBuffer bytes = write(program);
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            // Concurrent runs may store the same entry; the move makes each one appear whole
+            Files.move(temporary, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    // Deletes the least recently used entries while the cache is larger than its bound
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+                total += Files.size(entry);
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparing(ProgramCache::lastUsed));
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long size = Files.size(entry);
+            if (Files.deleteIfExists(entry)) {
+                total -= size;
+            }
+        }
+    }
+
+    private static FileTime lastUsed(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // Encodes a program: the header, the constant pools, then each function with its code
+    static ByteBuffer write(IrProgram program) {
+        List<byte[]> strings = new ArrayList<>();
+        int size = 4 * 5 + 8 * program.reals.length;
+        for (String string : program.strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            size += 4 + bytes.length;
+        }
+        List<byte[]> names = new ArrayList<>();
+        for (IrFunction function : program.functions) {
+            byte[] name = function.name.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 4 * 5 + name.length + 4 * function.code.length + 4 * function.parameterRegisters.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(Ir.VERSION).putInt(program.start);
+        buffer.putInt(strings.size());
+        for (byte[] bytes : strings) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        buffer.putInt(program.reals.length);
+        buffer.asDoubleBuffer().put(program.reals);
+        buffer.position(buffer.position() + 8 * program.reals.length);
+        for (int i = 0; i < program.functions.length; i++) {
+            IrFunction function = program.functions[i];
+            buffer.putInt(names.get(i).length).put(names.get(i));
+            buffer.putInt(function.intRegisters).putInt(function.realRegisters);
+            buffer.putInt(function.parameterRegisters.length);
+            buffer.asIntBuffer().put(function.parameterRegisters);
+            buffer.position(buffer.position() + 4 * function.parameterRegisters.length);
+            buffer.putInt(function.code.length);
+            buffer.asIntBuffer().put(function.code);
+            buffer.position(buffer.position() + 4 * function.code.length);
+        }
+        return buffer.flip();
+    }
+
+    // Decodes a program written by write
+    static IrProgram read(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != Ir.VERSION) {
+            throw new IllegalArgumentException("Not a cached program of this version");
+        }
+        int start = buffer.getInt();
+        String[] strings = new String[count(buffer, 4)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = string(buffer);
+        }
+        double[] reals = new double[count(buffer, 8)];
+        buffer.asDoubleBuffer().get(reals);
+        buffer.position(buffer.position() + 8 * reals.length);
+        List<IrFunction> functions = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            String name = string(buffer);
+            int intRegisters = buffer.getInt();
+            int realRegisters = buffer.getInt();
+            int[] parameterRegisters = ints(buffer);
+            int[] code = ints(buffer);
+            functions.add(new IrFunction(name, code, intRegisters, realRegisters, parameterRegisters));
+        }
+        if (start < 0 || start >= functions.size()) {
+            throw new IllegalArgumentException("Cached program has no start function");
+        }
+        IrProgram program = new IrProgram(functions.toArray(new IrFunction[0]), start, strings, reals);
+        for (IrFunction function : program.functions) {
+            verify(program, function);
+        }
+        return program;
+    }
+
+    // Checks that a function only holds code the VM can run: known opcodes with all their operands, registers inside
+    // the function's windows, constants and functions inside their pools, calls that match their callee, jumps to the
+    // start of an instruction, and no way to run past the end of the code
+    private static void verify(IrProgram program, IrFunction function) {
+        int[] code = function.code;
+        if (function.intRegisters < 0 || function.realRegisters < 0) {
+            throw damaged(function, "has a negative register count");
+        }
+        for (int parameter : function.parameterRegisters) {
+            if (parameter < 0 || parameter >= Math.max(function.intRegisters, function.realRegisters)) {
+                throw damaged(function, "has a parameter register outside its windows");
+            }
+        }
+        boolean[] starts = new boolean[code.length];
+        List<Integer> targets = new ArrayList<>();
+        int pc = 0;
+        int last = -1;
+        while (pc < code.length) {
+            starts[pc] = true;
+            last = code[pc];
+            switch (code[pc]) {
+                case Ir.ICONST:
+                    register(function, code, pc + 1, function.intRegisters);
+                    operand(function, code, pc + 2);
+                    pc += 3;
+                    break;
+                case Ir.RCONST:
+                    register(function, code, pc + 1, function.realRegisters);
+                    index(function, code, pc + 2, program.reals.length, "real constant");
+                    pc += 3;
+                    break;
+                case Ir.IMOVE:
+                case Ir.RMOVE: {
+                    int registers = code[pc] == Ir.IMOVE ? function.intRegisters : function.realRegisters;
+                    register(function, code, pc + 1, registers);
+                    register(function, code, pc + 2, registers);
+                    pc += 3;
+                    break;
+                }
+                case Ir.IADD:
+                case Ir.ISUB:
+                case Ir.IMUL:
+                case Ir.IDIV:
+                case Ir.IREM:
+                case Ir.RADD:
+                case Ir.RSUB:
+                case Ir.RMUL:
+                case Ir.RDIV:
+                case Ir.RREM: {
+                    int registers = code[pc] <= Ir.IREM ? function.intRegisters : function.realRegisters;
+                    register(function, code, pc + 1, registers);
+                    register(function, code, pc + 2, registers);
+                    register(function, code, pc + 3, registers);
+                    pc += 4;
+                    break;
+                }
+                case Ir.IINC:
+                case Ir.IABS:
+                case Ir.WRITE_INT:
+                    register(function, code, pc + 1, function.intRegisters);
+                    pc += 2;
+                    break;
+                case Ir.RSQRT:
+                case Ir.RSIN:
+                case Ir.RCOS:
+                case Ir.REXP:
+                case Ir.RLN:
+                case Ir.WRITE_REAL:
+                    register(function, code, pc + 1, function.realRegisters);
+                    pc += 2;
+                    break;
+                case Ir.JUMP:
+                    targets.add(operand(function, code, pc + 1));
+                    pc += 2;
+                    break;
+                case Ir.IF_IEQ:
+                case Ir.IF_INE:
+                case Ir.IF_ILT:
+                case Ir.IF_ILE:
+                case Ir.IF_IGT:
+                case Ir.IF_IGE:
+                case Ir.IF_REQ:
+                case Ir.IF_RNE:
+                case Ir.IF_RLT:
+                case Ir.IF_RLE:
+                case Ir.IF_RGT:
+                case Ir.IF_RGE: {
+                    int registers = code[pc] <= Ir.IF_IGE ? function.intRegisters : function.realRegisters;
+                    register(function, code, pc + 1, registers);
+                    register(function, code, pc + 2, registers);
+                    targets.add(operand(function, code, pc + 3));
+                    pc += 4;
+                    break;
+                }
+                case Ir.WRITE_STRING:
+                    index(function, code, pc + 1, program.strings.length, "string constant");
+                    pc += 2;
+                    break;
+                case Ir.WRITELN:
+                case Ir.RETURN:
+                case Ir.FLUSH:
+                    pc += 1;
+                    break;
+                case Ir.CALL:
+                    pc = verifyCall(program, function, code, pc);
+                    break;
+                default:
+                    throw damaged(function, "has unknown opcode " + code[pc] + " at " + pc);
+            }
+        }
+        if (last != Ir.RETURN && last != Ir.JUMP) {
+            throw damaged(function, "can run past the end of its code");
+        }
+        for (int target : targets) {
+            if (target < 0 || target >= code.length || !starts[target]) {
+                throw damaged(function, "jumps to " + target + ", which is not the start of an instruction");
+            }
+        }
+    }
+
+    // Checks a call's callee and each argument: its register file, its register in the caller and the parameter
+    // register it is copied to in the callee. Returns the position after the call.
+    private static int verifyCall(IrProgram program, IrFunction function, int[] code, int pc) {
+        IrFunction callee = program.functions[index(function, code, pc + 1, program.functions.length, "function")];
+        int count = operand(function, code, pc + 2);
+        if (count != callee.parameterRegisters.length) {
+            throw damaged(function, "calls " + callee.name + " with " + count + " arguments");
+        }
+        for (int i = 0; i < count; i++) {
+            int file = operand(function, code, pc + 3 + 3 * i);
+            if (file != 0 && file != 1) {
+                throw damaged(function, "passes an argument from unknown register file " + file);
+            }
+            register(function, code, pc + 4 + 3 * i, file == 0 ? function.intRegisters : function.realRegisters);
+            int parameter = callee.parameterRegisters[i];
+            if (parameter >= (file == 0 ? callee.intRegisters : callee.realRegisters)) {
+                throw damaged(function, "passes an argument to a register outside the window of " + callee.name);
+            }
+            operand(function, code, pc + 5 + 3 * i);
+        }
+        return pc + 3 + 3 * count;
+    }
+
+    // Returns an operand, checking the instruction is not cut off by the end of the code
+    private static int operand(IrFunction function, int[] code, int at) {
+        if (at >= code.length) {
+            throw damaged(function, "ends in the middle of an instruction");
+        }
+        return code[at];
+    }
+
+    private static void register(IrFunction function, int[] code, int at, int registers) {
+        int register = operand(function, code, at);
+        if (register < 0 || register >= registers) {
+            throw damaged(function, "uses register " + register + " of a window of " + registers);
+        }
+    }
+
+    private static int index(IrFunction function, int[] code, int at, int size, String what) {
+        int index = operand(function, code, at);
+        if (index < 0 || index >= size) {
+            throw damaged(function, "names " + what + " " + index + " of " + size);
+        }
+        return index;
+    }
+
+    private static IllegalArgumentException damaged(IrFunction function, String problem) {
+        return new IllegalArgumentException("Cached function " + function.name + " " + problem);
+    }
+
+    // Reads a count of elements of the given size, checking they fit in what is left
+    private static int count(ByteBuffer buffer, int elementSize) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * elementSize > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[count(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] ints(ByteBuffer buffer) {
+        int[] values = new int[count(buffer, 4)];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+        return values;
+    }
+}
@@ -0,0 +1,247 @@
+
+import java.util.Arrays;
+
+/**
+ * The RegisterVM class runs a program lowered by the IrCompiler. Integers live in a
+ * long[] register file and reals in a double[] one, so arithmetic never allocates.
+ * Each call takes a window at the top of both files. The caller clears the window,
+ * so local variables start at zero, and copies the arguments into it.
+ *
+ * Shank integers are 32 bits and reals are floats, so every result is narrowed back
+ * before it is stored. Float addition, subtraction, multiplication, division and
+ * square root computed in double and then rounded give exactly the float result, so
+ * the VM prints the same values as the Interpreter.
+ */
+public class RegisterVM {
+    private final IrProgram program;
+    private long[] ints;
+    private double[] reals;
+
+    public RegisterVM(IrProgram program) {
+        this.program = program;
+        this.ints = new long[256];
+        this.reals = new double[256];
+    }
+
+    // Runs the program from its start function
+    public void execute() {
+        IrFunction start = program.functions[program.start];
+        ensureCapacity(start.intRegisters, start.realRegisters);
+        run(start, 0, 0);
+    }
+
+    // The dispatch loop. Register operands are relative to the bases of the function's window.
+    private void run(IrFunction function, int intBase, int realBase) {
+        final int[] code = function.code;
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+                case Ir.ICONST:
+                    ints[intBase + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case Ir.RCONST:
+                    reals[realBase + code[pc + 1]] = program.reals[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Ir.IMOVE:
+                    ints[intBase + code[pc + 1]] = ints[intBase + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Ir.RMOVE:
+                    reals[realBase + code[pc + 1]] = reals[realBase + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Ir.IADD:
+                    ints[intBase + code[pc + 1]] = (int) (ints[intBase + code[pc + 2]] + ints[intBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.ISUB:
+                    ints[intBase + code[pc + 1]] = (int) (ints[intBase + code[pc + 2]] - ints[intBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.IMUL:
+                    ints[intBase + code[pc + 1]] = (int) ints[intBase + code[pc + 2]] * (int) ints[intBase + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Ir.IDIV:
+                    ints[intBase + code[pc + 1]] = (int) ints[intBase + code[pc + 2]] / (int) ints[intBase + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Ir.IREM:
+                    ints[intBase + code[pc + 1]] = (int) ints[intBase + code[pc + 2]] % (int) ints[intBase + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Ir.RADD:
+                    reals[realBase + code[pc + 1]] = (float) (reals[realBase + code[pc + 2]] + reals[realBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.RSUB:
+                    reals[realBase + code[pc + 1]] = (float) (reals[realBase + code[pc + 2]] - reals[realBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.RMUL:
+                    reals[realBase + code[pc + 1]] = (float) (reals[realBase + code[pc + 2]] * reals[realBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.RDIV:
+                    reals[realBase + code[pc + 1]] = (float) (reals[realBase + code[pc + 2]] / reals[realBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.RREM:
+                    reals[realBase + code[pc + 1]] = (float) (reals[realBase + code[pc + 2]] % reals[realBase + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Ir.IINC:
+                    ints[intBase + code[pc + 1]] = (int) (ints[intBase + code[pc + 1]] + 1);
+                    pc += 2;
+                    break;
+                case Ir.JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case Ir.IF_IEQ:
+                    pc = ints[intBase + code[pc + 1]] == ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_INE:
+                    pc = ints[intBase + code[pc + 1]] != ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_ILT:
+                    pc = ints[intBase + code[pc + 1]] < ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_ILE:
+                    pc = ints[intBase + code[pc + 1]] <= ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_IGT:
+                    pc = ints[intBase + code[pc + 1]] > ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_IGE:
+                    pc = ints[intBase + code[pc + 1]] >= ints[intBase + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IF_REQ:
+                case Ir.IF_RNE:
+                case Ir.IF_RLT:
+                case Ir.IF_RLE:
+                case Ir.IF_RGT:
+                case Ir.IF_RGE:
+                    // Double.compare orders the values the same way RealDataType.compareTo does
+                    int comparison = Double.compare(reals[realBase + code[pc + 1]], reals[realBase + code[pc + 2]]);
+                    pc = holds(code[pc] - Ir.IF_REQ, comparison) ? code[pc + 3] : pc + 4;
+                    break;
+                case Ir.IABS:
+                    ints[intBase + code[pc + 1]] = Math.abs((int) ints[intBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.RSQRT:
+                    reals[realBase + code[pc + 1]] = (float) Math.sqrt(reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.RSIN:
+                    reals[realBase + code[pc + 1]] = (float) Math.sin(reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.RCOS:
+                    reals[realBase + code[pc + 1]] = (float) Math.cos(reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.REXP:
+                    reals[realBase + code[pc + 1]] = (float) Math.exp(reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.RLN:
+                    reals[realBase + code[pc + 1]] = (float) Math.log(reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.WRITE_INT:
+                    ConsoleIO.write((int) ints[intBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.WRITE_REAL:
+                    ConsoleIO.write((float) reals[realBase + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.WRITE_STRING:
+                    ConsoleIO.write(program.strings[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case Ir.WRITELN:
+                    ConsoleIO.writeln();
+                    pc += 1;
+                    break;
+                case Ir.FLUSH:
+                    ConsoleIO.flush();
+                    pc += 1;
+                    break;
+                case Ir.CALL:
+                    pc = call(code, pc, function, intBase, realBase);
+                    break;
+                case Ir.RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc] + " in " + function.name);
+            }
+        }
+    }
+
+    // Clears a new window above the caller's, copies the arguments into it, runs the callee, and copies var arguments back
+    private int call(int[] code, int pc, IrFunction caller, int intBase, int realBase) {
+        IrFunction callee = program.functions[code[pc + 1]];
+        int count = code[pc + 2];
+        int calleeIntBase = intBase + caller.intRegisters;
+        int calleeRealBase = realBase + caller.realRegisters;
+        ensureCapacity(calleeIntBase + callee.intRegisters, calleeRealBase + callee.realRegisters);
+        Arrays.fill(ints, calleeIntBase, calleeIntBase + callee.intRegisters, 0L);
+        Arrays.fill(reals, calleeRealBase, calleeRealBase + callee.realRegisters, 0.0);
+
+        for (int i = 0; i < count; i++) {
+            int register = code[pc + 4 + 3 * i];
+            int parameter = callee.parameterRegisters[i];
+            if (code[pc + 3 + 3 * i] == 0) {
+                ints[calleeIntBase + parameter] = ints[intBase + register];
+            } else {
+                reals[calleeRealBase + parameter] = reals[realBase + register];
+            }
+        }
+        run(callee, calleeIntBase, calleeRealBase);
+
+        for (int i = 0; i < count; i++) {
+            if (code[pc + 5 + 3 * i] != 0) {
+                int register = code[pc + 4 + 3 * i];
+                int parameter = callee.parameterRegisters[i];
+                if (code[pc + 3 + 3 * i] == 0) {
+                    ints[intBase + register] = ints[calleeIntBase + parameter];
+                } else {
+                    reals[realBase + register] = reals[calleeRealBase + parameter];
+                }
+            }
+        }
+        return pc + 3 + 3 * count;
+    }
+
+    // Returns whether a comparison result satisfies the condition at the given offset from IF_REQ
+    private static boolean holds(int condition, int comparison) {
+        switch (condition) {
+            case 0:
+                return comparison == 0;
+            case 1:
+                return comparison != 0;
+            case 2:
+                return comparison < 0;
+            case 3:
+                return comparison <= 0;
+            case 4:
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+        }
+    }
+
+    // Grows the register files to hold at least the given number of registers
+    private void ensureCapacity(int intRegisters, int realRegisters) {
+        if (intRegisters > ints.length) {
+            ints = Arrays.copyOf(ints, Math.max(intRegisters, ints.length * 2));
+        }
+        if (realRegisters > reals.length) {
+            reals = Arrays.copyOf(reals, Math.max(realRegisters, reals.length * 2));
+        }
+    }
+}
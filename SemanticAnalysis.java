@@ -1,14 +1,41 @@
 
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 public class SemanticAnalysis {
+    // Built-ins that only read their arguments; every other built-in may change a variable passed to it
+    private static final Set<String> READ_ONLY_BUILT_INS = new HashSet<>(Arrays.asList(
+            "write", "writeln", "flush", "writeFile", "writeFileLine", "closeFile"));
+
+    private Map<String, FunctionNode> functions = new HashMap<>();
+    private Map<FunctionNode, ParameterFlow> parameterFlows = new IdentityHashMap<>();
+
+    // What a user function does with each of its parameters: whether it may read a var parameter before writing it,
+    // and whether every path through it writes the parameter
+    private static final class ParameterFlow {
+        final boolean[] readsFirst;
+        final boolean[] alwaysWrites;
+
+        ParameterFlow(boolean[] readsFirst, boolean[] alwaysWrites) {
+            this.readsFirst = readsFirst;
+            this.alwaysWrites = alwaysWrites;
+        }
+    }
 
     // Analyzes the AST to ensure that all variables are declared and used with the correct types.
     public void checkAssignments(ProgramNode rootNode) {
         Map<String, String> functionContext = new HashMap<>();
+        functions = new HashMap<>();
+        parameterFlows = new IdentityHashMap<>();
+        for (FunctionNode function : rootNode.getFunctions()) {
+            functions.put(function.getName(), function);
+        }
         for (FunctionNode function : rootNode.getFunctions()) {
             checkFunction(function, functionContext);
         }
@@ -18,14 +45,10 @@ public class SemanticAnalysis {
     private void checkFunction(FunctionNode function, Map<String, String> context) {
         Map<String, String> localContext = new HashMap<>(context);
         
-        // Add parameters to the local context
-        for (VariableNode parameter : function.getParameters()) {
-            localContext.put(parameter.getName(), parameter.getType());
-        }
-
-        // Add local variables to the local context
-        for (VariableNode variable : function.getVariables()) {
-            localContext.put(variable.getName(), variable.getType());
+        // Add parameters and local variables to the local context, in the same order the interpreter lays out frames
+        FrameLayout layout = FrameLayout.of(function);
+        for (int slot = 0; slot < layout.size(); slot++) {
+            localContext.put(layout.getName(slot), layout.getType(slot));
         }
 
         // Check the function's statements
@@ -36,20 +59,27 @@ public class SemanticAnalysis {
 
     // Checks a statement for type violations and variable usage.
     private void checkStatement(StatementNode statement, Map<String, String> context) {
-        if (statement instanceof AssignmentNode) {
-            checkAssignment((AssignmentNode) statement, context);
-        } else if (statement instanceof IfNode) {
-            checkIf((IfNode) statement, context);
-        } else if (statement instanceof WhileNode) {
-            checkWhile((WhileNode) statement, context);
-        } else if (statement instanceof RepeatNode) {
-            checkRepeat((RepeatNode) statement, context);
-        } else if (statement instanceof ForNode) {
-            checkFor((ForNode) statement, context);
-        } else if (statement instanceof FunctionCallNode) {
-            checkFunctionCall((FunctionCallNode) statement, context);
-        } else {
-            throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
+        switch (NodeKind.of(statement)) {
+            case ASSIGNMENT:
+                checkAssignment((AssignmentNode) statement, context);
+                break;
+            case IF:
+                checkIf((IfNode) statement, context);
+                break;
+            case WHILE:
+                checkWhile((WhileNode) statement, context);
+                break;
+            case REPEAT:
+                checkRepeat((RepeatNode) statement, context);
+                break;
+            case FOR:
+                checkFor((ForNode) statement, context);
+                break;
+            case FUNCTION_CALL:
+                checkFunctionCall((FunctionCallNode) statement, context);
+                break;
+            default:
+                throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
         }
     }
 
@@ -94,6 +124,356 @@ public class SemanticAnalysis {
         checkExpression(node.getFrom(), "integer", context);
         checkExpression(node.getTo(), "integer", context);
         checkBlock(node.getStatements(), context);
+
+        ParallelLoop parallel = ParallelLoop.of(node);
+        if (parallel != null) {
+            checkParallelFor(node, parallel, context);
+        }
+    }
+
+    // Checks that the iterations of a parallel for loop do not depend on each other. The loop variable must not be
+    // assigned, a reduction variable may only be updated with its own operation, and every other variable the body
+    // writes must be written before it is read in each iteration, so no value is carried from one iteration to the next.
+    private void checkParallelFor(ForNode node, ParallelLoop parallel, Map<String, String> context) {
+        String where = "parallel for loop at line " + node.getLineNumber();
+        for (String reduction : parallel.getReductions().keySet()) {
+            String type = context.get(reduction);
+            if (reduction.equals(node.getVariable()) || !("integer".equalsIgnoreCase(type) || "real".equalsIgnoreCase(type))) {
+                throw new RuntimeException("Reduction variable " + reduction + " of the " + where + " must be an integer or real variable other than the loop variable");
+            }
+        }
+
+        Set<String> written = new HashSet<>();
+        collectWrites(node.getStatements(), written, functions);
+        if (written.contains(node.getVariable())) {
+            throw new RuntimeException("The " + where + " assigns its loop variable " + node.getVariable());
+        }
+
+        Set<String> defined = new HashSet<>();
+        defined.add(node.getVariable());
+        checkIndependent(node.getStatements(), parallel.getReductions(), written, defined, where);
+    }
+
+    // Returns the variables a block may write, given the user functions of the program by name
+    static Set<String> writes(List<StatementNode> block, Map<String, FunctionNode> functions) {
+        Set<String> written = new HashSet<>();
+        collectWrites(block, written, functions);
+        return written;
+    }
+
+    // Collects the variables a block may write: assignment targets, loop variables and variables passed to be changed
+    private static void collectWrites(List<StatementNode> block, Set<String> written, Map<String, FunctionNode> functions) {
+        for (StatementNode statement : block) {
+            switch (NodeKind.of(statement)) {
+                case ASSIGNMENT:
+                    written.add(((AssignmentNode) statement).getVariable());
+                    break;
+                case IF:
+                    for (IfNode branch = (IfNode) statement; branch != null; branch = branch.getElsifBranch()) {
+                        collectWrites(branch.getStatements(), written, functions);
+                        if (branch.getElseBranch() != null) {
+                            collectWrites(branch.getElseBranch().getStatements(), written, functions);
+                        }
+                    }
+                    break;
+                case WHILE:
+                    collectWrites(((WhileNode) statement).getStatements(), written, functions);
+                    break;
+                case REPEAT:
+                    collectWrites(((RepeatNode) statement).getStatements(), written, functions);
+                    break;
+                case FOR:
+                    written.add(((ForNode) statement).getVariable());
+                    collectWrites(((ForNode) statement).getStatements(), written, functions);
+                    break;
+                case FUNCTION_CALL:
+                    FunctionCallNode call = (FunctionCallNode) statement;
+                    for (int i = 0; i < call.getParameters().size(); i++) {
+                        Node argument = call.getParameters().get(i);
+                        if (argument instanceof VariableReferenceNode && changesArgument(call, i, functions)) {
+                            written.add(((VariableReferenceNode) argument).getName());
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Walks a block of a parallel loop's body in order, adding to defined the variables written so far this iteration
+    private void checkIndependent(List<StatementNode> block, Map<String, MathOpNode.Operation> reductions,
+                                  Set<String> written, Set<String> defined, String where) {
+        for (StatementNode statement : block) {
+            switch (NodeKind.of(statement)) {
+                case ASSIGNMENT: {
+                    AssignmentNode assignment = (AssignmentNode) statement;
+                    String target = assignment.getVariable();
+                    if (reductions.containsKey(target)) {
+                        checkReductionUpdate(assignment, reductions.get(target), reductions, written, defined, where);
+                    } else {
+                        checkReads(assignment.getValue(), reductions, written, defined, where);
+                        defined.add(target);
+                    }
+                    break;
+                }
+                case IF: {
+                    // A variable is written after the if only when every branch writes it
+                    Set<String> after = null;
+                    IfNode branch = (IfNode) statement;
+                    for (; branch != null; branch = branch.getElsifBranch()) {
+                        checkReads(branch.getCondition(), reductions, written, defined, where);
+                        Set<String> branchDefined = new HashSet<>(defined);
+                        checkIndependent(branch.getStatements(), reductions, written, branchDefined, where);
+                        after = intersect(after, branchDefined);
+                        if (branch.getElsifBranch() == null) {
+                            break;
+                        }
+                    }
+                    if (branch.getElseBranch() != null) {
+                        Set<String> elseDefined = new HashSet<>(defined);
+                        checkIndependent(branch.getElseBranch().getStatements(), reductions, written, elseDefined, where);
+                        defined.addAll(intersect(after, elseDefined));
+                    }
+                    break;
+                }
+                case WHILE: {
+                    // The body may not run, so what it writes does not count as written after the loop
+                    WhileNode loop = (WhileNode) statement;
+                    checkReads(loop.getCondition(), reductions, written, defined, where);
+                    checkIndependent(loop.getStatements(), reductions, written, new HashSet<>(defined), where);
+                    break;
+                }
+                case REPEAT:
+                    checkIndependent(((RepeatNode) statement).getStatements(), reductions, written, new HashSet<>(defined), where);
+                    break;
+                case FOR: {
+                    ForNode loop = (ForNode) statement;
+                    checkReads(loop.getFrom(), reductions, written, defined, where);
+                    checkReads(loop.getTo(), reductions, written, defined, where);
+                    Set<String> bodyDefined = new HashSet<>(defined);
+                    bodyDefined.add(loop.getVariable());
+                    checkIndependent(loop.getStatements(), reductions, written, bodyDefined, where);
+                    break;
+                }
+                case FUNCTION_CALL: {
+                    // A variable passed to a var parameter of a user function is read only if the callee may read the
+                    // parameter before writing it, and is written after the call only if every path through the callee
+                    // writes it. A built-in's var argument is checked as a read and is written by the call.
+                    FunctionCallNode call = (FunctionCallNode) statement;
+                    FunctionNode function = functions.get(call.getFunctionName());
+                    ParameterFlow flow = function == null ? null : parameterFlow(function);
+                    for (int i = 0; i < call.getParameters().size(); i++) {
+                        Node argument = call.getParameters().get(i);
+                        boolean varArgument = argument instanceof VariableReferenceNode && changesArgument(call, i, functions);
+                        if (!varArgument || flow == null || flow.readsFirst[i]) {
+                            checkReads(argument, reductions, written, defined, where);
+                        }
+                        if (varArgument) {
+                            String name = ((VariableReferenceNode) argument).getName();
+                            if (reductions.containsKey(name)) {
+                                throw new RuntimeException("The " + where + " passes its reduction variable " + name + " to " + call.getFunctionName());
+                            }
+                            if (flow == null || flow.alwaysWrites[i]) {
+                                defined.add(name);
+                            }
+                        }
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Returns what a user function does with its var parameters, analyzing the function the first time it is asked for
+    private ParameterFlow parameterFlow(FunctionNode function) {
+        ParameterFlow flow = parameterFlows.get(function);
+        if (flow != null) {
+            return flow;
+        }
+        // While the function is analyzed, a call back into it is taken to read every var parameter and write none
+        List<VariableNode> parameters = function.getParameters();
+        boolean[] all = new boolean[parameters.size()];
+        Arrays.fill(all, true);
+        parameterFlows.put(function, new ParameterFlow(all, new boolean[parameters.size()]));
+
+        Set<String> defined = new HashSet<>();
+        Set<String> readFirst = new HashSet<>();
+        for (VariableNode parameter : parameters) {
+            if (!parameter.isVar()) {
+                defined.add(parameter.getName());
+            }
+        }
+        collectFlow(function.getStatements(), defined, readFirst);
+
+        boolean[] readsFirst = new boolean[parameters.size()];
+        boolean[] alwaysWrites = new boolean[parameters.size()];
+        for (int i = 0; i < parameters.size(); i++) {
+            String name = parameters.get(i).getName();
+            readsFirst[i] = parameters.get(i).isVar() && readFirst.contains(name);
+            alwaysWrites[i] = parameters.get(i).isVar() && defined.contains(name);
+        }
+        flow = new ParameterFlow(readsFirst, alwaysWrites);
+        parameterFlows.put(function, flow);
+        return flow;
+    }
+
+    // Walks a block of a function in order, adding to defined the variables written so far on every path and to
+    // readFirst the variables read while they may not have been written yet
+    private void collectFlow(List<StatementNode> block, Set<String> defined, Set<String> readFirst) {
+        for (StatementNode statement : block) {
+            switch (NodeKind.of(statement)) {
+                case ASSIGNMENT: {
+                    AssignmentNode assignment = (AssignmentNode) statement;
+                    collectReads(assignment.getValue(), defined, readFirst);
+                    defined.add(assignment.getVariable());
+                    break;
+                }
+                case IF: {
+                    Set<String> after = null;
+                    IfNode branch = (IfNode) statement;
+                    for (; branch != null; branch = branch.getElsifBranch()) {
+                        collectReads(branch.getCondition(), defined, readFirst);
+                        Set<String> branchDefined = new HashSet<>(defined);
+                        collectFlow(branch.getStatements(), branchDefined, readFirst);
+                        after = intersect(after, branchDefined);
+                        if (branch.getElsifBranch() == null) {
+                            break;
+                        }
+                    }
+                    if (branch.getElseBranch() != null) {
+                        Set<String> elseDefined = new HashSet<>(defined);
+                        collectFlow(branch.getElseBranch().getStatements(), elseDefined, readFirst);
+                        defined.addAll(intersect(after, elseDefined));
+                    }
+                    break;
+                }
+                case WHILE: {
+                    WhileNode loop = (WhileNode) statement;
+                    collectReads(loop.getCondition(), defined, readFirst);
+                    collectFlow(loop.getStatements(), new HashSet<>(defined), readFirst);
+                    break;
+                }
+                case REPEAT:
+                    collectFlow(((RepeatNode) statement).getStatements(), new HashSet<>(defined), readFirst);
+                    break;
+                case FOR: {
+                    ForNode loop = (ForNode) statement;
+                    collectReads(loop.getFrom(), defined, readFirst);
+                    collectReads(loop.getTo(), defined, readFirst);
+                    Set<String> bodyDefined = new HashSet<>(defined);
+                    bodyDefined.add(loop.getVariable());
+                    collectFlow(loop.getStatements(), bodyDefined, readFirst);
+                    break;
+                }
+                case FUNCTION_CALL: {
+                    FunctionCallNode call = (FunctionCallNode) statement;
+                    FunctionNode function = functions.get(call.getFunctionName());
+                    ParameterFlow flow = function == null ? null : parameterFlow(function);
+                    for (int i = 0; i < call.getParameters().size(); i++) {
+                        Node argument = call.getParameters().get(i);
+                        boolean varArgument = argument instanceof VariableReferenceNode && changesArgument(call, i, functions);
+                        if (!varArgument || flow == null || flow.readsFirst[i]) {
+                            collectReads(argument, defined, readFirst);
+                        }
+                        if (varArgument && (flow == null || flow.alwaysWrites[i])) {
+                            defined.add(((VariableReferenceNode) argument).getName());
+                        }
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Adds to readFirst the variables an expression reads that may not have been written yet
+    private static void collectReads(Node node, Set<String> defined, Set<String> readFirst) {
+        switch (NodeKind.of(node)) {
+            case VARIABLE_REFERENCE:
+                String name = ((VariableReferenceNode) node).getName();
+                if (!defined.contains(name)) {
+                    readFirst.add(name);
+                }
+                break;
+            case MATH_OP:
+                collectReads(((MathOpNode) node).getLeft(), defined, readFirst);
+                collectReads(((MathOpNode) node).getRight(), defined, readFirst);
+                break;
+            case BOOLEAN_COMPARE:
+                collectReads(((BooleanCompareNode) node).getLeft(), defined, readFirst);
+                collectReads(((BooleanCompareNode) node).getRight(), defined, readFirst);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Checks that an assignment to a reduction variable has the form r := r op value, with value not reading r
+    private void checkReductionUpdate(AssignmentNode assignment, MathOpNode.Operation operation, Map<String, MathOpNode.Operation> reductions,
+                                      Set<String> written, Set<String> defined, String where) {
+        String target = assignment.getVariable();
+        Node value = assignment.getValue();
+        if (value instanceof MathOpNode && ((MathOpNode) value).getOp() == operation) {
+            MathOpNode math = (MathOpNode) value;
+            Node other = isVariable(math.getLeft(), target) ? math.getRight() : isVariable(math.getRight(), target) ? math.getLeft() : null;
+            if (other != null) {
+                checkReads(other, reductions, written, defined, where);
+                return;
+            }
+        }
+        throw new RuntimeException("The " + where + " may only update its reduction variable " + target + " as " + target + " := " + target + (operation == MathOpNode.Operation.ADD ? " + " : " * ") + "value");
+    }
+
+    // Checks the variables an expression reads: not a reduction variable, and not a variable the body writes later
+    private void checkReads(Node node, Map<String, MathOpNode.Operation> reductions, Set<String> written, Set<String> defined, String where) {
+        switch (NodeKind.of(node)) {
+            case VARIABLE_REFERENCE:
+                String name = ((VariableReferenceNode) node).getName();
+                if (reductions.containsKey(name)) {
+                    throw new RuntimeException("The " + where + " reads its reduction variable " + name + " outside its update");
+                }
+                if (written.contains(name) && !defined.contains(name)) {
+                    throw new RuntimeException("The " + where + " reads " + name + " before writing it, carrying its value from one iteration to the next");
+                }
+                break;
+            case MATH_OP:
+                checkReads(((MathOpNode) node).getLeft(), reductions, written, defined, where);
+                checkReads(((MathOpNode) node).getRight(), reductions, written, defined, where);
+                break;
+            case BOOLEAN_COMPARE:
+                checkReads(((BooleanCompareNode) node).getLeft(), reductions, written, defined, where);
+                checkReads(((BooleanCompareNode) node).getRight(), reductions, written, defined, where);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Returns whether a call may change the variable passed as one of its arguments
+    private static boolean changesArgument(FunctionCallNode call, int index, Map<String, FunctionNode> functions) {
+        FunctionNode function = functions.get(call.getFunctionName());
+        if (function == null) {
+            return !READ_ONLY_BUILT_INS.contains(call.getFunctionName());
+        }
+        return index < function.getParameters().size() && function.getParameters().get(index).isVar();
+    }
+
+    private static boolean isVariable(Node node, String name) {
+        return node instanceof VariableReferenceNode && ((VariableReferenceNode) node).getName().equals(name);
+    }
+
+    // Returns the variables in both sets, where a null set stands for every variable
+    private static Set<String> intersect(Set<String> first, Set<String> second) {
+        if (first == null) {
+            return second;
+        }
+        Set<String> both = new HashSet<>(first);
+        both.retainAll(second);
+        return both;
     }
 
     // Checks a function call statement for type violations and variable usage.
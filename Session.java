@@ -0,0 +1,50 @@
+
+/**
+ * The Session class holds the console and open files of one running program. Each
+ * thread has a current session, which the console and file built-ins act on. A program
+ * run from the command line uses the default session, over System.out and System.in.
+ * The server runs each program in a session of its own, without file access, and a
+ * parallel loop carries the session of the thread that started it into its tasks.
+ */
+final class Session {
+    private static final Session DEFAULT = new Session(new ConsoleIO(null, null), true);
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<>();
+
+    private final ConsoleIO console;
+    private final FileIO files;
+
+    // Creates a session over a console, whose programs may open files only if fileAccess is set
+    Session(ConsoleIO console, boolean fileAccess) {
+        this.console = console;
+        this.files = new FileIO(fileAccess);
+    }
+
+    // Returns the session of the current thread
+    static Session current() {
+        Session session = CURRENT.get();
+        return session != null ? session : DEFAULT;
+    }
+
+    // Runs a task with this session as the current session of the thread
+    void run(Runnable task) {
+        Session previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    ConsoleIO console() {
+        return console;
+    }
+
+    FileIO files() {
+        return files;
+    }
+}
@@ -1,65 +1,250 @@
 
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Shank {
+    // Sources at least this many bytes long are lexed in parallel
+    private static final int PARALLEL_LEX_THRESHOLD = 4 << 20;
+
     public static void main(String[] args) {
-        // Check if the number of arguments passed is exactly 1 (filename)
-        if (args.length != 1) {
-            System.out.println("Error: expecting one argument (filename)");
+        // Read the options and the filename from the arguments passed
+        String engine = "ast";
+        String filename = null;
+        String profileFile = null;
+        boolean profile = false;
+        boolean dumpOptimized = false;
+        int memoCapacity = 0;
+        Path cacheDirectory = null;
+        int serverPort = -1;
+        long cpuLimitMillis = 0;
+        long allocationLimitMegabytes = 0;
+        int jobThreads = Runtime.getRuntime().availableProcessors();
+        // The explicit-stack engine's stack may use a quarter of the heap unless told otherwise
+        long stackLimitMegabytes = Runtime.getRuntime().maxMemory() >> 22;
+        for (String arg : args) {
+            if (arg.equals("--server")) {
+                serverPort = ShankServer.DEFAULT_PORT;
+            } else if (arg.startsWith("--server=")) {
+                serverPort = Integer.parseInt(arg.substring("--server=".length()));
+            } else if (arg.startsWith("--cpu-limit=")) {
+                cpuLimitMillis = Long.parseLong(arg.substring("--cpu-limit=".length()));
+            } else if (arg.startsWith("--allocation-limit=")) {
+                allocationLimitMegabytes = Long.parseLong(arg.substring("--allocation-limit=".length()));
+            } else if (arg.startsWith("--job-threads=")) {
+                jobThreads = Integer.parseInt(arg.substring("--job-threads=".length()));
+            } else if (arg.startsWith("--stack-limit=")) {
+                stackLimitMegabytes = Long.parseLong(arg.substring("--stack-limit=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--profile=")) {
+                profile = true;
+                profileFile = arg.substring("--profile=".length());
+            } else if (arg.equals("--memoize")) {
+                memoCapacity = MemoTable.DEFAULT_CAPACITY;
+            } else if (arg.startsWith("--memoize=")) {
+                memoCapacity = Integer.parseInt(arg.substring("--memoize=".length()));
+            } else if (arg.equals("--dump-optimized")) {
+                dumpOptimized = true;
+            } else if (arg.equals("--cache")) {
+                cacheDirectory = Paths.get(System.getProperty("user.home"), ".shank", "cache");
+            } else if (arg.startsWith("--cache=")) {
+                cacheDirectory = Paths.get(arg.substring("--cache=".length()));
+            } else if (filename == null) {
+                filename = arg;
+            } else {
+                filename = null;
+                break;
+            }
+        }
+
+        // In server mode, run the programs clients send until the process is stopped
+        if (serverPort >= 0) {
+            try {
+                new ShankServer(serverPort, cpuLimitMillis * 1_000_000, allocationLimitMegabytes << 20, jobThreads).serve();
+            } catch (IOException e) {
+                System.out.println("Error: unable to serve on port " + serverPort + ": " + e.getMessage());
+            }
             return;
         }
 
-        // Get the filename from the arguments passed
-        String filename = args[0];
-        List<String> lines;
+        // Check that exactly one filename was given and the engine is known
+        if (filename == null) {
+            System.out.println("Error: expecting one argument (filename), optionally preceded by --engine=ast|jvm|vm|stack, --stack-limit=mb, --profile[=file], --cache[=dir],"
+                    + " --memoize[=entries] and --dump-optimized,"
+                    + " or --server[=port] with optional --cpu-limit=ms, --allocation-limit=mb and --job-threads=n");
+            return;
+        }
+        if (!engine.equals("ast") && !engine.equals("jvm") && !engine.equals("vm") && !engine.equals("stack")) {
+            System.out.println("Error: unknown engine " + engine);
+            return;
+        }
+        if (profile && profileFile == null) {
+            profileFile = filename + ".collapsed";
+        }
+        if (memoCapacity > 0 && !engine.equals("ast")) {
+            System.err.println("Note: not memoizing, calls are only memoized with --engine=ast");
+            memoCapacity = 0;
+        }
+
+        MappedSource source;
         try {
-            // Read all the lines in the file
-            lines = Files.readAllLines(Paths.get(filename));
+            // Map the whole file so comments and literals can span lines
+            source = MappedSource.map(Paths.get(filename));
         } catch (IOException e) {
             System.out.println("Error: unable to read file");
             return;
         }
 
-        // Create an instance of the Lexer class
-        Lexer lexer = new Lexer();
-        for (String line : lines) {
-            try {
-                // Pass the line to the lexer to tokenize
-                lexer.lex(line);
-            } catch (Exception e) {
-                // Print the exception message if an error occurs
-                System.out.println("Exception: " + e.getMessage());
-                return;
+        // Run the lowered program straight from the cache when this source has been compiled before
+        ProgramCache cache = null;
+        String cacheKey = null;
+        if (cacheDirectory != null) {
+            if (!engine.equals("vm") || profile) {
+                System.err.println("Note: not caching, the cache only holds programs for --engine=vm");
+            } else {
+                cache = new ProgramCache(cacheDirectory, ProgramCache.DEFAULT_MAX_BYTES);
+                cacheKey = ProgramCache.key(source.bytes());
+                // A dump needs the AST, so it always compiles the source
+                IrProgram cached = dumpOptimized ? null : cache.load(cacheKey);
+                if (cached != null) {
+                    try {
+                        new RegisterVM(cached).execute();
+                    } finally {
+                        ConsoleIO.flush();
+                        FileIO.closeAll();
+                    }
+                    return;
+                }
             }
         }
 
-        // Get the tokens from the lexer
-        List<Token> tokens = lexer.getTokens();
-        // Create an instance of the Parser class with the tokens
-        Parser parser = new Parser(tokens);
+        List<Token> tokens;
+        try {
+            tokens = lex(source);
+        } catch (Exception e) {
+            // Print the exception message if an error occurs
+            System.out.println("Exception: " + e.getMessage());
+            return;
+        }
 
         try {
-            // Call the parse() method of the Parser instance to generate the AST
-            ProgramNode ast = (ProgramNode) parser.parse();
-            
-            // Create an instance of the SemanticAnalysis class
-            SemanticAnalysis semanticAnalysis = new SemanticAnalysis();
-            // Perform semantic analysis on the AST
-            semanticAnalysis.checkAssignments(ast);
-        
-            // Create an instance of the Interpreter class with the AST
-            Interpreter interpreter = new Interpreter(ast);
+            ProgramNode ast = parse(tokens);
+            if (dumpOptimized) {
+                Optimizer.print(ast, System.err);
+            }
+
+            // Profile the program on the interpreter, which is the engine that reports what it runs
+            if (profile) {
+                if (!engine.equals("ast")) {
+                    System.err.println("Note: running on the interpreter, profiling is only supported there");
+                }
+                runProfiled(ast, Paths.get(profileFile));
+                return;
+            }
+
+            // Compile the program to JVM bytecode or register code if asked, falling back to the interpreter
+            if (!engine.equals("ast") && !engine.equals("stack")) {
+                Runnable compiled = null;
+                try {
+                    if (engine.equals("jvm")) {
+                        compiled = new BytecodeCompiler(ast).compile();
+                    } else {
+                        IrProgram program = new IrCompiler(ast).compile();
+                        if (cache != null) {
+                            store(cache, cacheKey, program);
+                        }
+                        compiled = new RegisterVM(program)::execute;
+                    }
+                } catch (UnsupportedOperationException e) {
+                    System.err.println("Note: running on the interpreter, " + e.getMessage());
+                }
+                if (compiled != null) {
+                    compiled.run();
+                    return;
+                }
+            }
+
+            // Create an instance of the Interpreter class with the AST, remembering calls to pure functions if asked
+            MemoTable memo = memoCapacity > 0 ? new MemoTable(memoCapacity) : null;
+            Interpreter interpreter = memo != null ? new Interpreter(ast, memo) : new Interpreter(ast);
+            // Run deeply recursive programs on a stack kept on the heap rather than the thread's
+            if (engine.equals("stack")) {
+                new StackInterpreter(interpreter, stackLimitMegabytes << 20).executeProgram();
+                return;
+            }
             // Execute the program using the interpreter
             interpreter.executeProgram();
+            if (memo != null) {
+                memo.report(System.err);
+            }
 
         } catch (SyntaxErrorException e) {
             // If a syntax error occurs during parsing, print the error message
             System.out.println("Syntax Error: " + e.getMessage());
             return;
+        } finally {
+            // Write out whatever program output is still buffered, and close the files the program left open
+            ConsoleIO.flush();
+            FileIO.closeAll();
+        }
+    }
+
+    // Lexes a source into tokens
+    static List<Token> lex(CharSequence source) throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        if (source.length() >= PARALLEL_LEX_THRESHOLD) {
+            // Large files are lexed in chunks across all cores
+            return new ParallelLexer(lexer).lex(source).asList();
+        }
+        // Pull the tokens from the stream
+        List<Token> tokens = new ArrayList<>();
+        TokenStream stream = lexer.stream(source);
+        while (stream.hasNext()) {
+            tokens.add(stream.next());
+        }
+        return tokens;
+    }
+
+    // Parses tokens into an AST, runs semantic analysis on it and optimizes it
+    static ProgramNode parse(List<Token> tokens) throws SyntaxErrorException {
+        // Create an instance of the Parser class with the tokens, and call parse() to generate the AST
+        ProgramNode ast = (ProgramNode) new Parser(tokens).parse();
+        // Perform semantic analysis on the AST
+        new SemanticAnalysis().checkAssignments(ast);
+        // Fold constants and drop dead branches before any engine runs the program
+        return new Optimizer().optimize(ast);
+    }
+
+    // Stores a lowered program in the cache; a program that cannot be cached still runs
+    private static void store(ProgramCache cache, String key, IrProgram program) {
+        try {
+            cache.store(key, program);
+        } catch (IOException e) {
+            System.err.println("Note: unable to cache the compiled program: " + e.getMessage());
+        }
+    }
+
+    // Runs a program on a profiled interpreter, then prints the hot spot report and writes the collapsed stacks
+    private static void runProfiled(ProgramNode ast, Path profileFile) {
+        Profiler profiler = new Profiler();
+        profiler.start();
+        try {
+            new Interpreter(ast, profiler).executeProgram();
+        } finally {
+            profiler.stop();
+            profiler.report(System.err);
+            try {
+                profiler.writeCollapsedStacks(profileFile);
+                System.err.println("Profile written to " + profileFile);
+            } catch (IOException e) {
+                System.err.println("Error: unable to write profile to " + profileFile);
+            }
         }
     }
 }
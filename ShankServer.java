@@ -0,0 +1,150 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The ShankServer class runs Shank programs sent over a local socket, so many programs
+ * share one JVM instead of each paying for its own startup and warmup. The built-in
+ * table and the code HotSpot has already compiled for the interpreter are shared by
+ * every program. Each program runs on a virtual thread of its own, with its own
+ * Interpreter, its own console (see Session), and a JobBudget that stops it once it
+ * uses up its CPU time or allocation budget. The file built-ins are disabled. A program's parallel loops run on
+ * a small pool of threads of its own, and the time and allocation they use count
+ * against it.
+ *
+ * A client connects to the loopback address, sends the program source and closes its
+ * side of the connection. Input for the program's read calls may follow the source,
+ * after a line holding only %%. The server replies with the program's output, then
+ * any error on a line of its own, and closes the connection.
+ */
+public class ShankServer {
+    static final int DEFAULT_PORT = 7311;
+    // The largest request, source and input together, the server will accept
+    private static final int MAX_REQUEST_BYTES = 64 << 20;
+    private static final String INPUT_SEPARATOR = "%%";
+
+    private final int port;
+    private final long cpuLimitNanos;
+    private final long allocationLimitBytes;
+    private final int jobThreads;
+
+    // Creates a server whose jobs each run their parallel loops on at most jobThreads threads; a CPU or allocation limit
+    // of zero or less is no limit
+    public ShankServer(int port, long cpuLimitNanos, long allocationLimitBytes, int jobThreads) {
+        this.port = port;
+        this.cpuLimitNanos = cpuLimitNanos;
+        this.allocationLimitBytes = allocationLimitBytes;
+        this.jobThreads = jobThreads;
+    }
+
+    // Accepts connections until the process is stopped, running each request on a new virtual thread
+    public void serve() throws IOException {
+        try (ServerSocket listener = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+             ExecutorService jobs = Executors.newVirtualThreadPerTaskExecutor()) {
+            if (allocationLimitBytes > 0 && !canMeasureAllocation(jobs)) {
+                System.err.println("Note: this JVM does not count allocation on virtual threads, so the allocation limit is not enforced");
+            }
+            System.err.println("Shank server listening on " + listener.getLocalSocketAddress());
+            while (true) {
+                Socket client = listener.accept();
+                jobs.submit(() -> handle(client));
+            }
+        }
+    }
+
+    // Checks on one of the job threads whether the JVM reports the bytes it allocates
+    private static boolean canMeasureAllocation(ExecutorService jobs) {
+        try {
+            return jobs.submit(JobBudget::canMeasureAllocation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Reads one request, runs the program in a session of its own and sends back its output
+    private void handle(Socket client) {
+        try (Socket connection = client) {
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            byte[] request = in.readNBytes(MAX_REQUEST_BYTES + 1);
+            if (request.length > MAX_REQUEST_BYTES) {
+                out.write(("Error: requests are limited to " + (MAX_REQUEST_BYTES >> 20) + " MB" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            // Split the input for the program's reads off the end of the source
+            String text = new String(request, StandardCharsets.UTF_8);
+            String source = text;
+            String input = "";
+            int separator = findSeparator(text);
+            if (separator >= 0) {
+                source = text.substring(0, separator);
+                int inputStart = text.indexOf('\n', separator);
+                input = inputStart < 0 ? "" : text.substring(inputStart + 1);
+            }
+
+            // File access is off, as the program would otherwise reach the server's files with the server's permissions
+            Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))), false);
+            String program = source;
+            session.run(() -> runProgram(program));
+        } catch (IOException e) {
+            System.err.println("Error: request from a client failed: " + e.getMessage());
+        }
+    }
+
+    // Returns the offset of the line holding only the input separator, or -1 if there is none
+    private static int findSeparator(String text) {
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            if (text.substring(lineStart, lineEnd).trim().equals(INPUT_SEPARATOR)) {
+                return lineStart;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    // Runs a program in the current session, reporting an error after whatever output it produced
+    private void runProgram(String source) {
+        try (JobBudget budget = new JobBudget(cpuLimitNanos, allocationLimitBytes, jobThreads)) {
+            ProgramNode ast = Shank.parse(Shank.lex(source));
+            budget.start();
+            new Interpreter(ast, budget).executeProgram();
+        } catch (SyntaxErrorException e) {
+            reportError("Syntax Error: " + e.getMessage());
+        } catch (RuntimeException e) {
+            reportError("Error: " + e.getMessage());
+        } catch (StackOverflowError e) {
+            reportError("Error: the program recursed too deeply");
+        } finally {
+            try {
+                ConsoleIO.flush();
+            } catch (RuntimeException e) {
+                // The client has gone away
+            }
+            FileIO.closeAll();
+        }
+    }
+
+    private static void reportError(String message) {
+        ConsoleIO.writeln();
+        ConsoleIO.write(message);
+        ConsoleIO.writeln();
+    }
+}
@@ -0,0 +1,266 @@
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The StackInterpreter class runs a program like Interpreter does, on the same
+ * resolved program, but keeps its own stack on the heap instead of recursing on the
+ * Java stack. Interpreter calls itself for every function call and nested block, so a
+ * deeply recursive Shank program overflows the thread's stack. Here each function call,
+ * block and loop in progress is an entry on an array-backed stack, and a single loop
+ * runs whatever entry is on top.
+ *
+ * Recursion is limited only by a budget of memory for the stack, and exceeding it is
+ * an error rather than a StackOverflowError. Entries are reused as the stack grows and
+ * shrinks, each keeping the frame array of the last call made at its depth. A call
+ * reuses that array when it has the right size. A self tail call reuses the frame
+ * and entries of the call making it, as in Interpreter. Parallel for loops run
+ * sequentially here, which gives the same results. Profiling, memoization and server
+ * budgets stay with Interpreter.
+ */
+final class StackInterpreter {
+    // Rough heap cost of a call: its entries on the stack, plus a reference and a small value per frame slot
+    private static final long CALL_BYTES = 128;
+    private static final long SLOT_BYTES = 24;
+
+    private static final int BLOCK = 0;
+    private static final int WHILE = 1;
+    private static final int FOR = 2;
+    private static final int CALL = 3;
+
+    private final Interpreter interpreter;
+    private final VariableResolver resolver;
+    private final FunctionAnalysis analysis;
+    private final long stackLimitBytes;
+    private Entry[] stack = new Entry[64];
+    private int depth;
+    private long stackBytes;
+
+    // Creates an engine for a program the interpreter has resolved, with a budget for its stack in bytes
+    StackInterpreter(Interpreter interpreter, long stackLimitBytes) {
+        this.interpreter = interpreter;
+        this.resolver = interpreter.getResolver();
+        this.analysis = interpreter.getAnalysis();
+        this.stackLimitBytes = stackLimitBytes;
+    }
+
+    // Runs the program from its start function.
+    public void executeProgram() {
+        depth = 0;
+        stackBytes = 0;
+        FunctionNode start = interpreter.lookupFunction("start");
+        FrameLayout layout = resolver.getLayout(start);
+        InterpreterDataType[] frame = new InterpreterDataType[layout.size()];
+        for (int slot = 0; slot < frame.length; slot++) {
+            frame[slot] = InterpreterDataType.forType(layout.getType(slot));
+        }
+        pushBlock(start.getStatements(), frame);
+        run();
+    }
+
+    // Runs the entry on top of the stack until the stack is empty
+    private void run() {
+        while (depth > 0) {
+            Entry top = stack[depth - 1];
+            switch (top.kind) {
+                case BLOCK:
+                    if (top.index < top.statements.size()) {
+                        execute(top.statements.get(top.index++), top.frame);
+                    } else {
+                        depth--;
+                    }
+                    break;
+                case WHILE:
+                    WhileNode whileLoop = (WhileNode) top.loop;
+                    if (interpreter.booleanCompare(whileLoop.getCondition(), top.frame)) {
+                        pushBlock(whileLoop.getStatements(), top.frame);
+                    } else {
+                        depth--;
+                    }
+                    break;
+                case FOR:
+                    stepFor(top);
+                    break;
+                case CALL:
+                    // The callee's body has finished
+                    top.site.writeBack(top.callerFrame, top.frame);
+                    stackBytes -= top.bytes;
+                    depth--;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown stack entry: " + top.kind);
+            }
+        }
+    }
+
+    // Starts the next iteration of a for loop, or ends it. The loop variable is left one past the end value.
+    private void stepFor(Entry loop) {
+        if (loop.index > 0 && loop.plan != null) {
+            loop.plan.advance(loop.frame, loop.current);
+        }
+        if (loop.current > loop.end) {
+            Interpreter.storeInt(loop.frame, loop.slot, loop.current);
+            depth--;
+            return;
+        }
+        Interpreter.storeInt(loop.frame, loop.slot, loop.current);
+        loop.current++;
+        loop.index = 1;
+        pushBlock(((ForNode) loop.loop).getStatements(), loop.frame);
+    }
+
+    // Runs a statement, pushing an entry for whatever it has to run next
+    private void execute(StatementNode statement, InterpreterDataType[] frame) {
+        switch (NodeKind.of(statement)) {
+            case IF: {
+                // The elsif chain is walked here rather than pushed, as it runs at most one block
+                IfNode branch = (IfNode) statement;
+                while (!interpreter.booleanCompare(branch.getCondition(), frame)) {
+                    if (branch.getElsifBranch() != null) {
+                        branch = branch.getElsifBranch();
+                    } else {
+                        if (branch.getElseBranch() != null) {
+                            pushBlock(branch.getElseBranch().getStatements(), frame);
+                        }
+                        return;
+                    }
+                }
+                pushBlock(branch.getStatements(), frame);
+                break;
+            }
+            case WHILE: {
+                LoopPlan plan = resolver.getLoopPlan(statement);
+                if (plan != null) {
+                    plan.enter(frame);
+                }
+                push(WHILE, null, frame).loop = statement;
+                break;
+            }
+            case REPEAT:
+                // As in Interpreter, a repeat loop runs its body no times
+                break;
+            case FOR: {
+                ForNode node = (ForNode) statement;
+                int current = interpreter.evaluateInt(node.getFrom(), frame);
+                int end = interpreter.evaluateInt(node.getTo(), frame);
+                if (current > end) {
+                    return;
+                }
+                LoopPlan plan = resolver.getLoopPlan(node);
+                if (plan != null) {
+                    plan.enter(frame);
+                    plan.start(frame, current);
+                }
+                Entry loop = push(FOR, null, frame);
+                loop.loop = node;
+                loop.plan = plan;
+                loop.slot = resolver.getSlot(node);
+                loop.current = current;
+                loop.end = end;
+                break;
+            }
+            case ASSIGNMENT:
+                interpreter.interpretAssignment((AssignmentNode) statement, frame);
+                break;
+            case FUNCTION_CALL: {
+                FunctionCallNode call = (FunctionCallNode) statement;
+                if (analysis.isTailCall(call)) {
+                    tailCall(call, frame);
+                } else {
+                    call(call, frame);
+                }
+                break;
+            }
+            default:
+                throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
+        }
+    }
+
+    // Calls a built-in directly, or pushes a user function's call and body
+    private void call(FunctionCallNode node, InterpreterDataType[] frame) {
+        CallSite site = resolver.getCallSite(node);
+        FunctionNode function = site.target();
+        if (function.isBuiltIn()) {
+            interpreter.callBuiltIn(site, function, frame);
+            return;
+        }
+
+        FrameLayout layout = resolver.getLayout(function);
+        long bytes = CALL_BYTES + SLOT_BYTES * layout.size();
+        if (stackBytes + bytes > stackLimitBytes) {
+            throw new RuntimeException("Recursion too deep: the stack limit of " + (stackLimitBytes >> 20) + " MB was reached calling " + node.getFunctionName());
+        }
+        Entry entry = push(CALL, null, frame);
+        InterpreterDataType[] callee = entry.spare;
+        if (callee == null || callee.length != layout.size()) {
+            callee = new InterpreterDataType[layout.size()];
+            entry.spare = callee;
+        }
+        site.evaluateArguments(frame, callee);
+        for (int slot = layout.getParameterCount(); slot < callee.length; slot++) {
+            callee[slot] = InterpreterDataType.forType(layout.getType(slot));
+        }
+        entry.site = site;
+        entry.callerFrame = frame;
+        entry.frame = callee;
+        entry.bytes = bytes;
+        stackBytes += bytes;
+        pushBlock(function.getStatements(), callee);
+    }
+
+    // Runs a self tail call in the caller's place: the parameters are bound to the new arguments, the blocks of the
+    // if statements it sits in are popped, and the function's body starts over with fresh locals
+    private void tailCall(FunctionCallNode node, InterpreterDataType[] frame) {
+        interpreter.bindTailCall(node, frame);
+        while (depth > 1 && stack[depth - 2].kind != CALL) {
+            depth--;
+        }
+        stack[depth - 1].index = 0;
+        FrameLayout layout = resolver.getLayout(resolver.getCallSite(node).target());
+        for (int slot = layout.getParameterCount(); slot < frame.length; slot++) {
+            frame[slot] = InterpreterDataType.forType(layout.getType(slot));
+        }
+    }
+
+    private void pushBlock(List<StatementNode> statements, InterpreterDataType[] frame) {
+        push(BLOCK, statements, frame);
+    }
+
+    // Pushes an entry, reusing the one left at this depth by an earlier push
+    private Entry push(int kind, List<StatementNode> statements, InterpreterDataType[] frame) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        Entry entry = stack[depth];
+        if (entry == null) {
+            entry = new Entry();
+            stack[depth] = entry;
+        }
+        depth++;
+        entry.kind = kind;
+        entry.statements = statements;
+        entry.frame = frame;
+        entry.index = 0;
+        return entry;
+    }
+
+    // Entry is one block, loop or call in progress. Its fields are used according to its kind.
+    private static final class Entry {
+        int kind;
+        List<StatementNode> statements;
+        int index;
+        InterpreterDataType[] frame;
+        // The loop of a while or for entry
+        StatementNode loop;
+        LoopPlan plan;
+        int slot;
+        int current;
+        int end;
+        // The call of a call entry, the frame it was made from and the cost counted against the stack limit
+        CallSite site;
+        InterpreterDataType[] callerFrame;
+        long bytes;
+        // The frame array of the last call made at this depth, kept for the next call with the same frame size
+        InterpreterDataType[] spare;
+    }
+}
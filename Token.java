@@ -18,7 +18,7 @@ public class Token {
         LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET, 
         PUNCTUATION, NUMBER, MODULO, COLON, 
         END_OF_LINE, IDENTIFIER, DEFINE, VARIABLE, CONSTANT, TRUE, FALSE, 
-        BOOLEAN, EQUAL, GREATER_EQUAL, NOT_EQUAL, GREATER_THAN, LESS_EQUAL, LESS_THAN, FROM, REAL, TO, THEN, ELSIF, REPEAT, UNTIL, INTEGER_LITERAL, REAL_LITERAL, VARIABLE_DECLARATION,  
+        BOOLEAN, EQUAL, GREATER_EQUAL, NOT_EQUAL, GREATER_THAN, LESS_EQUAL, LESS_THAN, FROM, REAL, TO, THEN, ELSIF, REPEAT, UNTIL, INTEGER_LITERAL, REAL_LITERAL, VARIABLE_DECLARATION, PARALLEL, 
     }
     
     private Type type;
@@ -0,0 +1,341 @@
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The TokenBuffer class stores tokens in parallel primitive arrays: type ordinal,
+ * start offset, length and line number. The lexer appends to it without allocating
+ * any objects per token. Token objects are built only when asked for through get()
+ * or the list view, and words and punctuation share Strings from the intern pool.
+ *
+ * When tokens are replaced after an edit, the offsets and lines of the tokens that
+ * follow are not rewritten. Instead the buffer records a shift that applies from an
+ * index onward, and the shifts are folded into the arrays once enough of them pile up.
+ */
+public class TokenBuffer {
+    private static final Token.Type[] TYPES = Token.Type.values();
+    private static final int MAX_SHIFTS = 32;
+
+    private final CharSequence source;
+    private final InternPool pool;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size;
+    private Token[] materialized;
+
+    // Pending shifts, sorted by index. Each holds the total shift for tokens from its index onward.
+    private int[] shiftIndexes;
+    private int[] shiftOffsets;
+    private int[] shiftLines;
+    private int shifts;
+
+    /**
+     * The constructor creates an empty buffer over the given source characters.
+     *
+     * @param source - The characters the offsets refer to
+     * @param pool - The intern pool used for words and punctuation
+     */
+    public TokenBuffer(CharSequence source, InternPool pool) {
+        this.source = source;
+        this.pool = pool;
+        this.types = new int[256];
+        this.starts = new int[256];
+        this.lengths = new int[256];
+        this.lines = new int[256];
+        this.size = 0;
+        this.shiftIndexes = new int[MAX_SHIFTS + 1];
+        this.shiftOffsets = new int[MAX_SHIFTS + 1];
+        this.shiftLines = new int[MAX_SHIFTS + 1];
+        this.shifts = 0;
+    }
+
+    /**
+     * This method appends a token.
+     *
+     * @param type - The token type
+     * @param start - The offset of the token text in the source
+     * @param length - The length of the token text
+     * @param line - The line number of the token
+     */
+    public void add(Token.Type type, int start, int length, int line) {
+        ensureCapacity(size + 1);
+        write(size, type.ordinal(), start, length, line);
+        size++;
+    }
+
+    /**
+     * This method appends every token of another buffer over the same source.
+     *
+     * @param other - The buffer to append
+     */
+    public void append(TokenBuffer other) {
+        compact();
+        other.compact();
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        System.arraycopy(other.lines, 0, lines, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * This method replaces the tokens between from and to with the tokens of another
+     * buffer, and shifts every token after them by the given offset and line deltas.
+     * The shift is recorded rather than applied, so the cost does not grow with the
+     * number of tokens that follow.
+     *
+     * @param from - The index of the first token to replace
+     * @param to - One past the index of the last token to replace
+     * @param replacement - The new tokens, with offsets and lines already final
+     * @param offsetDelta - The change in offset of the tokens after the replaced range
+     * @param lineDelta - The change in line number of the tokens after the replaced range
+     */
+    public void replace(int from, int to, TokenBuffer replacement, int offsetDelta, int lineDelta) {
+        int growth = replacement.size - (to - from);
+        ensureCapacity(size + growth);
+        System.arraycopy(types, to, types, to + growth, size - to);
+        System.arraycopy(starts, to, starts, to + growth, size - to);
+        System.arraycopy(lengths, to, lengths, to + growth, size - to);
+        System.arraycopy(lines, to, lines, to + growth, size - to);
+        size += growth;
+        int tail = to + growth;
+
+        // Shifts that started inside the replaced range now start at the first kept token
+        int kept = 0;
+        for (int k = 0; k < shifts; k++) {
+            int index = shiftIndexes[k];
+            if (index >= to) {
+                index += growth;
+            } else if (index > from) {
+                index = tail;
+            }
+            if (kept > 0 && shiftIndexes[kept - 1] == index) {
+                kept--;
+            }
+            shiftIndexes[kept] = index;
+            shiftOffsets[kept] = shiftOffsets[k];
+            shiftLines[kept] = shiftLines[k];
+            kept++;
+        }
+        shifts = kept;
+
+        // Record the shift for the kept tokens
+        if (tail < size && (offsetDelta != 0 || lineDelta != 0)) {
+            int position = 0;
+            while (position < shifts && shiftIndexes[position] < tail) {
+                position++;
+            }
+            for (int k = position; k < shifts; k++) {
+                shiftOffsets[k] += offsetDelta;
+                shiftLines[k] += lineDelta;
+            }
+            if (position == shifts || shiftIndexes[position] != tail) {
+                System.arraycopy(shiftIndexes, position, shiftIndexes, position + 1, shifts - position);
+                System.arraycopy(shiftOffsets, position, shiftOffsets, position + 1, shifts - position);
+                System.arraycopy(shiftLines, position, shiftLines, position + 1, shifts - position);
+                shiftIndexes[position] = tail;
+                shiftOffsets[position] = (position > 0 ? shiftOffsets[position - 1] : 0) + offsetDelta;
+                shiftLines[position] = (position > 0 ? shiftLines[position - 1] : 0) + lineDelta;
+                shifts++;
+            }
+        }
+
+        // Write the new tokens under whatever shift already covers them
+        for (int i = 0; i < replacement.size; i++) {
+            write(from + i, replacement.types[i], replacement.start(i), replacement.lengths[i], replacement.line(i));
+        }
+
+        // Built tokens may now carry stale line numbers
+        materialized = null;
+        if (shifts == MAX_SHIFTS) {
+            compact();
+        }
+    }
+
+    /**
+     * This method removes every token from the index onward.
+     *
+     * @param index - The number of tokens to keep
+     */
+    public void truncate(int index) {
+        size = Math.min(size, index);
+        while (shifts > 0 && shiftIndexes[shifts - 1] >= size) {
+            shifts--;
+        }
+        materialized = null;
+    }
+
+    /**
+     * This method returns the number of tokens in the buffer.
+     *
+     * @return int - The number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    // getter for the type of a token
+    public Token.Type type(int index) {
+        return TYPES[types[index]];
+    }
+
+    // getter for the start offset of a token
+    public int start(int index) {
+        int shift = shiftAt(index);
+        return starts[index] + (shift < 0 ? 0 : shiftOffsets[shift]);
+    }
+
+    // getter for the length of a token
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    // getter for the line number of a token
+    public int line(int index) {
+        int shift = shiftAt(index);
+        return lines[index] + (shift < 0 ? 0 : shiftLines[shift]);
+    }
+
+    /**
+     * This method returns the offset where the scanner started the token, which is
+     * before the opening quote of a string or character literal.
+     *
+     * @param index - The token index
+     * @return int - The offset of the first character of the token
+     */
+    public int scanStart(int index) {
+        return start(index) - (isQuoted(index) ? 1 : 0);
+    }
+
+    /**
+     * This method returns the offset just past the last character the scanner consumed
+     * for the token, which is after the closing quote of a string or character literal.
+     *
+     * @param index - The token index
+     * @return int - The offset after the token
+     */
+    public int scanEnd(int index) {
+        return start(index) + lengths[index] + (isQuoted(index) ? 1 : 0);
+    }
+
+    /**
+     * This method returns the text of a token. Words and punctuation come from the intern pool.
+     *
+     * @param index - The token index
+     * @return String - The token text
+     */
+    public String value(int index) {
+        int start = start(index);
+        int end = start + lengths[index];
+        switch (TYPES[types[index]]) {
+            case NUMBER:
+            case STRINGLITERAL:
+            case CHARACTERLITERAL:
+                if (source instanceof MappedSource) {
+                    return ((MappedSource) source).decode(start, end);
+                }
+                return source.subSequence(start, end).toString();
+            default:
+                return pool.value(pool.intern(source, start, end));
+        }
+    }
+
+    /**
+     * This method returns the token at an index, building it on first use.
+     *
+     * @param index - The token index
+     * @return Token - The token
+     */
+    public Token get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Token index " + index + " out of range for " + size + " tokens");
+        }
+        if (materialized == null || materialized.length < size) {
+            materialized = materialized == null ? new Token[size] : Arrays.copyOf(materialized, size);
+        }
+        Token token = materialized[index];
+        if (token == null) {
+            token = new Token(type(index), value(index), line(index));
+            materialized[index] = token;
+        }
+        return token;
+    }
+
+    /**
+     * This method returns a read-only list view that builds tokens as they are read.
+     *
+     * @return List<Token> - The token list view
+     */
+    public List<Token> asList() {
+        return new AbstractList<Token>() {
+            @Override
+            public Token get(int index) {
+                return TokenBuffer.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // Returns true for literals whose quotes are not part of the token text
+    private boolean isQuoted(int index) {
+        Token.Type type = TYPES[types[index]];
+        return type == Token.Type.STRINGLITERAL || type == Token.Type.CHARACTERLITERAL;
+    }
+
+    // Returns the pending shift that covers an index, or -1
+    private int shiftAt(int index) {
+        int low = 0;
+        int high = shifts - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (shiftIndexes[middle] <= index) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    // Stores a token at an index, subtracting the shift that is added back when it is read
+    private void write(int index, int type, int start, int length, int line) {
+        int shift = shiftAt(index);
+        types[index] = type;
+        starts[index] = start - (shift < 0 ? 0 : shiftOffsets[shift]);
+        lengths[index] = length;
+        lines[index] = line - (shift < 0 ? 0 : shiftLines[shift]);
+    }
+
+    // Folds every pending shift into the arrays
+    private void compact() {
+        for (int k = 0; k < shifts; k++) {
+            int end = k + 1 < shifts ? shiftIndexes[k + 1] : size;
+            for (int i = shiftIndexes[k]; i < end; i++) {
+                starts[i] += shiftOffsets[k];
+                lines[i] += shiftLines[k];
+            }
+        }
+        shifts = 0;
+    }
+
+    // Grows the arrays to hold at least the given number of tokens
+    private void ensureCapacity(int capacity) {
+        if (capacity > types.length) {
+            int grown = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, grown);
+            starts = Arrays.copyOf(starts, grown);
+            lengths = Arrays.copyOf(lengths, grown);
+            lines = Arrays.copyOf(lines, grown);
+        }
+    }
+}
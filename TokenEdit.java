@@ -0,0 +1,40 @@
+
+/**
+ * The TokenEdit class describes how an edit changed a lexer's tokens: the tokens from
+ * getFirstIndex() up to getFirstIndex() + getRemovedCount() were replaced by
+ * getInsertedCount() new tokens. Every token after them is unchanged apart from its
+ * offset and line number.
+ */
+public class TokenEdit {
+    private int firstIndex;
+    private int removedCount;
+    private int insertedCount;
+
+    // constructor to initialize the replaced token range
+    public TokenEdit(int firstIndex, int removedCount, int insertedCount) {
+        this.firstIndex = firstIndex;
+        this.removedCount = removedCount;
+        this.insertedCount = insertedCount;
+    }
+
+    // getter for the index of the first replaced token
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    // getter for the number of old tokens that were removed
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    // getter for the number of new tokens that took their place
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+
+    // toString method to return the string representation of the TokenEdit object
+    @Override
+    public String toString() {
+        return "TokenEdit{" + "firstIndex=" + firstIndex + ", removedCount=" + removedCount + ", insertedCount=" + insertedCount + '}';
+    }
+}
@@ -0,0 +1,329 @@
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+/**
+ * The TokenStream class is a pull-style view of the lexer. Instead of filling a list,
+ * it scans one token at a time from a CharSequence on each call to next() or peek().
+ * A stream over a whole file keeps multi-line comments intact, and when the file is
+ * memory-mapped the source is never copied onto the heap.
+ */
+public class TokenStream {
+    private final Lexer lexer;
+    private final InternPool internPool;
+    private final CharSequence input;
+    private final int length;
+    private int current;
+    private int lineNumber;
+    private Token lookahead;
+    private Token.Type tokenType;
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenLine;
+
+    /**
+     * The constructor creates a stream over the input using the keywords and punctuation
+     * registered on the lexer.
+     *
+     * @param lexer - The lexer that holds the keyword and punctuation tables
+     * @param input - The characters to scan
+     * @param lineNumber - The line number of the first character
+     */
+    public TokenStream(Lexer lexer, CharSequence input, int lineNumber) {
+        this(lexer, input, 0, input.length(), lineNumber);
+    }
+
+    /**
+     * The constructor creates a stream over part of the input. Offsets reported by the
+     * stream are offsets into the whole input.
+     *
+     * @param lexer - The lexer that holds the keyword and punctuation tables
+     * @param input - The characters to scan
+     * @param from - The offset of the first character to scan
+     * @param to - One past the offset of the last character to scan
+     * @param lineNumber - The line number of the first character
+     */
+    public TokenStream(Lexer lexer, CharSequence input, int from, int to, int lineNumber) {
+        this(lexer, lexer.internPool(), input, from, to, lineNumber);
+    }
+
+    // Creates a stream that classifies words with its own intern pool, so streams can run on separate threads
+    TokenStream(Lexer lexer, InternPool internPool, CharSequence input, int from, int to, int lineNumber) {
+        this.lexer = lexer;
+        this.internPool = internPool;
+        this.input = input;
+        this.length = to;
+        this.current = from;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * This method memory-maps a source file and returns a stream over it using a default lexer.
+     *
+     * @param path - The file to lex
+     * @return TokenStream - A stream over the mapped file
+     * @throws IOException
+     */
+    public static TokenStream open(Path path) throws IOException {
+        return open(new Lexer(), path);
+    }
+
+    /**
+     * This method memory-maps a source file and returns a stream over it. The mapping
+     * stays valid after the channel is closed and is released when the stream is collected.
+     *
+     * @param lexer - The lexer that holds the keyword and punctuation tables
+     * @param path - The file to lex
+     * @return TokenStream - A stream over the mapped file
+     * @throws IOException
+     */
+    public static TokenStream open(Lexer lexer, Path path) throws IOException {
+        return new TokenStream(lexer, MappedSource.map(path), 1);
+    }
+
+    /**
+     * This method returns true if there is at least one more token in the input.
+     *
+     * @return boolean - Whether another token is available
+     * @throws SyntaxErrorException
+     */
+    public boolean hasNext() throws SyntaxErrorException {
+        return peek() != null;
+    }
+
+    /**
+     * This method returns the next token without consuming it, or null at the end of input.
+     *
+     * @return Token - The next token
+     * @throws SyntaxErrorException
+     */
+    public Token peek() throws SyntaxErrorException {
+        if (lookahead == null) {
+            lookahead = scan();
+        }
+        return lookahead;
+    }
+
+    /**
+     * This method consumes and returns the next token.
+     *
+     * @return Token - The next token
+     * @throws SyntaxErrorException
+     */
+    public Token next() throws SyntaxErrorException {
+        Token token = peek();
+        if (token == null) {
+            throw new NoSuchElementException("No more tokens at line " + lineNumber);
+        }
+        lookahead = null;
+        return token;
+    }
+
+    /**
+     * This method returns the line number the scanner has reached.
+     *
+     * @return int - The current line number
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    // Returns the text between start and end, decoding mapped bytes as UTF-8
+    private String text(int start, int end) {
+        if (input instanceof MappedSource) {
+            return ((MappedSource) input).decode(start, end);
+        }
+        return input.subSequence(start, end).toString();
+    }
+
+    // Builds a Token for the token under the cursor
+    private Token materialize() {
+        String value;
+        switch (tokenType) {
+            case NUMBER:
+            case STRINGLITERAL:
+            case CHARACTERLITERAL:
+                value = text(tokenStart, tokenEnd);
+                break;
+            default:
+                value = internPool.value(internPool.intern(input, tokenStart, tokenEnd));
+        }
+        return new Token(tokenType, value, tokenLine);
+    }
+
+    // Scans forward to the next token and returns null at the end of input
+    private Token scan() throws SyntaxErrorException {
+        return advance() ? materialize() : null;
+    }
+
+    // getter for the type of the token under the cursor
+    Token.Type tokenType() {
+        return tokenType;
+    }
+
+    // getter for the start offset of the token under the cursor
+    int tokenStart() {
+        return tokenStart;
+    }
+
+    // getter for the end offset of the token under the cursor
+    int tokenEnd() {
+        return tokenEnd;
+    }
+
+    // getter for the line number of the token under the cursor
+    int tokenLine() {
+        return tokenLine;
+    }
+
+    /**
+     * This method moves the cursor to the next token, skipping whitespace and comments,
+     * without allocating. Each character is dispatched on its class from the lexer's
+     * character table. The token is read through tokenType(), tokenStart(), tokenEnd()
+     * and tokenLine(). It must not be mixed with peek() and next() on the same stream.
+     *
+     * @return boolean - False at the end of input
+     * @throws SyntaxErrorException
+     */
+    boolean advance() throws SyntaxErrorException {
+        int start = current;
+
+        // Loop through each character until a token is produced, dispatching on its class
+        while (current < length) {
+            char c = input.charAt(current);
+            switch (lexer.charClass(c)) {
+
+                // A letter starts a keyword or a variable name
+                case CharClass.LETTER:
+                    do {
+                        current++;
+                    } while (current < length && lexer.charClass(input.charAt(current)) == CharClass.LETTER);
+
+                    // Determine if the word is a keyword or a variable name without building a substring
+                    return token(internPool.type(internPool.intern(input, start, current)), start, current, lineNumber);
+
+                // A digit or a period starts a number
+                case CharClass.DIGIT:
+                    do {
+                        current++;
+                    } while (current < length && lexer.charClass(input.charAt(current)) == CharClass.DIGIT);
+                    return token(Token.Type.NUMBER, start, current, lineNumber);
+
+                // Punctuation is two characters when the pair is registered, and one otherwise
+                case CharClass.PUNCTUATION: {
+                    current++;
+                    Token.Type type = current < length ? lexer.punctuationType(c, input.charAt(current)) : null;
+                    if (type != null) {
+                        current++;
+                    } else {
+                        type = lexer.punctuationType(c);
+                        if (type == null) {
+                            throw new SyntaxErrorException("Invalid character '" + c + "' at line " + lineNumber, lineNumber);
+                        }
+                    }
+                    return token(type, start, current, lineNumber);
+                }
+
+                // A double-quote starts a string literal
+                case CharClass.QUOTE: {
+                    int literalLine = lineNumber;
+                    start = ++current;
+
+                    // Continue looping until the closing double-quote is found, counting any lines it spans
+                    while (current < length && input.charAt(current) != '"') {
+                        if (input.charAt(current) == '\n') {
+                            lineNumber++;
+                        }
+                        current++;
+                    }
+
+                    // If the closing double-quote was not found, then the string literal is invalid
+                    if (current >= length) {
+                        throw new SyntaxErrorException("Invalid character literal at line " + literalLine, literalLine);
+                    }
+                    current++;
+                    return token(Token.Type.STRINGLITERAL, start, current - 1, literalLine);
+                }
+
+                case CharClass.APOSTROPHE:
+                    current++;
+                    if (current >= length || input.charAt(current) == '\'') {
+                        throw new SyntaxErrorException("Invalid character literal at line " + lineNumber, lineNumber);
+                    }
+                    start = current;
+                    current++;
+                    if (current >= length || input.charAt(current) != '\'') {
+                        throw new SyntaxErrorException("Invalid character literal at line " + lineNumber, lineNumber);
+                    }
+                    current++;
+                    return token(Token.Type.CHARACTERLITERAL, start, start + 1, lineNumber);
+
+                case CharClass.HASH:
+                    current = skipLine(current);
+                    break;
+
+                case CharClass.NEWLINE:
+                    lineNumber++;
+                    current++;
+                    break;
+
+                case CharClass.WHITESPACE:
+                    current++;
+                    break;
+
+                case CharClass.SLASH:
+                    if (current + 1 < length && input.charAt(current + 1) == '/') {
+                        current = skipLine(current);
+                        break;
+                    } else if (current + 1 < length && input.charAt(current + 1) == '*') {
+                        current = skipBlockComment(current + 2);
+                        break;
+                    } else if (lexer.punctuationType(c) != null) {
+                        current++;
+                        return token(lexer.punctuationType(c), start, current, lineNumber);
+                    }
+                    throw new SyntaxErrorException("Invalid character '" + c + "' at line " + lineNumber, lineNumber);
+
+                // If none of the above classes match, the character is invalid
+                default:
+                    throw new SyntaxErrorException("Invalid character '" + c + "' at line " + lineNumber, lineNumber);
+            }
+            start = current;
+        }
+        return false;
+    }
+
+    // Returns the offset of the newline that ends the line containing position
+    private int skipLine(int position) {
+        while (position < length && input.charAt(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    // Returns the offset just past the "*/" that closes a multi-line comment, counting the lines it spans
+    private int skipBlockComment(int position) throws SyntaxErrorException {
+        while (position < length && (input.charAt(position) != '*' || (position + 1 < length && input.charAt(position + 1) != '/'))) {
+            if (input.charAt(position) == '\n') {
+                lineNumber++;
+            }
+            position++;
+        }
+
+        // If the closing "*/" was not found, then the multi-line comment is invalid
+        if (position + 1 >= length) {
+            throw new SyntaxErrorException("Unclosed multi-line comment at line " + lineNumber, lineNumber);
+        }
+        return position + 2;
+    }
+
+    // Records the token under the cursor
+    private boolean token(Token.Type type, int start, int end, int line) {
+        tokenType = type;
+        tokenStart = start;
+        tokenEnd = end;
+        tokenLine = line;
+        return true;
+    }
+}
@@ -0,0 +1,548 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The VariableResolver class assigns every parameter and local variable of a function a
+ * fixed slot in its frame, and records the slot used by each variable reference,
+ * assignment and for loop. The interpreter then keeps locals in an array indexed by
+ * slot instead of a map keyed by name, and an undefined variable is reported before
+ * the program runs instead of when the statement is reached.
+ *
+ * The resolver also builds the executable tree of every expression the interpreter
+ * evaluates, with each literal's value built once and each variable read bound to its
+ * slot. See ExecNode for how the trees specialize themselves as they run. Each call
+ * is bound to the function it names and to its arguments; see CallSite.
+ *
+ * Inside while and for loops, the resolver moves work that gives the same result in
+ * every iteration out of the body. A numeric expression that reads no variable the
+ * loop writes, and cannot fail, is computed once before the loop into a hidden slot
+ * of the frame, and the body reads the slot. It moves to the outermost loop it does
+ * not depend on. A for loop's variable times such a value becomes an induction
+ * variable: a hidden slot set once when the loop starts and advanced by the step
+ * after each iteration, so the body reads a sum instead of computing a product. The
+ * variables each loop writes come from SemanticAnalysis.writes. See LoopPlan.
+ */
+public class VariableResolver {
+    private final Map<FunctionNode, FrameLayout> layouts;
+    private final Map<Node, Integer> slots;
+    private final Map<Node, ExecRoot> executables;
+    private final Map<ForNode, ParallelPlan> parallelPlans;
+    private final Map<StatementNode, LoopPlan> loopPlans;
+    private final Map<FunctionCallNode, CallSite> callSites;
+    // The loops around the statement being resolved, outermost first
+    private final List<LoopScope> loops;
+    private Map<String, FunctionNode> functions;
+
+    public VariableResolver() {
+        layouts = new IdentityHashMap<>();
+        slots = new IdentityHashMap<>();
+        executables = new IdentityHashMap<>();
+        parallelPlans = new IdentityHashMap<>();
+        loopPlans = new IdentityHashMap<>();
+        callSites = new IdentityHashMap<>();
+        loops = new ArrayList<>();
+        functions = new HashMap<>();
+    }
+
+    // Resolves every function in the program
+    public void resolve(ProgramNode program) {
+        functions = new HashMap<>();
+        for (FunctionNode function : program.getFunctions()) {
+            functions.put(function.getName(), function);
+        }
+        for (FunctionNode function : program.getFunctions()) {
+            resolveFunction(function);
+        }
+    }
+
+    // Lays out the frame of a function and resolves every variable use in its body
+    public void resolveFunction(FunctionNode function) {
+        FrameLayout layout = FrameLayout.of(function);
+        layouts.put(function, layout);
+        resolveBlock(function.getStatements(), layout);
+    }
+
+    // getter for the frame layout of a resolved function
+    public FrameLayout getLayout(FunctionNode function) {
+        FrameLayout layout = layouts.get(function);
+        if (layout == null) {
+            throw new RuntimeException("Function was not resolved: " + function.getName());
+        }
+        return layout;
+    }
+
+    // getter for the slot of a resolved variable reference, assignment or for loop
+    public int getSlot(Node node) {
+        Integer slot = slots.get(node);
+        if (slot == null) {
+            throw new RuntimeException("Variable was not resolved: " + node);
+        }
+        return slot;
+    }
+
+    // getter for the executable tree of a resolved expression
+    public ExecRoot getExecutable(Node node) {
+        ExecRoot executable = executables.get(node);
+        if (executable == null) {
+            throw new RuntimeException("Expression was not resolved: " + node);
+        }
+        return executable;
+    }
+
+    // getter for the slots of a parallel for loop, or null if the loop is sequential
+    public ParallelPlan getParallelPlan(ForNode node) {
+        return parallelPlans.get(node);
+    }
+
+    // getter for the resolved call site of a function call
+    public CallSite getCallSite(FunctionCallNode call) {
+        CallSite site = callSites.get(call);
+        if (site == null) {
+            throw new RuntimeException("Call was not resolved: " + call.getFunctionName());
+        }
+        return site;
+    }
+
+    // getter for the work moved out of a while or for loop, or null if none was
+    public LoopPlan getLoopPlan(StatementNode loop) {
+        return loopPlans.get(loop);
+    }
+
+    // Resolves a block of statements
+    private void resolveBlock(List<StatementNode> statements, FrameLayout layout) {
+        for (StatementNode statement : statements) {
+            resolveStatement(statement, layout);
+        }
+    }
+
+    // Resolves the variables used by a statement
+    private void resolveStatement(StatementNode statement, FrameLayout layout) {
+        switch (NodeKind.of(statement)) {
+            case IF:
+                resolveIf((IfNode) statement, layout);
+                break;
+            case WHILE:
+                WhileNode whileNode = (WhileNode) statement;
+                // The condition runs every iteration, so it is resolved inside the loop
+                loops.add(new LoopScope(SemanticAnalysis.writes(whileNode.getStatements(), functions), null));
+                resolveExpression(whileNode.getCondition(), layout);
+                resolveBlock(whileNode.getStatements(), layout);
+                exitLoop(whileNode);
+                break;
+            case REPEAT:
+                resolveBlock(((RepeatNode) statement).getStatements(), layout);
+                break;
+            case FOR:
+                ForNode forNode = (ForNode) statement;
+                resolveExpression(forNode.getFrom(), layout);
+                resolveExpression(forNode.getTo(), layout);
+                slots.put(forNode, layout.require(forNode.getVariable()));
+                resolveParallel(forNode, layout);
+                // The loop variable changes every iteration, and is an induction variable unless the body writes it too
+                Set<String> written = SemanticAnalysis.writes(forNode.getStatements(), functions);
+                String induction = written.contains(forNode.getVariable()) ? null : forNode.getVariable();
+                written.add(forNode.getVariable());
+                loops.add(new LoopScope(written, induction));
+                resolveBlock(forNode.getStatements(), layout);
+                exitLoop(forNode);
+                break;
+            case ASSIGNMENT:
+                AssignmentNode assignment = (AssignmentNode) statement;
+                resolveExpression(assignment.getValue(), layout);
+                slots.put(assignment, layout.require(assignment.getVariable()));
+                break;
+            case FUNCTION_CALL:
+                resolveCall((FunctionCallNode) statement, layout);
+                break;
+            default:
+                throw new RuntimeException("Unknown statement type: " + statement.getClass().getName());
+        }
+    }
+
+    // Binds a call to the function it names and resolves its arguments
+    private void resolveCall(FunctionCallNode call, FrameLayout layout) {
+        FunctionNode target = functions.get(call.getFunctionName());
+        if (target == null) {
+            target = BuiltInFunctions.shared().get(call.getFunctionName());
+        }
+        List<Node> parameters = call.getParameters();
+        ExecRoot[] arguments = new ExecRoot[parameters.size()];
+        boolean[] copies = new boolean[parameters.size()];
+        int[] writeBackSlots = new int[parameters.size()];
+        for (int i = 0; i < parameters.size(); i++) {
+            Node argument = parameters.get(i);
+            // An argument that is an operation is passed as its own result, which the callee may change, so it
+            // is never a hoisted value; its operands may be
+            boolean operation = NodeKind.of(argument) == NodeKind.MATH_OP;
+            arguments[i] = new ExecRoot(operation ? buildMath((MathOpNode) argument, layout) : build(argument, layout));
+            executables.put(argument, arguments[i]);
+
+            // A variable passed to a var parameter is passed as its own value, so changes are seen by the caller;
+            // every other argument is a fresh copy. Every parameter of a built-in is treated as var.
+            boolean isVar = target != null && (target.isBuiltIn()
+                    || i < target.getParameters().size() && target.getParameters().get(i).isVar());
+            boolean variable = NodeKind.of(argument) == NodeKind.VARIABLE_REFERENCE;
+            copies[i] = !operation && !(isVar && variable);
+            writeBackSlots[i] = isVar && variable ? slots.get(argument) : -1;
+        }
+        callSites.put(call, new CallSite(call.getFunctionName(), target, arguments, copies, writeBackSlots));
+    }
+
+    // Records the slots of the loop variable and reduction variables of a parallel for loop
+    private void resolveParallel(ForNode node, FrameLayout layout) {
+        ParallelLoop parallel = ParallelLoop.of(node);
+        if (parallel == null) {
+            return;
+        }
+        Map<String, MathOpNode.Operation> reductions = parallel.getReductions();
+        int[] reductionSlots = new int[reductions.size()];
+        MathOpNode.Operation[] reductionOperations = new MathOpNode.Operation[reductions.size()];
+        int i = 0;
+        for (Map.Entry<String, MathOpNode.Operation> reduction : reductions.entrySet()) {
+            reductionSlots[i] = layout.require(reduction.getKey());
+            reductionOperations[i] = reduction.getValue();
+            i++;
+        }
+        // The other variables the body writes, whose final value is that of the last iteration to write them
+        List<Integer> writtenSlots = new ArrayList<>();
+        for (String name : SemanticAnalysis.writes(node.getStatements(), functions)) {
+            if (!reductions.containsKey(name)) {
+                writtenSlots.add(layout.require(name));
+            }
+        }
+        parallelPlans.put(node, new ParallelPlan(layout.require(node.getVariable()), reductionSlots, reductionOperations,
+                writtenSlots.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    // Resolves an if statement and the elsif and else branches that follow it
+    private void resolveIf(IfNode node, FrameLayout layout) {
+        resolveExpression(node.getCondition(), layout);
+        resolveBlock(node.getStatements(), layout);
+        if (node.getElsifBranch() != null) {
+            resolveIf(node.getElsifBranch(), layout);
+        } else if (node.getElseBranch() != null) {
+            resolveBlock(node.getElseBranch().getStatements(), layout);
+        }
+    }
+
+    // Resolves the variables read by an expression and builds its executable tree
+    private void resolveExpression(Node node, FrameLayout layout) {
+        executables.put(node, new ExecRoot(build(node, layout)));
+    }
+
+    // Builds the executable node of an expression, with its math and comparisons not yet specialized
+    private ExecNode build(Node node, FrameLayout layout) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return new IntLiteralNode(new IntegerDataType(((IntegerNode) node).getValue()));
+            case REAL:
+                return new RealLiteralNode(new RealDataType(((RealNode) node).getValue()));
+            case STRING:
+                return new ConstantNode(new StringDataType(((StringNode) node).getValue()));
+            case VARIABLE_REFERENCE:
+                int slot = layout.require(((VariableReferenceNode) node).getName());
+                slots.put(node, slot);
+                return new LocalReadNode(slot);
+            case MATH_OP:
+                ExecNode moved = hoist((MathOpNode) node, layout);
+                return moved != null ? moved : buildMath((MathOpNode) node, layout);
+            case BOOLEAN_COMPARE:
+                BooleanCompareNode compare = (BooleanCompareNode) node;
+                return new UninitializedCompareNode(compare.getComparisonType(), build(compare.getLeft(), layout), build(compare.getRight(), layout));
+            default:
+                throw new RuntimeException("Unknown expression type: " + node.getClass().getName());
+        }
+    }
+
+    private ExecNode buildMath(MathOpNode math, FrameLayout layout) {
+        return new UninitializedMathNode(math.getOp(), build(math.getLeft(), layout), build(math.getRight(), layout));
+    }
+
+    // Moves an operation out of the loops around it, returning the read of the hidden slot that holds its value, or
+    // null if it has to be computed where it is
+    private ExecNode hoist(MathOpNode math, FrameLayout layout) {
+        String type = numericType(math, layout);
+        if (loops.isEmpty() || type == null) {
+            return null;
+        }
+        // Loops only write more variables than the loops inside them, so the first loop it is invariant in is the outermost
+        for (int depth = 0; depth < loops.size(); depth++) {
+            if (readsNone(math, loops.get(depth).written)) {
+                int slot = layout.addHidden(type);
+                ExecNode value = buildOutside(depth, () -> buildMath(math, layout));
+                loops.get(depth).hoist(slot, new ExecRoot(value));
+                return new LocalReadNode(slot);
+            }
+        }
+        return induction(math, layout);
+    }
+
+    // Turns a for loop's variable times an integer invariant in the loop into an induction variable, or returns null
+    private ExecNode induction(MathOpNode math, FrameLayout layout) {
+        if (math.getOp() != MathOpNode.Operation.MULTIPLY || !"integer".equals(numericType(math, layout))) {
+            return null;
+        }
+        for (int depth = loops.size() - 1; depth >= 0; depth--) {
+            LoopScope loop = loops.get(depth);
+            if (loop.inductionVariable == null) {
+                continue;
+            }
+            Node step = isVariable(math.getLeft(), loop.inductionVariable) ? math.getRight()
+                    : isVariable(math.getRight(), loop.inductionVariable) ? math.getLeft() : null;
+            if (step != null && readsNone(step, loop.written)) {
+                int slot = layout.addHidden("integer");
+                ExecNode stepValue = buildOutside(depth + 1, () -> build(step, layout));
+                loop.induct(slot, new ExecRoot(stepValue));
+                return new LocalReadNode(slot);
+            }
+        }
+        return null;
+    }
+
+    // Builds an expression as if only the loops outside the given depth were around it
+    private ExecNode buildOutside(int depth, Supplier<ExecNode> builder) {
+        List<LoopScope> inner = new ArrayList<>(loops.subList(depth, loops.size()));
+        loops.subList(depth, loops.size()).clear();
+        try {
+            return builder.get();
+        } finally {
+            loops.addAll(inner);
+        }
+    }
+
+    // Records what was moved out of the innermost loop
+    private void exitLoop(StatementNode loop) {
+        LoopScope scope = loops.remove(loops.size() - 1);
+        if (!scope.hoistedSlots.isEmpty() || !scope.inductionSlots.isEmpty()) {
+            loopPlans.put(loop, scope.plan());
+        }
+    }
+
+    // Returns "integer" or "real" for an expression on numbers that cannot fail, or null for any other expression.
+    // An integer division or remainder can fail unless it is by a literal other than zero.
+    private static String numericType(Node node, FrameLayout layout) {
+        switch (NodeKind.of(node)) {
+            case INTEGER:
+                return "integer";
+            case REAL:
+                return "real";
+            case VARIABLE_REFERENCE:
+                String type = layout.getType(layout.require(((VariableReferenceNode) node).getName()));
+                return "integer".equalsIgnoreCase(type) ? "integer" : "real".equalsIgnoreCase(type) ? "real" : null;
+            case MATH_OP:
+                MathOpNode math = (MathOpNode) node;
+                String left = numericType(math.getLeft(), layout);
+                String right = numericType(math.getRight(), layout);
+                if (left == null || right == null) {
+                    return null;
+                }
+                if (!left.equals("integer") || !right.equals("integer")) {
+                    return "real";
+                }
+                boolean divides = math.getOp() == MathOpNode.Operation.DIVIDE || math.getOp() == MathOpNode.Operation.MODULO;
+                if (divides && !(math.getRight() instanceof IntegerNode && ((IntegerNode) math.getRight()).getValue() != 0)) {
+                    return null;
+                }
+                return "integer";
+            default:
+                return null;
+        }
+    }
+
+    // Returns whether an expression reads none of the given variables
+    private static boolean readsNone(Node node, Set<String> variables) {
+        switch (NodeKind.of(node)) {
+            case VARIABLE_REFERENCE:
+                return !variables.contains(((VariableReferenceNode) node).getName());
+            case MATH_OP:
+                return readsNone(((MathOpNode) node).getLeft(), variables) && readsNone(((MathOpNode) node).getRight(), variables);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isVariable(Node node, String name) {
+        return node instanceof VariableReferenceNode && ((VariableReferenceNode) node).getName().equals(name);
+    }
+
+    // LoopScope collects what is moved out of one loop while its body is resolved
+    private static final class LoopScope {
+        private final Set<String> written;
+        // The for loop variable that can drive induction variables, or null
+        private final String inductionVariable;
+        private final List<Integer> hoistedSlots = new ArrayList<>();
+        private final List<ExecRoot> hoisted = new ArrayList<>();
+        private final List<Integer> inductionSlots = new ArrayList<>();
+        private final List<ExecRoot> steps = new ArrayList<>();
+
+        LoopScope(Set<String> written, String inductionVariable) {
+            this.written = written;
+            this.inductionVariable = inductionVariable;
+        }
+
+        void hoist(int slot, ExecRoot value) {
+            hoistedSlots.add(slot);
+            hoisted.add(value);
+        }
+
+        void induct(int slot, ExecRoot step) {
+            inductionSlots.add(slot);
+            steps.add(step);
+        }
+
+        LoopPlan plan() {
+            return new LoopPlan(hoistedSlots.stream().mapToInt(Integer::intValue).toArray(), hoisted.toArray(new ExecRoot[0]),
+                    inductionSlots.stream().mapToInt(Integer::intValue).toArray(), steps.toArray(new ExecRoot[0]));
+        }
+    }
+}
+
+// FrameLayout maps the parameters and local variables of a function to frame slots.
+// Parameters take the first slots in declaration order, followed by the local variables.
+class FrameLayout {
+    private final List<String> names;
+    private final List<String> types;
+    private final Map<String, Integer> slots;
+    private final int parameterCount;
+
+    private FrameLayout(int parameterCount) {
+        this.names = new ArrayList<>();
+        this.types = new ArrayList<>();
+        this.slots = new HashMap<>();
+        this.parameterCount = parameterCount;
+    }
+
+    // Builds the layout of a function's parameters and local variables
+    public static FrameLayout of(FunctionNode function) {
+        List<VariableNode> parameters = function.getParameters() == null ? new ArrayList<>() : function.getParameters();
+        FrameLayout layout = new FrameLayout(parameters.size());
+        for (VariableNode parameter : parameters) {
+            layout.add(parameter);
+        }
+        if (function.getVariables() != null) {
+            for (VariableNode variable : function.getVariables()) {
+                layout.add(variable);
+            }
+        }
+        return layout;
+    }
+
+    // Adds a slot. A later declaration with the same name hides the earlier one.
+    private void add(VariableNode variable) {
+        slots.put(variable.getName(), names.size());
+        names.add(variable.getName());
+        types.add(variable.getType());
+    }
+
+    // Adds a slot no variable names, for a value the resolver keeps in the frame, and returns it
+    public int addHidden(String type) {
+        names.add("$" + names.size());
+        types.add(type);
+        return names.size() - 1;
+    }
+
+    // Returns the slot of a variable, or throws if the function does not declare it
+    public int require(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            throw new RuntimeException("Undefined variable: " + name);
+        }
+        return slot;
+    }
+
+    // getter for the number of slots in the frame
+    public int size() {
+        return names.size();
+    }
+
+    // getter for the number of parameter slots at the start of the frame
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    // getter for the name declared in a slot
+    public String getName(int slot) {
+        return names.get(slot);
+    }
+
+    // getter for the type declared in a slot
+    public String getType(int slot) {
+        return types.get(slot);
+    }
+}
+
+// LoopPlan holds the work the resolver moved out of a while or for loop. Hoisted values are computed into their
+// hidden slots once, before the first iteration. Each induction variable holds the loop variable times its step: it is
+// set when the loop starts and advanced by the step after every iteration. A step that turns out not to be an integer
+// at run time, as a real passed for an integer parameter can, falls back to computing the product in full.
+final class LoopPlan {
+    private final int[] hoistedSlots;
+    private final ExecRoot[] hoisted;
+    private final int[] inductionSlots;
+    private final ExecRoot[] steps;
+
+    LoopPlan(int[] hoistedSlots, ExecRoot[] hoisted, int[] inductionSlots, ExecRoot[] steps) {
+        this.hoistedSlots = hoistedSlots;
+        this.hoisted = hoisted;
+        this.inductionSlots = inductionSlots;
+        this.steps = steps;
+    }
+
+    // Computes the hoisted values, before the loop's first iteration
+    void enter(InterpreterDataType[] frame) {
+        for (int i = 0; i < hoistedSlots.length; i++) {
+            int slot = hoistedSlots[i];
+            try {
+                if (frame[slot] instanceof IntegerDataType) {
+                    ((IntegerDataType) frame[slot]).setValue(hoisted[i].executeInt(frame));
+                } else {
+                    ((RealDataType) frame[slot]).setValue(hoisted[i].executeReal(frame));
+                }
+            } catch (UnexpectedResultException e) {
+                frame[slot] = e.getResult();
+            }
+        }
+    }
+
+    // Sets the induction variables for the first iteration of a for loop
+    void start(InterpreterDataType[] frame, int first) {
+        for (int i = 0; i < inductionSlots.length; i++) {
+            try {
+                storeInt(frame, inductionSlots[i], first * steps[i].executeInt(frame));
+            } catch (UnexpectedResultException e) {
+                frame[inductionSlots[i]] = new IntegerDataType(first).performMathOperation(MathOpNode.Operation.MULTIPLY, e.getResult());
+            }
+        }
+    }
+
+    // Advances the induction variables to the next value of the loop variable
+    void advance(InterpreterDataType[] frame, int next) {
+        for (int i = 0; i < inductionSlots.length; i++) {
+            InterpreterDataType current = frame[inductionSlots[i]];
+            try {
+                int step = steps[i].executeInt(frame);
+                if (current instanceof IntegerDataType) {
+                    ((IntegerDataType) current).setValue(((IntegerDataType) current).getValue() + step);
+                    continue;
+                }
+                frame[inductionSlots[i]] = new IntegerDataType(next * step);
+            } catch (UnexpectedResultException e) {
+                frame[inductionSlots[i]] = new IntegerDataType(next).performMathOperation(MathOpNode.Operation.MULTIPLY, e.getResult());
+            }
+        }
+    }
+
+    private static void storeInt(InterpreterDataType[] frame, int slot, int value) {
+        if (frame[slot] instanceof IntegerDataType) {
+            ((IntegerDataType) frame[slot]).setValue(value);
+        } else {
+            frame[slot] = new IntegerDataType(value);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package shank.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Corpus class provides the Shank sources the benchmarks run on. Named programs are
+ * read from the corpus resources. Names of the form generated-&lt;n&gt;mb produce a source
+ * of about n megabytes built from the tokens the lexer accepts, for measuring lexer
+ * throughput on files too large to keep in the repository.
+ */
+final class Corpus {
+    private static final String GENERATED = "generated-";
+
+    private Corpus() {
+    }
+
+    // Returns the source of a corpus entry
+    static String load(String name) throws IOException {
+        if (name.startsWith(GENERATED) && name.endsWith("mb")) {
+            int megabytes = Integer.parseInt(name.substring(GENERATED.length(), name.length() - 2));
+            return generate(megabytes << 20);
+        }
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".shank")) {
+            if (in == null) {
+                throw new IOException("No corpus program named " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Builds a source of at least the given length that mixes every kind of token, comments and multi-line literals
+    static String generate(int length) {
+        StringBuilder source = new StringBuilder(length + 256);
+        for (int i = 0; source.length() < length; i++) {
+            source.append("define routine").append(i).append(" ( count : integer ; var total : real )\n");
+            source.append("    total : values [ ").append(i % 97).append(" ] ; ").append(i * 31 % 1000).append('.').append(i % 10).append('\n');
+            source.append("    label : \"entry ").append(i).append("\" ; 'x' ; '").append((char) ('a' + i % 26)).append("'\n");
+            source.append("    // line comment ").append(i).append('\n');
+            if (i % 8 == 0) {
+                source.append("    /* block comment\n       spanning lines */ \"text that\nspans two lines\"\n");
+            }
+        }
+        return source.toString();
+    }
+}
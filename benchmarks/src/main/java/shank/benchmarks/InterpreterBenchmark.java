@@ -0,0 +1,60 @@
+package shank.benchmarks;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures running whole programs on each execution engine. Each operation runs the
+ * program once, with its output discarded. The ast engine on the statement-heavy
+ * program shows the per-statement dispatch cost of the tree-walking interpreter, and
+ * the fib program, recursive fib(27), the cost of a user function call. The
+ * string-appends program builds a 200000 character string two characters at a time,
+ * which takes time linear in its length only if appending does not copy the string.
+ *
+ * A program the vm or jvm engine cannot compile fails in setup, so only the engines
+ * that really ran a program report results for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({ "numeric-loops", "recursion", "fib", "strings", "string-appends", "statement-heavy" })
+    public String corpus;
+
+    @Param({ "ast", "vm", "jvm" })
+    public String engine;
+
+    private Runnable program;
+    private PrintStream output;
+
+    @Setup
+    public void setup() throws Throwable {
+        output = ShankApi.silenceOutput();
+        program = ShankApi.prepare(ShankApi.parse(Corpus.load(corpus)), engine);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(output);
+    }
+
+    @Benchmark
+    public void executeProgram() {
+        program.run();
+    }
+}
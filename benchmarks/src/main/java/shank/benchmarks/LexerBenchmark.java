@@ -0,0 +1,69 @@
+package shank.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures lexing throughput. Each operation lexes a whole source; the tokens counter
+ * reports tokens per second alongside it. The sequential mode builds a Token for each
+ * token as a parser would read them, the advance mode only moves the stream's cursor,
+ * and the parallel mode fills a token buffer on several cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LexerBenchmark {
+    @Param({ "numeric-loops", "recursion", "strings", "statement-heavy", "generated-1mb", "generated-8mb" })
+    public String corpus;
+
+    @Param({ "sequential", "advance", "parallel" })
+    public String mode;
+
+    private String source;
+
+    @Setup
+    public void setup() throws Exception {
+        source = Corpus.load(corpus);
+    }
+
+    @Benchmark
+    public void lex(TokenCounter counter) throws Throwable {
+        switch (mode) {
+            case "advance":
+                counter.tokens += ShankApi.lexAdvance(source);
+                break;
+            case "parallel":
+                counter.tokens += ShankApi.lexParallel(source);
+                break;
+            default:
+                counter.tokens += ShankApi.lex(source);
+        }
+    }
+
+    // Counts the tokens lexed during an iteration
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TokenCounter {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package shank.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures semantic analysis on programs parsed once up front. Each operation checks a
+ * whole program; the nodes counter reports AST nodes analyzed per second alongside it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SemanticAnalysisBenchmark {
+    @Param({ "numeric-loops", "recursion", "strings", "statement-heavy" })
+    public String corpus;
+
+    private Object program;
+    private int nodes;
+
+    @Setup
+    public void setup() throws Throwable {
+        program = ShankApi.parse(Corpus.load(corpus));
+        nodes = ShankApi.countNodes(program);
+    }
+
+    @Benchmark
+    public void checkAssignments(NodeCounter counter) throws Throwable {
+        ShankApi.checkAssignments(program);
+        counter.nodes += nodes;
+    }
+
+    // Counts the AST nodes analyzed during an iteration
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class NodeCounter {
+        public long nodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            nodes = 0;
+        }
+    }
+}
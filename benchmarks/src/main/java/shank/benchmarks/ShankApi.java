@@ -0,0 +1,244 @@
+package shank.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ShankApi class gives the benchmarks access to the interpreter classes. Those
+ * classes are in the default package, which code in a named package cannot import,
+ * and JMH does not accept benchmarks in the default package. The constructors and
+ * methods are therefore bound once to method handles typed on Object, which the JIT
+ * inlines like direct calls. Both sides live in the unnamed module, which opens every
+ * package, so package-private types such as IrProgram can be reached as well.
+ */
+final class ShankApi {
+    private static final Class<?> LEXER = type("Lexer");
+    private static final Class<?> TOKEN_STREAM = type("TokenStream");
+    private static final Class<?> PARALLEL_LEXER = type("ParallelLexer");
+    private static final Class<?> TOKEN_BUFFER = type("TokenBuffer");
+    private static final Class<?> PARSER = type("Parser");
+    private static final Class<?> NODE = type("Node");
+    private static final Class<?> PROGRAM_NODE = type("ProgramNode");
+    private static final Class<?> SEMANTIC_ANALYSIS = type("SemanticAnalysis");
+    private static final Class<?> INTERPRETER = type("Interpreter");
+    private static final Class<?> BYTECODE_COMPILER = type("BytecodeCompiler");
+    private static final Class<?> IR_COMPILER = type("IrCompiler");
+    private static final Class<?> REGISTER_VM = type("RegisterVM");
+
+    private static final MethodHandle NEW_LEXER = constructor(LEXER);
+    private static final MethodHandle STREAM = method(LEXER, "stream", TOKEN_STREAM, CharSequence.class);
+    private static final MethodHandle HAS_NEXT = method(TOKEN_STREAM, "hasNext", boolean.class);
+    private static final MethodHandle NEXT = method(TOKEN_STREAM, "next", type("Token"));
+    private static final MethodHandle ADVANCE = method(TOKEN_STREAM, "advance", boolean.class);
+    private static final MethodHandle NEW_PARALLEL_LEXER = constructor(PARALLEL_LEXER, LEXER);
+    private static final MethodHandle PARALLEL_LEX = method(PARALLEL_LEXER, "lex", TOKEN_BUFFER, CharSequence.class);
+    private static final MethodHandle BUFFER_SIZE = method(TOKEN_BUFFER, "size", int.class);
+    private static final MethodHandle NEW_PARSER = constructor(PARSER, List.class);
+    private static final MethodHandle PARSE = method(PARSER, "parse", NODE);
+    private static final MethodHandle NEW_SEMANTIC_ANALYSIS = constructor(SEMANTIC_ANALYSIS);
+    private static final MethodHandle CHECK_ASSIGNMENTS = method(SEMANTIC_ANALYSIS, "checkAssignments", void.class, PROGRAM_NODE);
+    private static final MethodHandle NEW_INTERPRETER = constructor(INTERPRETER, PROGRAM_NODE);
+    private static final MethodHandle EXECUTE_PROGRAM = method(INTERPRETER, "executeProgram", void.class);
+    private static final MethodHandle NEW_BYTECODE_COMPILER = constructor(BYTECODE_COMPILER, PROGRAM_NODE);
+    private static final MethodHandle COMPILE_BYTECODE = method(BYTECODE_COMPILER, "compile", Runnable.class);
+    private static final MethodHandle NEW_IR_COMPILER = constructor(IR_COMPILER, PROGRAM_NODE);
+    private static final MethodHandle COMPILE_IR = method(IR_COMPILER, "compile", type("IrProgram"));
+    private static final MethodHandle NEW_REGISTER_VM = constructor(REGISTER_VM, type("IrProgram"));
+    private static final MethodHandle EXECUTE_VM = method(REGISTER_VM, "execute", void.class);
+    private static final MethodHandle FLUSH = staticMethod(type("ConsoleIO"), "flush");
+
+    private ShankApi() {
+    }
+
+    // Lexes a source with a TokenStream and returns the number of tokens
+    static int lex(CharSequence source) throws Throwable {
+        Object stream = STREAM.invokeExact(NEW_LEXER.invokeExact(), source);
+        int count = 0;
+        while ((boolean) HAS_NEXT.invokeExact(stream)) {
+            Object token = NEXT.invokeExact(stream);
+            if (token != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Lexes a source with TokenStream.advance, which builds no Token objects, and returns the number of tokens
+    static int lexAdvance(CharSequence source) throws Throwable {
+        Object stream = STREAM.invokeExact(NEW_LEXER.invokeExact(), source);
+        int count = 0;
+        while ((boolean) ADVANCE.invokeExact(stream)) {
+            count++;
+        }
+        return count;
+    }
+
+    // Lexes a source in parallel chunks and returns the number of tokens
+    static int lexParallel(CharSequence source) throws Throwable {
+        Object buffer = PARALLEL_LEX.invokeExact(NEW_PARALLEL_LEXER.invokeExact(NEW_LEXER.invokeExact()), source);
+        return (int) BUFFER_SIZE.invokeExact(buffer);
+    }
+
+    // Lexes and parses a source, returning the program node
+    static Object parse(CharSequence source) throws Throwable {
+        Object stream = STREAM.invokeExact(NEW_LEXER.invokeExact(), source);
+        List<Object> tokens = new ArrayList<>();
+        while ((boolean) HAS_NEXT.invokeExact(stream)) {
+            tokens.add(NEXT.invokeExact(stream));
+        }
+        return PARSE.invokeExact(NEW_PARSER.invokeExact((Object) tokens));
+    }
+
+    // Runs semantic analysis over a parsed program
+    static void checkAssignments(Object program) throws Throwable {
+        CHECK_ASSIGNMENTS.invokeExact(NEW_SEMANTIC_ANALYSIS.invokeExact(), program);
+    }
+
+    // Prepares a parsed program to run on the named engine, returning something that runs it once per call.
+    // Each run ends by flushing the console, as a program run by Shank does.
+    static Runnable prepare(Object program, String engine) throws Throwable {
+        switch (engine) {
+            case "ast":
+                Object interpreter = NEW_INTERPRETER.invokeExact(program);
+                return () -> {
+                    invoke(EXECUTE_PROGRAM, interpreter);
+                    flush();
+                };
+            case "vm":
+                Object vm = NEW_REGISTER_VM.invokeExact(COMPILE_IR.invokeExact(NEW_IR_COMPILER.invokeExact(program)));
+                return () -> {
+                    invoke(EXECUTE_VM, vm);
+                    flush();
+                };
+            case "jvm":
+                Runnable compiled = (Runnable) (Object) COMPILE_BYTECODE.invokeExact(NEW_BYTECODE_COMPILER.invokeExact(program));
+                return () -> {
+                    compiled.run();
+                    flush();
+                };
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    // Writes out the console output the interpreter has buffered
+    static void flush() {
+        try {
+            FLUSH.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Counts the AST nodes reachable from a node, following fields and collections
+    static int countNodes(Object root) throws IllegalAccessException {
+        Map<Object, Boolean> seen = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        int count = 0;
+        while (!pending.isEmpty()) {
+            Object current = pending.pop();
+            if (current == null || seen.put(current, Boolean.TRUE) != null) {
+                continue;
+            }
+            if (current instanceof Collection) {
+                for (Object element : (Collection<?>) current) {
+                    pending.push(element);
+                }
+                continue;
+            }
+            if (!NODE.isInstance(current)) {
+                continue;
+            }
+            count++;
+            for (Class<?> type = current.getClass(); type != null; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (!field.getType().isPrimitive() && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        pending.push(field.get(current));
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Replaces System.out with a stream that discards everything, returning the original
+    static PrintStream silenceOutput() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+
+    private static void invoke(MethodHandle handle, Object receiver) {
+        try {
+            handle.invokeExact(receiver);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Interpreter class not found: " + name, e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    // Binds a constructor, typed to return Object
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findConstructor(type, MethodType.methodType(void.class, parameters));
+            return handle.asType(MethodType.genericMethodType(parameters.length));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Interpreter constructor not found: " + type.getName(), e);
+        }
+    }
+
+    // Binds a static method that takes no arguments and returns nothing
+    private static MethodHandle staticMethod(Class<?> type, String name) {
+        try {
+            return lookup(type).findStatic(type, name, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Interpreter method not found: " + type.getName() + "." + name, e);
+        }
+    }
+
+    // Binds a method, typed on Object except for primitive and void results and CharSequence sources
+    private static MethodHandle method(Class<?> type, String name, Class<?> result, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findVirtual(type, name, MethodType.methodType(result, parameters));
+            MethodType generic = MethodType.genericMethodType(parameters.length + 1);
+            if (result.isPrimitive()) {
+                generic = generic.changeReturnType(result);
+            }
+            if (parameters.length == 1 && parameters[0] == CharSequence.class) {
+                generic = generic.changeParameterType(1, CharSequence.class);
+            }
+            return handle.asType(generic);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Interpreter method not found: " + type.getName() + "." + name, e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Creates arrays of each element type, on and off the heap, and checks their bounds,
+ * copies and text.
+ */
+class ArrayDataTypeTest {
+    @AfterEach
+    void keepArraysOnTheHeap() {
+        ArrayDataType.setOffHeapThreshold(Long.MAX_VALUE);
+    }
+
+    @Test
+    void indexesOutsideTheBoundsAreRejected() {
+        for (boolean direct : new boolean[] {false, true}) {
+            IntegerArrayDataType array = new IntegerArrayDataType(-2, 3, direct);
+            assertEquals(6, array.length());
+            array.setInt(-2, 7);
+            array.setInt(3, 9);
+            assertEquals(7, array.getInt(-2));
+            assertEquals(9, array.getInt(3));
+            assertThrows(RuntimeException.class, () -> array.getInt(-3));
+            assertThrows(RuntimeException.class, () -> array.getInt(4));
+            assertThrows(RuntimeException.class, () -> array.setInt(4, 1));
+        }
+        StringArrayDataType strings = new StringArrayDataType(1, 2);
+        assertThrows(RuntimeException.class, () -> strings.getString(0));
+        assertThrows(RuntimeException.class, () -> strings.setString(3, "x"));
+    }
+
+    @Test
+    void invalidBoundsAndElementTypesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ArrayDataType.of("integer", 5, 3));
+        assertThrows(IllegalArgumentException.class, () -> ArrayDataType.of("integer", Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> ArrayDataType.of("record", 1, 3));
+    }
+
+    @Test
+    void offHeapSizeIsCheckedWithoutOverflow() {
+        // 2^29 four-byte elements is 2 GiB, which overflows an int and cannot be one direct buffer
+        assertThrows(IllegalArgumentException.class, () -> ArrayDataType.allocate(1 << 29, Integer.BYTES));
+        assertThrows(IllegalArgumentException.class, () -> ArrayDataType.allocate(Integer.MAX_VALUE, 2));
+        assertEquals(16, ArrayDataType.allocate(4, Integer.BYTES).capacity());
+    }
+
+    @Test
+    void arraysOnEitherSideOfTheThresholdWork() {
+        // Three integers stay on the heap and four go off it
+        ArrayDataType.setOffHeapThreshold(16);
+        IntegerArrayDataType small = (IntegerArrayDataType) ArrayDataType.of("integer", 1, 3);
+        IntegerArrayDataType large = (IntegerArrayDataType) ArrayDataType.of("integer", 1, 4);
+        small.setInt(2, 5);
+        large.setInt(2, 5);
+        assertEquals(5, ((IntegerArrayDataType) small.copy()).getInt(2));
+        assertEquals(5, ((IntegerArrayDataType) large.copy()).getInt(2));
+    }
+
+    @Test
+    void integerArraysCopyAndAssignBetweenHeapAndOffHeap() {
+        for (boolean sourceDirect : new boolean[] {false, true}) {
+            for (boolean targetDirect : new boolean[] {false, true}) {
+                IntegerArrayDataType source = new IntegerArrayDataType(1, 3, sourceDirect);
+                source.setInt(1, 10);
+                source.setInt(2, 20);
+                source.setInt(3, 30);
+                IntegerArrayDataType target = new IntegerArrayDataType(1, 3, targetDirect);
+                target.assign(source);
+                assertEquals("[10, 20, 30]", target.toString());
+
+                IntegerArrayDataType copy = (IntegerArrayDataType) source.copy();
+                assertNotSame(source, copy);
+                // Copies and assigned arrays do not share their elements with the source
+                source.setInt(2, -1);
+                assertEquals(20, copy.getInt(2));
+                assertEquals(20, target.getInt(2));
+            }
+        }
+    }
+
+    @Test
+    void realArraysCopyAndAssignBetweenHeapAndOffHeap() {
+        for (boolean sourceDirect : new boolean[] {false, true}) {
+            for (boolean targetDirect : new boolean[] {false, true}) {
+                RealArrayDataType source = new RealArrayDataType(0, 1, sourceDirect);
+                source.setReal(0, 1.5f);
+                source.setReal(1, -2.25f);
+                RealArrayDataType target = new RealArrayDataType(0, 1, targetDirect);
+                target.assign(source);
+                assertEquals("[1.5, -2.25]", target.toString());
+                RealArrayDataType copy = (RealArrayDataType) source.copy();
+                source.setReal(0, 0f);
+                assertEquals(1.5f, copy.getReal(0));
+                assertEquals(1.5f, target.getReal(0));
+            }
+        }
+    }
+
+    @Test
+    void characterArraysStartAsSpacesAndCopy() {
+        for (boolean sourceDirect : new boolean[] {false, true}) {
+            for (boolean targetDirect : new boolean[] {false, true}) {
+                CharacterArrayDataType source = new CharacterArrayDataType(1, 3, sourceDirect);
+                assertEquals("[ ,  ,  ]", source.toString());
+                source.setCharacter(1, 'a');
+                source.setCharacter(3, 'c');
+                CharacterArrayDataType target = new CharacterArrayDataType(1, 3, targetDirect);
+                target.assign(source);
+                assertEquals("[a,  , c]", target.toString());
+                CharacterArrayDataType copy = (CharacterArrayDataType) source.copy();
+                source.setCharacter(1, 'z');
+                assertEquals('a', copy.getCharacter(1));
+                assertEquals('a', target.getCharacter(1));
+            }
+        }
+    }
+
+    @Test
+    void booleanArraysCopyAndAssignBetweenHeapAndOffHeap() {
+        for (boolean sourceDirect : new boolean[] {false, true}) {
+            for (boolean targetDirect : new boolean[] {false, true}) {
+                BooleanArrayDataType source = new BooleanArrayDataType(1, 2, sourceDirect);
+                source.setBoolean(2, true);
+                BooleanArrayDataType target = new BooleanArrayDataType(1, 2, targetDirect);
+                target.assign(source);
+                assertEquals("[false, true]", target.toString());
+                BooleanArrayDataType copy = (BooleanArrayDataType) source.copy();
+                source.setBoolean(2, false);
+                assertTrue(copy.getBoolean(2));
+                assertTrue(target.getBoolean(2));
+                assertFalse(copy.getBoolean(1));
+            }
+        }
+    }
+
+    @Test
+    void stringArraysCopyAndPrint() {
+        StringArrayDataType source = new StringArrayDataType(1, 2);
+        assertEquals("[, ]", source.toString());
+        source.setString(1, "one");
+        source.set(2, new StringDataType("two"));
+        StringArrayDataType copy = (StringArrayDataType) source.copy();
+        source.setString(1, "changed");
+        assertEquals("[one, two]", copy.toString());
+        assertEquals("two", copy.get(2).toString());
+    }
+
+    @Test
+    void elementsReadAndWriteAsValues() {
+        IntegerArrayDataType integers = new IntegerArrayDataType(1, 1, true);
+        integers.set(1, new IntegerDataType(4));
+        assertEquals("4", integers.get(1).toString());
+        RealArrayDataType reals = new RealArrayDataType(1, 1, false);
+        reals.set(1, new RealDataType(0.5f));
+        assertEquals("0.5", reals.get(1).toString());
+    }
+
+    @Test
+    void assigningAnotherShapeIsRejected() {
+        IntegerArrayDataType array = new IntegerArrayDataType(1, 3, false);
+        assertThrows(IllegalArgumentException.class, () -> array.assign(new IntegerArrayDataType(0, 2, false)));
+        assertThrows(IllegalArgumentException.class, () -> array.assign(new RealArrayDataType(1, 3, false)));
+        assertThrows(IllegalArgumentException.class, () -> array.fromString("1"));
+    }
+}
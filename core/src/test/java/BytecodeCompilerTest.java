@@ -0,0 +1,47 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compiles the programs of EnginePrograms to JVM bytecode and runs them, checking that
+ * they write what they write on the Interpreter, and that programs the compiler does
+ * not translate are refused so the caller can fall back to the Interpreter.
+ */
+class BytecodeCompilerTest {
+    private static final Consumer<ProgramNode> JVM = program -> new BytecodeCompiler(program).compile().run();
+
+    @Test
+    void integerArithmeticWrapsAround() {
+        assertEquals(EnginePrograms.WRAPAROUND_OUTPUT, EnginePrograms.assertSameOutput(EnginePrograms.integerWraparound(), JVM));
+    }
+
+    @Test
+    void realArithmeticRoundsToFloat() {
+        EnginePrograms.assertSameOutput(EnginePrograms.realRounding(), JVM);
+    }
+
+    @Test
+    void realBranchesOrderNanAndNegativeZeroLikeTheInterpreter() {
+        EnginePrograms.assertSameOutput(EnginePrograms.realBranches(), JVM);
+    }
+
+    @Test
+    void varArgumentsAreWrittenBack() {
+        assertEquals(EnginePrograms.normalize(EnginePrograms.run(EnginePrograms.varWriteBackResult(), EnginePrograms.INTERPRETER)),
+                EnginePrograms.assertSameOutput(EnginePrograms.varWriteBack(), JVM));
+    }
+
+    @Test
+    void programsTheCompilerDoesNotTranslateAreRefused() {
+        // Each of these runs on the interpreter, so a caller that falls back still runs it
+        for (ProgramNode program : EnginePrograms.unsupported()) {
+            assertThrows(UnsupportedOperationException.class, () -> new BytecodeCompiler(program).compile());
+            EnginePrograms.run(program, EnginePrograms.INTERPRETER);
+        }
+        assertThrows(UnsupportedOperationException.class, () -> new BytecodeCompiler(EnginePrograms.withoutStart()).compile());
+    }
+}
@@ -0,0 +1,204 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hand-built programs that a compiled engine must run exactly as the Interpreter does,
+ * and programs it must refuse, shared by the tests of the BytecodeCompiler and the
+ * RegisterVM.
+ */
+final class EnginePrograms {
+    // Runs a program on the interpreter
+    static final Consumer<ProgramNode> INTERPRETER = program -> new Interpreter(program).executeProgram();
+
+    // What integerWraparound writes
+    static final String WRAPAROUND_OUTPUT = String.join("\n", "-2147483648", "2147483647", "1410065408", "-2147483648", "0",
+            "-2147483648", "");
+
+    private EnginePrograms() {
+    }
+
+    // Overflows each integer operation, and takes abs of the smallest integer, which is itself
+    static ProgramNode integerWraparound() {
+        return program(List.of(integer("a"), integer("b")),
+                assign("a", new IntegerNode(Integer.MAX_VALUE)),
+                assign("b", math(MathOpNode.Operation.ADD, variable("a"), new IntegerNode(1))),
+                write(variable("b")),
+                assign("b", math(MathOpNode.Operation.SUBTRACT, variable("b"), new IntegerNode(1))),
+                write(variable("b")),
+                assign("b", math(MathOpNode.Operation.MULTIPLY, new IntegerNode(100_000), new IntegerNode(100_000))),
+                write(variable("b")),
+                assign("a", new IntegerNode(Integer.MIN_VALUE)),
+                assign("b", math(MathOpNode.Operation.DIVIDE, variable("a"), new IntegerNode(-1))),
+                write(variable("b")),
+                assign("b", math(MathOpNode.Operation.MODULO, variable("a"), new IntegerNode(-1))),
+                write(variable("b")),
+                call("abs", variable("a")),
+                write(variable("a")));
+    }
+
+    // Real arithmetic and built-ins whose results drift from the interpreter's floats unless each step is rounded
+    static ProgramNode realRounding() {
+        return program(List.of(real("r"), real("s"), integer("i")),
+                assign("r", math(MathOpNode.Operation.ADD, new RealNode(0.1f), new RealNode(0.2f))),
+                write(variable("r")),
+                assign("r", math(MathOpNode.Operation.DIVIDE, new RealNode(1f), new RealNode(3f))),
+                write(variable("r")),
+                assign("s", new RealNode(1f)),
+                new ForNode("i", new IntegerNode(1), new IntegerNode(100), List.of(
+                        assign("s", math(MathOpNode.Operation.MULTIPLY, variable("s"), new RealNode(1.1f))),
+                        assign("s", math(MathOpNode.Operation.SUBTRACT, variable("s"), new RealNode(0.01f))))),
+                write(variable("s")),
+                assign("r", math(MathOpNode.Operation.MODULO, variable("s"), new RealNode(0.7f))),
+                write(variable("r")),
+                call("sqr", variable("s")),
+                write(variable("s")),
+                call("exp", variable("r")),
+                write(variable("r")),
+                call("ln", variable("r")),
+                write(variable("r")));
+    }
+
+    // Compares NaN, zero and negative zero every way, writing 1 from the then branch when the condition holds and 0
+    // from the else branch when it does not, then runs a while loop whose NaN condition must not hold
+    static ProgramNode realBranches() {
+        List<StatementNode> statements = new ArrayList<>();
+        statements.add(assign("nan", math(MathOpNode.Operation.DIVIDE, new RealNode(0f), new RealNode(0f))));
+        statements.add(assign("zero", new RealNode(0f)));
+        statements.add(assign("negative", math(MathOpNode.Operation.MULTIPLY, new RealNode(0f), new RealNode(-1f))));
+        statements.add(assign("one", new RealNode(1f)));
+        String[][] pairs = {{"nan", "nan"}, {"nan", "one"}, {"one", "nan"}, {"negative", "zero"}, {"zero", "negative"},
+            {"negative", "negative"}};
+        for (String[] pair : pairs) {
+            for (BooleanCompareNode.ComparisonType type : BooleanCompareNode.ComparisonType.values()) {
+                statements.add(new IfNode(compare(type, variable(pair[0]), variable(pair[1])),
+                        List.of(write(new IntegerNode(1))), null, new ElseNode(List.of(write(new IntegerNode(0))))));
+            }
+        }
+        statements.add(assign("count", new IntegerNode(0)));
+        statements.add(new WhileNode(compare(BooleanCompareNode.ComparisonType.LESS_THAN, variable("nan"), variable("one")),
+                List.of(assign("count", math(MathOpNode.Operation.ADD, variable("count"), new IntegerNode(1))),
+                        assign("nan", new RealNode(2f)))));
+        statements.add(write(variable("count")));
+        return program(List.of(real("nan"), real("zero"), real("negative"), real("one"), integer("count")),
+                statements.toArray(new StatementNode[0]));
+    }
+
+    // swap exchanges its var parameters; twice passes its own var parameter on, so the write comes back through two
+    // calls; keep does not write its var parameter, which must leave the caller's value as it was. The program writes
+    // what varWriteBackResult writes.
+    static ProgramNode varWriteBack() {
+        FunctionNode swap = new FunctionNode("swap",
+                List.of(new VariableNode("a", "integer", true), new VariableNode("b", "integer", true)),
+                List.of(integer("t")),
+                List.of(assign("t", variable("a")), assign("a", variable("b")), assign("b", variable("t"))), null);
+        FunctionNode halve = new FunctionNode("halve", List.of(new VariableNode("r", "real", true)), new ArrayList<>(),
+                List.of(assign("r", math(MathOpNode.Operation.DIVIDE, variable("r"), new RealNode(2f)))), null);
+        FunctionNode twice = new FunctionNode("twice", List.of(new VariableNode("r", "real", true)), new ArrayList<>(),
+                List.of(call("halve", variable("r")), call("halve", variable("r"))), null);
+        FunctionNode keep = new FunctionNode("keep",
+                List.of(new VariableNode("x", "integer", false), new VariableNode("y", "integer", true)), new ArrayList<>(),
+                List.of(assign("x", math(MathOpNode.Operation.ADD, variable("x"), variable("y")))), null);
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(), List.of(integer("x"), integer("y"), real("r")),
+                List.of(assign("x", new IntegerNode(1)), assign("y", new IntegerNode(2)), assign("r", new RealNode(3f)),
+                        call("swap", variable("x"), variable("y")),
+                        call("twice", variable("r")),
+                        call("keep", variable("x"), variable("y")),
+                        call("writeln", variable("x"), variable("y"), variable("r"))), null);
+        return new ProgramNode(List.of(swap, halve, twice, keep, start));
+    }
+
+    static ProgramNode varWriteBackResult() {
+        return program(new ArrayList<>(), call("writeln", new IntegerNode(2), new IntegerNode(1), new RealNode(0.75f)));
+    }
+
+    // Programs the interpreter runs and the compiled engines do not cover: a string variable, a string comparison,
+    // mixed integer and real arithmetic, and an expression passed for a var parameter
+    static List<ProgramNode> unsupported() {
+        return List.of(
+                program(List.of(new VariableNode("s", "string", false)),
+                        assign("s", new StringNode("text")), write(variable("s"))),
+                program(List.of(integer("i")),
+                        new IfNode(compare(BooleanCompareNode.ComparisonType.LESS_THAN, new StringNode("a"), new StringNode("b")),
+                                List.of(write(new IntegerNode(1))), null, null)),
+                program(List.of(integer("i"), real("r")),
+                        assign("i", new IntegerNode(1)), assign("r", math(MathOpNode.Operation.ADD, variable("i"), new RealNode(1f))),
+                        write(variable("r"))),
+                new ProgramNode(List.of(
+                        new FunctionNode("bump", List.of(new VariableNode("n", "integer", true)), new ArrayList<>(),
+                                List.of(assign("n", math(MathOpNode.Operation.ADD, variable("n"), new IntegerNode(1)))), null),
+                        new FunctionNode("start", new ArrayList<>(), new ArrayList<>(),
+                                List.of(call("bump", math(MathOpNode.Operation.ADD, new IntegerNode(1), new IntegerNode(2)))), null))));
+    }
+
+    // A program with no start function
+    static ProgramNode withoutStart() {
+        return new ProgramNode(List.of(new FunctionNode("main", new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), null)));
+    }
+
+    // Runs a program on the interpreter and on an engine, checking that both write the same, and returns what they
+    // wrote with line endings and trailing spaces normalized
+    static String assertSameOutput(ProgramNode program, Consumer<ProgramNode> engine) {
+        String expected = run(program, INTERPRETER);
+        assertEquals(expected, run(program, engine));
+        return normalize(expected);
+    }
+
+    // Runs a program on an engine in a session of its own, returning what it wrote
+    static String run(ProgramNode program, Consumer<ProgramNode> engine) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(new byte[0])), true);
+        session.run(() -> {
+            engine.accept(program);
+            ConsoleIO.flush();
+        });
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    static String normalize(String output) {
+        return output.replace("\r", "").replaceAll(" +\n", "\n");
+    }
+
+    // A program whose start function has the given locals and statements
+    private static ProgramNode program(List<VariableNode> locals, StatementNode... statements) {
+        return new ProgramNode(List.of(new FunctionNode("start", new ArrayList<>(), locals, List.of(statements), null)));
+    }
+
+    private static VariableNode integer(String name) {
+        return new VariableNode(name, "integer", false);
+    }
+
+    private static VariableNode real(String name) {
+        return new VariableNode(name, "real", false);
+    }
+
+    private static AssignmentNode assign(String name, ExpressionNode value) {
+        return new AssignmentNode(name, value);
+    }
+
+    private static FunctionCallNode write(Node value) {
+        return call("writeln", value);
+    }
+
+    private static FunctionCallNode call(String name, Node... arguments) {
+        return new FunctionCallNode(name, List.of(arguments));
+    }
+
+    private static VariableReferenceNode variable(String name) {
+        return new VariableReferenceNode(name);
+    }
+
+    private static MathOpNode math(MathOpNode.Operation operation, Node left, Node right) {
+        return new MathOpNode(operation, left, right);
+    }
+
+    private static BooleanCompareNode compare(BooleanCompareNode.ComparisonType type, Node left, Node right) {
+        return new BooleanCompareNode(type, left, right);
+    }
+}
@@ -0,0 +1,56 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs specialized math and comparison nodes on operands that change type after the
+ * node was specialized.
+ */
+class ExecNodeTest {
+    // Returns a tree that adds the variables in slots 0 and 1
+    private static ExecRoot add() {
+        return new ExecRoot(new UninitializedMathNode(MathOpNode.Operation.ADD, new LocalReadNode(0), new LocalReadNode(1)));
+    }
+
+    // Returns a tree that tests whether the variable in slot 0 is less than the one in slot 1
+    private static ExecRoot lessThan() {
+        return new ExecRoot(new UninitializedCompareNode(BooleanCompareNode.ComparisonType.LESS_THAN, new LocalReadNode(0), new LocalReadNode(1)));
+    }
+
+    @Test
+    void realAddKeepsAnIntegerLeftOperand() {
+        ExecRoot root = add();
+        InterpreterDataType[] frame = { new IntegerDataType(3), new RealDataType(1.5f) };
+        assertEquals("4.5", root.execute(frame).toString());
+        frame[1] = new StringDataType("abc");
+        assertEquals("3abc", root.execute(frame).toString());
+    }
+
+    @Test
+    void realAddGivesAnIntegerForTwoIntegers() {
+        ExecRoot root = add();
+        InterpreterDataType[] frame = { new RealDataType(2.5f), new IntegerDataType(7) };
+        assertEquals("9.5", root.execute(frame).toString());
+        frame[0] = new IntegerDataType(16777217);
+        InterpreterDataType sum = root.execute(frame);
+        assertTrue(sum instanceof IntegerDataType);
+        assertEquals(16777224, ((IntegerDataType) sum).getValue());
+    }
+
+    @Test
+    void realCompareComparesTwoIntegersExactly() {
+        ExecRoot root = lessThan();
+        InterpreterDataType[] frame = { new RealDataType(1.0f), new IntegerDataType(2) };
+        assertTrue(root.executeBoolean(frame));
+        // Both round to the same float
+        frame[0] = new IntegerDataType(16777216);
+        frame[1] = new IntegerDataType(16777217);
+        assertTrue(root.executeBoolean(frame));
+        frame[0] = new IntegerDataType(16777217);
+        frame[1] = new RealDataType(1.0f);
+        assertFalse(root.executeBoolean(frame));
+    }
+}
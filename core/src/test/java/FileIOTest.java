@@ -0,0 +1,109 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Reads and writes files through FileIO, in sessions of their own.
+ */
+class FileIOTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesAndReadsLines() throws IOException {
+        Path path = directory.resolve("lines.txt");
+        inSession(true, () -> {
+            int handle = FileIO.open(path.toString(), "write");
+            FileIO.write(handle, "first\nsecond");
+            FileIO.close(handle);
+            handle = FileIO.open(path.toString(), "read");
+            assertEquals("first", FileIO.readLine(handle));
+            assertEquals("second", FileIO.readLine(handle));
+            assertEquals(null, FileIO.readLine(handle));
+            FileIO.close(handle);
+        });
+        assertEquals("first\nsecond", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void recordsEndOnCharacterBoundaries() throws IOException {
+        Path path = directory.resolve("records.txt");
+        Files.write(path, "a\u00e9bc\u20ac".getBytes(StandardCharsets.UTF_8));
+        inSession(true, () -> {
+            int handle = FileIO.open(path.toString(), "read");
+            // The two bytes of the accented e do not fit after the a
+            assertEquals("a", FileIO.readRecord(handle, 2));
+            assertEquals("\u00e9", FileIO.readRecord(handle, 2));
+            assertEquals("bc", FileIO.readRecord(handle, 2));
+            // The three bytes of the euro sign are read whole, as the record's only character
+            assertEquals("\u20ac", FileIO.readRecord(handle, 2));
+            assertEquals(null, FileIO.readRecord(handle, 2));
+            FileIO.close(handle);
+        });
+    }
+
+    @Test
+    void lineAfterRecordKeepsLeftoverBytes() throws IOException {
+        Path path = directory.resolve("mixed.txt");
+        Files.write(path, "ab\u00e9d\nnext".getBytes(StandardCharsets.UTF_8));
+        inSession(true, () -> {
+            int handle = FileIO.open(path.toString(), "read");
+            assertEquals("ab", FileIO.readRecord(handle, 3));
+            assertEquals("\u00e9d", FileIO.readLine(handle));
+            assertEquals("next", FileIO.readLine(handle));
+            FileIO.close(handle);
+        });
+    }
+
+    @Test
+    void closeAllClosesEveryFileWhenOneFails() throws IOException {
+        // Writes to /dev/full fail, so closing a file on it fails when the buffer is written out
+        if (!Files.exists(Paths.get("/dev/full"))) {
+            return;
+        }
+        Path path = directory.resolve("kept.txt");
+        inSession(true, () -> {
+            int full = FileIO.open("/dev/full", "write");
+            FileIO.write(full, "lost");
+            int handle = FileIO.open(path.toString(), "write");
+            FileIO.write(handle, "kept");
+            assertThrows(UncheckedIOException.class, FileIO::closeAll);
+            // Already closed by closeAll, not left for the session to close
+            assertThrows(IllegalArgumentException.class, () -> FileIO.close(handle));
+        });
+        assertEquals("kept", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void sessionWithoutFileAccessRefusesToOpen() throws IOException {
+        Path path = directory.resolve("secret.txt");
+        Files.write(path, "secret".getBytes(StandardCharsets.UTF_8));
+        inSession(false, () -> {
+            assertThrows(UnsupportedOperationException.class, () -> FileIO.open(path.toString(), "read"));
+            assertThrows(UnsupportedOperationException.class, () -> FileIO.open(path.toString(), "write"));
+        });
+        assertEquals("secret", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    // Runs a task in a new session, closing whatever files it leaves open
+    private static void inSession(boolean fileAccess, Runnable task) {
+        Session session = new Session(new ConsoleIO(null, null), fileAccess);
+        session.run(() -> {
+            try {
+                task.run();
+            } finally {
+                FileIO.closeAll();
+            }
+        });
+    }
+}
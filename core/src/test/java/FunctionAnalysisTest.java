@@ -0,0 +1,162 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks which functions FunctionAnalysis finds memoizable and which calls it finds
+ * to be self tail calls, and runs memoized programs against the plain interpreter.
+ */
+class FunctionAnalysisTest {
+    @Test
+    void pureFunctionsWithScalarParametersAreMemoizable() {
+        FunctionNode square = function("square", parameters("x", "y"), new ArrayList<>(),
+                assign("y", math(MathOpNode.Operation.MULTIPLY, variable("x"), variable("x"))));
+        FunctionNode root = function("root", parameters("x", "y"), new ArrayList<>(),
+                call("sqr", variable("x"), variable("y")));
+        // fact calls itself, which does not stop it being pure
+        FunctionNode fact = function("fact", parameters("n", "r"), new ArrayList<>(),
+                new IfNode(compare(BooleanCompareNode.ComparisonType.GREATER_THAN, variable("n"), new IntegerNode(1)),
+                        List.of(call("fact", math(MathOpNode.Operation.SUBTRACT, variable("n"), new IntegerNode(1)), variable("r")),
+                                assign("r", math(MathOpNode.Operation.MULTIPLY, variable("r"), variable("n")))),
+                        null, new ElseNode(List.of(assign("r", new IntegerNode(1))))));
+        FunctionNode chatty = function("chatty", parameters("x", "y"), new ArrayList<>(),
+                call("write", variable("x")), assign("y", variable("x")));
+        FunctionNode wrapper = function("wrapper", parameters("x", "y"), new ArrayList<>(),
+                call("chatty", variable("x"), variable("y")));
+        FunctionNode reader = function("reader", parameters("x", "y"), new ArrayList<>(),
+                call("readFileLine", variable("x"), variable("y")));
+        // Pure, but an array cannot be part of a memo key
+        FunctionNode sum = function("sum", List.of(new VariableNode("values", "array of integer", false),
+                new VariableNode("total", "integer", true)), new ArrayList<>(), assign("total", new IntegerNode(0)));
+
+        FunctionAnalysis analysis = new FunctionAnalysis();
+        analysis.analyze(new ProgramNode(List.of(square, root, fact, chatty, wrapper, reader, sum)));
+        assertTrue(analysis.isMemoizable(square));
+        assertTrue(analysis.isMemoizable(root));
+        assertTrue(analysis.isMemoizable(fact));
+        assertFalse(analysis.isMemoizable(chatty));
+        assertFalse(analysis.isMemoizable(wrapper));
+        assertFalse(analysis.isMemoizable(reader));
+        assertFalse(analysis.isMemoizable(sum));
+    }
+
+    @Test
+    void onlySelfCallsInTailPositionWithTheirOwnVarParametersAreTailCalls() {
+        FunctionCallNode notLast = call("f", math(MathOpNode.Operation.SUBTRACT, variable("n"), new IntegerNode(1)), variable("acc"));
+        FunctionCallNode inElsif = call("f", new IntegerNode(0), variable("acc"));
+        FunctionCallNode otherVariable = call("f", new IntegerNode(0), variable("other"));
+        FunctionNode f = function("f", parameters("n", "acc"), List.of(new VariableNode("other", "integer", false)),
+                new IfNode(compare(BooleanCompareNode.ComparisonType.GREATER_THAN, variable("n"), new IntegerNode(0)),
+                        List.of(notLast, assign("acc", math(MathOpNode.Operation.ADD, variable("acc"), new IntegerNode(1)))),
+                        new IfNode(compare(BooleanCompareNode.ComparisonType.EQUAL, variable("n"), new IntegerNode(-1)),
+                                List.of(inElsif), null, new ElseNode(List.of(otherVariable))),
+                        null));
+        FunctionCallNode otherFunction = call("f", variable("n"), variable("acc"));
+        FunctionNode g = function("g", parameters("n", "acc"), new ArrayList<>(), otherFunction);
+        FunctionCallNode swapped = call("h", variable("b"), variable("a"));
+        FunctionNode h = function("h", List.of(new VariableNode("a", "integer", true), new VariableNode("b", "integer", true)),
+                new ArrayList<>(), swapped);
+        FunctionCallNode last = call("k", math(MathOpNode.Operation.SUBTRACT, variable("n"), new IntegerNode(1)), variable("acc"));
+        FunctionNode k = function("k", parameters("n", "acc"), new ArrayList<>(),
+                assign("acc", math(MathOpNode.Operation.ADD, variable("acc"), variable("n"))), last);
+
+        FunctionAnalysis analysis = new FunctionAnalysis();
+        analysis.analyze(new ProgramNode(List.of(f, g, h, k)));
+        assertFalse(analysis.isTailCall(notLast));
+        assertTrue(analysis.isTailCall(inElsif));
+        assertFalse(analysis.isTailCall(otherVariable));
+        assertFalse(analysis.isTailCall(otherFunction));
+        assertFalse(analysis.isTailCall(swapped));
+        assertTrue(analysis.isTailCall(last));
+    }
+
+    @Test
+    void memoHitsReplayVarResults() {
+        // Each call to square gets the same arguments, and the caller changes its result between calls, so a replayed
+        // result that shared its value with the caller would come back changed
+        FunctionNode square = function("square", parameters("x", "y"), new ArrayList<>(),
+                assign("y", math(MathOpNode.Operation.MULTIPLY, variable("x"), variable("x"))));
+        List<StatementNode> statements = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            statements.add(assign("y", new IntegerNode(0)));
+            statements.add(call("square", new IntegerNode(3), variable("y")));
+            statements.add(call("writeln", variable("y")));
+            statements.add(assign("y", math(MathOpNode.Operation.ADD, variable("y"), new IntegerNode(1))));
+        }
+        ProgramNode program = new ProgramNode(List.of(square, function("start", new ArrayList<>(),
+                List.of(new VariableNode("y", "integer", false)), statements.toArray(new StatementNode[0]))));
+
+        MemoTable memo = new MemoTable(16);
+        String memoized = run(program, memo);
+        assertEquals(run(program, null), memoized);
+        assertEquals("9\n9\n9\n", memoized.replace("\r", "").replaceAll(" +\n", "\n"));
+        assertEquals(2, memo.getHits());
+        assertEquals(1, memo.getMisses());
+    }
+
+    @Test
+    void impureCalleeIsNotMemoized() {
+        FunctionNode logged = function("logged", parameters("x", "y"), new ArrayList<>(),
+                call("write", variable("x")), assign("y", math(MathOpNode.Operation.MULTIPLY, variable("x"), variable("x"))));
+        ProgramNode program = new ProgramNode(List.of(logged, function("start", new ArrayList<>(),
+                List.of(new VariableNode("y", "integer", false)),
+                call("logged", new IntegerNode(4), variable("y")),
+                call("logged", new IntegerNode(4), variable("y")),
+                call("writeln", variable("y")))));
+
+        MemoTable memo = new MemoTable(16);
+        String memoized = run(program, memo);
+        // Both calls write, as they would without a memo table
+        assertEquals(run(program, null), memoized);
+        assertEquals(0, memo.getHits() + memo.getMisses());
+    }
+
+    // Runs a program in a session of its own, with a memo table unless it is null, returning what it wrote
+    private static String run(ProgramNode program, MemoTable memo) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(new byte[0])), true);
+        session.run(() -> {
+            (memo == null ? new Interpreter(program) : new Interpreter(program, memo)).executeProgram();
+            ConsoleIO.flush();
+        });
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    // The parameters (name; var result) of an integer function
+    private static List<VariableNode> parameters(String name, String result) {
+        return List.of(new VariableNode(name, "integer", false), new VariableNode(result, "integer", true));
+    }
+
+    private static FunctionNode function(String name, List<VariableNode> parameters, List<VariableNode> locals, StatementNode... statements) {
+        return new FunctionNode(name, parameters, locals, List.of(statements), null);
+    }
+
+    private static AssignmentNode assign(String name, ExpressionNode value) {
+        return new AssignmentNode(name, value);
+    }
+
+    private static FunctionCallNode call(String name, Node... arguments) {
+        return new FunctionCallNode(name, List.of(arguments));
+    }
+
+    private static VariableReferenceNode variable(String name) {
+        return new VariableReferenceNode(name);
+    }
+
+    private static MathOpNode math(MathOpNode.Operation operation, Node left, Node right) {
+        return new MathOpNode(operation, left, right);
+    }
+
+    private static BooleanCompareNode compare(BooleanCompareNode.ComparisonType type, Node left, Node right) {
+        return new BooleanCompareNode(type, left, right);
+    }
+}
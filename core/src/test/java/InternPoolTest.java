@@ -0,0 +1,64 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Interns words from strings and from memory-mapped bytes.
+ */
+class InternPoolTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void sameWordGetsTheSameSlot() {
+        InternPool pool = new InternPool();
+        String source = "count total count";
+        int first = pool.intern(source, 0, 5);
+        assertEquals(first, pool.intern(source, 12, 17));
+        assertNotEquals(first, pool.intern(source, 6, 11));
+        assertSame(pool.value(first), pool.value(pool.intern("count", 0, 5)));
+        assertEquals(Token.Type.WORD, pool.type(first));
+    }
+
+    @Test
+    void keywordsKeepTheirType() {
+        InternPool pool = new InternPool();
+        pool.define("while", Token.Type.WHILE);
+        assertEquals(Token.Type.WHILE, pool.type(pool.intern("do while", 3, 8)));
+    }
+
+    @Test
+    void mappedWordsAreMatchedOnTheirBytes() {
+        // ú is two bytes in UTF-8, each a letter when read as one char per byte
+        MappedSource source = new MappedSource(ByteBuffer.wrap("ú úú ú".getBytes(StandardCharsets.UTF_8)));
+        InternPool pool = new InternPool();
+        int first = pool.intern(source, 0, 2);
+        assertEquals(first, pool.intern(source, 8, 10));
+        assertEquals("ú", pool.value(first));
+        assertEquals("úú", pool.value(pool.intern(source, 3, 7)));
+        // The same word from a string is a different key, as its characters differ from the mapped bytes
+        assertNotEquals(first, pool.intern("ú", 0, 1));
+    }
+
+    @Test
+    void mappedFileTokensShareInternedWords() throws IOException, SyntaxErrorException {
+        Path path = directory.resolve("words.shank");
+        Files.write(path, "ú := ú + 1\n".getBytes(StandardCharsets.UTF_8));
+        TokenStream stream = TokenStream.open(path);
+        Token first = stream.next();
+        stream.next();
+        Token again = stream.next();
+        assertEquals("ú", first.getValue());
+        assertSame(first.getValue(), again.getValue());
+    }
+}
@@ -0,0 +1,124 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs parallel loops under a JobBudget, checking that they use the job's own threads
+ * and that the work done on those threads counts against the job's limits.
+ */
+class JobBudgetTest {
+    @Test
+    void parallelLoopRunsOnTheJobsThreads() throws InterruptedException {
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        try (JobBudget budget = new JobBudget(0, 0, 2)) {
+            budget.start();
+            int result = budget.invoke(new RecursiveTask<Integer>() {
+                @Override
+                protected Integer compute() {
+                    threads.add(Thread.currentThread());
+                    return 1;
+                }
+            });
+            assertEquals(1, result);
+        }
+        assertEquals(1, threads.size());
+        Thread worker = threads.iterator().next();
+        assertTrue(worker instanceof ForkJoinWorkerThread);
+        assertTrue(((ForkJoinWorkerThread) worker).getPool() != ForkJoinPool.commonPool());
+        // Closing the budget shuts its pool down
+        worker.join(10_000);
+        assertFalse(worker.isAlive());
+    }
+
+    @Test
+    void workersCountAgainstTheCpuLimit() {
+        // The owner runs only the first iteration; the rest of a long loop must be stopped by the workers' checks
+        ProgramNode program = loopProgram(50_000_000);
+        try (JobBudget budget = new JobBudget(200_000_000L, 0, 2)) {
+            budget.start();
+            long start = System.nanoTime();
+            assertThrows(JobLimitExceededException.class, () -> new Interpreter(program, budget).executeProgram());
+            assertTrue(System.nanoTime() - start < 20_000_000_000L, "the loop ran long past its limit");
+        }
+    }
+
+    @Test
+    void workersCountAgainstTheAllocationLimit() {
+        ProgramNode program = loopProgram(50_000_000);
+        try (JobBudget budget = new JobBudget(0, 1 << 20, 2)) {
+            budget.start();
+            assertThrows(JobLimitExceededException.class, () -> new Interpreter(program, budget).executeProgram());
+        }
+    }
+
+    @Test
+    void loopWithAnEmptyBodyIsStopped() {
+        // No statement runs inside the loop, so only its iterations count against the budget
+        ProgramNode program = program(List.of(), List.of(new WhileNode(always(), List.of())));
+        try (JobBudget budget = new JobBudget(200_000_000L, 0, 2)) {
+            budget.start();
+            assertThrows(JobLimitExceededException.class, () -> new Interpreter(program, budget).executeProgram());
+        }
+    }
+
+    @Test
+    void largeAppendIsStoppedBeforeItIsMade() {
+        // Doubling a string reaches gigabytes within a few dozen statements, far fewer than run between periodic checks
+        ProgramNode program = program(List.of(new VariableNode("text", "string", false)), List.of(
+                new AssignmentNode("text", new StringNode("x")),
+                new WhileNode(always(), List.of(new AssignmentNode("text", new MathOpNode(MathOpNode.Operation.ADD,
+                        new VariableReferenceNode("text"), new VariableReferenceNode("text")))))));
+        try (JobBudget budget = new JobBudget(0, 64 << 20, 2)) {
+            budget.start();
+            assertThrows(JobLimitExceededException.class, () -> new Interpreter(program, budget).executeProgram());
+        }
+        // Without a budget running on the thread, a large append is not checked
+        JobBudget.allocating(Long.MAX_VALUE);
+    }
+
+    @Test
+    void parallelismMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new JobBudget(0, 0, 0));
+    }
+
+    // A program whose start function has the given locals and statements
+    private static ProgramNode program(List<VariableNode> locals, List<StatementNode> statements) {
+        return new ProgramNode(List.of(new FunctionNode("start", new ArrayList<>(), locals, statements, null)));
+    }
+
+    private static BooleanCompareNode always() {
+        return new BooleanCompareNode(BooleanCompareNode.ComparisonType.LESS_THAN, new IntegerNode(0), new IntegerNode(1));
+    }
+
+    // A parallel loop that sums the lengths of strings it builds, so it both runs and allocates
+    private static ProgramNode loopProgram(int last) {
+        List<StatementNode> body = List.of(
+                new AssignmentNode("text", new MathOpNode(MathOpNode.Operation.ADD, new StringNode("x"), new StringNode("y"))),
+                new AssignmentNode("total", new MathOpNode(MathOpNode.Operation.ADD, new VariableReferenceNode("total"),
+                        new VariableReferenceNode("i"))));
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(last), body);
+        ParallelLoop.mark(loop, Map.of("total", MathOpNode.Operation.ADD));
+        List<VariableNode> locals = List.of(
+                new VariableNode("i", "integer", false),
+                new VariableNode("total", "integer", false),
+                new VariableNode("text", "string", false));
+        ProgramNode program = new ProgramNode(List.of(new FunctionNode("start", new ArrayList<>(), locals,
+                List.of(new AssignmentNode("total", new IntegerNode(0)), loop), null)));
+        new SemanticAnalysis().checkAssignments(program);
+        return program;
+    }
+}
@@ -0,0 +1,92 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Applies random edits with Lexer.applyEdit and checks after each one that the tokens
+ * are those a full lex of the edited text gives, errors included.
+ */
+class LexerEditTest {
+    // Insertions that can open or close literals and comments, or join and split tokens
+    private static final String[] INSERTIONS = {
+        "a", "9", " ", "\n", ":", "=", "/", "*", "\"", "'", "/*", "*/", "//", "xyz", "\n\n", "?",
+    };
+
+    @Test
+    void randomEditsMatchAFullLex() {
+        Random random = new Random(7);
+        for (int round = 0; round < 40; round++) {
+            StringBuilder text = new StringBuilder(LexerFuzz.generate(random, 300 + random.nextInt(700)));
+            Lexer lexer = new Lexer();
+            lex(lexer, text.toString());
+            for (int edit = 0; edit < 100; edit++) {
+                int offset = random.nextInt(text.length() + 1);
+                int removed = Math.min(random.nextInt(6), text.length() - offset);
+                String inserted = random.nextInt(3) == 0 ? "" : random.nextBoolean()
+                        ? INSERTIONS[random.nextInt(INSERTIONS.length)]
+                        : LexerFuzz.FRAGMENTS[random.nextInt(LexerFuzz.FRAGMENTS.length)];
+                text.replace(offset, offset + removed, inserted);
+
+                String editError = null;
+                try {
+                    TokenEdit change = lexer.applyEdit(offset, removed, inserted);
+                    assertTrue(change.getFirstIndex() >= 0 && change.getInsertedCount() >= 0);
+                } catch (SyntaxErrorException e) {
+                    editError = e.getMessage();
+                }
+
+                Lexer full = new Lexer();
+                String fullError = lex(full, text.toString());
+                String context = "round " + round + " edit " + edit;
+                assertEquals(fullError, editError, context + ": error");
+                LexerFuzz.assertSameTokens(full.getTokenBuffer(), lexer.getTokenBuffer(), context);
+            }
+        }
+    }
+
+    @Test
+    void editCountsDescribeTheChangedTokens() throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex("a := b + c\nd := e\n");
+        TokenEdit change = lexer.applyEdit(7, 1, "* 2 -");
+        assertEquals(List.of("a", ":=", "b", "*", "2", "-", "c", "d", ":=", "e"), values(lexer));
+        // b is re-lexed from the last token ending before the edit, and everything after c is kept
+        assertEquals(2, change.getFirstIndex());
+        assertEquals(2, change.getRemovedCount());
+        assertEquals(4, change.getInsertedCount());
+        assertEquals(2, lexer.getTokenBuffer().line(7));
+    }
+
+    @Test
+    void editsOutsideTheSourceAreRejected() throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex("a b");
+        assertThrows(IndexOutOfBoundsException.class, () -> lexer.applyEdit(2, 5, ""));
+        assertThrows(IndexOutOfBoundsException.class, () -> lexer.applyEdit(-1, 0, "x"));
+    }
+
+    // Lexes a source, returning the error message or null
+    private static String lex(Lexer lexer, String source) {
+        try {
+            lexer.lex(source);
+            return null;
+        } catch (SyntaxErrorException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static List<String> values(Lexer lexer) {
+        List<String> values = new ArrayList<>();
+        for (Token token : lexer.getTokens()) {
+            values.add(token.getValue());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,46 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+/**
+ * Random sources for the lexer tests, and the comparison of the tokens two lexes give,
+ * shared by LexerEditTest and ParallelLexerTest.
+ */
+final class LexerFuzz {
+    // Pieces of source, chosen so strings, comments and character literals cross newlines, chunk cuts and edits
+    static final String[] FRAGMENTS = {
+        "define", "start", "x", "total", "for", "while", "if", "12", "3.25", ".5",
+        " ", " ", "  ", "\n", "\n", "\n    ",
+        "(", ")", "[", "]", ";", ":", ",", ":=", "+", "-", "*", "/", "<", "<=", "<>", ">", ">=", "=",
+        "\"text\"", "\"a string\nover lines\"", "\"\"", "'c'", "'/'", "'\"'",
+        "// line comment\n", "# hash comment\n", "/* block */", "/* block\nover\nlines */", "/**/",
+    };
+
+    private LexerFuzz() {
+    }
+
+    // Returns a source of at least the given length made of random fragments
+    static String generate(Random random, int length) {
+        StringBuilder source = new StringBuilder(length + 32);
+        while (source.length() < length) {
+            String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+            // Keep words, numbers and punctuation from running together into other tokens
+            source.append(fragment).append(random.nextInt(4) == 0 ? "\n" : " ");
+        }
+        return source.toString();
+    }
+
+    // Checks that two token buffers hold the same tokens at the same places, and build tokens on the same lines
+    static void assertSameTokens(TokenBuffer expected, TokenBuffer actual, String context) {
+        assertEquals(expected.size(), actual.size(), context + ": token count");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(describe(expected, i), describe(actual, i), context + ": token " + i);
+            assertEquals(expected.get(i).getLineNumber(), actual.get(i).getLineNumber(), context + ": built token " + i);
+        }
+    }
+
+    private static String describe(TokenBuffer tokens, int index) {
+        return tokens.type(index) + " " + tokens.value(index) + " at " + tokens.start(index) + " line " + tokens.line(index);
+    }
+}
@@ -0,0 +1,139 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lexes small sources and checks the types and text of the tokens.
+ */
+class LexerTest {
+    @Test
+    void operatorsAreLexed() throws SyntaxErrorException {
+        assertTokens("total := total + i * j - 3 / k, x",
+                "WORD:total", "ASSIGN::=", "WORD:total", "PLUS:+", "WORD:i", "MULTIPLY:*", "WORD:j",
+                "MINUS:-", "NUMBER:3", "DIVIDE:/", "WORD:k", "COMMA:,", "WORD:x");
+    }
+
+    @Test
+    void twoCharacterComparisonsAreOneToken() throws SyntaxErrorException {
+        assertTokens("a<=b<>c>=d<e>f=g",
+                "WORD:a", "LTE:<=", "WORD:b", "NEQ:<>", "WORD:c", "GTE:>=", "WORD:d",
+                "LT:<", "WORD:e", "GT:>", "WORD:f", "EQ:=", "WORD:g");
+    }
+
+    @Test
+    void colonStaysAColonBeforeOtherCharacters() throws SyntaxErrorException {
+        assertTokens("n : integer; x :=1", "WORD:n", "COLON::", "WORD:integer", "SEMICOLON:;", "WORD:x", "ASSIGN::=", "NUMBER:1");
+    }
+
+    @Test
+    void slashIsDivisionUnlessItStartsAComment() throws SyntaxErrorException {
+        assertTokens("a / b // rest of line\nc /* block\n */ / d",
+                "WORD:a", "DIVIDE:/", "WORD:b", "WORD:c", "DIVIDE:/", "WORD:d");
+    }
+
+    @Test
+    void editCanJoinPunctuationIntoAPair() throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex("x : 1");
+        lexer.applyEdit(3, 0, "=");
+        assertEquals(List.of("WORD:x", "ASSIGN::=", "NUMBER:1"), describe(lexer.getTokens()));
+    }
+
+    @Test
+    void punctuationLongerThanTwoCharactersIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Lexer().addPunctuation("<=>", Token.Type.NEQ));
+    }
+
+    @Test
+    void characterTableAgreesWithTheClassificationOrder() {
+        Lexer lexer = new Lexer();
+        for (char c = 0; c < Character.MAX_VALUE; c++) {
+            assertEquals(expectedClass(lexer, c), lexer.charClass(c), "class of character " + (int) c);
+        }
+    }
+
+    @Test
+    void addedPunctuationUpdatesTheTable() throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        assertEquals(CharClass.INVALID, lexer.charClass('%'));
+        lexer.addPunctuation("%", Token.Type.MODULO);
+        assertEquals(CharClass.PUNCTUATION, lexer.charClass('%'));
+        lexer.lex("a % b");
+        assertEquals(List.of("WORD:a", "MODULO:%", "WORD:b"), describe(lexer.getTokens()));
+    }
+
+    @Test
+    void wordsAndNumbersOutsideAsciiAreLexed() throws SyntaxErrorException {
+        assertTokens("café naïve 12.5 for", "WORD:café", "WORD:naïve", "NUMBER:12.5", "FOR:for");
+    }
+
+    @Test
+    void mappedSourceLexesWordsOutsideAsciiLikeAString() throws SyntaxErrorException {
+        String text = "é := café + naïve * 2\nwrite é";
+        MappedSource source = new MappedSource(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        Lexer lexer = new Lexer();
+        lexer.lex(text);
+        List<String> expected = describe(lexer.getTokens());
+
+        List<Token> streamed = new ArrayList<>();
+        TokenStream stream = new Lexer().stream(source);
+        while (stream.hasNext()) {
+            streamed.add(stream.next());
+        }
+        assertEquals(expected, describe(streamed));
+        assertEquals(expected, describe(new ParallelLexer(new Lexer()).lex(source).asList()));
+    }
+
+    @Test
+    void invalidCharactersAreReported() {
+        Lexer lexer = new Lexer();
+        SyntaxErrorException error = assertThrows(SyntaxErrorException.class, () -> lexer.lex("a\nb ? c"));
+        assertEquals("Invalid character '?' at line 2", error.getMessage());
+    }
+
+    // The class of a character by the precedence the scanner has always used, with a slash before punctuation
+    // since it may start a comment
+    private static byte expectedClass(Lexer lexer, char c) {
+        if (Character.isLetter(c)) {
+            return CharClass.LETTER;
+        } else if (Character.isDigit(c) || c == '.') {
+            return CharClass.DIGIT;
+        } else if (c == '/') {
+            return CharClass.SLASH;
+        } else if (lexer.punctuationType(c) != null || c == ':' || c == '<' || c == '>') {
+            return CharClass.PUNCTUATION;
+        } else if (c == '"') {
+            return CharClass.QUOTE;
+        } else if (c == '\'') {
+            return CharClass.APOSTROPHE;
+        } else if (c == '#') {
+            return CharClass.HASH;
+        } else if (c == '\n') {
+            return CharClass.NEWLINE;
+        } else if (Character.isWhitespace(c)) {
+            return CharClass.WHITESPACE;
+        }
+        return CharClass.INVALID;
+    }
+
+    private static void assertTokens(String source, String... expected) throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex(source);
+        assertEquals(List.of(expected), describe(lexer.getTokens()));
+    }
+
+    private static List<String> describe(List<Token> tokens) {
+        List<String> described = new ArrayList<>();
+        for (Token token : tokens) {
+            described.add(token.getType() + ":" + token.getValue());
+        }
+        return described;
+    }
+}
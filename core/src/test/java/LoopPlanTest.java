@@ -0,0 +1,151 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks which loops the VariableResolver moves work out of, and runs the programs on
+ * the Interpreter, which runs the LoopPlans, and on the RegisterVM, which computes every
+ * expression where it is written, checking that both write the same.
+ */
+class LoopPlanTest {
+    private static final Consumer<ProgramNode> VM = program -> new RegisterVM(new IrCompiler(program).compile()).execute();
+
+    @Test
+    void invariantValuesAreHoistedToTheOutermostLoopTheyDoNotDependOn() {
+        // a * b is invariant in both loops and moves before the outer one; a * b + i reads the outer loop's variable, so
+        // it moves only out of the inner one
+        ForNode inner = new ForNode("j", new IntegerNode(1), new IntegerNode(4), List.of(
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"),
+                        math(MathOpNode.Operation.ADD, math(MathOpNode.Operation.MULTIPLY, variable("a"), variable("b")), variable("i")))),
+                assign("s", math(MathOpNode.Operation.ADD, variable("s"), math(MathOpNode.Operation.MULTIPLY, variable("r"), new RealNode(2f))))));
+        ForNode outer = new ForNode("i", new IntegerNode(1), new IntegerNode(5), List.of(inner));
+        ProgramNode program = program(List.of(integer("i"), integer("j"), integer("a"), integer("b"), integer("total"),
+                real("r"), real("s")),
+                assign("a", new IntegerNode(7)), assign("b", new IntegerNode(3)), assign("r", new RealNode(1.5f)),
+                assign("total", new IntegerNode(0)), assign("s", new RealNode(0f)),
+                outer,
+                call("writeln", variable("total"), variable("s")));
+
+        VariableResolver resolver = resolve(program);
+        assertNotNull(resolver.getLoopPlan(outer));
+        assertNotNull(resolver.getLoopPlan(inner));
+        EnginePrograms.assertSameOutput(program, VM);
+    }
+
+    @Test
+    void valuesTheLoopChangesAreNotHoisted() {
+        // bump changes a through its var parameter, and the while loop changes n, so neither product is invariant
+        FunctionNode bump = new FunctionNode("bump", List.of(new VariableNode("n", "integer", true)), new ArrayList<>(),
+                List.of(assign("n", math(MathOpNode.Operation.ADD, variable("n"), new IntegerNode(1)))), null);
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(5), List.of(
+                call("bump", variable("a")),
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"), math(MathOpNode.Operation.MULTIPLY, variable("a"), new IntegerNode(2))))));
+        WhileNode counting = new WhileNode(compare(BooleanCompareNode.ComparisonType.LESS_THAN, variable("n"), new IntegerNode(10)), List.of(
+                assign("n", math(MathOpNode.Operation.ADD, variable("n"), new IntegerNode(1))),
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"), math(MathOpNode.Operation.MULTIPLY, variable("n"), new IntegerNode(3))))));
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(),
+                List.of(integer("i"), integer("a"), integer("n"), integer("total")),
+                List.of(assign("a", new IntegerNode(1)), assign("n", new IntegerNode(0)), assign("total", new IntegerNode(0)),
+                        loop, counting, call("writeln", variable("total"), variable("a"))), null);
+        ProgramNode program = new ProgramNode(List.of(bump, start));
+
+        VariableResolver resolver = resolve(program);
+        assertNull(resolver.getLoopPlan(loop));
+        assertNull(resolver.getLoopPlan(counting));
+        EnginePrograms.assertSameOutput(program, VM);
+    }
+
+    @Test
+    void divisionThatCanFailIsNotHoistedOutOfALoopThatDoesNotRun() {
+        // Computed before the loop, a / d would divide by zero although the loop never runs; a / 2 cannot fail
+        ForNode never = new ForNode("i", new IntegerNode(1), new IntegerNode(0), List.of(
+                assign("x", math(MathOpNode.Operation.DIVIDE, variable("a"), variable("d")))));
+        WhileNode notEntered = new WhileNode(compare(BooleanCompareNode.ComparisonType.GREATER_THAN, variable("d"), new IntegerNode(0)), List.of(
+                assign("x", math(MathOpNode.Operation.MODULO, variable("a"), variable("d")))));
+        ForNode halving = new ForNode("i", new IntegerNode(1), new IntegerNode(3), List.of(
+                assign("x", math(MathOpNode.Operation.ADD, variable("x"), math(MathOpNode.Operation.DIVIDE, variable("a"), new IntegerNode(2))))));
+        ProgramNode program = program(List.of(integer("i"), integer("a"), integer("d"), integer("x")),
+                assign("a", new IntegerNode(9)), assign("d", new IntegerNode(0)), assign("x", new IntegerNode(0)),
+                never, notEntered, halving,
+                call("writeln", variable("x")));
+
+        VariableResolver resolver = resolve(program);
+        assertNull(resolver.getLoopPlan(never));
+        assertNull(resolver.getLoopPlan(notEntered));
+        assertNotNull(resolver.getLoopPlan(halving));
+        assertEquals("12\n", EnginePrograms.assertSameOutput(program, VM));
+    }
+
+    @Test
+    void inductionVariablesMatchTheProductTheyReplace() {
+        // i * k wraps around as the product does; k * i has the loop variable on the right; j * i steps by the outer
+        // loop's variable, which is invariant in the inner loop
+        ForNode wrapping = new ForNode("i", new IntegerNode(-3), new IntegerNode(10), List.of(
+                call("writeln", math(MathOpNode.Operation.MULTIPLY, variable("i"), variable("k"))),
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"), math(MathOpNode.Operation.MULTIPLY, variable("k"), variable("i"))))));
+        ForNode inner = new ForNode("j", new IntegerNode(1), new IntegerNode(4), List.of(
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"), math(MathOpNode.Operation.MULTIPLY, variable("j"), variable("i"))))));
+        ForNode outer = new ForNode("i", new IntegerNode(1), new IntegerNode(3), List.of(inner));
+        // The body writes its loop variable, so it cannot drive an induction variable
+        ForNode skipping = new ForNode("i", new IntegerNode(1), new IntegerNode(10), List.of(
+                assign("i", math(MathOpNode.Operation.ADD, variable("i"), new IntegerNode(1))),
+                assign("total", math(MathOpNode.Operation.ADD, variable("total"), math(MathOpNode.Operation.MULTIPLY, variable("i"), variable("k"))))));
+        ProgramNode program = program(List.of(integer("i"), integer("j"), integer("k"), integer("total")),
+                assign("k", new IntegerNode(1_000_000_000)), assign("total", new IntegerNode(0)),
+                wrapping, call("writeln", variable("total"), variable("i")),
+                outer, call("writeln", variable("total"), variable("i"), variable("j")),
+                skipping, call("writeln", variable("total"), variable("i")));
+
+        VariableResolver resolver = resolve(program);
+        assertNotNull(resolver.getLoopPlan(wrapping));
+        assertNotNull(resolver.getLoopPlan(inner));
+        assertNull(resolver.getLoopPlan(skipping));
+        EnginePrograms.assertSameOutput(program, VM);
+    }
+
+    private static VariableResolver resolve(ProgramNode program) {
+        VariableResolver resolver = new VariableResolver();
+        resolver.resolve(program);
+        return resolver;
+    }
+
+    // A program whose start function has the given locals and statements
+    private static ProgramNode program(List<VariableNode> locals, StatementNode... statements) {
+        return new ProgramNode(List.of(new FunctionNode("start", new ArrayList<>(), locals, List.of(statements), null)));
+    }
+
+    private static VariableNode integer(String name) {
+        return new VariableNode(name, "integer", false);
+    }
+
+    private static VariableNode real(String name) {
+        return new VariableNode(name, "real", false);
+    }
+
+    private static AssignmentNode assign(String name, ExpressionNode value) {
+        return new AssignmentNode(name, value);
+    }
+
+    private static FunctionCallNode call(String name, Node... arguments) {
+        return new FunctionCallNode(name, List.of(arguments));
+    }
+
+    private static VariableReferenceNode variable(String name) {
+        return new VariableReferenceNode(name);
+    }
+
+    private static MathOpNode math(MathOpNode.Operation operation, Node left, Node right) {
+        return new MathOpNode(operation, left, right);
+    }
+
+    private static BooleanCompareNode compare(BooleanCompareNode.ComparisonType type, Node left, Node right) {
+        return new BooleanCompareNode(type, left, right);
+    }
+}
@@ -0,0 +1,84 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lexes random sources with ParallelLexer, cut into small chunks so literals and
+ * comments often span a cut, and checks the tokens and errors against the sequential
+ * lexer.
+ */
+class ParallelLexerTest {
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void randomSourcesMatchTheSequentialLexer() throws SyntaxErrorException {
+        Random random = new Random(4);
+        for (int round = 0; round < 300; round++) {
+            String source = LexerFuzz.generate(random, 200 + random.nextInt(2000));
+            int chunkSize = 8 + random.nextInt(256);
+            assertSameTokens(source, chunkSize, "round " + round);
+        }
+    }
+
+    @Test
+    void errorsMatchTheSequentialLexer() {
+        Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            String valid = LexerFuzz.generate(random, 100 + random.nextInt(1000));
+            // Break the source at a random point with an unterminated literal or comment, or a stray character
+            String[] breakers = { "\"unterminated", "/* unclosed", "'", "''", "?" };
+            int at = random.nextInt(valid.length());
+            String source = valid.substring(0, at) + breakers[random.nextInt(breakers.length)] + valid.substring(at);
+            String sequential = errorOf(() -> lexSequential(source));
+            int chunkSize = 8 + random.nextInt(128);
+            String parallel = errorOf(() -> new ParallelLexer(new Lexer(), pool, chunkSize).lex(source));
+            assertEquals(sequential, parallel, "round " + round + " with chunks of " + chunkSize);
+        }
+    }
+
+    @Test
+    void singleWorkerLexesSequentially() throws SyntaxErrorException {
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            String source = LexerFuzz.generate(new Random(6), 5000);
+            LexerFuzz.assertSameTokens(lexSequential(source), new ParallelLexer(new Lexer(), single, 64).lex(source), "one worker");
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    private void assertSameTokens(String source, int chunkSize, String context) throws SyntaxErrorException {
+        LexerFuzz.assertSameTokens(lexSequential(source), new ParallelLexer(new Lexer(), pool, chunkSize).lex(source),
+                context + " with chunks of " + chunkSize);
+    }
+
+    private static TokenBuffer lexSequential(String source) throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex(source);
+        return lexer.getTokenBuffer();
+    }
+
+    // Returns the message and line of the syntax error a lex throws, or null if it succeeds
+    private static String errorOf(Lex lex) {
+        try {
+            lex.run();
+            return null;
+        } catch (SyntaxErrorException e) {
+            return e.getMessage() + " (" + e.getTokenIndex() + ")";
+        }
+    }
+
+    private interface Lex {
+        void run() throws SyntaxErrorException;
+    }
+}
@@ -0,0 +1,170 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs for loops marked by ParallelLoop both sequentially and in parallel, and checks
+ * that the two give the same output.
+ */
+class ParallelLoopTest {
+    private static final int LAST = 20000;
+
+    @Test
+    void lexerReadsParallelAsAKeyword() throws SyntaxErrorException {
+        Lexer lexer = new Lexer();
+        lexer.lex("parallel for");
+        assertEquals(Token.Type.PARALLEL, lexer.getTokens().get(0).getType());
+    }
+
+    @Test
+    void reductionsMatchSequentialLoop() {
+        Map<String, MathOpNode.Operation> reductions = Map.of(
+                "total", MathOpNode.Operation.ADD,
+                "sum", MathOpNode.Operation.ADD,
+                "product", MathOpNode.Operation.MULTIPLY);
+        String sequential = run(reductionProgram(null));
+        String parallel = run(reductionProgram(reductions));
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void conditionalWritesKeepTheLastValueWritten() {
+        String sequential = run(conditionalProgram(false));
+        String parallel = run(conditionalProgram(true));
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void calleeThatReadsAVarParameterFirstIsRejected() {
+        // addTo(var acc; n) reads acc before writing it, so each iteration depends on the one before
+        FunctionNode addTo = new FunctionNode("addTo",
+                List.of(new VariableNode("acc", "integer", true), new VariableNode("n", "integer", false)),
+                new ArrayList<>(), List.of(new AssignmentNode("acc",
+                        math(MathOpNode.Operation.ADD, variable("acc"), variable("n")))), null);
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(LAST),
+                List.of(new FunctionCallNode("addTo", List.of(variable("total"), variable("i")))));
+        ParallelLoop.mark(loop, Map.of());
+        ProgramNode program = callerProgram(addTo, loop);
+        RuntimeException error = assertThrows(RuntimeException.class, () -> new SemanticAnalysis().checkAssignments(program));
+        assertTrue(error.getMessage().contains("reads total before writing it"));
+    }
+
+    @Test
+    void calleeThatWritesAVarParameterOnSomePathsDoesNotDefineIt() {
+        // clip(var y; x) writes y only when x is even, so reading y after the call may see the previous iteration's value
+        FunctionNode clip = new FunctionNode("clip",
+                List.of(new VariableNode("y", "integer", true), new VariableNode("x", "integer", false)),
+                new ArrayList<>(), List.of(new IfNode(new BooleanCompareNode(BooleanCompareNode.ComparisonType.EQUAL,
+                        math(MathOpNode.Operation.MODULO, variable("x"), new IntegerNode(2)), new IntegerNode(0)),
+                        List.of(new AssignmentNode("y", variable("x"))), null, null)), null);
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(LAST),
+                List.of(new FunctionCallNode("clip", List.of(variable("total"), variable("i"))),
+                        new AssignmentNode("t", variable("total"))));
+        ParallelLoop.mark(loop, Map.of());
+        ProgramNode program = callerProgram(clip, loop);
+        assertThrows(RuntimeException.class, () -> new SemanticAnalysis().checkAssignments(program));
+    }
+
+    @Test
+    void markRejectsOtherOperations() {
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(LAST), new ArrayList<>());
+        assertThrows(IllegalArgumentException.class,
+                () -> ParallelLoop.mark(loop, Map.of("total", MathOpNode.Operation.SUBTRACT)));
+    }
+
+    // Sums i * 3 mod 7 into an integer and 0.5 into a real, and multiplies in 1 or -1 by the parity of i
+    private static ProgramNode reductionProgram(Map<String, MathOpNode.Operation> reductions) {
+        List<StatementNode> body = List.of(
+                new AssignmentNode("t", math(MathOpNode.Operation.MULTIPLY, variable("i"), new IntegerNode(3))),
+                new AssignmentNode("total", math(MathOpNode.Operation.ADD, variable("total"),
+                        math(MathOpNode.Operation.MODULO, variable("t"), new IntegerNode(7)))),
+                new AssignmentNode("sum", math(MathOpNode.Operation.ADD, new RealNode(0.5f), variable("sum"))),
+                new AssignmentNode("product", math(MathOpNode.Operation.MULTIPLY, variable("product"),
+                        math(MathOpNode.Operation.SUBTRACT, new IntegerNode(1),
+                                math(MathOpNode.Operation.MULTIPLY, new IntegerNode(2),
+                                        math(MathOpNode.Operation.MODULO, variable("i"), new IntegerNode(2)))))));
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(LAST), body);
+        if (reductions != null) {
+            ParallelLoop.mark(loop, reductions);
+        }
+        List<StatementNode> statements = List.of(
+                new AssignmentNode("total", new IntegerNode(5)),
+                new AssignmentNode("sum", new RealNode(0.25f)),
+                new AssignmentNode("product", new IntegerNode(1)),
+                loop,
+                new FunctionCallNode("writeln", List.of(variable("total"), variable("sum"), variable("product"),
+                        variable("t"), variable("i"))));
+        List<VariableNode> locals = List.of(
+                new VariableNode("i", "integer", false),
+                new VariableNode("t", "integer", false),
+                new VariableNode("total", "integer", false),
+                new VariableNode("product", "integer", false),
+                new VariableNode("sum", "real", false));
+        return new ProgramNode(List.of(new FunctionNode("start", new ArrayList<>(), locals, statements, null)));
+    }
+
+    // Writes t on every seventh iteration and u, through a var parameter, on the first nine only
+    private static ProgramNode conditionalProgram(boolean parallel) {
+        List<StatementNode> body = List.of(
+                new IfNode(new BooleanCompareNode(BooleanCompareNode.ComparisonType.EQUAL,
+                        math(MathOpNode.Operation.MODULO, variable("i"), new IntegerNode(7)), new IntegerNode(0)),
+                        List.of(new AssignmentNode("t", variable("i"))), null, null),
+                new IfNode(new BooleanCompareNode(BooleanCompareNode.ComparisonType.LESS_THAN, variable("i"), new IntegerNode(10)),
+                        List.of(new FunctionCallNode("setTo", List.of(variable("i"), variable("u")))), null, null));
+        ForNode loop = new ForNode("i", new IntegerNode(1), new IntegerNode(LAST), body);
+        if (parallel) {
+            ParallelLoop.mark(loop, Map.of());
+        }
+        FunctionNode setTo = new FunctionNode("setTo",
+                List.of(new VariableNode("x", "integer", false), new VariableNode("y", "integer", true)),
+                new ArrayList<>(), List.of(new AssignmentNode("y", variable("x"))), null);
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(),
+                List.of(new VariableNode("i", "integer", false), new VariableNode("t", "integer", false),
+                        new VariableNode("u", "integer", false)),
+                List.of(new AssignmentNode("t", new IntegerNode(-1)), loop,
+                        new FunctionCallNode("writeln", List.of(variable("t"), variable("u"), variable("i")))),
+                null);
+        return new ProgramNode(List.of(setTo, start));
+    }
+
+    // A start function that runs a loop calling the given function, then writes total and t
+    private static ProgramNode callerProgram(FunctionNode callee, ForNode loop) {
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(),
+                List.of(new VariableNode("i", "integer", false), new VariableNode("t", "integer", false),
+                        new VariableNode("total", "integer", false)),
+                List.of(new AssignmentNode("total", new IntegerNode(0)), loop,
+                        new FunctionCallNode("writeln", List.of(variable("total"), variable("t")))),
+                null);
+        return new ProgramNode(List.of(callee, start));
+    }
+
+    // Checks and runs a program in a session of its own, returning what it wrote
+    private static String run(ProgramNode program) {
+        new SemanticAnalysis().checkAssignments(program);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(new byte[0])), true);
+        session.run(() -> {
+            new Interpreter(program).executeProgram();
+            ConsoleIO.flush();
+        });
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static VariableReferenceNode variable(String name) {
+        return new VariableReferenceNode(name);
+    }
+
+    private static MathOpNode math(MathOpNode.Operation operation, Node left, Node right) {
+        return new MathOpNode(operation, left, right);
+    }
+}
@@ -0,0 +1,177 @@
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Stores lowered programs in a ProgramCache and reads them back, including entries
+ * that have been cut short or damaged.
+ */
+class ProgramCacheTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void writtenProgramReadsBackTheSame() {
+        IrProgram program = program(1);
+        IrProgram read = ProgramCache.read(ProgramCache.write(program));
+        assertEquals(program.start, read.start);
+        assertArrayEquals(program.strings, read.strings);
+        assertArrayEquals(program.reals, read.reals);
+        assertEquals(program.functions.length, read.functions.length);
+        for (int i = 0; i < program.functions.length; i++) {
+            IrFunction function = program.functions[i];
+            assertEquals(function.name, read.functions[i].name);
+            assertArrayEquals(function.code, read.functions[i].code);
+            assertEquals(function.intRegisters, read.functions[i].intRegisters);
+            assertEquals(function.realRegisters, read.functions[i].realRegisters);
+            assertArrayEquals(function.parameterRegisters, read.functions[i].parameterRegisters);
+        }
+        assertEquals(run(program), run(read));
+    }
+
+    @Test
+    void keyCoversTheSourceAndTheCompiler() throws NoSuchAlgorithmException {
+        ByteBuffer source = ByteBuffer.wrap("define start()\n".getBytes(StandardCharsets.UTF_8));
+        String key = ProgramCache.key(source);
+        assertEquals(key, ProgramCache.key(source));
+        assertNotEquals(key, ProgramCache.key(ByteBuffer.wrap("define start() \n".getBytes(StandardCharsets.UTF_8))));
+
+        // Without the compiler fingerprint the hash would be of the IR version and the source alone
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(ByteBuffer.allocate(4).putInt(0, Ir.VERSION));
+        digest.update(source.duplicate());
+        StringBuilder unfingerprinted = new StringBuilder();
+        for (byte b : digest.digest()) {
+            unfingerprinted.append(String.format("%02x", b));
+        }
+        assertNotEquals(unfingerprinted.toString(), key);
+    }
+
+    @Test
+    void storeEvictsTheLeastRecentlyUsedEntries() throws IOException {
+        long size = ProgramCache.write(program(1)).remaining();
+        ProgramCache cache = new ProgramCache(directory, 2 * size);
+        cache.store("first", program(1));
+        cache.store("second", program(2));
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(entry("first"), FileTime.fromMillis(now - 20_000));
+        Files.setLastModifiedTime(entry("second"), FileTime.fromMillis(now - 10_000));
+
+        // Loading the first entry makes it the most recently used, so the second is evicted for the third
+        assertNotNull(cache.load("first"));
+        cache.store("third", program(3));
+        assertTrue(Files.exists(entry("first")));
+        assertFalse(Files.exists(entry("second")));
+        assertTrue(Files.exists(entry("third")));
+    }
+
+    @Test
+    void truncatedEntryIsDeleted() throws IOException {
+        ProgramCache cache = new ProgramCache(directory, ProgramCache.DEFAULT_MAX_BYTES);
+        cache.store("entry", program(1));
+        byte[] bytes = Files.readAllBytes(entry("entry"));
+        Files.write(entry("entry"), Arrays.copyOf(bytes, bytes.length - 6));
+        assertNull(cache.load("entry"));
+        assertFalse(Files.exists(entry("entry")));
+    }
+
+    @Test
+    void entryWithCodeTheVmCannotRunIsDeleted() throws IOException {
+        // Each damage leaves the entry well formed, so only checking the code finds it
+        int[][] damages = {
+            {0, 99},   // an unknown opcode
+            {1, 7},    // a register outside the start function's window
+            {4, 5},    // a call to a function that does not exist
+            {5, 2},    // a call with more arguments than the callee has
+            {6, 1},    // an argument passed into the callee's real registers, of which it has none
+            {12, 3},   // a string constant that does not exist
+            {19, Ir.WRITELN}, // code that runs past its end
+        };
+        ProgramCache cache = new ProgramCache(directory, ProgramCache.DEFAULT_MAX_BYTES);
+        for (int[] damage : damages) {
+            IrProgram program = program(1);
+            program.functions[0].code[damage[0]] = damage[1];
+            assertThrows(IllegalArgumentException.class, () -> ProgramCache.read(ProgramCache.write(program)));
+            Files.write(entry("entry"), toArray(ProgramCache.write(program)));
+            assertNull(cache.load("entry"));
+            assertFalse(Files.exists(entry("entry")));
+        }
+    }
+
+    @Test
+    void jumpIntoTheMiddleOfAnInstructionIsRejected() {
+        IrProgram program = program(1);
+        // The loop in double jumps back to its branch; one word further is an operand of the branch
+        IrFunction twice = program.functions[1];
+        twice.code[twice.code.length - 2] = 7;
+        assertThrows(IllegalArgumentException.class, () -> ProgramCache.read(ProgramCache.write(program)));
+    }
+
+    // A program whose start function passes a constant to a function that doubles it through a var parameter, then
+    // writes the result, a string and a real
+    private static IrProgram program(int value) {
+        IrFunction start = new IrFunction("start", new int[] {
+            Ir.ICONST, 0, value,
+            Ir.CALL, 1, 1, 0, 0, 1,
+            Ir.WRITE_INT, 0,
+            Ir.WRITE_STRING, 0,
+            Ir.RCONST, 0, 0,
+            Ir.WRITE_REAL, 0,
+            Ir.WRITELN,
+            Ir.RETURN,
+        }, 1, 1, new int[0]);
+        // Adds the parameter to itself in a loop that runs once, so the function has a branch and a jump back
+        IrFunction twice = new IrFunction("double", new int[] {
+            Ir.ICONST, 1, 0,
+            Ir.ICONST, 2, 1,
+            Ir.IF_IGE, 1, 2, 18,
+            Ir.IADD, 0, 0, 0,
+            Ir.IINC, 1,
+            Ir.JUMP, 6,
+            Ir.RETURN,
+        }, 3, 0, new int[] {0});
+        return new IrProgram(new IrFunction[] {start, twice}, 0, new String[] {" and "}, new double[] {0.5});
+    }
+
+    // Runs a program on the VM in a session of its own, returning what it wrote
+    private static String run(IrProgram program) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(new byte[0])), true);
+        session.run(() -> {
+            new RegisterVM(program).execute();
+            ConsoleIO.flush();
+        });
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private Path entry(String key) {
+        return directory.resolve(key + ".shc");
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
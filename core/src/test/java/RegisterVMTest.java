@@ -0,0 +1,48 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lowers the programs of EnginePrograms with the IrCompiler and runs them on the
+ * RegisterVM, checking that they write what they write on the Interpreter, and that
+ * programs the IR does not cover are refused so the caller can fall back to the
+ * Interpreter.
+ */
+class RegisterVMTest {
+    private static final Consumer<ProgramNode> VM = program -> new RegisterVM(new IrCompiler(program).compile()).execute();
+
+    @Test
+    void integerArithmeticWrapsAround() {
+        assertEquals(EnginePrograms.WRAPAROUND_OUTPUT, EnginePrograms.assertSameOutput(EnginePrograms.integerWraparound(), VM));
+    }
+
+    @Test
+    void realArithmeticRoundsToFloat() {
+        EnginePrograms.assertSameOutput(EnginePrograms.realRounding(), VM);
+    }
+
+    @Test
+    void fusedRealBranchesOrderNanAndNegativeZeroLikeTheInterpreter() {
+        EnginePrograms.assertSameOutput(EnginePrograms.realBranches(), VM);
+    }
+
+    @Test
+    void varArgumentsAreWrittenBack() {
+        assertEquals(EnginePrograms.normalize(EnginePrograms.run(EnginePrograms.varWriteBackResult(), EnginePrograms.INTERPRETER)),
+                EnginePrograms.assertSameOutput(EnginePrograms.varWriteBack(), VM));
+    }
+
+    @Test
+    void programsTheIrDoesNotCoverAreRefused() {
+        // Each of these runs on the interpreter, so a caller that falls back still runs it
+        for (ProgramNode program : EnginePrograms.unsupported()) {
+            assertThrows(UnsupportedOperationException.class, () -> new IrCompiler(program).compile());
+            EnginePrograms.run(program, EnginePrograms.INTERPRETER);
+        }
+        assertThrows(UnsupportedOperationException.class, () -> new IrCompiler(EnginePrograms.withoutStart()).compile());
+    }
+}
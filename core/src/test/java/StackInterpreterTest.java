@@ -0,0 +1,176 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs hand-built programs on StackInterpreter and checks that they write what they
+ * write on Interpreter, including programs that recurse further than the Java stack
+ * allows.
+ */
+class StackInterpreterTest {
+    private static final int DEPTH = 100_000;
+
+    @Test
+    void recursionDeeperThanTheJavaStackRuns() throws InterruptedException {
+        ProgramNode program = countProgram(DEPTH);
+        // On a thread with a small stack the recursive interpreter overflows, and the stack interpreter does not
+        Throwable recursive = onSmallStack(() -> run(program, -1));
+        assertTrue(recursive instanceof StackOverflowError, "expected a stack overflow, got " + recursive);
+        AtomicReference<String> output = new AtomicReference<>();
+        Throwable stack = onSmallStack(() -> output.set(run(program, 64L << 20)));
+        assertEquals(null, stack);
+        assertEquals(run(countProgram(100), -1).replace("100", String.valueOf(DEPTH)), output.get());
+    }
+
+    @Test
+    void stackLimitIsReported() {
+        RuntimeException error = assertThrows(RuntimeException.class, () -> run(countProgram(DEPTH), 1L << 20));
+        assertEquals("Recursion too deep: the stack limit of 1 MB was reached calling count", error.getMessage());
+    }
+
+    @Test
+    void spareFramesAreReusedAcrossCallsOfDifferentSizes() {
+        // pair and same have frames of three slots and wide one of five, all called at the same depth; same reads its
+        // local before writing it, so a frame reused from pair must not keep pair's local
+        FunctionNode pair = new FunctionNode("pair", parameters(), List.of(new VariableNode("t", "integer", false)),
+                List.of(new AssignmentNode("t", math(MathOpNode.Operation.MULTIPLY, variable("a"), new IntegerNode(2))),
+                        new AssignmentNode("out", variable("t"))), null);
+        FunctionNode wide = new FunctionNode("wide", parameters(),
+                List.of(new VariableNode("p", "integer", false), new VariableNode("q", "integer", false),
+                        new VariableNode("r", "integer", false)),
+                List.of(new AssignmentNode("p", new IntegerNode(100)),
+                        new AssignmentNode("out", math(MathOpNode.Operation.ADD, variable("out"),
+                                math(MathOpNode.Operation.ADD, variable("p"),
+                                        math(MathOpNode.Operation.ADD, variable("q"), variable("a")))))), null);
+        FunctionNode same = new FunctionNode("same", parameters(), List.of(new VariableNode("s", "integer", false)),
+                List.of(new AssignmentNode("out", math(MathOpNode.Operation.ADD, variable("s"), variable("a")))), null);
+        List<StatementNode> statements = new ArrayList<>();
+        statements.add(new AssignmentNode("x", new IntegerNode(0)));
+        for (String name : List.of("pair", "wide", "same", "wide", "pair", "same")) {
+            statements.add(new FunctionCallNode(name, List.of(new IntegerNode(name.length()), variable("x"))));
+            statements.add(new FunctionCallNode("writeln", List.of(variable("x"))));
+        }
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(), List.of(new VariableNode("x", "integer", false)),
+                statements, null);
+        ProgramNode program = new ProgramNode(List.of(pair, wide, same, start));
+        String expected = run(program, -1);
+        assertEquals(String.join("\n", "8", "112", "4", "108", "8", "4", ""), expected.replace("\r", "").replaceAll(" +\n", "\n"));
+        assertEquals(expected, run(program, 1L << 20));
+    }
+
+    @Test
+    void selfTailCallInNestedIfsMatchesInterpreter() {
+        // Without reusing the caller's frame, DEPTH calls would need far more than the 1 MB stack limit
+        ProgramNode program = walkProgram(DEPTH);
+        String expected = run(program, -1);
+        assertEquals(expected, run(program, 1L << 20));
+        assertEquals(run(walkProgram(10), -1), run(walkProgram(10), 1L << 20));
+    }
+
+    // count(n; var total) recurses n deep before adding one to total on the way back, so no call is a tail call
+    private static ProgramNode countProgram(int depth) {
+        FunctionNode count = new FunctionNode("count",
+                List.of(new VariableNode("n", "integer", false), new VariableNode("total", "integer", true)),
+                new ArrayList<>(), List.of(
+                        new IfNode(compare(BooleanCompareNode.ComparisonType.GREATER_THAN, variable("n"), new IntegerNode(0)),
+                                List.of(new FunctionCallNode("count", List.of(
+                                        math(MathOpNode.Operation.SUBTRACT, variable("n"), new IntegerNode(1)), variable("total")))),
+                                null, null),
+                        new AssignmentNode("total", math(MathOpNode.Operation.ADD, variable("total"), new IntegerNode(1)))),
+                null);
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(), List.of(new VariableNode("total", "integer", false)),
+                List.of(new AssignmentNode("total", new IntegerNode(-1)),
+                        new FunctionCallNode("count", List.of(new IntegerNode(depth), variable("total"))),
+                        new FunctionCallNode("writeln", List.of(variable("total")))),
+                null);
+        return new ProgramNode(List.of(count, start));
+    }
+
+    // walk(n; var evens, odds) adds n to evens or odds, then calls itself as the last statement of either branch of an
+    // if nested in another
+    private static ProgramNode walkProgram(int last) {
+        List<Node> next = List.of(math(MathOpNode.Operation.SUBTRACT, variable("n"), new IntegerNode(1)),
+                variable("evens"), variable("odds"));
+        IfNode parity = new IfNode(compare(BooleanCompareNode.ComparisonType.EQUAL,
+                math(MathOpNode.Operation.MODULO, variable("n"), new IntegerNode(2)), new IntegerNode(0)),
+                List.of(new AssignmentNode("evens", math(MathOpNode.Operation.ADD, variable("evens"), variable("n"))),
+                        new FunctionCallNode("walk", next)),
+                null,
+                new ElseNode(List.of(new AssignmentNode("odds", math(MathOpNode.Operation.ADD, variable("odds"), variable("n"))),
+                        new FunctionCallNode("walk", next))));
+        FunctionNode walk = new FunctionNode("walk",
+                List.of(new VariableNode("n", "integer", false), new VariableNode("evens", "integer", true),
+                        new VariableNode("odds", "integer", true)),
+                new ArrayList<>(), List.of(new IfNode(compare(BooleanCompareNode.ComparisonType.GREATER_THAN, variable("n"),
+                        new IntegerNode(0)), List.of(parity), null, null)),
+                null);
+        FunctionNode start = new FunctionNode("start", new ArrayList<>(),
+                List.of(new VariableNode("e", "integer", false), new VariableNode("o", "integer", false)),
+                List.of(new FunctionCallNode("walk", List.of(new IntegerNode(last), variable("e"), variable("o"))),
+                        new FunctionCallNode("writeln", List.of(variable("e"), variable("o")))),
+                null);
+        return new ProgramNode(List.of(walk, start));
+    }
+
+    // The parameters (a; var out) shared by the functions of the spare frame test
+    private static List<VariableNode> parameters() {
+        return List.of(new VariableNode("a", "integer", false), new VariableNode("out", "integer", true));
+    }
+
+    // Runs a program in a session of its own on Interpreter, or on StackInterpreter with the given stack limit when it
+    // is not negative, returning what it wrote
+    private static String run(ProgramNode program, long stackLimitBytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Session session = new Session(new ConsoleIO(out, new ByteArrayInputStream(new byte[0])), true);
+        session.run(() -> {
+            try {
+                Interpreter interpreter = new Interpreter(program);
+                if (stackLimitBytes < 0) {
+                    interpreter.executeProgram();
+                } else {
+                    new StackInterpreter(interpreter, stackLimitBytes).executeProgram();
+                }
+            } finally {
+                ConsoleIO.flush();
+            }
+        });
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    // Runs a task on a thread with a 512 KB stack, returning what it threw, or null
+    private static Throwable onSmallStack(Runnable task) throws InterruptedException {
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        }, "small-stack", 512 << 10);
+        thread.start();
+        thread.join();
+        return thrown.get();
+    }
+
+    private static VariableReferenceNode variable(String name) {
+        return new VariableReferenceNode(name);
+    }
+
+    private static MathOpNode math(MathOpNode.Operation operation, Node left, Node right) {
+        return new MathOpNode(operation, left, right);
+    }
+
+    private static BooleanCompareNode compare(BooleanCompareNode.ComparisonType type, Node left, Node right) {
+        return new BooleanCompareNode(type, left, right);
+    }
+}
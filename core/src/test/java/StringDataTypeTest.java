@@ -0,0 +1,52 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Appends to and slices strings that share their characters.
+ */
+class StringDataTypeTest {
+    // Returns a string built by appending a piece many times, so it is backed by one shared builder
+    private static StringDataType repeated(String piece, int times) {
+        StringDataType text = new StringDataType("");
+        for (int i = 0; i < times; i++) {
+            text = text.append(new StringDataType(piece));
+        }
+        return text;
+    }
+
+    @Test
+    void appendsKeepEarlierStrings() {
+        StringDataType first = new StringDataType("ab");
+        StringDataType second = first.append(new StringDataType("cd"));
+        StringDataType third = second.append(new StringDataType("ef"));
+        StringDataType branch = second.append(new StringDataType("xy"));
+        assertEquals("ab", first.toString());
+        assertEquals("abcd", second.toString());
+        assertEquals("abcdef", third.toString());
+        assertEquals("abcdxy", branch.toString());
+    }
+
+    @Test
+    void shortSliceIsUnchangedByLaterAppends() {
+        StringDataType text = repeated("ab", 1000);
+        StringDataType tail = text.substring(1990, 2000);
+        StringDataType longer = text.append(new StringDataType("zz"));
+        StringDataType grown = tail.append(new StringDataType("!"));
+        assertEquals("ababababab", tail.toString());
+        assertEquals("ababababab!", grown.toString());
+        assertEquals(2002, longer.length());
+        assertEquals("abzz", longer.substring(1998, 2002).toString());
+    }
+
+    @Test
+    void longSliceSharesAndAppends() {
+        StringDataType text = repeated("ab", 100);
+        StringDataType most = text.substring(20, 200);
+        StringDataType grown = most.append(new StringDataType("c"));
+        assertEquals(181, grown.length());
+        assertEquals("abc", grown.substring(178, 181).toString());
+        assertEquals(text.toString().substring(20), most.toString());
+    }
+}
@@ -0,0 +1,117 @@
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replaces tokens in a TokenBuffer and checks the offsets and lines of the tokens after
+ * them, which are shifted lazily and folded in once enough shifts pile up.
+ */
+class TokenBufferTest {
+    @Test
+    void replaceShiftsTheTokensAfterIt() {
+        // Ten one-letter words, one per line, at offsets 0, 2, 4 and so on
+        StringBuilder source = new StringBuilder("a\nb\nc\nd\ne\nf\ng\nh\ni\nj\n");
+        TokenBuffer tokens = words(source);
+
+        // Replace c with two tokens spread over an extra line: "xx\nyy"
+        source.replace(4, 5, "xx\nyy");
+        TokenBuffer replacement = new TokenBuffer(source, new InternPool());
+        replacement.add(Token.Type.WORD, 4, 2, 3);
+        replacement.add(Token.Type.WORD, 7, 2, 4);
+        tokens.replace(2, 3, replacement, 4, 1);
+
+        assertEquals(11, tokens.size());
+        assertEquals("b", tokens.value(1));
+        assertEquals("xx", tokens.value(2));
+        assertEquals("yy", tokens.value(3));
+        assertEquals(4, tokens.line(3));
+        // d was at offset 6 on line 4 and moves four characters and one line on
+        assertEquals("d", tokens.value(4));
+        assertEquals(10, tokens.start(4));
+        assertEquals(5, tokens.line(4));
+        assertEquals(11, tokens.line(10));
+        assertEquals(11, tokens.get(10).getLineNumber());
+    }
+
+    @Test
+    void shiftsAccumulateAndFoldIntoTheArrays() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            source.append("w\n");
+        }
+        TokenBuffer tokens = words(source);
+        // Insert a blank line before token i every time, more often than the buffer keeps pending shifts
+        for (int edit = 0; edit < 80; edit++) {
+            int index = 99 - edit;
+            int start = tokens.start(index);
+            source.insert(start, '\n');
+            TokenBuffer replacement = new TokenBuffer(source, new InternPool());
+            replacement.add(Token.Type.WORD, start + 1, 1, tokens.line(index) + 1);
+            tokens.replace(index, index + 1, replacement, 1, 1);
+            checkAgainstSource(tokens, source);
+        }
+    }
+
+    @Test
+    void truncateDropsShiftsPastTheEnd() {
+        StringBuilder source = new StringBuilder("a\nb\nc\nd\n");
+        TokenBuffer tokens = words(source);
+        source.insert(2, "\n");
+        TokenBuffer replacement = new TokenBuffer(source, new InternPool());
+        replacement.add(Token.Type.WORD, 3, 1, 3);
+        tokens.replace(1, 2, replacement, 1, 1);
+        tokens.truncate(2);
+        assertEquals(2, tokens.size());
+        assertThrows(IndexOutOfBoundsException.class, () -> tokens.get(2));
+
+        // Tokens added after a truncate are stored as given
+        tokens.add(Token.Type.WORD, 5, 1, 4);
+        assertEquals(5, tokens.start(2));
+        assertEquals(4, tokens.line(2));
+        assertEquals("c", tokens.value(2));
+    }
+
+    @Test
+    void appendFoldsPendingShifts() {
+        StringBuilder source = new StringBuilder("a\nb\nc\n");
+        TokenBuffer tokens = words(source);
+        source.insert(0, "\n");
+        TokenBuffer replacement = new TokenBuffer(source, new InternPool());
+        replacement.add(Token.Type.WORD, 1, 1, 2);
+        tokens.replace(0, 1, replacement, 1, 1);
+
+        source.append("d\n");
+        TokenBuffer more = new TokenBuffer(source, new InternPool());
+        more.add(Token.Type.WORD, 7, 1, 5);
+        tokens.append(more);
+        checkAgainstSource(tokens, source);
+        assertEquals("d", tokens.value(3));
+    }
+
+    // Builds a buffer of the one-letter words of a source
+    private static TokenBuffer words(CharSequence source) {
+        TokenBuffer tokens = new TokenBuffer(source, new InternPool());
+        int line = 1;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+            } else {
+                tokens.add(Token.Type.WORD, i, 1, line);
+            }
+        }
+        return tokens;
+    }
+
+    // Checks each token's offset and line against a fresh scan of the source
+    private static void checkAgainstSource(TokenBuffer tokens, CharSequence source) {
+        TokenBuffer expected = words(source);
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.start(i), tokens.start(i), "start of token " + i);
+            assertEquals(expected.line(i), tokens.line(i), "line of token " + i);
+        }
+    }
+}